@@ -1,13 +1,25 @@
 package net.sothatsit.farpath;
 
+import net.sothatsit.farpath.path.PathScheduler;
+import net.sothatsit.farpath.path.PathService;
+import net.sothatsit.farpath.preprocessing.ChunkPreprocessor;
+import net.sothatsit.farpath.preprocessing.ClusterHierarchy;
+import net.sothatsit.farpath.preprocessing.ContractionHierarchy;
+import net.sothatsit.farpath.preprocessing.DistanceFieldCache;
+import net.sothatsit.farpath.preprocessing.LandmarkHeuristic;
+import net.sothatsit.farpath.preprocessing.MaterialTable;
+import net.sothatsit.farpath.preprocessing.PathCache;
 import net.sothatsit.farpath.preprocessing.PreprocessedWorld;
+import net.sothatsit.farpath.preprocessing.RegionCache;
 import org.bukkit.Bukkit;
 import org.bukkit.World;
 import org.bukkit.plugin.java.JavaPlugin;
 
-import java.util.HashMap;
+import java.io.File;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * The main entry point to the FarPath path-finding plugin.
@@ -16,12 +28,23 @@ import java.util.UUID;
  */
 public class FarPath extends JavaPlugin {
 
-    private final Map<UUID, PreprocessedWorld> worlds = new HashMap<>();
+    private final Map<UUID, PreprocessedWorld> worlds = new ConcurrentHashMap<>();
+    private ChunkPreprocessor preprocessor;
+    private MaterialTable materials;
+    private DistanceFieldCache distanceFields;
+    private PathService pathService;
 
     @Override
     public void onEnable() {
+        saveDefaultConfig();
+
+        preprocessor = new ChunkPreprocessor(getConfig().getInt("preprocessing.threads", 0));
+        materials = MaterialTable.create(getConfig().getConfigurationSection("materials"), getLogger());
+        distanceFields = createDistanceFields();
+        pathService = createPathService();
+
         for (World world : Bukkit.getWorlds()) {
-            worlds.put(world.getUID(), new PreprocessedWorld(this, world));
+            worlds.put(world.getUID(), createWorld(world));
         }
 
         FarPathCommand command = new FarPathCommand(this);
@@ -29,18 +52,163 @@ public class FarPath extends JavaPlugin {
 
         notNull(getCommand("farpath")).setExecutor(command);
         Bukkit.getPluginManager().registerEvents(listener, this);
+
+        long rebuildInterval = Math.max(1, getConfig().getLong("preprocessing.rebuild-interval", 5));
+        Bukkit.getScheduler().runTaskTimer(this, () -> {
+            for (PreprocessedWorld world : worlds.values()) {
+                world.rebuildDirtySections();
+            }
+        }, rebuildInterval, rebuildInterval);
+    }
+
+    /**
+     * @return The cache of distance fields shared by all worlds, or null if paths are refined by searching.
+     */
+    private DistanceFieldCache createDistanceFields() {
+        if (!getConfig().getBoolean("path-finding.distance-fields.enabled", false))
+            return null;
+
+        long maxMemoryMB = Math.max(1, getConfig().getLong("path-finding.distance-fields.max-memory-mb", 64));
+        return new DistanceFieldCache(maxMemoryMB * 1024 * 1024);
+    }
+
+    /**
+     * @return A new cache for the paths found through a world, or null if paths are not cached.
+     */
+    private PathCache createPathCache() {
+        if (!getConfig().getBoolean("path-finding.path-cache.enabled", false))
+            return null;
+
+        long maxMemoryMB = Math.max(1, getConfig().getLong("path-finding.path-cache.max-memory-mb", 16));
+        return new PathCache(maxMemoryMB * 1024 * 1024);
+    }
+
+    /**
+     * @return A new hierarchy of clusters for the chunks of a world, or null if paths search every node.
+     */
+    private ClusterHierarchy createClusterHierarchy() {
+        if (!getConfig().getBoolean("path-finding.hierarchy.enabled", false))
+            return null;
+
+        int levels = getConfig().getInt("path-finding.hierarchy.levels", 2);
+        return new ClusterHierarchy(Math.max(1, Math.min(4, levels)));
+    }
+
+    /**
+     * @return A new contraction hierarchy over the static areas of {@param world},
+     *         or null if it is disabled or the world has no static areas.
+     */
+    private ContractionHierarchy createContractionHierarchy(World world) {
+        if (!getConfig().getBoolean("path-finding.contraction.enabled", false))
+            return null;
+
+        List<String> areas = getConfig().getStringList("path-finding.contraction.static-areas." + world.getName());
+        return ContractionHierarchy.create(areas, getLogger());
+    }
+
+    /**
+     * @return A new heuristic using landmarks for the nodes of a world, or null if paths are only guided by distance.
+     */
+    private LandmarkHeuristic createLandmarks() {
+        if (!getConfig().getBoolean("path-finding.landmarks.enabled", false))
+            return null;
+
+        int count = Math.max(1, getConfig().getInt("path-finding.landmarks.count", 8));
+        long refreshSeconds = Math.max(0, getConfig().getLong("path-finding.landmarks.refresh-interval", 10));
+        return new LandmarkHeuristic(count, refreshSeconds * 1_000_000_000L);
+    }
+
+    private PathService createPathService() {
+        int queueDepth = Math.max(1, getConfig().getInt("path-finding.queue-depth", 1000));
+
+        if (!getConfig().getBoolean("path-finding.time-sliced.enabled", false))
+            return new PathService(this, getConfig().getInt("path-finding.threads", 0), queueDepth);
+
+        long minBudget = Math.max(1, getConfig().getLong("path-finding.time-sliced.min-tick-budget-us", 500));
+        long maxBudget = Math.max(minBudget, getConfig().getLong("path-finding.time-sliced.max-tick-budget-us", 5000));
+
+        PathScheduler scheduler = new PathScheduler(
+                Math.max(1, getConfig().getInt("path-finding.time-sliced.nodes-per-tick", 2000)),
+                Math.max(1, getConfig().getInt("path-finding.time-sliced.blocks-per-tick", 20000)),
+                minBudget, maxBudget
+        );
+        Bukkit.getScheduler().runTaskTimer(this, scheduler, 1, 1);
+
+        return new PathService(this, scheduler, queueDepth);
+    }
+
+    /**
+     * @return A new pre-processing of {@param world}, which pre-processes the chunks of the world that are already loaded.
+     */
+    private PreprocessedWorld createWorld(World world) {
+        PreprocessedWorld preprocessed = new PreprocessedWorld(
+                this, world, materials, createCache(world), distanceFields,
+                createPathCache(), createClusterHierarchy(), createContractionHierarchy(world),
+                createLandmarks()
+        );
+
+        if (getConfig().getBoolean("preprocessing.startup.parallel", true)) {
+            preprocessed.addLoadedParallel(Math.max(0, getConfig().getInt("preprocessing.startup.batch-size", 64)));
+        } else {
+            preprocessed.addLoaded();
+        }
+
+        return preprocessed;
+    }
+
+    /**
+     * @return The cache to store the pre-processed chunks of {@param world} in, or null if caching is disabled.
+     */
+    private RegionCache createCache(World world) {
+        if (!getConfig().getBoolean("preprocessing.cache", true))
+            return null;
+
+        File directory = new File(getDataFolder(), "cache" + File.separator + world.getUID());
+        return new RegionCache(directory, getLogger());
     }
 
     @Override
     public void onDisable() {
+        if (pathService != null) {
+            pathService.shutdown();
+            pathService = null;
+        }
 
+        if (preprocessor != null) {
+            preprocessor.shutdown();
+            preprocessor = null;
+        }
+
+        for (PreprocessedWorld world : worlds.values()) {
+            world.close();
+        }
+        worlds.clear();
+    }
+
+    public ChunkPreprocessor getPreprocessor() {
+        return preprocessor;
+    }
+
+    /**
+     * @return The service used to find paths on worker threads.
+     */
+    public PathService getPathService() {
+        return pathService;
+    }
+
+    /**
+     * @return The pre-processing of {@param world}, or null if it is not pre-processed.
+     *         Unlike {@link #getWorld(World)}, this may be called from any thread.
+     */
+    public PreprocessedWorld findWorld(World world) {
+        return worlds.get(world.getUID());
     }
 
     public PreprocessedWorld getWorld(World world) {
         PreprocessedWorld preprocessed = worlds.get(world.getUID());
 
         if (preprocessed == null) {
-            preprocessed = new PreprocessedWorld(this, world);
+            preprocessed = createWorld(world);
             worlds.put(world.getUID(), preprocessed);
         }
 
@@ -48,7 +216,11 @@ public class FarPath extends JavaPlugin {
     }
 
     public void removeWorld(World world) {
-        worlds.remove(world.getUID());
+        PreprocessedWorld preprocessed = worlds.remove(world.getUID());
+
+        if (preprocessed != null) {
+            preprocessed.close();
+        }
     }
 
     private static <T> T notNull(T value) {
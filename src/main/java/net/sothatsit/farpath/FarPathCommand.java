@@ -1,5 +1,9 @@
 package net.sothatsit.farpath;
 
+import net.sothatsit.farpath.preprocessing.BlockLoc;
+import net.sothatsit.farpath.preprocessing.PathCache;
+import net.sothatsit.farpath.preprocessing.PathQuery;
+import net.sothatsit.farpath.preprocessing.PreprocessedWorld;
 import org.bukkit.block.Block;
 import org.bukkit.block.BlockFace;
 import org.bukkit.command.Command;
@@ -43,12 +47,18 @@ public class FarPathCommand implements CommandExecutor {
         if (args[0].equalsIgnoreCase("path"))
             return path(player);
 
+        if (args[0].equalsIgnoreCase("compare"))
+            return compare(player);
+
         if (args[0].equalsIgnoreCase("chunk"))
             return chunk(player);
 
         if (args[0].equalsIgnoreCase("connections"))
             return connections(player);
 
+        if (args[0].equalsIgnoreCase("cache"))
+            return cache(player);
+
         return showHelp(sender);
     }
 
@@ -60,9 +70,57 @@ public class FarPathCommand implements CommandExecutor {
     private boolean path(Player player) {
         Block from = player.getLocation().getBlock().getRelative(BlockFace.DOWN);
         Block to = player.getTargetBlockExact(128);
+        if (to == null) {
+            player.sendMessage("You are not looking at a block");
+            return true;
+        }
+
+        main.getPathService().findPath(from, to).whenComplete((path, error) -> {
+            if (error != null) {
+                player.sendMessage("Error finding path: " + error.getMessage());
+            } else if (path == null) {
+                player.sendMessage("Could not find a path between blocks");
+            } else {
+                main.getWorld(player.getWorld()).debugPath(path.getBlocks());
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Find the path to the block the player is looking at with both unidirectional and
+     * bidirectional searches of the graph, and report the work done by each. The path cache
+     * is not used, so that the second search does not re-use the path of the first.
+     */
+    private boolean compare(Player player) {
+        Block from = player.getLocation().getBlock().getRelative(BlockFace.DOWN);
+        Block to = player.getTargetBlockExact(128);
+        if (to == null) {
+            player.sendMessage("You are not looking at a block");
+            return true;
+        }
 
-        if (!main.getWorld(player.getWorld()).debugPath(from, to)) {
-            player.sendMessage("Could not find a path between blocks");
+        PreprocessedWorld world = main.getWorld(player.getWorld());
+        for (boolean bidirectional : new boolean[] {false, true}) {
+            PathQuery query = new PathQuery(world, new BlockLoc(from), new BlockLoc(to), bidirectional);
+            query.setUseCache(false);
+
+            long start = System.nanoTime();
+            try {
+                query.step(Integer.MAX_VALUE, Integer.MAX_VALUE);
+            } catch (IllegalArgumentException exception) {
+                player.sendMessage("Error finding path: " + exception.getMessage());
+                return true;
+            }
+            long time = System.nanoTime() - start;
+
+            player.sendMessage(String.format(
+                    "%s: %s, %d nodes (%d forward, %d backward) and %d blocks expanded in %.2f ms",
+                    (bidirectional ? "Bidirectional" : "Unidirectional"),
+                    (query.getPath() == null ? "no path" : query.getPath().size() + " blocks"),
+                    query.getNodeExpansions(), query.getForwardNodeExpansions(), query.getBackwardNodeExpansions(),
+                    query.getBlockExpansions(), time / 1_000_000.0
+            ));
         }
         return true;
     }
@@ -80,4 +138,20 @@ public class FarPathCommand implements CommandExecutor {
         }
         return true;
     }
+
+    private boolean cache(Player player) {
+        PathCache pathCache = main.getWorld(player.getWorld()).getPathCache();
+        if (pathCache == null) {
+            player.sendMessage("Paths are not cached");
+            return true;
+        }
+
+        player.sendMessage(String.format(
+                "Path cache: %d entries using %.1f KB, routes %d hits / %d misses, segments %d hits / %d misses",
+                pathCache.size(), pathCache.getByteLength() / 1024.0,
+                pathCache.getRouteHits(), pathCache.getRouteMisses(),
+                pathCache.getSegmentHits(), pathCache.getSegmentMisses()
+        ));
+        return true;
+    }
 }
@@ -0,0 +1,64 @@
+package net.sothatsit.farpath.path;
+
+import net.sothatsit.farpath.preprocessing.BlockLoc;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A path of blocks through a world.
+ *
+ * @author Paddy Lamont
+ */
+public class Path {
+
+    private final World world;
+    private final List<BlockLoc> blocks;
+
+    public Path(World world, List<BlockLoc> blocks) {
+        if (blocks.isEmpty())
+            throw new IllegalArgumentException("a path must contain at least one block");
+
+        this.world = world;
+        this.blocks = Collections.unmodifiableList(new ArrayList<>(blocks));
+    }
+
+    public World getWorld() {
+        return world;
+    }
+
+    /**
+     * @return The locations of the blocks to traverse, in order, including the start and end blocks.
+     */
+    public List<BlockLoc> getBlocks() {
+        return blocks;
+    }
+
+    public int size() {
+        return blocks.size();
+    }
+
+    public BlockLoc getStart() {
+        return blocks.get(0);
+    }
+
+    public BlockLoc getEnd() {
+        return blocks.get(blocks.size() - 1);
+    }
+
+    /**
+     * @return The {@param index}'th block of this path. This must be called from the main server thread.
+     */
+    public Block getBlock(int index) {
+        BlockLoc loc = blocks.get(index);
+        return world.getBlockAt(loc.x, loc.y, loc.z);
+    }
+
+    @Override
+    public String toString() {
+        return "Path(" + world.getName() + ", " + getStart() + " -> " + getEnd() + ", " + size() + " blocks)";
+    }
+}
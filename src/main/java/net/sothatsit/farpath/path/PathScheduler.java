@@ -0,0 +1,284 @@
+package net.sothatsit.farpath.path;
+
+import net.sothatsit.farpath.preprocessing.BlockLoc;
+import net.sothatsit.farpath.preprocessing.PathQuery;
+import net.sothatsit.farpath.preprocessing.PreprocessedWorld;
+import org.bukkit.World;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Finds paths on the main server thread by advancing each path search a little every tick.
+ *
+ * Each tick, the active searches are advanced in turn in small slices until the time budget
+ * of the tick is used up, or until every search has used up its own budget for the tick.
+ * The time budget adapts to the load of the server. The time the main server thread spends working
+ * each tick, apart from advancing searches, is measured from the CPU time of the thread, and the
+ * budget is whatever is left of {@link #TARGET_TICK_NS} after it. Where the JVM cannot measure the
+ * CPU time of threads, the budget instead shrinks while ticks are taking longer than 50ms, and
+ * grows back while the server is keeping up.
+ *
+ * @author Paddy Lamont
+ */
+public class PathScheduler implements Runnable {
+
+    private static final long TICK_NS = 50_000_000L;
+
+    // The time that ticks should take at most, leaving some room for spikes in the work of the server
+    private static final long TARGET_TICK_NS = 45_000_000L;
+
+    // The smoothing applied to the measured duration of ticks
+    private static final double TICK_SMOOTHING = 0.1;
+
+    // The number of nodes and blocks each search is advanced by in each slice
+    private static final int SLICE_NODES = 64;
+    private static final int SLICE_BLOCKS = 512;
+
+    private final int nodesPerTick;
+    private final int blocksPerTick;
+    private final long minBudgetNS;
+    private final long maxBudgetNS;
+
+    // The searches being run, in the order they are advanced
+    private final List<Task> tasks = new ArrayList<>();
+
+    // The index of the task to advance first in the next tick
+    private int nextTaskIndex = 0;
+
+    private long budgetNS;
+    private long lastTickStart = 0;
+    private double smoothedTickNS = TICK_NS;
+
+    // Measures the CPU time of the main server thread, or null if the JVM cannot measure it
+    private final ThreadMXBean threadBean;
+
+    // The CPU time of the main server thread at the start of the last tick, and the time spent advancing
+    // searches in the last tick, so that the time spent on the rest of the tick can be measured
+    private long lastTickCPU = -1;
+    private long lastRunNS = 0;
+    private double smoothedWorkNS = 0;
+
+    /**
+     * @param nodesPerTick  The maximum number of nodes of the graph each search may process per tick.
+     * @param blocksPerTick The maximum number of blocks within regions each search may process per tick.
+     * @param minBudgetUS   The time that will always be given to advancing searches each tick, in microseconds.
+     * @param maxBudgetUS   The most time that will be given to advancing searches each tick, in microseconds.
+     */
+    public PathScheduler(int nodesPerTick, int blocksPerTick, long minBudgetUS, long maxBudgetUS) {
+        if (nodesPerTick <= 0 || blocksPerTick <= 0)
+            throw new IllegalArgumentException("nodesPerTick and blocksPerTick must be positive");
+        if (minBudgetUS <= 0 || maxBudgetUS < minBudgetUS)
+            throw new IllegalArgumentException("the budget must be positive, and maxBudgetUS must be at least minBudgetUS");
+
+        this.nodesPerTick = nodesPerTick;
+        this.blocksPerTick = blocksPerTick;
+        this.minBudgetNS = minBudgetUS * 1000;
+        this.maxBudgetNS = maxBudgetUS * 1000;
+        this.budgetNS = maxBudgetNS;
+
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        boolean measuresCPU = threadBean.isCurrentThreadCpuTimeSupported() && threadBean.isThreadCpuTimeEnabled();
+        this.threadBean = (measuresCPU ? threadBean : null);
+    }
+
+    /**
+     * @return The number of searches that have not yet completed.
+     */
+    public int getActiveCount() {
+        return tasks.size();
+    }
+
+    /**
+     * @return The time currently given to advancing searches each tick, in microseconds.
+     */
+    public long getBudgetUS() {
+        return budgetNS / 1000;
+    }
+
+    /**
+     * Start searching for a path from {@param start} to {@param end}. This must be called from the main server thread.
+     *
+     * @param priority      Searches with a higher priority are advanced before searches with a lower priority.
+     * @param bidirectional Whether to search the graph from both the start and the end at the same time.
+     */
+    public void submit(CompletableFuture<Path> future, int priority, boolean bidirectional,
+                       World world, PreprocessedWorld preprocessed, BlockLoc start, BlockLoc end) {
+
+        PathQuery query = new PathQuery(preprocessed, start, end, bidirectional);
+        Task task = new Task(future, priority, world, query);
+
+        // Keep the tasks ordered by priority, with tasks of the same priority in the order they were submitted
+        int index = tasks.size();
+        while (index > 0 && tasks.get(index - 1).priority < priority) {
+            index -= 1;
+        }
+
+        tasks.add(index, task);
+        if (index < nextTaskIndex) {
+            nextTaskIndex += 1;
+        }
+    }
+
+    /**
+     * Advance the active searches. This is run every tick on the main server thread.
+     */
+    @Override
+    public void run() {
+        long tickStart = System.nanoTime();
+        adaptBudget(tickStart);
+
+        advanceTasks(tickStart + budgetNS);
+        lastRunNS = System.nanoTime() - tickStart;
+    }
+
+    /**
+     * Advance the active searches in turn until {@param deadline}, or until they have all used up their budget for the tick.
+     */
+    private void advanceTasks(long deadline) {
+        if (tasks.isEmpty())
+            return;
+
+        for (Task task : tasks) {
+            task.nodesLeft = nodesPerTick;
+            task.blocksLeft = blocksPerTick;
+        }
+
+        // Advance the searches in turn, continuing from where the last tick ran out of time
+        int index = Math.min(nextTaskIndex, tasks.size());
+        int idleTurns = 0;
+
+        while (!tasks.isEmpty() && idleTurns < tasks.size()) {
+            if (index >= tasks.size()) {
+                index = 0;
+            }
+
+            Task task = tasks.get(index);
+            if (task.advance()) {
+                tasks.remove(index);
+                idleTurns = 0;
+                continue;
+            }
+
+            idleTurns = (task.hasBudgetLeft() ? 0 : idleTurns + 1);
+            index += 1;
+
+            if (System.nanoTime() >= deadline)
+                break;
+        }
+
+        nextTaskIndex = index;
+    }
+
+    /**
+     * Give searches the time left of each tick after the rest of the work of the server, or if that cannot be
+     * measured, shrink the time budget while the server is taking longer than 50ms per tick and grow it back otherwise.
+     *
+     * The CPU time of the main server thread between the starts of consecutive ticks is the time it spent working,
+     * and so unlike the time between the ticks, it still measures the load of the server while it is keeping up.
+     */
+    private void adaptBudget(long tickStart) {
+        if (threadBean != null) {
+            long tickCPU = threadBean.getCurrentThreadCpuTime();
+            if (lastTickCPU != -1) {
+                long workNS = Math.max(0, tickCPU - lastTickCPU - lastRunNS);
+                smoothedWorkNS += (workNS - smoothedWorkNS) * TICK_SMOOTHING;
+            }
+            lastTickCPU = tickCPU;
+
+            long leftNS = TARGET_TICK_NS - (long) smoothedWorkNS;
+            budgetNS = Math.max(minBudgetNS, Math.min(maxBudgetNS, leftNS));
+            return;
+        }
+
+        // The time between the starts of consecutive ticks includes the time the server sleeps waiting for the
+        // next tick when it is keeping up, and so it only exceeds 50ms when the server is lagging behind
+        if (lastTickStart != 0) {
+            long tickNS = tickStart - lastTickStart;
+            smoothedTickNS += (tickNS - smoothedTickNS) * TICK_SMOOTHING;
+        }
+        lastTickStart = tickStart;
+
+        if (smoothedTickNS > TICK_NS * 1.05) {
+            budgetNS = Math.max(minBudgetNS, budgetNS * 3 / 4);
+        } else {
+            budgetNS = Math.min(maxBudgetNS, budgetNS + (maxBudgetNS - minBudgetNS) / 20 + 1);
+        }
+    }
+
+    /**
+     * Cancel all searches that have not yet completed.
+     */
+    public void shutdown() {
+        for (Task task : tasks) {
+            task.query.cancel();
+            task.future.cancel(false);
+        }
+        tasks.clear();
+    }
+
+    /**
+     * A search for a path that is being advanced each tick.
+     */
+    private static class Task {
+
+        private final CompletableFuture<Path> future;
+        private final int priority;
+        private final World world;
+        private final PathQuery query;
+
+        // The number of nodes and blocks this search may still process this tick
+        private int nodesLeft;
+        private int blocksLeft;
+
+        private Task(CompletableFuture<Path> future, int priority, World world, PathQuery query) {
+            this.future = future;
+            this.priority = priority;
+            this.world = world;
+            this.query = query;
+        }
+
+        private boolean hasBudgetLeft() {
+            return nodesLeft > 0 && blocksLeft > 0;
+        }
+
+        /**
+         * Advance this search by one slice, within its budget for this tick.
+         *
+         * @return Whether this search has completed, or been cancelled.
+         */
+        private boolean advance() {
+            if (future.isDone()) {
+                query.cancel();
+                return true;
+            }
+
+            if (!hasBudgetLeft())
+                return false;
+
+            long nodesBefore = query.getNodeExpansions();
+            long blocksBefore = query.getBlockExpansions();
+
+            boolean complete;
+            try {
+                complete = query.step(Math.min(SLICE_NODES, nodesLeft), Math.min(SLICE_BLOCKS, blocksLeft));
+            } catch (RuntimeException exception) {
+                future.completeExceptionally(exception);
+                return true;
+            }
+
+            nodesLeft -= (int) (query.getNodeExpansions() - nodesBefore);
+            blocksLeft -= (int) (query.getBlockExpansions() - blocksBefore);
+
+            if (!complete)
+                return false;
+
+            List<BlockLoc> blocks = query.getPath();
+            future.complete(blocks == null ? null : new Path(world, blocks));
+            return true;
+        }
+    }
+}
@@ -0,0 +1,287 @@
+package net.sothatsit.farpath.path;
+
+import net.sothatsit.farpath.FarPath;
+import net.sothatsit.farpath.preprocessing.BlockLoc;
+import net.sothatsit.farpath.preprocessing.PreprocessedWorld;
+import org.bukkit.Bukkit;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Finds paths on a pool of worker threads, so that requesting paths never blocks the main server thread.
+ * Alternatively, paths can be found on the main server thread a little at a time each tick by a
+ * {@link PathScheduler}, for servers that cannot spare threads for path-finding.
+ *
+ * Requests are queued by priority, and the number of queued requests is bounded. The futures
+ * returned are completed on the main server thread, and requests can be cancelled by cancelling
+ * their future. Cancelled requests that have not yet started are never run.
+ *
+ * @author Paddy Lamont
+ */
+public class PathService {
+
+    /**
+     * The priority of requests that are not given a priority.
+     */
+    public static final int DEFAULT_PRIORITY = 0;
+
+    private final FarPath main;
+    private final ThreadPoolExecutor executor;
+    private final PathScheduler scheduler;
+    private final int maxQueued;
+
+    // The number of requests that have been queued, but have not yet started. When paths are
+    // found by the scheduler, this is instead the number of requests that have not yet completed.
+    private final AtomicInteger queued = new AtomicInteger();
+
+    // Used to run requests of the same priority in the order they were made
+    private final AtomicLong nextSequence = new AtomicLong();
+
+    /**
+     * Find paths on a pool of worker threads.
+     *
+     * @param threads   The number of worker threads to use, or 0 to choose based on the available processors.
+     * @param maxQueued The maximum number of requests that can be waiting to be run at once.
+     */
+    public PathService(FarPath main, int threads, int maxQueued) {
+        if (maxQueued <= 0)
+            throw new IllegalArgumentException("maxQueued must be positive");
+
+        if (threads <= 0) {
+            threads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        }
+
+        this.main = main;
+        this.scheduler = null;
+        this.maxQueued = maxQueued;
+
+        AtomicInteger threadCounter = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(
+                threads, threads,
+                0, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<>(),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "FarPath Path-Finder #" + threadCounter.incrementAndGet());
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.NORM_PRIORITY - 1);
+                    return thread;
+                }
+        );
+    }
+
+    /**
+     * Find paths on the main server thread using {@param scheduler}, which must be run every tick.
+     *
+     * @param maxQueued The maximum number of requests that can be in progress at once.
+     */
+    public PathService(FarPath main, PathScheduler scheduler, int maxQueued) {
+        if (maxQueued <= 0)
+            throw new IllegalArgumentException("maxQueued must be positive");
+
+        this.main = main;
+        this.executor = null;
+        this.scheduler = scheduler;
+        this.maxQueued = maxQueued;
+    }
+
+    /**
+     * @return The number of requests that are waiting to be run.
+     */
+    public int getQueuedCount() {
+        return queued.get();
+    }
+
+    /**
+     * Request a path from {@param start} to {@param end} with the default priority.
+     *
+     * @see #findPath(Block, Block, int)
+     */
+    public CompletableFuture<Path> findPath(Block start, Block end) {
+        return findPath(start, end, DEFAULT_PRIORITY);
+    }
+
+    /**
+     * Request a path from {@param start} to {@param end}, searching the graph from the start only.
+     *
+     * @see #findPath(Block, Block, int, boolean)
+     */
+    public CompletableFuture<Path> findPath(Block start, Block end, int priority) {
+        return findPath(start, end, priority, false);
+    }
+
+    /**
+     * Request a path from {@param start} to {@param end}, which must both be blocks on a surface in the same world.
+     * This may be called from any thread.
+     *
+     * @param priority      Requests with a higher priority are run before requests with a lower priority.
+     * @param bidirectional Whether to search the graph from both the start and the end at the same time, which
+     *                      expands fewer nodes for paths around large obstacles near the end.
+     *
+     * @return A future completed on the main server thread with the path found, or with null if there is no
+     *         path between the blocks. The future is completed exceptionally with a
+     *         {@link RejectedExecutionException} if too many requests are already queued.
+     *
+     * @throws IllegalArgumentException If {@param start} or {@param end} is null, or they are in different worlds.
+     */
+    public CompletableFuture<Path> findPath(Block start, Block end, int priority, boolean bidirectional) {
+        if (start == null || end == null)
+            throw new IllegalArgumentException("start and end cannot be null");
+
+        World world = start.getWorld();
+        if (!world.equals(end.getWorld()))
+            throw new IllegalArgumentException("start and end must be in the same world");
+
+        CompletableFuture<Path> future = new CompletableFuture<>();
+
+        PreprocessedWorld preprocessed = main.findWorld(world);
+        if (preprocessed == null) {
+            future.completeExceptionally(new IllegalArgumentException("world " + world.getName() + " is not pre-processed"));
+            return future;
+        }
+
+        if (queued.incrementAndGet() > maxQueued) {
+            queued.decrementAndGet();
+            future.completeExceptionally(new RejectedExecutionException("too many path requests are queued"));
+            return future;
+        }
+
+        if (scheduler != null) {
+            future.whenComplete((path, error) -> queued.decrementAndGet());
+            schedule(future, priority, bidirectional, world, preprocessed, new BlockLoc(start), new BlockLoc(end));
+            return future;
+        }
+
+        PathTask task = new PathTask(
+                future, priority, nextSequence.getAndIncrement(), bidirectional,
+                world, preprocessed, new BlockLoc(start), new BlockLoc(end)
+        );
+
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException exception) {
+            queued.decrementAndGet();
+            future.completeExceptionally(exception);
+            return future;
+        }
+
+        // Remove cancelled requests from the queue so that they do not take up space in it
+        future.whenComplete((path, error) -> {
+            if (future.isCancelled() && executor.remove(task)) {
+                queued.decrementAndGet();
+            }
+        });
+
+        return future;
+    }
+
+    /**
+     * Submit a request to the scheduler on the main server thread.
+     */
+    private void schedule(CompletableFuture<Path> future, int priority, boolean bidirectional,
+                          World world, PreprocessedWorld preprocessed, BlockLoc start, BlockLoc end) {
+
+        if (Bukkit.isPrimaryThread()) {
+            scheduler.submit(future, priority, bidirectional, world, preprocessed, start, end);
+            return;
+        }
+
+        if (!main.isEnabled()) {
+            future.cancel(false);
+            return;
+        }
+
+        Bukkit.getScheduler().runTask(main, () -> {
+            scheduler.submit(future, priority, bidirectional, world, preprocessed, start, end);
+        });
+    }
+
+    /**
+     * Stop accepting new requests, and cancel all requests that have not yet been started.
+     */
+    public void shutdown() {
+        if (scheduler != null) {
+            scheduler.shutdown();
+            return;
+        }
+
+        for (Runnable runnable : executor.shutdownNow()) {
+            queued.decrementAndGet();
+            ((PathTask) runnable).future.cancel(false);
+        }
+    }
+
+    /**
+     * Complete {@param future} on the main server thread.
+     */
+    private void deliver(CompletableFuture<Path> future, Path path, Throwable error) {
+        if (!main.isEnabled()) {
+            future.cancel(false);
+            return;
+        }
+
+        Bukkit.getScheduler().runTask(main, () -> {
+            if (error != null) {
+                future.completeExceptionally(error);
+            } else {
+                future.complete(path);
+            }
+        });
+    }
+
+    /**
+     * A request for a path that is queued to be run on the worker threads.
+     */
+    private class PathTask implements Runnable, Comparable<PathTask> {
+
+        private final CompletableFuture<Path> future;
+        private final int priority;
+        private final long sequence;
+        private final boolean bidirectional;
+
+        private final World world;
+        private final PreprocessedWorld preprocessed;
+        private final BlockLoc start;
+        private final BlockLoc end;
+
+        private PathTask(CompletableFuture<Path> future, int priority, long sequence, boolean bidirectional,
+                         World world, PreprocessedWorld preprocessed, BlockLoc start, BlockLoc end) {
+
+            this.future = future;
+            this.priority = priority;
+            this.sequence = sequence;
+            this.bidirectional = bidirectional;
+            this.world = world;
+            this.preprocessed = preprocessed;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public void run() {
+            queued.decrementAndGet();
+
+            if (future.isDone())
+                return;
+
+            try {
+                List<BlockLoc> blocks = preprocessed.findPath(start, end, bidirectional);
+                deliver(future, (blocks == null ? null : new Path(world, blocks)), null);
+            } catch (Throwable error) {
+                deliver(future, null, error);
+            }
+        }
+
+        @Override
+        public int compareTo(PathTask other) {
+            if (priority != other.priority)
+                return Integer.compare(other.priority, priority);
+
+            return Long.compare(sequence, other.sequence);
+        }
+    }
+}
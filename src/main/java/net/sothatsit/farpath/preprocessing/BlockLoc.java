@@ -31,6 +31,14 @@ public class BlockLoc {
         return add(block.getX(), block.getY(), block.getZ());
     }
 
+    public BlockLoc subtract(BlockLoc other) {
+        return add(-other.x, -other.y, -other.z);
+    }
+
+    public BlockLoc add(BlockLoc other) {
+        return add(other.x, other.y, other.z);
+    }
+
     public BlockLoc add(int dx, int dy, int dz) {
         return new BlockLoc(x + dx, y + dy, z + dz);
     }
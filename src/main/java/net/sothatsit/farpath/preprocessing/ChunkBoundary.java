@@ -0,0 +1,310 @@
+package net.sothatsit.farpath.preprocessing;
+
+import java.util.Arrays;
+
+/**
+ * The surfaces formed by the blocks along the edges of two adjacent chunk regions.
+ *
+ * The surfaces are labelled from the walkable blocks and connections already calculated for the
+ * two regions, so no region has to be built for the boundary, and this does not access the world.
+ * Only the connections that cross between the two regions have to be calculated.
+ *
+ * @author Paddy Lamont
+ */
+class ChunkBoundary {
+
+    private static final int CHUNK_SIZE = 16;
+
+    private final PreprocessedRegion one;
+    private final PreprocessedRegion two;
+    private final int height;
+
+    // The direction from region one to region two
+    private final int dirX;
+    private final int dirZ;
+
+    // The world location of the first block along the edge of region one
+    private final int edgeX;
+    private final int edgeZ;
+
+    // The surface of each block along the edges, or 0 if the block is not walkable
+    private final int[] surfaces;
+    private int surfaceCount;
+
+    // The pairs of blocks that can be stepped between directly to cross from region one to region two,
+    // grouped by surface. The crossings of a surface are from crossingStarts[surfaceID - 1] up to
+    // crossingStarts[surfaceID], with the blocks of each at crossings[2 * crossing] and crossings[2 * crossing + 1].
+    private int[] crossingStarts;
+    private int[] crossings;
+
+    /**
+     * @param one The region of a chunk.
+     * @param two The region of a chunk next to {@param one}, but not diagonally.
+     */
+    public ChunkBoundary(PreprocessedRegion one, PreprocessedRegion two) {
+        this.one = one;
+        this.two = two;
+        this.height = one.getHeight();
+
+        this.dirX = Integer.signum(two.getOrigin().x - one.getOrigin().x);
+        this.dirZ = Integer.signum(two.getOrigin().z - one.getOrigin().z);
+        if (Math.abs(dirX) + Math.abs(dirZ) != 1)
+            throw new IllegalArgumentException("one and two must be next to each other");
+
+        this.edgeX = one.getOrigin().x + (dirX > 0 ? CHUNK_SIZE - 1 : 0);
+        this.edgeZ = one.getOrigin().z + (dirZ > 0 ? CHUNK_SIZE - 1 : 0);
+
+        this.surfaces = new int[2 * CHUNK_SIZE * height];
+        labelSurfaces();
+    }
+
+    /**
+     * @return The index of the block {@param offset} blocks along the edge of
+     *         region one if {@param side} is 0, or region two if it is 1.
+     */
+    private static int index(int side, int y, int offset) {
+        return (y * 2 + side) * CHUNK_SIZE + offset;
+    }
+
+    /**
+     * @return The number of blocks along the edges of the two regions.
+     */
+    public int getBlockCount() {
+        return surfaces.length;
+    }
+
+    public int getX(int index) {
+        int side = (index / CHUNK_SIZE) & 1;
+        int offset = index % CHUNK_SIZE;
+        return edgeX + side * dirX + (dirX == 0 ? offset : 0);
+    }
+
+    public int getY(int index) {
+        return index / (2 * CHUNK_SIZE);
+    }
+
+    public int getZ(int index) {
+        int side = (index / CHUNK_SIZE) & 1;
+        int offset = index % CHUNK_SIZE;
+        return edgeZ + side * dirZ + (dirZ == 0 ? offset : 0);
+    }
+
+    /**
+     * @return Whether the block at {@param index} is in region one, rather than region two.
+     */
+    public boolean isInOne(int index) {
+        return ((index / CHUNK_SIZE) & 1) == 0;
+    }
+
+    /**
+     * @return The surface ID of the block at {@param index} in the region it is in.
+     */
+    public int getRegionSurfaceID(int index) {
+        PreprocessedRegion region = (isInOne(index) ? one : two);
+        return region.getSurfaceIDByWorldLoc(getX(index), getY(index), getZ(index));
+    }
+
+    /**
+     * @return The index of the block at {@param index} in the region it is in.
+     */
+    public int getRegionIndex(int index) {
+        PreprocessedRegion region = (isInOne(index) ? one : two);
+        return region.getIndexByWorldLoc(getX(index), getY(index), getZ(index));
+    }
+
+    /**
+     * @return The largest ID of any surface along the boundary, or 0 if there are no surfaces.
+     */
+    public int getMaxSurfaceID() {
+        return surfaceCount;
+    }
+
+    /**
+     * @return The surface that the block at {@param index} belongs to, or 0 if it is not walkable.
+     */
+    public int getSurfaceID(int index) {
+        return surfaces[index];
+    }
+
+    /**
+     * @return The number of pairs of blocks that can be stepped between to cross the boundary in {@param surfaceID}.
+     */
+    public int getCrossingCount(int surfaceID) {
+        return crossingStarts[surfaceID] - crossingStarts[surfaceID - 1];
+    }
+
+    /**
+     * @return The index of the block in region one of the {@param crossing}'th crossing in {@param surfaceID}.
+     */
+    public int getCrossingFrom(int surfaceID, int crossing) {
+        return crossings[2 * (crossingStarts[surfaceID - 1] + crossing)];
+    }
+
+    /**
+     * @return The index of the block in region two of the {@param crossing}'th crossing in {@param surfaceID}.
+     */
+    public int getCrossingTo(int surfaceID, int crossing) {
+        return crossings[2 * (crossingStarts[surfaceID - 1] + crossing) + 1];
+    }
+
+    /**
+     * Label each group of connected blocks along the edges with a unique surface ID, using union-find.
+     */
+    private void labelSurfaces() {
+        int[] parents = new int[surfaces.length];
+        for (int index = 0; index < surfaces.length; ++index) {
+            parents[index] = (isWalkable(index) ? index : -1);
+        }
+
+        int[] pairs = new int[64];
+        int pairCount = 0;
+
+        for (int index = 0; index < surfaces.length; ++index) {
+            if (parents[index] < 0)
+                continue;
+
+            int y = getY(index);
+            int offset = index % CHUNK_SIZE;
+            boolean inOne = isInOne(index);
+            PreprocessedRegion region = (inOne ? one : two);
+
+            // Connections along the edge are the same as those already calculated for the region
+            int connectionMask = region.getConnectionMaskByWorldLoc(getX(index), y, getZ(index));
+            for (; connectionMask != 0; connectionMask &= connectionMask - 1) {
+                SurfaceConnection connection = SurfaceConnection.fromOrdinal(Integer.numberOfTrailingZeros(connectionMask));
+                if (connection.getDx() * dirX + connection.getDz() * dirZ != 0)
+                    continue;
+
+                int alongOffset = (dirX == 0 ? connection.getDx() : connection.getDz());
+                union(parents, index, index(inOne ? 0 : 1, y + connection.getDy(), offset + alongOffset));
+            }
+
+            if (!inOne)
+                continue;
+
+            // Connections that cross between the regions have to be calculated
+            for (int dy = -1; dy <= 1; ++dy) {
+                for (int dOffset = -1; dOffset <= 1; ++dOffset) {
+                    int y2 = y + dy;
+                    int offset2 = offset + dOffset;
+                    if (y2 < 0 || y2 >= height || offset2 < 0 || offset2 >= CHUNK_SIZE)
+                        continue;
+
+                    int index2 = index(1, y2, offset2);
+                    if (parents[index2] < 0 || !canCross(index, index2))
+                        continue;
+
+                    union(parents, index, index2);
+
+                    if (2 * pairCount + 2 > pairs.length) {
+                        pairs = Arrays.copyOf(pairs, pairs.length * 2);
+                    }
+                    pairs[2 * pairCount] = index;
+                    pairs[2 * pairCount + 1] = index2;
+                    pairCount += 1;
+                }
+            }
+        }
+
+        // Give each group of connected blocks a surface ID, in the order they are first found
+        for (int index = 0; index < surfaces.length; ++index) {
+            if (parents[index] < 0)
+                continue;
+
+            int root = findRoot(parents, index);
+            if (root == index) {
+                surfaces[index] = ++surfaceCount;
+            } else {
+                surfaces[index] = surfaces[root];
+            }
+        }
+
+        // Group the crossings by the surface they are in
+        this.crossingStarts = new int[surfaceCount + 1];
+        for (int pair = 0; pair < pairCount; ++pair) {
+            crossingStarts[surfaces[pairs[2 * pair]]] += 1;
+        }
+        for (int surfaceID = 1; surfaceID <= surfaceCount; ++surfaceID) {
+            crossingStarts[surfaceID] += crossingStarts[surfaceID - 1];
+        }
+
+        this.crossings = new int[2 * pairCount];
+        int[] nextCrossing = new int[surfaceCount + 1];
+        System.arraycopy(crossingStarts, 0, nextCrossing, 1, surfaceCount);
+        for (int pair = 0; pair < pairCount; ++pair) {
+            int crossing = nextCrossing[surfaces[pairs[2 * pair]]]++;
+            crossings[2 * crossing] = pairs[2 * pair];
+            crossings[2 * crossing + 1] = pairs[2 * pair + 1];
+        }
+    }
+
+    /**
+     * Merge the groups containing the blocks at {@param index1} and {@param index2}, keeping the smaller root.
+     */
+    private static void union(int[] parents, int index1, int index2) {
+        int root1 = findRoot(parents, index1);
+        int root2 = findRoot(parents, index2);
+
+        if (root1 < root2) {
+            parents[root2] = root1;
+        } else if (root2 < root1) {
+            parents[root1] = root2;
+        }
+    }
+
+    private static int findRoot(int[] parents, int index) {
+        while (parents[index] != index) {
+            // Halve the path to the root, so that later searches are faster
+            parents[index] = parents[parents[index]];
+            index = parents[index];
+        }
+        return index;
+    }
+
+    private boolean isWalkable(int index) {
+        return getRegionSurfaceID(index) != 0;
+    }
+
+    private boolean isFreeSpace(int x, int y, int z) {
+        PreprocessedRegion region = (one.contains(x, y, z) ? one : two);
+        BlockLoc origin = region.getOrigin();
+        return region.isFreeSpace(x - origin.x, y - origin.y, z - origin.z);
+    }
+
+    /**
+     * This mirrors the checks made between blocks within a region, for
+     * the walkable blocks at {@param index1} and {@param index2}.
+     *
+     * @return Whether it is possible to walk directly between the blocks at {@param index1} and {@param index2}.
+     */
+    private boolean canCross(int index1, int index2) {
+        int x1 = getX(index1);
+        int y1 = getY(index1);
+        int z1 = getZ(index1);
+        int x2 = getX(index2);
+        int y2 = getY(index2);
+        int z2 = getZ(index2);
+
+        // Ensure that x1, y1, z1 is always at a lower or equal elevation
+        if (y1 > y2) {
+            int swapX = x1, swapY = y1, swapZ = z1;
+            x1 = x2;
+            y1 = y2;
+            z1 = z2;
+            x2 = swapX;
+            y2 = swapY;
+            z2 = swapZ;
+        }
+
+        // Check that we're not going to hit our head
+        if (y1 != y2 && !isFreeSpace(x1, y1 + 1, z1))
+            return false;
+
+        // Check for straight line walk
+        if (x1 == x2 || z1 == z2)
+            return true;
+
+        // Check that we have space for walking diagonally
+        return isFreeSpace(x1, y2, z2) && isFreeSpace(x2, y2, z1);
+    }
+}
@@ -0,0 +1,119 @@
+package net.sothatsit.farpath.preprocessing;
+
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * A pool of worker threads used to pre-process chunks off of the main server thread.
+ * Large batches of chunks can also be pre-processed in parallel, using the same number of threads.
+ *
+ * @author Paddy Lamont
+ */
+public class ChunkPreprocessor {
+
+    private final ExecutorService executor;
+    private final ForkJoinPool forkJoinPool;
+
+    /**
+     * @param threads The number of worker threads to use, or 0 to choose based on the available processors.
+     */
+    public ChunkPreprocessor(int threads) {
+        if (threads <= 0) {
+            threads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+        }
+
+        AtomicInteger threadCounter = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "FarPath Preprocessor #" + threadCounter.incrementAndGet());
+            thread.setDaemon(true);
+            thread.setPriority(Thread.NORM_PRIORITY - 1);
+            return thread;
+        });
+
+        AtomicInteger forkJoinThreadCounter = new AtomicInteger();
+        this.forkJoinPool = new ForkJoinPool(
+                threads,
+                pool -> {
+                    ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                    thread.setName("FarPath Batch Preprocessor #" + forkJoinThreadCounter.incrementAndGet());
+                    thread.setPriority(Thread.NORM_PRIORITY - 1);
+                    return thread;
+                },
+                null, false
+        );
+    }
+
+    /**
+     * Run {@param task} on one of the worker threads.
+     *
+     * @return A future that is completed with the result of {@param task}.
+     */
+    public <T> CompletableFuture<T> submit(Supplier<T> task) {
+        return CompletableFuture.supplyAsync(task, executor);
+    }
+
+    /**
+     * Run {@param task} on each of {@param items} in parallel, using as many threads as the worker pool.
+     *
+     * @return A future that is completed once {@param task} has been run on all of {@param items}.
+     */
+    public <T> CompletableFuture<Void> submitAll(List<T> items, Consumer<T> task) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+
+        forkJoinPool.execute(() -> {
+            try {
+                new ForEachTask<>(items, 0, items.size(), task).invoke();
+                future.complete(null);
+            } catch (Throwable error) {
+                future.completeExceptionally(error);
+            }
+        });
+
+        return future;
+    }
+
+    /**
+     * Stop accepting new tasks, and discard all tasks that have not yet been started.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+        forkJoinPool.shutdownNow();
+    }
+
+    /**
+     * Runs a task on a range of items, splitting the range in half until each item is run separately.
+     */
+    private static class ForEachTask<T> extends RecursiveAction {
+
+        private final List<T> items;
+        private final int from;
+        private final int to;
+        private final Consumer<T> task;
+
+        private ForEachTask(List<T> items, int from, int to, Consumer<T> task) {
+            this.items = items;
+            this.from = from;
+            this.to = to;
+            this.task = task;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= 1) {
+                if (from < to) {
+                    task.accept(items.get(from));
+                }
+                return;
+            }
+
+            int middle = (from + to) >>> 1;
+            invokeAll(
+                    new ForEachTask<>(items, from, middle, task),
+                    new ForEachTask<>(items, middle, to, task)
+            );
+        }
+    }
+}
@@ -0,0 +1,937 @@
+package net.sothatsit.farpath.preprocessing;
+
+import net.sothatsit.farpath.util.IndexedHeap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A hierarchy of clusters of chunks over the {@link NodeGraph} of a {@link PreprocessedWorld}, so that
+ * long paths can be found without searching every node along them.
+ *
+ * At the first level, chunks are grouped into clusters of 4x4 chunks, and at each level above that,
+ * clusters of the level below are grouped into clusters of 4x4. The entrances of a cluster are the
+ * nodes between one of its chunks and a chunk outside of it. Each cluster stores the cost of the
+ * shortest path within the cluster between each pair of its entrances, found by searching between
+ * the entrances of the clusters of the level below, or between the nodes of its chunks at the first level.
+ *
+ * Searches cross the largest clusters that contain neither the start nor the end in one step between
+ * their entrances, and only search the nodes of the chunks in the clusters around the start and end.
+ * As the costs between entrances are the costs of the shortest paths within each cluster, the paths
+ * found are as short as those found by searching the graph directly. Each step across a cluster is
+ * then refined into the nodes it crosses, by searching the level below within the cluster.
+ *
+ * Clusters of the first level are marked dirty while holding the write lock of the world whenever the
+ * nodes of any of their chunks change, and are rebuilt later on the worker threads from a copy of the
+ * connections within them. Clusters of the levels above are only marked dirty once the entrances or costs
+ * of a cluster within them change when it is rebuilt. Until then, the clusters containing a dirty cluster
+ * are marked as waiting on it. Searches cross dirty and waiting clusters using the levels below them,
+ * and so are never affected by costs that are out of date.
+ *
+ * @author Paddy Lamont
+ */
+public class ClusterHierarchy {
+
+    // Each cluster contains 4x4 clusters of the level below, or 4x4 chunks at the first level
+    private static final int LEVEL_SHIFT = 2;
+    private static final int LEVEL_WIDTH = 1 << LEVEL_SHIFT;
+    private static final int MAX_LEVELS = 8;
+
+    // The most clusters that are rebuilt at once, so that they do not hold up the pre-processing of chunks
+    private static final int MAX_REBUILDS = 8;
+
+    private static final int[] NO_ENTRANCES = new int[0];
+    private static final float[] NO_COSTS = new float[0];
+
+    private final int levels;
+
+    // The clusters of each level by their coordinates, and the dirty clusters of each level. Index 0 is unused.
+    private final List<Map<Long, Cluster>> clusters;
+    private final List<Set<Cluster>> dirtyClusters;
+    private int rebuildCount = 0;
+
+    /**
+     * @param levels The number of levels of clusters above the nodes of chunks.
+     */
+    public ClusterHierarchy(int levels) {
+        if (levels < 1 || levels > MAX_LEVELS)
+            throw new IllegalArgumentException("levels must be between 1 and " + MAX_LEVELS);
+
+        this.levels = levels;
+        this.clusters = new ArrayList<>();
+        this.dirtyClusters = new ArrayList<>();
+
+        for (int level = 0; level <= levels; ++level) {
+            clusters.add(new HashMap<>());
+            dirtyClusters.add(new LinkedHashSet<>());
+        }
+    }
+
+    /**
+     * @return The number of levels of clusters above the nodes of chunks.
+     */
+    public int getLevels() {
+        return levels;
+    }
+
+    /**
+     * @return The number of clusters at the level {@param level}.
+     */
+    public int getClusterCount(int level) {
+        return clusters.get(level).size();
+    }
+
+    /**
+     * @return The number of clusters at all levels that are waiting to be rebuilt.
+     */
+    public int getDirtyCount() {
+        int count = 0;
+        for (Set<Cluster> levelDirty : dirtyClusters) {
+            count += levelDirty.size();
+        }
+        return count;
+    }
+
+    private static long key(int x, int z) {
+        return ((long) x << 32) | (z & 0xFFFFFFFFL);
+    }
+
+    /**
+     * @return The cluster of the level {@param level} at the cluster coordinates {@param x} and {@param z}, or null.
+     */
+    private Cluster getCluster(int level, int x, int z) {
+        return clusters.get(level).get(key(x, z));
+    }
+
+    /**
+     * @return The cluster of the level {@param level} containing the chunk at {@param chunk}, or null.
+     */
+    private Cluster getCluster(int level, ChunkLoc chunk) {
+        int shift = LEVEL_SHIFT * level;
+        return getCluster(level, chunk.x >> shift, chunk.z >> shift);
+    }
+
+    /**
+     * Mark the cluster of the first level containing the chunk at {@param chunk} as dirty, as the nodes of the
+     * chunk or the connections between them have changed. The clusters of the levels above are marked as
+     * waiting on it until it is rebuilt. The write lock must be held when calling this.
+     */
+    void markDirty(ChunkLoc chunk) {
+        markDirty(1, chunk.x >> LEVEL_SHIFT, chunk.z >> LEVEL_SHIFT);
+    }
+
+    /**
+     * Mark the cluster of the level {@param level} at {@param x} and {@param z} as dirty,
+     * creating it if it does not exist, and mark the clusters containing it as waiting.
+     */
+    private void markDirty(int level, int x, int z) {
+        Cluster cluster = clusters.get(level).computeIfAbsent(key(x, z), key -> new Cluster(level, x, z));
+        cluster.dirty = true;
+        cluster.dirtyVersion += 1;
+        dirtyClusters.get(level).add(cluster);
+
+        updateWaiting(cluster);
+    }
+
+    /**
+     * Update whether each of the clusters containing {@param cluster} is waiting on a cluster within it.
+     */
+    private void updateWaiting(Cluster cluster) {
+        int x = cluster.x;
+        int z = cluster.z;
+
+        for (int level = cluster.level + 1; level <= levels; ++level) {
+            x >>= LEVEL_SHIFT;
+            z >>= LEVEL_SHIFT;
+
+            Cluster parent = getCluster(level, x, z);
+            if (parent == null)
+                continue;
+
+            parent.waiting = hasDirtyChildren(parent);
+        }
+    }
+
+    /**
+     * Find the dirty clusters that can be rebuilt now, and mark them as being rebuilt. Clusters are only
+     * rebuilt once none of the clusters within them are dirty or waiting, each cluster is only rebuilt by
+     * one task at a time, and at most {@link #MAX_REBUILDS} clusters are rebuilt at once. This must be
+     * called from the main server thread.
+     *
+     * @return The clusters to be rebuilt using {@link #copyGraph(PreprocessedWorld, Cluster)} and
+     *         {@link #findCosts(ClusterGraph)}, after which each must be passed to
+     *         {@link #finishRebuild(Cluster, ClusterCosts)}.
+     */
+    List<Cluster> startRebuilds() {
+        List<Cluster> started = new ArrayList<>();
+
+        for (int level = 1; level <= levels; ++level) {
+            for (Cluster cluster : dirtyClusters.get(level)) {
+                if (rebuildCount >= MAX_REBUILDS)
+                    return started;
+                if (cluster.rebuilding || hasDirtyChildren(cluster))
+                    continue;
+
+                cluster.rebuilding = true;
+                rebuildCount += 1;
+                started.add(cluster);
+            }
+        }
+
+        return started;
+    }
+
+    /**
+     * @return Whether any of the clusters within {@param cluster} are dirty or waiting.
+     */
+    private boolean hasDirtyChildren(Cluster cluster) {
+        if (cluster.level == 1)
+            return false;
+
+        for (int dx = 0; dx < LEVEL_WIDTH; ++dx) {
+            for (int dz = 0; dz < LEVEL_WIDTH; ++dz) {
+                Cluster child = getCluster(cluster.level - 1, cluster.x * LEVEL_WIDTH + dx, cluster.z * LEVEL_WIDTH + dz);
+                if (child != null && (child.dirty || child.waiting))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Copy the connections that searches within {@param cluster} follow, so that the costs between its entrances
+     * can be found without holding the lock of the world. This only reads the graph and clusters, and so may be
+     * called from any thread while holding the read lock of {@param world}.
+     */
+    ClusterGraph copyGraph(PreprocessedWorld world, Cluster cluster) {
+        NodeGraph graph = world.getGraph();
+        int[] entrances = findEntrances(world, cluster);
+
+        // Copy the connections of every node that can be reached from the entrances within the cluster
+        Map<Integer, Integer> slots = new HashMap<>();
+        List<Integer> ids = new ArrayList<>();
+        List<int[]> neighbours = new ArrayList<>();
+        List<float[]> costs = new ArrayList<>();
+
+        for (int entrance : entrances) {
+            slots.put(entrance, ids.size());
+            ids.add(entrance);
+        }
+
+        List<Integer> targets = new ArrayList<>();
+        List<Float> targetCosts = new ArrayList<>();
+        for (int slot = 0; slot < ids.size(); ++slot) {
+            int id = ids.get(slot);
+            Node node = graph.getNode(id);
+
+            targets.clear();
+            targetCosts.clear();
+            if (cluster.contains(node.chunk1)) {
+                copyConnectionsThrough(graph, id, node.chunk1, cluster.level - 1, targets, targetCosts);
+            }
+            if (cluster.contains(node.chunk2)) {
+                copyConnectionsThrough(graph, id, node.chunk2, cluster.level - 1, targets, targetCosts);
+            }
+
+            int[] slotNeighbours = new int[targets.size()];
+            float[] slotCosts = new float[targets.size()];
+            for (int index = 0; index < slotNeighbours.length; ++index) {
+                int target = targets.get(index);
+                Integer targetSlot = slots.get(target);
+                if (targetSlot == null) {
+                    targetSlot = ids.size();
+                    slots.put(target, targetSlot);
+                    ids.add(target);
+                }
+
+                slotNeighbours[index] = targetSlot;
+                slotCosts[index] = targetCosts.get(index);
+            }
+
+            neighbours.add(slotNeighbours);
+            costs.add(slotCosts);
+        }
+
+        return new ClusterGraph(
+                cluster.dirtyVersion, entrances,
+                neighbours.toArray(new int[0][]),
+                costs.toArray(new float[0][])
+        );
+    }
+
+    /**
+     * Add the connections from the node {@param id} through the chunk at {@param chunk}, at the level
+     * {@param level}, to {@param targets} and {@param costs}. These are the connections that
+     * {@link #expandThrough(Frontier, int, double, ChunkLoc, int)} follows.
+     */
+    private void copyConnectionsThrough(NodeGraph graph, int id, ChunkLoc chunk, int level,
+                                        List<Integer> targets, List<Float> costs) {
+        if (level == 0) {
+            for (int index = 0; index < graph.getDegree(id); ++index) {
+                int neighbour = graph.getNeighbour(id, index);
+                if (graph.getNode(neighbour).touches(chunk)) {
+                    targets.add(neighbour);
+                    costs.add(graph.getCost(id, index));
+                }
+            }
+            return;
+        }
+
+        Cluster cluster = getCluster(level, chunk);
+        if (cluster == null)
+            return;
+
+        int row = cluster.indexOf(id);
+        if (row < 0)
+            return;
+
+        int count = cluster.entrances.length;
+        for (int column = 0; column < count; ++column) {
+            float entranceCost = cluster.costs[row * count + column];
+            if (column != row && entranceCost != Float.POSITIVE_INFINITY) {
+                targets.add(cluster.entrances[column]);
+                costs.add(entranceCost);
+            }
+        }
+    }
+
+    /**
+     * Find the costs of the shortest paths between the entrances of the cluster copied into {@param clusterGraph}.
+     * This only reads the copy, and so may be called from any thread without holding the lock of the world.
+     */
+    ClusterCosts findCosts(ClusterGraph clusterGraph) {
+        int[] entrances = clusterGraph.entrances;
+        int count = entrances.length;
+        int slotCount = clusterGraph.neighbours.length;
+        float[] costs = new float[count * count];
+
+        // The entrances are the first slots of the copied graph
+        SearchWorkspace workspace = SearchWorkspace.current();
+        IndexedHeap toProcess = workspace.getOpenSet();
+
+        for (int row = 0; row < count; ++row) {
+            workspace.reset(slotCount);
+            workspace.visit(row, 0, row);
+            toProcess.add(row, 0);
+
+            while (!toProcess.isEmpty()) {
+                int slot = toProcess.poll();
+                workspace.markProcessed(slot);
+
+                double cost = workspace.getCost(slot);
+                int[] neighbours = clusterGraph.neighbours[slot];
+                float[] neighbourCosts = clusterGraph.costs[slot];
+
+                for (int index = 0; index < neighbours.length; ++index) {
+                    int neighbour = neighbours[index];
+                    double neighbourCost = cost + neighbourCosts[index];
+                    if (workspace.isProcessed(neighbour))
+                        continue;
+                    if (workspace.isVisited(neighbour) && workspace.getCost(neighbour) <= neighbourCost)
+                        continue;
+
+                    workspace.visit(neighbour, neighbourCost, slot);
+                    toProcess.add(neighbour, neighbourCost);
+                }
+            }
+
+            for (int column = 0; column < count; ++column) {
+                costs[row * count + column] = (workspace.isProcessed(column)
+                        ? (float) workspace.getCost(column)
+                        : Float.POSITIVE_INFINITY);
+            }
+        }
+
+        return new ClusterCosts(clusterGraph.dirtyVersion, entrances, costs);
+    }
+
+    /**
+     * @return The IDs of the nodes between a chunk of {@param cluster} and a chunk outside of it, in ascending order.
+     */
+    private int[] findEntrances(PreprocessedWorld world, Cluster cluster) {
+        NodeGraph graph = world.getGraph();
+        List<Integer> entrances = new ArrayList<>();
+
+        for (int dx = 0; dx < LEVEL_WIDTH; ++dx) {
+            for (int dz = 0; dz < LEVEL_WIDTH; ++dz) {
+                int x = cluster.x * LEVEL_WIDTH + dx;
+                int z = cluster.z * LEVEL_WIDTH + dz;
+
+                if (cluster.level == 1) {
+                    ChunkLoc chunk = new ChunkLoc(x, z);
+                    for (Node node : world.getChunkNodes(chunk)) {
+                        if (!cluster.contains(node.getOtherChunk(chunk))) {
+                            entrances.add(node.getID());
+                        }
+                    }
+                    continue;
+                }
+
+                // The entrances of a cluster are the entrances of the clusters within it that lead outside of it
+                Cluster child = getCluster(cluster.level - 1, x, z);
+                if (child == null)
+                    continue;
+
+                for (int id : child.entrances) {
+                    Node node = graph.getNode(id);
+                    if (!cluster.contains(node.chunk1) || !cluster.contains(node.chunk2)) {
+                        entrances.add(id);
+                    }
+                }
+            }
+        }
+
+        int[] array = new int[entrances.size()];
+        for (int index = 0; index < array.length; ++index) {
+            array[index] = entrances.get(index);
+        }
+        Arrays.sort(array);
+        return array;
+    }
+
+    /**
+     * Replace the costs of {@param cluster} with {@param costs}, unless it has been marked dirty again since
+     * they were found, or they could not be found. The cluster containing {@param cluster} is only marked
+     * dirty if its entrances or costs changed. This must be called from the main server thread while
+     * holding the write lock of the world.
+     *
+     * @param costs The costs found by {@link #findCosts(ClusterGraph)}, or null if they could not be found.
+     */
+    void finishRebuild(Cluster cluster, ClusterCosts costs) {
+        cluster.rebuilding = false;
+        rebuildCount -= 1;
+
+        // The cluster stays dirty, and will be rebuilt again
+        if (costs == null || costs.dirtyVersion != cluster.dirtyVersion)
+            return;
+
+        boolean changed = !Arrays.equals(cluster.entrances, costs.entrances) || !Arrays.equals(cluster.costs, costs.costs);
+
+        cluster.entrances = costs.entrances;
+        cluster.costs = costs.costs;
+        cluster.dirty = false;
+        dirtyClusters.get(cluster.level).remove(cluster);
+
+        // Clusters without entrances cannot be crossed, and are searched through using the levels below them
+        if (cluster.entrances.length == 0) {
+            clusters.get(cluster.level).remove(key(cluster.x, cluster.z));
+        }
+
+        updateWaiting(cluster);
+        if (changed && cluster.level < levels) {
+            markDirty(cluster.level + 1, cluster.x >> LEVEL_SHIFT, cluster.z >> LEVEL_SHIFT);
+        }
+    }
+
+    /**
+     * Search from the node {@param source} through the nodes within {@param cluster}, following the connections
+     * of the level below the cluster, until it reaches {@param target}.
+     */
+    private void searchWithin(Frontier frontier, Cluster cluster, int source, int target) {
+        NodeGraph graph = frontier.graph;
+        SearchWorkspace workspace = frontier.workspace;
+        IndexedHeap toProcess = workspace.getOpenSet();
+
+        workspace.reset(graph.getIDLimit());
+        frontier.relax(source, source, 0);
+
+        while (!toProcess.isEmpty()) {
+            int id = toProcess.poll();
+            workspace.markProcessed(id);
+
+            if (id == target)
+                return;
+
+            double cost = workspace.getCost(id);
+            Node node = graph.getNode(id);
+
+            if (cluster.contains(node.chunk1)) {
+                expandThrough(frontier, id, cost, node.chunk1, cluster.level - 1);
+            }
+            if (cluster.contains(node.chunk2)) {
+                expandThrough(frontier, id, cost, node.chunk2, cluster.level - 1);
+            }
+        }
+    }
+
+    /**
+     * Relax the connections from the node {@param id} through the chunk at {@param chunk}, at the level {@param level}.
+     * At level 0 these are the connections of the graph to the other nodes of the chunk. At higher levels, these
+     * are the costs to the other entrances of the cluster of that level containing the chunk.
+     */
+    private void expandThrough(Frontier frontier, int id, double cost, ChunkLoc chunk, int level) {
+        NodeGraph graph = frontier.graph;
+
+        if (level == 0) {
+            for (int index = 0; index < graph.getDegree(id); ++index) {
+                int neighbour = graph.getNeighbour(id, index);
+                if (graph.getNode(neighbour).touches(chunk)) {
+                    frontier.relax(id, neighbour, cost + graph.getCost(id, index));
+                }
+            }
+            return;
+        }
+
+        Cluster cluster = getCluster(level, chunk);
+        if (cluster == null)
+            return;
+
+        int row = cluster.indexOf(id);
+        if (row < 0)
+            return;
+
+        int count = cluster.entrances.length;
+        for (int column = 0; column < count; ++column) {
+            float entranceCost = cluster.costs[row * count + column];
+            if (column != row && entranceCost != Float.POSITIVE_INFINITY) {
+                frontier.relax(id, cluster.entrances[column], cost + entranceCost);
+            }
+        }
+    }
+
+    /**
+     * @return The nodes from {@param source} to {@param target} found by the last search of {@param workspace}.
+     */
+    private static int[] collectPath(SearchWorkspace workspace, int source, int target) {
+        int length = 1;
+        for (int id = target; id != source; id = workspace.getFrom(id)) {
+            length += 1;
+        }
+
+        int[] path = new int[length];
+        int id = target;
+        for (int index = length - 1; index >= 0; --index) {
+            path[index] = id;
+            id = workspace.getFrom(id);
+        }
+        return path;
+    }
+
+    /**
+     * Add the nodes crossed by the step from the entrance {@param from} to the entrance {@param to} of
+     * {@param cluster} to {@param path}, not including {@param from}.
+     */
+    private void refineWithin(NodeGraph graph, Cluster cluster, int from, int to, List<Node> path) {
+        SearchWorkspace workspace = SearchWorkspace.current();
+        searchWithin(new Frontier(graph, workspace, to), cluster, from, to);
+
+        if (!workspace.isProcessed(to))
+            throw new IllegalStateException("no path could be found between the entrances of " + cluster);
+
+        int[] steps = collectPath(workspace, from, to);
+        int level = cluster.level - 1;
+
+        for (int index = 1; index < steps.length; ++index) {
+            if (level == 0) {
+                path.add(graph.getNode(steps[index]));
+                continue;
+            }
+
+            // Steps of the level below cross one of the clusters within this cluster
+            Node stepFrom = graph.getNode(steps[index - 1]);
+            Cluster best = null;
+            float bestCost = Float.POSITIVE_INFINITY;
+
+            for (ChunkLoc chunk : new ChunkLoc[] {stepFrom.chunk1, stepFrom.chunk2}) {
+                if (!cluster.contains(chunk))
+                    continue;
+
+                Cluster child = getCluster(level, chunk);
+                float cost = (child == null ? Float.POSITIVE_INFINITY : child.getCost(steps[index - 1], steps[index]));
+                if (cost < bestCost) {
+                    best = child;
+                    bestCost = cost;
+                }
+            }
+
+            if (best == null)
+                throw new IllegalStateException("no cluster within " + cluster + " connects its steps");
+
+            refineWithin(graph, best, steps[index - 1], steps[index], path);
+        }
+    }
+
+    /**
+     * A group of 4x4 chunks, or of 4x4 clusters of the level below.
+     */
+    static class Cluster {
+
+        private final int level;
+        private final int x;
+        private final int z;
+
+        // The IDs of the entrances of this cluster in ascending order, and the cost of the shortest path within
+        // this cluster from the i'th to the j'th entrance at index i * entrances.length + j. Only current while
+        // this cluster is not dirty.
+        private int[] entrances = NO_ENTRANCES;
+        private float[] costs = NO_COSTS;
+
+        // Dirty clusters are not crossed by searches. The version is changed whenever this is marked dirty,
+        // so that costs found from an earlier version of this cluster are discarded.
+        private boolean dirty = true;
+        private int dirtyVersion = 0;
+        private boolean rebuilding = false;
+
+        // Clusters containing a cluster that is dirty or waiting are also not crossed by searches, as their
+        // costs may change once the clusters within them have been rebuilt
+        private boolean waiting = false;
+
+        private Cluster(int level, int x, int z) {
+            this.level = level;
+            this.x = x;
+            this.z = z;
+        }
+
+        /**
+         * @return Whether the chunk at {@param chunk} is within this cluster.
+         */
+        private boolean contains(ChunkLoc chunk) {
+            int shift = LEVEL_SHIFT * level;
+            return (chunk.x >> shift) == x && (chunk.z >> shift) == z;
+        }
+
+        /**
+         * @return The index of the node {@param id} in the entrances of this cluster, or a negative number.
+         */
+        private int indexOf(int id) {
+            return Arrays.binarySearch(entrances, id);
+        }
+
+        /**
+         * @return The cost of the shortest path within this cluster between the entrances
+         *         {@param from} and {@param to}, or infinity if there is no such path.
+         */
+        private float getCost(int from, int to) {
+            int row = indexOf(from);
+            int column = indexOf(to);
+            if (row < 0 || column < 0)
+                return Float.POSITIVE_INFINITY;
+
+            return costs[row * entrances.length + column];
+        }
+
+        @Override
+        public String toString() {
+            return "Cluster(" + level + ", " + x + ", " + z + ")";
+        }
+    }
+
+    /**
+     * A copy of the connections followed by searches within a cluster, indexed by slots rather than the
+     * IDs of nodes. The first slots are the entrances of the cluster, in the same order as their IDs.
+     */
+    static class ClusterGraph {
+
+        private final int dirtyVersion;
+        private final int[] entrances;
+
+        // The slots connected to each slot, and the costs of the connections
+        private final int[][] neighbours;
+        private final float[][] costs;
+
+        private ClusterGraph(int dirtyVersion, int[] entrances, int[][] neighbours, float[][] costs) {
+            this.dirtyVersion = dirtyVersion;
+            this.entrances = entrances;
+            this.neighbours = neighbours;
+            this.costs = costs;
+        }
+    }
+
+    /**
+     * The entrances of a cluster, and the costs between them, found while rebuilding the cluster.
+     */
+    static class ClusterCosts {
+
+        private final int dirtyVersion;
+        private final int[] entrances;
+        private final float[] costs;
+
+        private ClusterCosts(int dirtyVersion, int[] entrances, float[] costs) {
+            this.dirtyVersion = dirtyVersion;
+            this.entrances = entrances;
+            this.costs = costs;
+        }
+    }
+
+    /**
+     * Adds nodes to the open set of a search, directed towards a goal location.
+     */
+    private static class Frontier {
+
+        private final NodeGraph graph;
+        private final SearchWorkspace workspace;
+        private final double goalX;
+        private final double goalY;
+        private final double goalZ;
+        private final LandmarkHeuristic.Goal landmarks;
+
+        private Frontier(NodeGraph graph, SearchWorkspace workspace, int target) {
+            this(graph, workspace, graph.getX(target), graph.getY(target), graph.getZ(target), null);
+        }
+
+        private Frontier(NodeGraph graph, SearchWorkspace workspace,
+                         double goalX, double goalY, double goalZ,
+                         LandmarkHeuristic.Goal landmarks) {
+            this.graph = graph;
+            this.workspace = workspace;
+            this.goalX = goalX;
+            this.goalY = goalY;
+            this.goalZ = goalZ;
+            this.landmarks = landmarks;
+        }
+
+        /**
+         * Record the path to {@param to} from {@param from} with the length {@param cost},
+         * if it is shorter than the shortest path known to {@param to}.
+         */
+        private void relax(int from, int to, double cost) {
+            if (workspace.isProcessed(to))
+                return;
+            if (workspace.isVisited(to) && workspace.getCost(to) <= cost)
+                return;
+
+            workspace.visit(to, cost, from);
+
+            double heuristic = graph.distance(to, goalX, goalY, goalZ);
+            if (landmarks != null) {
+                heuristic = Math.max(heuristic, landmarks.estimate(to));
+            }
+
+            // Adds the node to the queue, or lowers its priority if it is already queued
+            workspace.getOpenSet().add(to, cost + heuristic);
+        }
+    }
+
+    /**
+     * An A* search through the graph from a virtual start node to a virtual goal node at the given location,
+     * crossing the clusters of this hierarchy that contain neither the start nor the end in single steps.
+     * The virtual nodes are never added to the graph, as in {@link NodeGraph.Search}.
+     *
+     * The search can be run in steps, as long as the nodes it has reached, the end nodes, and the nodes within
+     * the clusters it has crossed are not modified between the steps.
+     */
+    public class Search implements GraphSearch {
+
+        private final NodeGraph graph;
+        private final SearchWorkspace workspace;
+        private final Frontier frontier;
+        private final ChunkLoc startChunk;
+        private final ChunkLoc endChunk;
+        private final int[] endIDs;
+        private final double[] endCosts;
+
+        // The clusters that the search has crossed in single steps
+        private final Set<Cluster> crossed = new HashSet<>();
+
+        // The shortest path to the goal found so far
+        private double bestCost = Double.POSITIVE_INFINITY;
+        private int bestEnd = -1;
+
+        private boolean complete = false;
+
+        /**
+         * @param workspace A workspace that has been reset with at least {@link NodeGraph#getIDLimit()} slots,
+         *                  and that will not be used by any other search until this search completes.
+         * @param landmarks The estimates of the landmarks for the goal, or null to only use the distance to the goal.
+         */
+        public Search(NodeGraph graph, SearchWorkspace workspace,
+                      ChunkLoc startChunk, int[] startIDs, double[] startCosts,
+                      ChunkLoc endChunk, int[] endIDs, double[] endCosts,
+                      double goalX, double goalY, double goalZ,
+                      LandmarkHeuristic.Goal landmarks) {
+
+            this.graph = graph;
+            this.workspace = workspace;
+            this.frontier = new Frontier(graph, workspace, goalX, goalY, goalZ, landmarks);
+            this.startChunk = startChunk;
+            this.endChunk = endChunk;
+            this.endIDs = endIDs;
+            this.endCosts = endCosts;
+
+            for (int index = 0; index < startIDs.length; ++index) {
+                frontier.relax(startIDs[index], startIDs[index], startCosts[index]);
+            }
+        }
+
+        /**
+         * @return The level at which the connections through the chunk at {@param chunk} are followed. This is
+         *         the level of the largest cluster containing the chunk that does not contain the start or end,
+         *         and that is not dirty or waiting along with all of the clusters within it containing the chunk,
+         *         or 0 if the connections of the graph are followed.
+         */
+        private int getSearchLevel(ChunkLoc chunk) {
+            int level = 0;
+            while (level < levels) {
+                Cluster cluster = getCluster(level + 1, chunk);
+                if (cluster == null || cluster.dirty || cluster.waiting
+                        || cluster.contains(startChunk) || cluster.contains(endChunk))
+                    break;
+
+                level += 1;
+            }
+            return level;
+        }
+
+        @Override
+        public boolean step(int maxExpansions) {
+            IndexedHeap toProcess = workspace.getOpenSet();
+
+            for (int expansion = 0; expansion < maxExpansions && !complete; ++expansion) {
+                // Once no node in the queue could lead to a shorter path, the best path found is the shortest
+                if (toProcess.isEmpty() || toProcess.peekPriority() >= bestCost) {
+                    complete = true;
+                    break;
+                }
+
+                expand(toProcess.poll());
+            }
+
+            if (!complete && (toProcess.isEmpty() || toProcess.peekPriority() >= bestCost)) {
+                complete = true;
+            }
+
+            return complete;
+        }
+
+        private void expand(int id) {
+            double cost = workspace.getCost(id);
+
+            workspace.markProcessed(id);
+            workspace.countExpansion();
+
+            for (int index = 0; index < endIDs.length; ++index) {
+                if (endIDs[index] == id && cost + endCosts[index] < bestCost) {
+                    bestCost = cost + endCosts[index];
+                    bestEnd = id;
+                }
+            }
+
+            Node node = graph.getNode(id);
+            expandThrough(node.chunk1, id, cost);
+            expandThrough(node.chunk2, id, cost);
+        }
+
+        private void expandThrough(ChunkLoc chunk, int id, double cost) {
+            int level = getSearchLevel(chunk);
+            if (level > 0) {
+                crossed.add(getCluster(level, chunk));
+            }
+
+            ClusterHierarchy.this.expandThrough(frontier, id, cost, chunk, level);
+        }
+
+        @Override
+        public boolean dependsOn(int id, Node node) {
+            if (workspace.hasVisited(id))
+                return true;
+
+            for (int endID : endIDs) {
+                if (endID == id)
+                    return true;
+            }
+
+            // The costs of the clusters crossed may have changed
+            for (Cluster cluster : crossed) {
+                if (cluster.contains(node.chunk1) || cluster.contains(node.chunk2))
+                    return true;
+            }
+            return false;
+        }
+
+        @Override
+        public void grow(int idLimit) {
+            workspace.grow(idLimit);
+        }
+
+        @Override
+        public void release() {
+            // The workspace is owned by whoever started the search
+        }
+
+        /**
+         * Refines the steps across clusters into the nodes they cross, so that consecutive nodes of the
+         * path are connected in the graph. This must be called while holding the same lock as the search.
+         *
+         * @throws IllegalStateException If this search has not completed.
+         */
+        @Override
+        public List<Node> getPath() {
+            if (!complete)
+                throw new IllegalStateException("the search has not completed");
+
+            // No path could be found
+            if (bestEnd == -1)
+                return null;
+
+            // The nodes the search started from are recorded as coming from themselves
+            int start = bestEnd;
+            while (workspace.getFrom(start) != start) {
+                start = workspace.getFrom(start);
+            }
+
+            int[] steps = collectPath(workspace, start, bestEnd);
+
+            List<Node> path = new ArrayList<>();
+            path.add(graph.getNode(steps[0]));
+
+            for (int index = 1; index < steps.length; ++index) {
+                refineStep(steps[index - 1], steps[index], path);
+            }
+
+            return path;
+        }
+
+        /**
+         * Add the nodes crossed by the step of this search from {@param from} to {@param to}
+         * to {@param path}, not including {@param from}.
+         *
+         * The clusters crossed by the search may have been rebuilt or marked as waiting since, as only
+         * changes to the graph restart searches. The step is therefore refined through whichever
+         * connection of the graph or cluster that is not dirty connects the nodes most cheaply.
+         *
+         * @throws IllegalStateException If no connection or cluster connects the nodes.
+         */
+        private void refineStep(int from, int to, List<Node> path) {
+            Node fromNode = graph.getNode(from);
+            Node toNode = graph.getNode(to);
+
+            // The step may have followed a connection of the graph, or crossed a cluster
+            Cluster best = null;
+            float bestCost = Float.POSITIVE_INFINITY;
+
+            for (ChunkLoc chunk : new ChunkLoc[] {fromNode.chunk1, fromNode.chunk2}) {
+                if (toNode.touches(chunk)) {
+                    float cost = graph.getConnectionCost(from, to);
+                    if (cost < bestCost) {
+                        best = null;
+                        bestCost = cost;
+                    }
+                }
+
+                for (int level = 1; level <= levels; ++level) {
+                    Cluster cluster = getCluster(level, chunk);
+                    float cost = (cluster == null || cluster.dirty ? Float.POSITIVE_INFINITY : cluster.getCost(from, to));
+                    if (cost < bestCost) {
+                        best = cluster;
+                        bestCost = cost;
+                    }
+                }
+            }
+
+            if (bestCost == Float.POSITIVE_INFINITY)
+                throw new IllegalStateException("no connection or cluster connects the steps " + from + " and " + to);
+
+            if (best == null) {
+                path.add(toNode);
+            } else {
+                refineWithin(graph, best, from, to, path);
+            }
+        }
+    }
+}
@@ -0,0 +1,1040 @@
+package net.sothatsit.farpath.preprocessing;
+
+import net.sothatsit.farpath.util.IndexedHeap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * A contraction hierarchy over the nodes of the static areas of a {@link PreprocessedWorld}, the areas
+ * whose chunks rarely change, so that paths within them can be found by visiting only a few nodes.
+ *
+ * The static areas are contracted in cells of {@link #CELL_WIDTH} by {@link #CELL_WIDTH} chunks. The nodes
+ * between two static chunks of the same cell are contracted one at a time, least important first. Contracting
+ * a node adds a shortcut between each pair of its remaining neighbours, unless a path between them that is no
+ * longer is found without it. All other nodes form the core of the hierarchy, and are ranked above all of the
+ * contracted nodes. Searches only follow connections to nodes of a higher rank, from both the start and the
+ * end, and the shortcuts on the path found are then unpacked into the nodes they skip. Within the core,
+ * searches follow the connections of the graph in both directions.
+ *
+ * Whenever the nodes of a static chunk or the connections between them change, its cell is marked dirty while
+ * holding the write lock of the world. The connections within the cell are then copied while holding the read
+ * lock, and contracted on a worker thread without it. Searches treat the nodes of dirty cells as part of the
+ * core, and so the rest of the static areas keep their shortcuts while a cell is contracted again.
+ *
+ * @author Paddy Lamont
+ */
+public class ContractionHierarchy {
+
+    // The rank of the nodes in the core, which are never contracted
+    private static final int CORE_RANK = Integer.MAX_VALUE;
+
+    // The most nodes each search for a path that makes a shortcut unnecessary may process
+    private static final int WITNESS_LIMIT = 64;
+
+    // The static areas are contracted in cells of CELL_WIDTH by CELL_WIDTH chunks
+    private static final int CELL_SHIFT = 2;
+    private static final int CELL_WIDTH = 1 << CELL_SHIFT;
+
+    // The most cells that may be contracted at once, so that the workers are not flooded
+    private static final int MAX_REBUILDS = 4;
+
+    // The areas of static chunks, as the minimum x and z followed by the maximum x and z chunk coordinates
+    private final int[][] areas;
+
+    // The cells of the static areas that have had nodes, by the key of the cell
+    private final Map<Long, Cell> cells = new HashMap<>();
+
+    // The current contractions of the cells that are not dirty, by the key of the cell. This is replaced
+    // rather than modified, so that searches can keep using the contractions they started with.
+    private Map<Long, Contraction> contractions = new HashMap<>();
+
+    private int rebuildCount = 0;
+
+    private ContractionHierarchy(int[][] areas) {
+        this.areas = areas;
+    }
+
+    /**
+     * Create a hierarchy over the static areas {@param areas}, each given as the minimum x and z followed
+     * by the maximum x and z block coordinates of the area, separated by spaces. Invalid areas are reported
+     * to {@param logger} and ignored.
+     *
+     * @return The created hierarchy, or null if no valid areas were given.
+     */
+    public static ContractionHierarchy create(List<String> areas, Logger logger) {
+        List<int[]> chunkAreas = new ArrayList<>();
+
+        for (String area : areas) {
+            String[] parts = area.trim().split("\\s+");
+            if (parts.length != 4) {
+                logger.warning("Ignoring the static area \"" + area + "\", as it is not four coordinates");
+                continue;
+            }
+
+            int[] coordinates = new int[4];
+            try {
+                for (int index = 0; index < 4; ++index) {
+                    coordinates[index] = Integer.parseInt(parts[index]);
+                }
+            } catch (NumberFormatException exception) {
+                logger.warning("Ignoring the static area \"" + area + "\", as its coordinates are not integers");
+                continue;
+            }
+
+            chunkAreas.add(new int[] {
+                    Math.min(coordinates[0], coordinates[2]) >> 4,
+                    Math.min(coordinates[1], coordinates[3]) >> 4,
+                    Math.max(coordinates[0], coordinates[2]) >> 4,
+                    Math.max(coordinates[1], coordinates[3]) >> 4
+            });
+        }
+
+        if (chunkAreas.isEmpty())
+            return null;
+
+        return new ContractionHierarchy(chunkAreas.toArray(new int[0][]));
+    }
+
+    /**
+     * @return Whether the chunk at {@param chunk} is within one of the static areas.
+     */
+    public boolean isStatic(ChunkLoc chunk) {
+        return isStatic(chunk.x, chunk.z);
+    }
+
+    /**
+     * @return Whether the chunk at the chunk coordinates {@param x} and {@param z} is within one of the static areas.
+     */
+    private boolean isStatic(int x, int z) {
+        for (int[] area : areas) {
+            if (x >= area[0] && z >= area[1] && x <= area[2] && z <= area[3])
+                return true;
+        }
+        return false;
+    }
+
+    private static long cellKey(int x, int z) {
+        return ((long) (x >> CELL_SHIFT) << 32) | ((z >> CELL_SHIFT) & 0xFFFFFFFFL);
+    }
+
+    private static long cellKey(ChunkLoc chunk) {
+        return cellKey(chunk.x, chunk.z);
+    }
+
+    /**
+     * @return Whether the node {@param node} is between two static chunks of the same cell, and so may be contracted.
+     */
+    private boolean isContractable(Node node) {
+        return isStatic(node.chunk1) && isStatic(node.chunk2) && cellKey(node.chunk1) == cellKey(node.chunk2);
+    }
+
+    /**
+     * The graph lock must be held when calling this.
+     *
+     * @return Whether any cells have a current contraction, and so searches may benefit from this hierarchy.
+     */
+    boolean hasContraction() {
+        return !contractions.isEmpty();
+    }
+
+    /**
+     * @return The number of nodes contracted in the current contractions of the cells.
+     */
+    public int getContractedCount() {
+        int count = 0;
+        for (Contraction contraction : contractions.values()) {
+            count += contraction.contractedCount;
+        }
+        return count;
+    }
+
+    /**
+     * @return The number of shortcuts added by the current contractions of the cells.
+     */
+    public int getShortcutCount() {
+        int count = 0;
+        for (Contraction contraction : contractions.values()) {
+            count += contraction.shortcutCount;
+        }
+        return count;
+    }
+
+    /**
+     * Mark the cell containing the chunk at {@param chunk} as dirty if the chunk is static, as the nodes of the
+     * chunk or the connections between them have changed. The cells of the neighbouring chunks are also marked
+     * dirty, as the witnesses of their contractions may have crossed this chunk. The write lock must be held
+     * when calling this.
+     */
+    void markDirty(ChunkLoc chunk) {
+        markCellDirty(chunk.x, chunk.z);
+        markCellDirty(chunk.x - 1, chunk.z);
+        markCellDirty(chunk.x + 1, chunk.z);
+        markCellDirty(chunk.x, chunk.z - 1);
+        markCellDirty(chunk.x, chunk.z + 1);
+    }
+
+    private void markCellDirty(int x, int z) {
+        if (!isStatic(x, z))
+            return;
+
+        long key = cellKey(x, z);
+        Cell cell = cells.computeIfAbsent(key, k -> new Cell(x >> CELL_SHIFT, z >> CELL_SHIFT));
+        cell.dirty = true;
+        cell.dirtyVersion += 1;
+
+        // Searches that have already started keep the contractions they started with
+        if (contractions.containsKey(key)) {
+            Map<Long, Contraction> updated = new HashMap<>(contractions);
+            updated.remove(key);
+            contractions = updated;
+        }
+    }
+
+    /**
+     * Find the dirty cells that can be contracted now, and mark them as being rebuilt. Each cell is only
+     * contracted by one task at a time, and at most {@link #MAX_REBUILDS} cells are contracted at once.
+     * This must be called from the main server thread.
+     *
+     * @return The cells to be contracted using {@link #copyGraph(PreprocessedWorld, Cell)} and
+     *         {@link #contract(CellGraph)}, after which each must be passed to
+     *         {@link #finishRebuild(Cell, Contraction)}.
+     */
+    List<Cell> startRebuilds() {
+        List<Cell> started = new ArrayList<>();
+
+        for (Cell cell : cells.values()) {
+            if (rebuildCount >= MAX_REBUILDS)
+                break;
+            if (!cell.dirty || cell.rebuilding)
+                continue;
+
+            cell.rebuilding = true;
+            rebuildCount += 1;
+            started.add(cell);
+        }
+
+        return started;
+    }
+
+    /**
+     * Replace the contraction of {@param cell} with {@param contraction}, unless the cell has been marked
+     * dirty again since it was contracted, or it could not be contracted. This must be called from the
+     * main server thread while holding the write lock of the world.
+     *
+     * @param contraction The result of {@link #contract(CellGraph)}, or null if it could not be contracted.
+     */
+    void finishRebuild(Cell cell, Contraction contraction) {
+        cell.rebuilding = false;
+        rebuildCount -= 1;
+
+        // The cell stays dirty, and will be contracted again
+        if (contraction == null || contraction.dirtyVersion != cell.dirtyVersion)
+            return;
+
+        cell.dirty = false;
+
+        Map<Long, Contraction> updated = new HashMap<>(contractions);
+        updated.put(cellKey(cell.x << CELL_SHIFT, cell.z << CELL_SHIFT), contraction);
+        contractions = updated;
+    }
+
+    /**
+     * Copy the connections of the nodes that may be contracted within {@param cell}, and the connections between
+     * their neighbours, so that the cell can be contracted without holding the lock of the world. This only reads
+     * the graph, and so may be called from any thread while holding the read lock of {@param world}.
+     */
+    CellGraph copyGraph(PreprocessedWorld world, Cell cell) {
+        NodeGraph graph = world.getGraph();
+
+        // The nodes between the static chunks of the cell are contracted, and are the first slots of the copy
+        Map<Integer, Integer> slots = new HashMap<>();
+        List<Integer> ids = new ArrayList<>();
+        for (int dx = 0; dx < CELL_WIDTH; ++dx) {
+            for (int dz = 0; dz < CELL_WIDTH; ++dz) {
+                ChunkLoc chunk = new ChunkLoc((cell.x << CELL_SHIFT) + dx, (cell.z << CELL_SHIFT) + dz);
+                for (Node node : world.getChunkNodes(chunk)) {
+                    if (isContractable(node) && !slots.containsKey(node.getID())) {
+                        slots.put(node.getID(), ids.size());
+                        ids.add(node.getID());
+                    }
+                }
+            }
+        }
+
+        int contractableCount = ids.size();
+        List<int[]> neighbours = new ArrayList<>();
+        List<float[]> costs = new ArrayList<>();
+
+        // The neighbours of the contractable nodes are the edge of the core, and connections between
+        // them may let shortcuts through the contractable nodes be skipped
+        List<Integer> targets = new ArrayList<>();
+        List<Float> targetCosts = new ArrayList<>();
+        for (int slot = 0; slot < ids.size(); ++slot) {
+            int id = ids.get(slot);
+
+            targets.clear();
+            targetCosts.clear();
+            for (int index = 0; index < graph.getDegree(id); ++index) {
+                int neighbour = graph.getNeighbour(id, index);
+                Integer neighbourSlot = slots.get(neighbour);
+
+                if (slot >= contractableCount && (neighbourSlot == null || neighbourSlot < contractableCount))
+                    continue;
+
+                if (neighbourSlot == null) {
+                    neighbourSlot = ids.size();
+                    slots.put(neighbour, neighbourSlot);
+                    ids.add(neighbour);
+                }
+
+                targets.add(neighbourSlot);
+                targetCosts.add(graph.getCost(id, index));
+            }
+
+            int[] slotNeighbours = new int[targets.size()];
+            float[] slotCosts = new float[targets.size()];
+            for (int index = 0; index < slotNeighbours.length; ++index) {
+                slotNeighbours[index] = targets.get(index);
+                slotCosts[index] = targetCosts.get(index);
+            }
+
+            neighbours.add(slotNeighbours);
+            costs.add(slotCosts);
+        }
+
+        int[] slotIDs = new int[ids.size()];
+        for (int slot = 0; slot < slotIDs.length; ++slot) {
+            slotIDs[slot] = ids.get(slot);
+        }
+
+        return new CellGraph(
+                cell.dirtyVersion, slotIDs, contractableCount,
+                neighbours.toArray(new int[0][]),
+                costs.toArray(new float[0][])
+        );
+    }
+
+    /**
+     * Contract the nodes of the cell copied into {@param cellGraph}. This only reads the copy,
+     * and so may be called from any thread without holding the lock of the world.
+     */
+    Contraction contract(CellGraph cellGraph) {
+        int slotCount = cellGraph.ids.length;
+
+        // The remaining connections between the contractable nodes and their neighbours, including shortcuts
+        List<Map<Integer, Edge>> edges = new ArrayList<>(slotCount);
+        for (int slot = 0; slot < slotCount; ++slot) {
+            edges.add(null);
+        }
+
+        for (int slot = 0; slot < slotCount; ++slot) {
+            int[] neighbours = cellGraph.neighbours[slot];
+            float[] costs = cellGraph.costs[slot];
+            for (int index = 0; index < neighbours.length; ++index) {
+                addEdge(edges, slot, neighbours[index], costs[index], -1);
+                addEdge(edges, neighbours[index], slot, costs[index], -1);
+            }
+        }
+
+        int[] ranks = new int[slotCount];
+        int[][] upTargets = new int[slotCount][];
+        float[][] upCosts = new float[slotCount][];
+        int[][] upMiddles = new int[slotCount][];
+        int[] deletedNeighbours = new int[slotCount];
+
+        IndexedHeap order = new IndexedHeap(slotCount);
+        SearchWorkspace workspace = SearchWorkspace.current();
+
+        for (int slot = 0; slot < slotCount; ++slot) {
+            ranks[slot] = CORE_RANK;
+
+            // Nodes without any connections are left in the core, as no path passes through them
+            if (slot < cellGraph.contractableCount && edges.get(slot) != null) {
+                order.add(slot, findShortcuts(workspace, edges, slot).size() - edges.get(slot).size());
+            }
+        }
+
+        int rank = 0;
+        int shortcutCount = 0;
+
+        while (!order.isEmpty()) {
+            int slot = order.poll();
+            Map<Integer, Edge> slotEdges = edges.get(slot);
+            List<Shortcut> shortcuts = findShortcuts(workspace, edges, slot);
+
+            // The importance of nodes changes as their neighbours are contracted, and so is only updated when polled
+            double priority = shortcuts.size() - slotEdges.size() + deletedNeighbours[slot];
+            if (!order.isEmpty() && priority > order.peekPriority()) {
+                order.add(slot, priority);
+                continue;
+            }
+
+            ranks[slot] = rank++;
+
+            // All of the remaining neighbours of the node are contracted after it, and so have a higher rank
+            int degree = slotEdges.size();
+            upTargets[slot] = new int[degree];
+            upCosts[slot] = new float[degree];
+            upMiddles[slot] = new int[degree];
+
+            int index = 0;
+            for (Map.Entry<Integer, Edge> entry : slotEdges.entrySet()) {
+                int neighbour = entry.getKey();
+                upTargets[slot][index] = neighbour;
+                upCosts[slot][index] = entry.getValue().cost;
+                upMiddles[slot][index] = entry.getValue().middle;
+                index += 1;
+
+                edges.get(neighbour).remove(slot);
+                deletedNeighbours[neighbour] += 1;
+            }
+
+            for (Shortcut shortcut : shortcuts) {
+                addEdge(edges, shortcut.from, shortcut.to, shortcut.cost, slot);
+                addEdge(edges, shortcut.to, shortcut.from, shortcut.cost, slot);
+            }
+
+            shortcutCount += shortcuts.size();
+            edges.set(slot, null);
+        }
+
+        // The shortcuts between nodes of the core are followed along with the connections of the graph
+        for (int slot = 0; slot < slotCount; ++slot) {
+            Map<Integer, Edge> slotEdges = edges.get(slot);
+            if (slotEdges == null)
+                continue;
+
+            List<Integer> targets = new ArrayList<>();
+            for (Map.Entry<Integer, Edge> entry : slotEdges.entrySet()) {
+                if (entry.getValue().middle != -1) {
+                    targets.add(entry.getKey());
+                }
+            }
+
+            if (targets.isEmpty())
+                continue;
+
+            upTargets[slot] = new int[targets.size()];
+            upCosts[slot] = new float[targets.size()];
+            upMiddles[slot] = new int[targets.size()];
+
+            for (int index = 0; index < targets.size(); ++index) {
+                Edge edge = slotEdges.get(targets.get(index));
+                upTargets[slot][index] = targets.get(index);
+                upCosts[slot][index] = edge.cost;
+                upMiddles[slot][index] = edge.middle;
+            }
+        }
+
+        return new Contraction(cellGraph, ranks, upTargets, upCosts, upMiddles, rank, shortcutCount);
+    }
+
+    /**
+     * Add a connection from {@param from} to {@param to}, keeping the cheaper connection if they are already connected.
+     */
+    private static void addEdge(List<Map<Integer, Edge>> edges, int from, int to, float cost, int middle) {
+        Map<Integer, Edge> fromEdges = edges.get(from);
+        if (fromEdges == null) {
+            fromEdges = new HashMap<>();
+            edges.set(from, fromEdges);
+        }
+
+        Edge edge = fromEdges.get(to);
+        if (edge == null || cost < edge.cost) {
+            fromEdges.put(to, new Edge(cost, middle));
+        }
+    }
+
+    /**
+     * @return The shortcuts needed between the remaining neighbours of the slot {@param slot} if it were contracted.
+     */
+    private static List<Shortcut> findShortcuts(SearchWorkspace workspace, List<Map<Integer, Edge>> edges, int slot) {
+        List<Shortcut> shortcuts = new ArrayList<>();
+        Map<Integer, Edge> slotEdges = edges.get(slot);
+
+        int[] neighbours = new int[slotEdges.size()];
+        float[] costs = new float[slotEdges.size()];
+        int count = 0;
+        for (Map.Entry<Integer, Edge> entry : slotEdges.entrySet()) {
+            neighbours[count] = entry.getKey();
+            costs[count] = entry.getValue().cost;
+            count += 1;
+        }
+
+        float maxCost = 0;
+        for (float cost : costs) {
+            maxCost = Math.max(maxCost, cost);
+        }
+
+        for (int from = 0; from < count; ++from) {
+            // The shortcuts between each pair of neighbours are symmetric, and so are only checked once
+            if (from == count - 1)
+                break;
+
+            searchWitnesses(workspace, edges, neighbours[from], slot, costs[from] + maxCost);
+
+            for (int to = from + 1; to < count; ++to) {
+                float cost = costs[from] + costs[to];
+                int target = neighbours[to];
+
+                if (workspace.isVisited(target) && workspace.getCost(target) <= cost)
+                    continue;
+
+                shortcuts.add(new Shortcut(neighbours[from], target, cost));
+            }
+        }
+
+        return shortcuts;
+    }
+
+    /**
+     * Search from {@param source} through the remaining connections without passing through
+     * {@param excluded}, for paths no longer than {@param maxCost}. The search is limited to
+     * a small number of nodes, and so may miss some paths.
+     */
+    private static void searchWitnesses(SearchWorkspace workspace, List<Map<Integer, Edge>> edges,
+                                        int source, int excluded, float maxCost) {
+
+        IndexedHeap toProcess = workspace.getOpenSet();
+        workspace.reset(edges.size());
+        workspace.visit(source, 0, source);
+        toProcess.add(source, 0);
+
+        for (int processed = 0; processed < WITNESS_LIMIT && !toProcess.isEmpty(); ++processed) {
+            if (toProcess.peekPriority() > maxCost)
+                return;
+
+            int slot = toProcess.poll();
+            workspace.markProcessed(slot);
+            double cost = workspace.getCost(slot);
+
+            Map<Integer, Edge> slotEdges = edges.get(slot);
+            if (slotEdges == null)
+                continue;
+
+            for (Map.Entry<Integer, Edge> entry : slotEdges.entrySet()) {
+                int neighbour = entry.getKey();
+                if (neighbour == excluded || workspace.isProcessed(neighbour))
+                    continue;
+
+                double neighbourCost = cost + entry.getValue().cost;
+                if (workspace.isVisited(neighbour) && workspace.getCost(neighbour) <= neighbourCost)
+                    continue;
+
+                workspace.visit(neighbour, neighbourCost, slot);
+                toProcess.add(neighbour, neighbourCost);
+            }
+        }
+    }
+
+    /**
+     * A remaining connection while contracting, which is a shortcut if it skips a contracted node.
+     */
+    private static class Edge {
+
+        private final float cost;
+
+        // The contracted node this shortcut skips, or -1 if this is a connection of the graph
+        private final int middle;
+
+        private Edge(float cost, int middle) {
+            this.cost = cost;
+            this.middle = middle;
+        }
+    }
+
+    /**
+     * A shortcut needed between two neighbours of a node to contract it.
+     */
+    private static class Shortcut {
+
+        private final int from;
+        private final int to;
+        private final float cost;
+
+        private Shortcut(int from, int to, float cost) {
+            this.from = from;
+            this.to = to;
+            this.cost = cost;
+        }
+    }
+
+    /**
+     * A cell of the static areas, which is contracted as a whole.
+     */
+    static class Cell {
+
+        private final int x;
+        private final int z;
+
+        // Dirty cells are not used by searches. The version is changed whenever this is marked
+        // dirty, so that contractions of an earlier version of the cell are discarded.
+        private boolean dirty = true;
+        private int dirtyVersion = 0;
+        private boolean rebuilding = false;
+
+        private Cell(int x, int z) {
+            this.x = x;
+            this.z = z;
+        }
+
+        @Override
+        public String toString() {
+            return "Cell(" + x + ", " + z + ")";
+        }
+    }
+
+    /**
+     * A copy of the connections of the nodes that may be contracted within a cell, and of the connections
+     * between their neighbours, indexed by slots rather than the IDs of the nodes. The contractable nodes
+     * are the first slots. This is never modified once created.
+     */
+    static class CellGraph {
+
+        private final int dirtyVersion;
+
+        // The ID of the node in each slot
+        private final int[] ids;
+        private final int contractableCount;
+
+        // The slots connected to each slot, and the costs of the connections
+        private final int[][] neighbours;
+        private final float[][] costs;
+
+        private CellGraph(int dirtyVersion, int[] ids, int contractableCount, int[][] neighbours, float[][] costs) {
+            this.dirtyVersion = dirtyVersion;
+            this.ids = ids;
+            this.contractableCount = contractableCount;
+            this.neighbours = neighbours;
+            this.costs = costs;
+        }
+    }
+
+    /**
+     * The ranks of the contracted nodes of a cell, and their connections to the nodes of higher rank.
+     * This is never modified once created.
+     */
+    static class Contraction {
+
+        private final int dirtyVersion;
+
+        // The IDs of the nodes of the cell in ascending order, and the rank of each.
+        // Nodes that were not contracted are in the core.
+        private final int[] ids;
+        private final int[] ranks;
+
+        // The connections from each contracted node to the nodes of higher rank, and the node skipped by each
+        // connection that is a shortcut, or -1 if it is not. For the nodes of the core, these only hold the
+        // shortcuts to other nodes of the core, or null if there are none. All are given as IDs of nodes.
+        private final int[][] upTargets;
+        private final float[][] upCosts;
+        private final int[][] upMiddles;
+
+        private final int contractedCount;
+        private final int shortcutCount;
+
+        /**
+         * Create a contraction of the cell copied into {@param cellGraph}, from the ranks and connections of its slots.
+         */
+        private Contraction(CellGraph cellGraph, int[] slotRanks,
+                            int[][] slotUpTargets, float[][] slotUpCosts, int[][] slotUpMiddles,
+                            int contractedCount, int shortcutCount) {
+
+            int slotCount = cellGraph.ids.length;
+            long[] order = new long[slotCount];
+            for (int slot = 0; slot < slotCount; ++slot) {
+                order[slot] = ((long) cellGraph.ids[slot] << 32) | slot;
+            }
+            Arrays.sort(order);
+
+            this.dirtyVersion = cellGraph.dirtyVersion;
+            this.ids = new int[slotCount];
+            this.ranks = new int[slotCount];
+            this.upTargets = new int[slotCount][];
+            this.upCosts = new float[slotCount][];
+            this.upMiddles = new int[slotCount][];
+            this.contractedCount = contractedCount;
+            this.shortcutCount = shortcutCount;
+
+            for (int index = 0; index < slotCount; ++index) {
+                int slot = (int) order[index];
+                ids[index] = cellGraph.ids[slot];
+                ranks[index] = slotRanks[slot];
+                upCosts[index] = slotUpCosts[slot];
+
+                if (slotUpTargets[slot] == null)
+                    continue;
+
+                int degree = slotUpTargets[slot].length;
+                upTargets[index] = new int[degree];
+                upMiddles[index] = new int[degree];
+                for (int edge = 0; edge < degree; ++edge) {
+                    int middle = slotUpMiddles[slot][edge];
+                    upTargets[index][edge] = cellGraph.ids[slotUpTargets[slot][edge]];
+                    upMiddles[index][edge] = (middle == -1 ? -1 : cellGraph.ids[middle]);
+                }
+            }
+        }
+
+        /**
+         * @return The index of the node {@param id} in this contraction, or a negative number.
+         */
+        private int indexOf(int id) {
+            return Arrays.binarySearch(ids, id);
+        }
+
+        /**
+         * @return Whether the node {@param id} was contracted. Nodes added since this contraction never are.
+         */
+        private boolean isContracted(int id) {
+            int index = indexOf(id);
+            return index >= 0 && ranks[index] != CORE_RANK;
+        }
+
+        /**
+         * @return The cost of the shortcut between the nodes {@param one} and {@param two} in this
+         *         contraction, or infinity if there is no such shortcut.
+         */
+        private float getShortcutCost(int one, int two) {
+            int index = indexOfShortcut(one, two);
+            if (index >= 0)
+                return upCosts[indexOf(one)][index];
+
+            index = indexOfShortcut(two, one);
+            return (index >= 0 ? upCosts[indexOf(two)][index] : Float.POSITIVE_INFINITY);
+        }
+
+        /**
+         * @return The node skipped by the shortcut between the nodes {@param one} and {@param two} in this
+         *         contraction, or -1 if there is no such shortcut.
+         */
+        private int getMiddle(int one, int two) {
+            int index = indexOfShortcut(one, two);
+            if (index >= 0)
+                return upMiddles[indexOf(one)][index];
+
+            index = indexOfShortcut(two, one);
+            return (index >= 0 ? upMiddles[indexOf(two)][index] : -1);
+        }
+
+        /**
+         * @return The index of the shortcut from the node {@param from} to the node {@param to} in the
+         *         connections of {@param from}, or -1 if there is no such shortcut.
+         */
+        private int indexOfShortcut(int from, int to) {
+            int index = indexOf(from);
+            if (index < 0 || upTargets[index] == null)
+                return -1;
+
+            // Connections are stored with the lower ranked of their nodes
+            int[] targets = upTargets[index];
+            for (int edge = 0; edge < targets.length; ++edge) {
+                if (targets[edge] == to && upMiddles[index][edge] != -1)
+                    return edge;
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * A bidirectional search through the graph from a virtual start node to a virtual end node, using the
+     * current contractions of the cells of this hierarchy. The forward search from the start nodes and the backward search
+     * from the end nodes each only follow connections to nodes of a higher rank. The virtual nodes are never
+     * added to the graph, as in {@link NodeGraph.Search}, and the costs of the end nodes are the initial costs
+     * of the backward search.
+     *
+     * The search keeps the contractions that were current when it started, and so can be run in steps as
+     * long as the nodes it has reached and the nodes within the cells of those contractions are not modified
+     * between the steps.
+     */
+    public class Search implements GraphSearch {
+
+        private final NodeGraph graph;
+        private final Map<Long, Contraction> contractions;
+        private final SearchWorkspace forward;
+        private final SearchWorkspace backward;
+
+        // The shortest path found so far, through the node where the two searches met
+        private double bestCost = Double.POSITIVE_INFINITY;
+        private int bestMeeting = -1;
+
+        private int forwardExpansions = 0;
+        private int backwardExpansions = 0;
+
+        private boolean complete = false;
+
+        // Whether the backward workspace has been returned to the pool
+        private boolean released = false;
+
+        /**
+         * @param workspace A workspace that has been reset with at least {@link NodeGraph#getIDLimit()} slots,
+         *                  and that will not be used by any other search until this search completes. All
+         *                  of the nodes processed by both directions of the search are counted in it.
+         */
+        public Search(NodeGraph graph, SearchWorkspace workspace,
+                      int[] startIDs, double[] startCosts,
+                      int[] endIDs, double[] endCosts) {
+
+            this.graph = graph;
+            this.contractions = ContractionHierarchy.this.contractions;
+            this.forward = workspace;
+            this.backward = SearchWorkspace.acquire();
+            this.backward.reset(graph.getIDLimit());
+
+            seed(forward, startIDs, startCosts);
+            seed(backward, endIDs, endCosts);
+        }
+
+        private void seed(SearchWorkspace workspace, int[] ids, double[] costs) {
+            for (int index = 0; index < ids.length; ++index) {
+                int id = ids[index];
+                double cost = costs[index];
+                if (workspace.isVisited(id) && workspace.getCost(id) <= cost)
+                    continue;
+
+                workspace.visit(id, cost, id);
+                workspace.getOpenSet().add(id, cost);
+            }
+        }
+
+        /**
+         * @return The number of nodes processed by the search upwards from the start nodes.
+         */
+        public int getForwardExpansions() {
+            return forwardExpansions;
+        }
+
+        /**
+         * @return The number of nodes processed by the search upwards from the end nodes.
+         */
+        public int getBackwardExpansions() {
+            return backwardExpansions;
+        }
+
+        /**
+         * @return Whether the search from {@param workspace} could still find a shorter path.
+         */
+        private boolean isOpen(SearchWorkspace workspace) {
+            IndexedHeap toProcess = workspace.getOpenSet();
+            return !toProcess.isEmpty() && toProcess.peekPriority() < bestCost;
+        }
+
+        @Override
+        public boolean step(int maxExpansions) {
+            for (int expansion = 0; expansion < maxExpansions && !complete; ++expansion) {
+                boolean forwardOpen = isOpen(forward);
+                boolean backwardOpen = isOpen(backward);
+
+                // Once neither search could lead to a shorter path, the best path found is the shortest
+                if (!forwardOpen && !backwardOpen) {
+                    complete = true;
+                    break;
+                }
+
+                // Expand whichever search has the closer frontier
+                boolean expandForward = forwardOpen && (!backwardOpen
+                        || forward.getOpenSet().peekPriority() <= backward.getOpenSet().peekPriority());
+
+                if (expandForward) {
+                    expand(forward, backward);
+                } else {
+                    expand(backward, forward);
+                }
+            }
+
+            if (!complete && !isOpen(forward) && !isOpen(backward)) {
+                complete = true;
+            }
+
+            return complete;
+        }
+
+        private void expand(SearchWorkspace workspace, SearchWorkspace other) {
+            int id = workspace.getOpenSet().poll();
+            double cost = workspace.getCost(id);
+
+            workspace.markProcessed(id);
+            forward.countExpansion();
+            if (workspace == forward) {
+                forwardExpansions += 1;
+            } else {
+                backwardExpansions += 1;
+            }
+
+            if (other.isVisited(id) && cost + other.getCost(id) < bestCost) {
+                bestCost = cost + other.getCost(id);
+                bestMeeting = id;
+            }
+
+            // Nodes between two cells are in the core, and may have shortcuts through either cell
+            Node node = graph.getNode(id);
+            Contraction contraction1 = contractions.get(cellKey(node.chunk1));
+            Contraction contraction2 = (cellKey(node.chunk1) == cellKey(node.chunk2)
+                    ? null : contractions.get(cellKey(node.chunk2)));
+
+            expandUp(workspace, contraction1, id, cost);
+            expandUp(workspace, contraction2, id, cost);
+
+            if (contraction1 != null && contraction1.isContracted(id))
+                return;
+
+            // Within the core, the connections of the graph are followed in both directions
+            for (int index = 0; index < graph.getDegree(id); ++index) {
+                int neighbour = graph.getNeighbour(id, index);
+                if (!isContracted(neighbour)) {
+                    relax(workspace, id, neighbour, cost + graph.getCost(id, index));
+                }
+            }
+        }
+
+        /**
+         * Follow the connections of {@param contraction} from the node {@param id} to the nodes of a higher rank.
+         */
+        private void expandUp(SearchWorkspace workspace, Contraction contraction, int id, double cost) {
+            if (contraction == null)
+                return;
+
+            int index = contraction.indexOf(id);
+            if (index < 0 || contraction.upTargets[index] == null)
+                return;
+
+            int[] targets = contraction.upTargets[index];
+            float[] costs = contraction.upCosts[index];
+            for (int edge = 0; edge < targets.length; ++edge) {
+                relax(workspace, id, targets[edge], cost + costs[edge]);
+            }
+        }
+
+        /**
+         * @return Whether the node {@param id} was contracted in the contraction of its cell.
+         */
+        private boolean isContracted(int id) {
+            Node node = graph.getNode(id);
+            long key = cellKey(node.chunk1);
+            if (key != cellKey(node.chunk2))
+                return false;
+
+            Contraction contraction = contractions.get(key);
+            return contraction != null && contraction.isContracted(id);
+        }
+
+        @Override
+        public boolean dependsOn(int id, Node node) {
+            if (forward.hasVisited(id) || backward.hasVisited(id))
+                return true;
+
+            // The shortcuts of the contractions kept by this search may skip over the node
+            return contractions.containsKey(cellKey(node.chunk1)) || contractions.containsKey(cellKey(node.chunk2));
+        }
+
+        @Override
+        public void grow(int idLimit) {
+            forward.grow(idLimit);
+            backward.grow(idLimit);
+        }
+
+        @Override
+        public void release() {
+            if (released)
+                return;
+
+            released = true;
+            backward.release();
+        }
+
+        private void relax(SearchWorkspace workspace, int from, int to, double cost) {
+            if (workspace.isProcessed(to))
+                return;
+            if (workspace.isVisited(to) && workspace.getCost(to) <= cost)
+                return;
+
+            workspace.visit(to, cost, from);
+
+            // Adds the node to the queue, or lowers its priority if it is already queued
+            workspace.getOpenSet().add(to, cost);
+        }
+
+        /**
+         * @return The nodes on the shortest path from one of the start nodes to one of the end nodes,
+         *         including the start and end nodes, with the shortcuts on it unpacked, or null if no
+         *         path could be found.
+         *
+         * @throws IllegalStateException If this search has not completed.
+         */
+        @Override
+        public List<Node> getPath() {
+            if (!complete)
+                throw new IllegalStateException("the search has not completed");
+
+            // No path could be found
+            if (bestMeeting == -1) {
+                release();
+                return null;
+            }
+
+            // The nodes the searches started from are recorded as coming from themselves
+            List<Integer> steps = new ArrayList<>();
+            for (int id = bestMeeting; ; id = forward.getFrom(id)) {
+                steps.add(0, id);
+                if (forward.getFrom(id) == id)
+                    break;
+            }
+            for (int id = bestMeeting; backward.getFrom(id) != id; ) {
+                id = backward.getFrom(id);
+                steps.add(id);
+            }
+
+            release();
+
+            List<Node> path = new ArrayList<>();
+            path.add(graph.getNode(steps.get(0)));
+            for (int index = 1; index < steps.size(); ++index) {
+                unpack(steps.get(index - 1), steps.get(index), path);
+            }
+            return path;
+        }
+
+        /**
+         * Add the nodes skipped by the connection from {@param from} to {@param to}, followed
+         * by {@param to}, to {@param path}.
+         */
+        private void unpack(int from, int to, List<Node> path) {
+            int middle = getMiddle(from, to);
+            if (middle == -1) {
+                path.add(graph.getNode(to));
+                return;
+            }
+
+            unpack(from, middle, path);
+            unpack(middle, to, path);
+        }
+
+        /**
+         * @return The node skipped by the shortcut between the nodes {@param one} and {@param two},
+         *         or -1 if it is a connection of the graph.
+         */
+        private int getMiddle(int one, int two) {
+            // Nodes between two cells may be joined directly and by shortcuts through both cells,
+            // and the search followed whichever of them is the cheapest
+            Node node = graph.getNode(one);
+            Contraction contraction1 = contractions.get(cellKey(node.chunk1));
+            Contraction contraction2 = (cellKey(node.chunk1) == cellKey(node.chunk2)
+                    ? null : contractions.get(cellKey(node.chunk2)));
+
+            float directCost = (graph.isConnected(one, two) ? graph.getConnectionCost(one, two) : Float.POSITIVE_INFINITY);
+            float cost1 = (contraction1 == null ? Float.POSITIVE_INFINITY : contraction1.getShortcutCost(one, two));
+            float cost2 = (contraction2 == null ? Float.POSITIVE_INFINITY : contraction2.getShortcutCost(one, two));
+
+            if (cost1 < directCost && cost1 <= cost2)
+                return contraction1.getMiddle(one, two);
+            if (cost2 < directCost)
+                return contraction2.getMiddle(one, two);
+            return -1;
+        }
+    }
+}
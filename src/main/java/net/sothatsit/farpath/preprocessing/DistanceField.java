@@ -0,0 +1,44 @@
+package net.sothatsit.farpath.preprocessing;
+
+/**
+ * The direction of the shortest walk to the closest of a set of goal blocks from every block of a surface
+ * in a region, as created by {@link PreprocessedRegion#createDistanceField(SearchWorkspace, int, BlockLoc[])}.
+ *
+ * Paths to the goals are found by following the directions from any block of the surface,
+ * without any search. The directions are indexed by the location of each block within the
+ * bounding box of the surface, and hold the ordinal of the {@link SurfaceConnection} to take.
+ *
+ * @author Paddy Lamont
+ */
+class DistanceField {
+
+    /**
+     * The direction of blocks that cannot reach any goal.
+     */
+    static final byte NO_DIRECTION = -1;
+
+    /**
+     * The direction of the goals themselves.
+     */
+    static final byte GOAL = -2;
+
+    // The approximate number of bytes used by each field, other than its directions
+    private static final int OVERHEAD_BYTES = 64;
+
+    final int surfaceID;
+    final BlockLoc[] goals;
+    final byte[] directions;
+
+    DistanceField(int surfaceID, BlockLoc[] goals, byte[] directions) {
+        this.surfaceID = surfaceID;
+        this.goals = goals;
+        this.directions = directions;
+    }
+
+    /**
+     * @return The approximate number of bytes of memory used by this field.
+     */
+    int getByteLength() {
+        return OVERHEAD_BYTES + goals.length * 24 + directions.length;
+    }
+}
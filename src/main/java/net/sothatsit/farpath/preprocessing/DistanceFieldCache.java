@@ -0,0 +1,183 @@
+package net.sothatsit.farpath.preprocessing;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * A cache of the {@link DistanceField distance fields} to the blocks that paths are refined to within
+ * chunk regions, so that paths can be refined without searching the regions again.
+ *
+ * Fields are created the first time a path is refined to their goals, and are evicted in least
+ * recently used order once the memory used by the fields exceeds the capacity of the cache. Fields
+ * are identified by the chunk and version of the region they were created over, so the cache holds
+ * no references to regions. Only fields over the current version of each chunk are stored, and the
+ * fields of a chunk are removed when its region is replaced or removed from its world. Fields created
+ * by paths still refining through an old region are returned to those paths, but are not stored.
+ *
+ * All methods may be called from any thread.
+ *
+ * @author Paddy Lamont
+ */
+public class DistanceFieldCache {
+
+    // The approximate number of bytes used by the key and map entries of each field
+    private static final int ENTRY_BYTES = 128;
+
+    private final long maxBytes;
+    private final Map<Key, DistanceField> fields;
+    private final Map<ChunkLoc, Set<Key>> chunkKeys;
+    private final Map<ChunkLoc, Integer> currentVersions;
+    private long bytes = 0;
+
+    /**
+     * @param maxBytes The most bytes of memory that the cached fields may use.
+     */
+    public DistanceFieldCache(long maxBytes) {
+        if (maxBytes <= 0)
+            throw new IllegalArgumentException("maxBytes must be positive");
+
+        this.maxBytes = maxBytes;
+        this.fields = new LinkedHashMap<>(64, 0.75f, true);
+        this.chunkKeys = new HashMap<>();
+        this.currentVersions = new HashMap<>();
+    }
+
+    /**
+     * @return The field to {@param goals} over the surface {@param surfaceID} of {@param region}, which is
+     *         version {@param version} of the chunk at {@param chunk}, creating it with {@param workspace}
+     *         if it is not cached.
+     */
+    DistanceField get(ChunkLoc chunk, int version, PreprocessedRegion region,
+                      int surfaceID, BlockLoc[] goals, SearchWorkspace workspace) {
+
+        Key key = new Key(chunk, version, surfaceID, goals);
+
+        synchronized (this) {
+            DistanceField field = fields.get(key);
+            if (field != null)
+                return field;
+        }
+
+        // Fields are created outside the lock, so that other paths can use the cache in the meantime
+        DistanceField field = region.createDistanceField(workspace, surfaceID, goals);
+        put(key, field);
+        return field;
+    }
+
+    private synchronized void put(Key key, DistanceField field) {
+        // The region may have been replaced while the field was being created
+        Integer currentVersion = currentVersions.get(key.chunk);
+        if (currentVersion == null || currentVersion != key.version)
+            return;
+
+        DistanceField previous = fields.put(key, field);
+        if (previous != null) {
+            bytes -= getEntryLength(previous);
+        } else {
+            chunkKeys.computeIfAbsent(key.chunk, chunk -> new HashSet<>()).add(key);
+        }
+        bytes += getEntryLength(field);
+
+        // Evict the least recently used fields until the cache is within its capacity
+        Iterator<Map.Entry<Key, DistanceField>> iterator = fields.entrySet().iterator();
+        while (bytes > maxBytes && iterator.hasNext()) {
+            Map.Entry<Key, DistanceField> entry = iterator.next();
+            iterator.remove();
+            bytes -= getEntryLength(entry.getValue());
+            removeChunkKey(entry.getKey());
+        }
+    }
+
+    private static long getEntryLength(DistanceField field) {
+        return ENTRY_BYTES + field.getByteLength();
+    }
+
+    private void removeChunkKey(Key key) {
+        Set<Key> keys = chunkKeys.get(key.chunk);
+        if (keys != null && keys.remove(key) && keys.isEmpty()) {
+            chunkKeys.remove(key.chunk);
+        }
+    }
+
+    /**
+     * Remove all the fields over the chunk at {@param chunk}, and only store fields over
+     * version {@param version} of the chunk from now on.
+     */
+    public synchronized void update(ChunkLoc chunk, int version) {
+        invalidate(chunk);
+        currentVersions.put(chunk, version);
+    }
+
+    /**
+     * Remove all the fields over the chunk at {@param chunk}, and store no more fields over it.
+     */
+    public synchronized void invalidate(ChunkLoc chunk) {
+        currentVersions.remove(chunk);
+
+        Set<Key> keys = chunkKeys.remove(chunk);
+        if (keys == null)
+            return;
+
+        for (Key key : keys) {
+            DistanceField field = fields.remove(key);
+            if (field != null) {
+                bytes -= getEntryLength(field);
+            }
+        }
+    }
+
+    /**
+     * @return The number of fields in this cache.
+     */
+    public synchronized int size() {
+        return fields.size();
+    }
+
+    /**
+     * @return The approximate number of bytes of memory used by the fields in this cache.
+     */
+    public synchronized long getByteLength() {
+        return bytes;
+    }
+
+    /**
+     * Identifies a field by the chunk and version of the region it was created over, and its surface and goals.
+     */
+    private static class Key {
+
+        private final ChunkLoc chunk;
+        private final int version;
+        private final int surfaceID;
+        private final BlockLoc[] goals;
+
+        private Key(ChunkLoc chunk, int version, int surfaceID, BlockLoc[] goals) {
+            this.chunk = chunk;
+            this.version = version;
+            this.surfaceID = surfaceID;
+            this.goals = goals;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key))
+                return false;
+
+            Key other = (Key) obj;
+            return version == other.version
+                    && surfaceID == other.surfaceID
+                    && chunk.equals(other.chunk)
+                    && Arrays.equals(goals, other.goals);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(chunk, version, surfaceID, Arrays.hashCode(goals));
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package net.sothatsit.farpath.preprocessing;
+
+/**
+ * The lengths of the shortest walks within a region from a set of blocks to the blocks on the edges of
+ * the region, as found by {@link PreprocessedRegion#findEdgeCosts(int[])}. Edge blocks that cannot be
+ * reached are not stored.
+ *
+ * @author Paddy Lamont
+ */
+class EdgeCosts {
+
+    // The indices of the reached edge blocks in their region, in ascending order
+    private final int[] blocks;
+    private final float[] costs;
+
+    /**
+     * @param blocks The indices of the reached edge blocks in their region, in ascending order.
+     * @param costs  The length of the shortest walk to each block of {@param blocks}.
+     */
+    EdgeCosts(int[] blocks, float[] costs) {
+        if (blocks.length != costs.length)
+            throw new IllegalArgumentException("blocks and costs must be the same length");
+
+        this.blocks = blocks;
+        this.costs = costs;
+    }
+
+    /**
+     * @return The number of edge blocks that were reached.
+     */
+    public int size() {
+        return blocks.length;
+    }
+
+    /**
+     * @return The length of the shortest walk to the edge block {@param block},
+     *         or {@link Float#POSITIVE_INFINITY} if it cannot be reached.
+     */
+    public float getCost(int block) {
+        int low = 0;
+        int high = blocks.length - 1;
+
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int value = blocks[middle];
+
+            if (value < block) {
+                low = middle + 1;
+            } else if (value > block) {
+                high = middle - 1;
+            } else {
+                return costs[middle];
+            }
+        }
+
+        return Float.POSITIVE_INFINITY;
+    }
+
+    /**
+     * @return The length of the shortest walk to any of the edge blocks {@param blocks},
+     *         or {@link Float#POSITIVE_INFINITY} if none of them can be reached.
+     */
+    public float getMinCost(int[] blocks) {
+        float minCost = Float.POSITIVE_INFINITY;
+        for (int block : blocks) {
+            minCost = Math.min(minCost, getCost(block));
+        }
+        return minCost;
+    }
+}
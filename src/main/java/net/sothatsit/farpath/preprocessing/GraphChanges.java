@@ -0,0 +1,67 @@
+package net.sothatsit.farpath.preprocessing;
+
+/**
+ * The nodes of a {@link NodeGraph} touched by its most recent modifications, so that the searches
+ * through the graph that were paused at the time only have to be restarted if they depend on them.
+ *
+ * Only the most recent changes are kept, and searches that were started before the oldest change
+ * kept are always restarted. Changes are recorded while holding the write lock of the graph, and
+ * are read while holding its read lock.
+ *
+ * @author Paddy Lamont
+ */
+class GraphChanges {
+
+    /**
+     * The number of changes kept.
+     */
+    private static final int CAPACITY = 4096;
+
+    // The version of the graph that each change was made in, and the node it touched
+    private final int[] versions = new int[CAPACITY];
+    private final int[] ids = new int[CAPACITY];
+    private final Node[] nodes = new Node[CAPACITY];
+
+    // The index that the next change is recorded at, and the number of changes kept
+    private int next = 0;
+    private int count = 0;
+
+    // The latest version of the graph that some changes have been forgotten from
+    private int forgottenVersion = 0;
+
+    /**
+     * Record that the node {@param node}, with the ID {@param id}, or its connections were changed in the version
+     * {@param version} of the graph. The ID is recorded separately, as nodes lose their ID once they are removed.
+     */
+    public void record(int version, int id, Node node) {
+        if (count == CAPACITY) {
+            forgottenVersion = versions[next];
+        } else {
+            count += 1;
+        }
+
+        versions[next] = version;
+        ids[next] = id;
+        nodes[next] = node;
+        next = (next + 1) % CAPACITY;
+    }
+
+    /**
+     * @return Whether {@param search}, which has been run up to the version {@param version} of the graph,
+     *         depends on any of the nodes changed since.
+     */
+    public boolean affects(int version, GraphSearch search) {
+        if (version < forgottenVersion)
+            return true;
+
+        // Changes are recorded in order of version, so the changes since are the latest recorded
+        for (int offset = 1; offset <= count; ++offset) {
+            int index = (next - offset + CAPACITY) % CAPACITY;
+            if (versions[index] <= version)
+                break;
+            if (search.dependsOn(ids[index], nodes[index]))
+                return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,49 @@
+package net.sothatsit.farpath.preprocessing;
+
+import java.util.List;
+
+/**
+ * A search for a path of nodes through a {@link NodeGraph} that can be run in steps. The graph may be
+ * modified between the steps, as long as the search does not {@link #dependsOn(int, Node) depend} on
+ * any of the nodes that were changed, and it is {@link #grow(int) grown} to fit any nodes that were added.
+ *
+ * @author Paddy Lamont
+ */
+interface GraphSearch {
+
+    /**
+     * Continue this search until it completes, or until it has processed {@param maxExpansions} more nodes.
+     *
+     * @return Whether this search has completed.
+     */
+    boolean step(int maxExpansions);
+
+    /**
+     * @return Whether the result of this search could be changed by changes to the node {@param node} with
+     *         the ID {@param id}, or to its connections. The node may have since been removed from the graph,
+     *         and the ID may have since been given to another node. Connections added to nodes that this
+     *         search has already processed can only make the path found longer than the shortest path.
+     */
+    boolean dependsOn(int id, Node node);
+
+    /**
+     * Make room in this search for the nodes added to the graph since it was started,
+     * so that the nodes up to {@param idLimit} can be reached by it.
+     */
+    void grow(int idLimit);
+
+    /**
+     * @return The nodes on the path found from one of the start nodes to one of the end nodes,
+     *         including the start and end nodes, or null if no path could be found.
+     *
+     * @throws IllegalStateException If this search has not completed.
+     */
+    List<Node> getPath();
+
+    /**
+     * Return any workspaces this search acquired for itself, once it has completed or been abandoned. This
+     * is done by {@link #getPath()}, and may be called any number of times. The search must not be stepped
+     * afterwards.
+     */
+    void release();
+}
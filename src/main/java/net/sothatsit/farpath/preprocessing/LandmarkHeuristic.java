@@ -0,0 +1,433 @@
+package net.sothatsit.farpath.preprocessing;
+
+import net.sothatsit.farpath.util.IndexedHeap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Estimates the cost of the rest of a path through the {@link NodeGraph} of a {@link PreprocessedWorld} from
+ * the costs of the shortest paths to a few landmark nodes, spread out across the world (ALT).
+ *
+ * By the triangle inequality, the cost of the path from a node to the goal is at least the difference between
+ * the costs of the paths from any landmark to the node and to the goal. Unlike the distance between them, this
+ * accounts for the obstacles that paths have to walk around, such as rivers, mountains and walls.
+ *
+ * Landmarks are chosen one at a time, each as the node furthest from the landmarks already chosen. Components
+ * of the graph that no landmark reaches are given a landmark of their own, largest first, once they hold at
+ * least their share of the nodes. The connections of the graph are copied while holding the read lock of the
+ * world, and the costs from the landmarks are then found from the copy on a worker thread without the lock,
+ * and are replaced as a whole. Whenever the nodes of any chunk change, the costs are marked stale, and are refreshed at most
+ * once per refresh interval. Nodes added since the costs were found are estimated without the landmarks,
+ * but the costs of the other nodes may be out of date until they are refreshed, and so paths found in the
+ * meantime may be a little longer than the shortest path.
+ *
+ * @author Paddy Lamont
+ */
+public class LandmarkHeuristic {
+
+    private final int landmarkCount;
+    private final long refreshIntervalNanos;
+
+    // The latest costs from the landmarks, or null if they have not been found yet
+    private Landmarks landmarks = null;
+
+    private boolean stale = true;
+    private boolean refreshing = false;
+    private long lastRefresh = 0;
+    private boolean refreshed = false;
+
+    /**
+     * @param landmarkCount        The number of landmarks to choose.
+     * @param refreshIntervalNanos The least time between refreshes of the costs from the landmarks.
+     */
+    public LandmarkHeuristic(int landmarkCount, long refreshIntervalNanos) {
+        if (landmarkCount <= 0)
+            throw new IllegalArgumentException("landmarkCount must be positive");
+
+        this.landmarkCount = landmarkCount;
+        this.refreshIntervalNanos = refreshIntervalNanos;
+    }
+
+    /**
+     * @return The number of landmarks chosen by the latest refresh.
+     */
+    public int getLandmarkCount() {
+        Landmarks current = landmarks;
+        return (current == null ? 0 : current.landmarkIDs.length);
+    }
+
+    /**
+     * @return Whether the nodes have changed since the costs from the landmarks were last found.
+     */
+    public boolean isStale() {
+        return stale;
+    }
+
+    /**
+     * Mark the costs from the landmarks as stale, as the nodes of a chunk or the
+     * connections between them have changed. The write lock must be held when calling this.
+     */
+    void markStale() {
+        stale = true;
+    }
+
+    /**
+     * Mark the costs as being refreshed if they are stale, are not already being refreshed,
+     * and were not refreshed too recently. This must be called from the main server thread.
+     *
+     * @return Whether the costs should be refreshed using {@link #copyGraph(PreprocessedWorld)} and
+     *         {@link #findCosts(LandmarkGraph)}, after which the result must be passed to
+     *         {@link #finishRefresh(Landmarks)}.
+     */
+    boolean startRefresh() {
+        long now = System.nanoTime();
+        if (!stale || refreshing || (refreshed && now - lastRefresh < refreshIntervalNanos))
+            return false;
+
+        stale = false;
+        refreshing = true;
+        refreshed = true;
+        lastRefresh = now;
+        return true;
+    }
+
+    /**
+     * Replace the costs from the landmarks with {@param landmarks}. This must be called from
+     * the main server thread while holding the write lock of the world.
+     *
+     * @param landmarks The result of {@link #findCosts(LandmarkGraph)}, or null if they could not be found.
+     */
+    void finishRefresh(Landmarks landmarks) {
+        refreshing = false;
+
+        if (landmarks == null) {
+            stale = true;
+            return;
+        }
+
+        this.landmarks = landmarks;
+    }
+
+    /**
+     * Copy the nodes and connections of the graph of {@param world}, so that the costs from the landmarks can be
+     * found without holding the lock of the world. This only reads the graph, and so may be called from any
+     * thread while holding the read lock of {@param world}.
+     */
+    LandmarkGraph copyGraph(PreprocessedWorld world) {
+        NodeGraph graph = world.getGraph();
+        int idLimit = graph.getIDLimit();
+
+        Node[] nodes = new Node[idLimit];
+        int[][] neighbours = new int[idLimit][];
+        float[][] costs = new float[idLimit][];
+
+        for (int id = 0; id < idLimit; ++id) {
+            nodes[id] = graph.getNode(id);
+            if (nodes[id] == null)
+                continue;
+
+            int degree = graph.getDegree(id);
+            neighbours[id] = new int[degree];
+            costs[id] = new float[degree];
+            for (int index = 0; index < degree; ++index) {
+                neighbours[id][index] = graph.getNeighbour(id, index);
+                costs[id][index] = graph.getCost(id, index);
+            }
+        }
+
+        return new LandmarkGraph(nodes, neighbours, costs);
+    }
+
+    /**
+     * Choose the landmarks, and find the costs of the shortest paths from them to every node of the graph
+     * copied into {@param graph}. This only reads the copy, and so may be called from any thread without
+     * holding the lock of the world.
+     */
+    Landmarks findCosts(LandmarkGraph graph) {
+        Node[] nodes = graph.nodes;
+        int idLimit = nodes.length;
+
+        // The component of each node, and the size and a node of each component
+        int[] components = new int[idLimit];
+        List<Integer> componentSizes = new ArrayList<>();
+        List<Integer> componentNodes = new ArrayList<>();
+        int nodeCount = findComponents(graph, components, componentSizes, componentNodes);
+
+        if (nodeCount == 0)
+            return new Landmarks(nodes, new int[0], new float[0][]);
+
+        // The lowest cost from any chosen landmark to each node
+        float[] minCosts = new float[idLimit];
+        Arrays.fill(minCosts, Float.POSITIVE_INFINITY);
+
+        boolean[] reached = new boolean[componentSizes.size()];
+        SearchWorkspace workspace = SearchWorkspace.current();
+
+        int[] landmarkIDs = new int[landmarkCount];
+        float[][] costs = new float[landmarkCount][];
+        int count = 0;
+
+        while (count < landmarkCount) {
+            int next;
+
+            // Large components that no landmark reaches are given a landmark before the others get more,
+            // and the first landmark of each component is the node furthest from an arbitrary node of it
+            int unreached = findLargestUnreached(componentSizes, reached);
+            if (unreached != -1 && (count == 0 || (long) componentSizes.get(unreached) * landmarkCount >= nodeCount)) {
+                next = findFurthest(findCosts(graph, workspace, componentNodes.get(unreached)), nodes);
+            } else {
+                next = findFurthest(minCosts, nodes);
+
+                // Once every node of the reached components is a landmark, the smaller components are given landmarks
+                if (next == -1 || minCosts[next] == 0) {
+                    if (unreached == -1)
+                        break;
+
+                    next = findFurthest(findCosts(graph, workspace, componentNodes.get(unreached)), nodes);
+                }
+            }
+
+            float[] landmarkCosts = findCosts(graph, workspace, next);
+            landmarkIDs[count] = next;
+            costs[count] = landmarkCosts;
+            reached[components[next]] = true;
+            count += 1;
+
+            for (int id = 0; id < idLimit; ++id) {
+                minCosts[id] = Math.min(minCosts[id], landmarkCosts[id]);
+            }
+        }
+
+        return new Landmarks(nodes, Arrays.copyOf(landmarkIDs, count), Arrays.copyOf(costs, count));
+    }
+
+    /**
+     * Label each node of {@param graph} with its component in {@param components}, and add the size and
+     * a node of each component to {@param componentSizes} and {@param componentNodes}.
+     *
+     * @return The number of nodes in the graph.
+     */
+    private static int findComponents(LandmarkGraph graph, int[] components,
+                                      List<Integer> componentSizes, List<Integer> componentNodes) {
+        Arrays.fill(components, -1);
+
+        int nodeCount = 0;
+        int[] stack = new int[components.length];
+        for (int source = 0; source < components.length; ++source) {
+            if (graph.nodes[source] == null || components[source] != -1)
+                continue;
+
+            int component = componentSizes.size();
+            int size = 0;
+            int stackSize = 0;
+
+            components[source] = component;
+            stack[stackSize++] = source;
+            while (stackSize > 0) {
+                int id = stack[--stackSize];
+                size += 1;
+
+                for (int neighbour : graph.neighbours[id]) {
+                    if (components[neighbour] == -1) {
+                        components[neighbour] = component;
+                        stack[stackSize++] = neighbour;
+                    }
+                }
+            }
+
+            componentSizes.add(size);
+            componentNodes.add(source);
+            nodeCount += size;
+        }
+        return nodeCount;
+    }
+
+    /**
+     * @return The largest component that is not {@param reached}, or -1 if every component is reached.
+     */
+    private static int findLargestUnreached(List<Integer> componentSizes, boolean[] reached) {
+        int largest = -1;
+        for (int component = 0; component < reached.length; ++component) {
+            if (reached[component])
+                continue;
+
+            if (largest == -1 || componentSizes.get(component) > componentSizes.get(largest)) {
+                largest = component;
+            }
+        }
+        return largest;
+    }
+
+    /**
+     * @return The node with the highest finite cost in {@param costs}, or -1 if there are no nodes.
+     */
+    private static int findFurthest(float[] costs, Node[] nodes) {
+        int furthest = -1;
+        for (int id = 0; id < costs.length; ++id) {
+            if (nodes[id] == null || costs[id] == Float.POSITIVE_INFINITY)
+                continue;
+
+            if (furthest == -1 || costs[id] > costs[furthest]) {
+                furthest = id;
+            }
+        }
+        return furthest;
+    }
+
+    /**
+     * @return The cost of the shortest path from {@param source} to each node of {@param graph},
+     *         indexed by the ID of each node, or infinity for nodes that cannot be reached.
+     */
+    private static float[] findCosts(LandmarkGraph graph, SearchWorkspace workspace, int source) {
+        int idLimit = graph.nodes.length;
+
+        IndexedHeap toProcess = workspace.getOpenSet();
+        workspace.reset(idLimit);
+        workspace.visit(source, 0, source);
+        toProcess.add(source, 0);
+
+        float[] costs = new float[idLimit];
+        Arrays.fill(costs, Float.POSITIVE_INFINITY);
+
+        while (!toProcess.isEmpty()) {
+            int id = toProcess.poll();
+            double cost = workspace.getCost(id);
+
+            workspace.markProcessed(id);
+            costs[id] = (float) cost;
+
+            int[] neighbours = graph.neighbours[id];
+            float[] neighbourCosts = graph.costs[id];
+            for (int index = 0; index < neighbours.length; ++index) {
+                int neighbour = neighbours[index];
+                if (workspace.isProcessed(neighbour))
+                    continue;
+
+                double neighbourCost = cost + neighbourCosts[index];
+                if (workspace.isVisited(neighbour) && workspace.getCost(neighbour) <= neighbourCost)
+                    continue;
+
+                workspace.visit(neighbour, neighbourCost, id);
+                toProcess.add(neighbour, neighbourCost);
+            }
+        }
+
+        return costs;
+    }
+
+    /**
+     * Prepare to estimate the costs of paths to a virtual goal node, which is connected to each of the
+     * nodes {@param endIDs} with the costs {@param endCosts}. The graph lock must be held when calling this.
+     *
+     * @return The estimates for the goal, or null if the goal cannot be estimated using the landmarks.
+     */
+    Goal createGoal(NodeGraph graph, int[] endIDs, double[] endCosts) {
+        Landmarks current = landmarks;
+        if (current == null || current.landmarkIDs.length == 0)
+            return null;
+
+        // The cost from each landmark to the goal is through whichever end node it reaches most cheaply
+        double[] goalCosts = new double[current.landmarkIDs.length];
+        Arrays.fill(goalCosts, Double.POSITIVE_INFINITY);
+
+        for (int index = 0; index < endIDs.length; ++index) {
+            int id = endIDs[index];
+
+            // Without the costs to every end node, the costs to the goal could be over-estimated
+            if (!current.contains(graph, id))
+                return null;
+
+            for (int landmark = 0; landmark < goalCosts.length; ++landmark) {
+                goalCosts[landmark] = Math.min(goalCosts[landmark], current.costs[landmark][id] + endCosts[index]);
+            }
+        }
+
+        return new Goal(graph, current, goalCosts);
+    }
+
+    /**
+     * A copy of the nodes of a graph and the connections between them, indexed by the ID of each node.
+     * This is never modified once created.
+     */
+    static class LandmarkGraph {
+
+        private final Node[] nodes;
+
+        // The nodes connected to each node, and the costs of the connections, or null for IDs without a node
+        private final int[][] neighbours;
+        private final float[][] costs;
+
+        private LandmarkGraph(Node[] nodes, int[][] neighbours, float[][] costs) {
+            this.nodes = nodes;
+            this.neighbours = neighbours;
+            this.costs = costs;
+        }
+    }
+
+    /**
+     * The costs of the shortest paths from each landmark to every node. This is never modified once created.
+     */
+    static class Landmarks {
+
+        // The node with each ID when the costs were found, so that nodes added since are not estimated
+        private final Node[] nodes;
+
+        private final int[] landmarkIDs;
+
+        // The cost from the i'th landmark to each node at costs[i][id], or infinity if it cannot be reached
+        private final float[][] costs;
+
+        private Landmarks(Node[] nodes, int[] landmarkIDs, float[][] costs) {
+            this.nodes = nodes;
+            this.landmarkIDs = landmarkIDs;
+            this.costs = costs;
+        }
+
+        /**
+         * @return Whether the node {@param id} of {@param graph} was in the graph when these costs were found.
+         */
+        private boolean contains(NodeGraph graph, int id) {
+            return id < nodes.length && nodes[id] != null && nodes[id] == graph.getNode(id);
+        }
+    }
+
+    /**
+     * Estimates the cost of the rest of paths to a goal, from the costs between the landmarks and the goal.
+     */
+    static class Goal {
+
+        private final NodeGraph graph;
+        private final Landmarks landmarks;
+        private final double[] goalCosts;
+
+        private Goal(NodeGraph graph, Landmarks landmarks, double[] goalCosts) {
+            this.graph = graph;
+            this.landmarks = landmarks;
+            this.goalCosts = goalCosts;
+        }
+
+        /**
+         * @return A lower bound on the cost of the path from the node {@param id} to the goal, or 0
+         *         if the node was added since the costs from the landmarks were found.
+         */
+        double estimate(int id) {
+            if (!landmarks.contains(graph, id))
+                return 0;
+
+            double estimate = 0;
+            for (int landmark = 0; landmark < goalCosts.length; ++landmark) {
+                double nodeCost = landmarks.costs[landmark][id];
+                double goalCost = goalCosts[landmark];
+
+                // Nodes and goals that the landmark cannot reach give no bound
+                if (nodeCost == Double.POSITIVE_INFINITY || goalCost == Double.POSITIVE_INFINITY)
+                    continue;
+
+                estimate = Math.max(estimate, Math.abs(goalCost - nodeCost));
+            }
+            return estimate;
+        }
+    }
+}
@@ -0,0 +1,243 @@
+package net.sothatsit.farpath.preprocessing;
+
+import org.bukkit.Material;
+import org.bukkit.configuration.ConfigurationSection;
+
+import java.util.EnumSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * A table of how blocks of each material are treated when pre-processing regions.
+ *
+ * The table is built once, so that blocks can be classified by looking up their
+ * material in an array instead of querying the server for the state of each block.
+ *
+ * @author Paddy Lamont
+ */
+public class MaterialTable {
+
+    /**
+     * Paths can pass through blocks with this flag.
+     */
+    public static final int PASSABLE = 1;
+
+    /**
+     * Paths can walk on top of blocks with this flag.
+     */
+    public static final int SOLID = 2;
+
+    /**
+     * Blocks with this flag are liquids. Liquids are neither passed through nor walked upon, unless they are
+     * also given one of those flags.
+     */
+    public static final int LIQUID = 4;
+
+    /**
+     * Paths avoid blocks with this flag. Hazards are never passable or solid.
+     */
+    public static final int HAZARD = 8;
+
+    /**
+     * The materials that are hazards by default.
+     */
+    private static final Set<Material> DEFAULT_HAZARDS = EnumSet.of(
+            Material.LAVA,
+            Material.FIRE,
+            Material.MAGMA_BLOCK,
+            Material.CACTUS,
+            Material.CAMPFIRE,
+            Material.SWEET_BERRY_BUSH,
+            Material.WITHER_ROSE,
+            Material.COBWEB
+    );
+
+    /**
+     * The endings of the names of materials that are solid, but that paths can pass through by default as
+     * {@link org.bukkit.block.Block#isPassable()} does. Doors, fence gates and trapdoors are classified by
+     * their material alone, and so are always treated as closed.
+     */
+    private static final String[] DEFAULT_PASSABLE_SUFFIXES = {
+            "_SIGN",
+            "_BANNER",
+            "_PRESSURE_PLATE"
+    };
+
+    /**
+     * The table with no overrides.
+     */
+    public static final MaterialTable DEFAULT = new MaterialTable(createDefaultFlags());
+
+    // The flags of each material, indexed by their ordinal
+    private final byte[] flags;
+    private final long fingerprint;
+
+    /**
+     * @param flags The flags of each material, before hazards are made neither passable nor solid.
+     */
+    private MaterialTable(byte[] flags) {
+        this.flags = new byte[flags.length];
+
+        long fingerprint = flags.length;
+        for (int ordinal = 0; ordinal < flags.length; ++ordinal) {
+            int materialFlags = flags[ordinal];
+
+            // Hazards are never passed through or walked upon
+            if ((materialFlags & HAZARD) != 0) {
+                materialFlags &= ~(PASSABLE | SOLID);
+            }
+
+            this.flags[ordinal] = (byte) materialFlags;
+            fingerprint = fingerprint * 31 + materialFlags;
+        }
+        this.fingerprint = fingerprint;
+    }
+
+    /**
+     * @return The flags of {@param type}.
+     */
+    public int getFlags(Material type) {
+        return flags[type.ordinal()];
+    }
+
+    public boolean isPassable(Material type) {
+        return (flags[type.ordinal()] & PASSABLE) != 0;
+    }
+
+    public boolean isSolid(Material type) {
+        return (flags[type.ordinal()] & SOLID) != 0;
+    }
+
+    public boolean isLiquid(Material type) {
+        return (flags[type.ordinal()] & LIQUID) != 0;
+    }
+
+    public boolean isHazard(Material type) {
+        return (flags[type.ordinal()] & HAZARD) != 0;
+    }
+
+    /**
+     * @return A value that differs between tables that classify any material differently.
+     */
+    public long getFingerprint() {
+        return fingerprint;
+    }
+
+    private static byte[] createDefaultFlags() {
+        Material[] materials = Material.values();
+        byte[] flags = new byte[materials.length];
+
+        for (Material type : materials) {
+            boolean solid = type.isSolid() && !isPassableByDefault(type);
+            boolean liquid = (type == Material.WATER || type == Material.LAVA || type == Material.BUBBLE_COLUMN);
+            boolean hazard = DEFAULT_HAZARDS.contains(type);
+
+            int materialFlags = 0;
+            if (!solid && !liquid) {
+                materialFlags |= PASSABLE;
+            }
+            if (solid) {
+                materialFlags |= SOLID;
+            }
+            if (liquid) {
+                materialFlags |= LIQUID;
+            }
+            if (hazard) {
+                materialFlags |= HAZARD;
+            }
+
+            flags[type.ordinal()] = (byte) materialFlags;
+        }
+
+        return flags;
+    }
+
+    /**
+     * @return Whether {@param type} is solid, but can be passed through by default.
+     */
+    private static boolean isPassableByDefault(Material type) {
+        for (String suffix : DEFAULT_PASSABLE_SUFFIXES) {
+            if (type.name().endsWith(suffix))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Create a table from the defaults, with the overrides in {@param overrides} applied.
+     *
+     * Each key of {@param overrides} is the name of a material, or a pattern where * matches any characters.
+     * Each is mapped to a section holding any of passable, solid, liquid or hazard, which replace those flags
+     * of the matching materials. Flags that are not given keep their defaults. Invalid overrides are reported
+     * to {@param logger} and ignored.
+     *
+     * @param overrides The overrides to apply, or null to apply none.
+     */
+    public static MaterialTable create(ConfigurationSection overrides, Logger logger) {
+        byte[] flags = createDefaultFlags();
+        if (overrides == null)
+            return new MaterialTable(flags);
+
+        Material[] materials = Material.values();
+
+        for (String key : overrides.getKeys(false)) {
+            ConfigurationSection override = overrides.getConfigurationSection(key);
+            if (override == null) {
+                logger.warning("Ignoring the override for materials " + key + ", as it is not a section");
+                continue;
+            }
+
+            Pattern pattern = compilePattern(key);
+            int matches = 0;
+
+            for (Material type : materials) {
+                if (!pattern.matcher(type.name()).matches())
+                    continue;
+
+                int materialFlags = flags[type.ordinal()];
+                materialFlags = applyOverride(materialFlags, override, "passable", PASSABLE);
+                materialFlags = applyOverride(materialFlags, override, "solid", SOLID);
+                materialFlags = applyOverride(materialFlags, override, "liquid", LIQUID);
+                materialFlags = applyOverride(materialFlags, override, "hazard", HAZARD);
+
+                flags[type.ordinal()] = (byte) materialFlags;
+                matches += 1;
+            }
+
+            if (matches == 0) {
+                logger.warning("Ignoring the override for materials " + key + ", as it matches no materials");
+            }
+        }
+
+        return new MaterialTable(flags);
+    }
+
+    /**
+     * @return A pattern matching the names of materials matched by {@param key}, where * matches any characters.
+     */
+    private static Pattern compilePattern(String key) {
+        String[] parts = key.toUpperCase(Locale.ROOT).split("\\*", -1);
+
+        StringBuilder regex = new StringBuilder();
+        for (int index = 0; index < parts.length; ++index) {
+            if (index > 0) {
+                regex.append(".*");
+            }
+            regex.append(Pattern.quote(parts[index]));
+        }
+
+        return Pattern.compile(regex.toString());
+    }
+
+    /**
+     * @return {@param materialFlags}, with {@param flag} replaced if {@param override} holds {@param key}.
+     */
+    private static int applyOverride(int materialFlags, ConfigurationSection override, String key, int flag) {
+        if (!override.getKeys(false).contains(key))
+            return materialFlags;
+
+        return (override.getBoolean(key, false) ? materialFlags | flag : materialFlags & ~flag);
+    }
+}
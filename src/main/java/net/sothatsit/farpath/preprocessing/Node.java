@@ -1,96 +1,89 @@
 package net.sothatsit.farpath.preprocessing;
 
-import java.util.HashSet;
 import java.util.Objects;
-import java.util.Set;
-import java.util.UUID;
 
 /**
  * A connection node between two chunks.
  *
+ * The location and connections of the node are stored in the {@link NodeGraph} it belongs
+ * to, which refers to the node by its {@link #getID() ID}. This just holds the information
+ * needed to turn a path through the graph into a path through the world.
+ *
  * @author Paddy Lamont
  */
 public class Node {
 
-    public final UUID uuid = UUID.randomUUID();
+    /**
+     * The ID of this node in its {@link NodeGraph}, or -1 if it is not in a graph.
+     */
+    int id = -1;
 
     public final ChunkLoc chunk1;
     public final ChunkLoc chunk2;
     public final int boundarySurfaceID;
 
-    public final Set<Integer> chunk1SurfaceIDs;
-    public final Set<Integer> chunk2SurfaceIDs;
-    public final Set<Node> connectedNodes;
-
-    // Used to find the average location of all blocks in the boundary surface
-    public double cumulativeX;
-    public double cumulativeY;
-    public double cumulativeZ;
-    public int surfaceBlockCount;
-
-    // Can be used to flood fill and find other node blocks
-    public BlockLoc representativeBlock1;
-    public BlockLoc representativeBlock2;
-
-    public Node(BlockLoc representativeBlock) {
-        this(representativeBlock.toChunkLoc(), representativeBlock.toChunkLoc(), 0);
-
-        this.cumulativeX = representativeBlock.x;
-        this.cumulativeY = representativeBlock.y;
-        this.cumulativeZ = representativeBlock.z;
-        this.surfaceBlockCount = 1;
-        this.representativeBlock1 = representativeBlock;
-        this.representativeBlock2 = representativeBlock;
-    }
+    public final int[] chunk1SurfaceIDs;
+    public final int[] chunk2SurfaceIDs;
+
+    // The pairs of blocks that can be stepped between directly to cross the boundary, as indices of blocks
+    // in the region of each chunk. The blocks of each crossing are at the same index in both arrays.
+    final int[] chunk1Crossings;
+    final int[] chunk2Crossings;
 
     public Node(ChunkLoc chunk1,
                 ChunkLoc chunk2,
-                int boundarySurfaceID) {
+                int boundarySurfaceID,
+                int[] chunk1SurfaceIDs,
+                int[] chunk2SurfaceIDs,
+                int[] chunk1Crossings,
+                int[] chunk2Crossings) {
+
+        if (chunk1Crossings.length != chunk2Crossings.length)
+            throw new IllegalArgumentException("chunk1Crossings and chunk2Crossings must be the same length");
 
         this.chunk1 = chunk1;
         this.chunk2 = chunk2;
         this.boundarySurfaceID = boundarySurfaceID;
-        this.chunk1SurfaceIDs = new HashSet<>();
-        this.chunk2SurfaceIDs = new HashSet<>();
-        this.connectedNodes = new HashSet<>();
+        this.chunk1SurfaceIDs = chunk1SurfaceIDs;
+        this.chunk2SurfaceIDs = chunk2SurfaceIDs;
+        this.chunk1Crossings = chunk1Crossings;
+        this.chunk2Crossings = chunk2Crossings;
     }
 
-    public void connect(Node node) {
-        connectedNodes.add(node);
-        node.connectedNodes.add(this);
+    /**
+     * @return The ID of this node in its {@link NodeGraph}, or -1 if it is not in a graph.
+     */
+    public int getID() {
+        return id;
     }
 
-    public void disconnect(Node node) {
-        connectedNodes.add(node);
-        node.connectedNodes.remove(this);
+    /**
+     * @return Whether this node is on the boundary of the chunk at {@param chunk}.
+     */
+    public boolean touches(ChunkLoc chunk) {
+        return chunk1.equals(chunk) || chunk2.equals(chunk);
     }
 
-    public void disconnectAll() {
-        for (Node node : connectedNodes) {
-            node.connectedNodes.remove(this);
-        }
-        connectedNodes.clear();
+    /**
+     * @return The chunk on the other side of this node from the chunk at {@param chunk}.
+     */
+    public ChunkLoc getOtherChunk(ChunkLoc chunk) {
+        return (chunk1.equals(chunk) ? chunk2 : chunk1);
     }
 
-    public double distanceSquared(double x, double y, double z) {
-        if (surfaceBlockCount == 0)
-            throw new IllegalStateException("The location of this node has not been initialised");
-
-        double dx = x - cumulativeX / surfaceBlockCount;
-        double dy = y - cumulativeY / surfaceBlockCount;
-        double dz = z - cumulativeZ / surfaceBlockCount;
-        return dx*dx + dy*dy + dz*dz;
+    /**
+     * @return The surfaces of the chunk at {@param chunk} that this node connects to.
+     */
+    public int[] getSurfaceIDs(ChunkLoc chunk) {
+        return (chunk1.equals(chunk) ? chunk1SurfaceIDs : chunk2SurfaceIDs);
     }
 
-    public double distance(Node node) {
-        if (node.surfaceBlockCount == 0)
-            throw new IllegalStateException("The location of the other node has not been initialised");
-
-        return Math.sqrt(distanceSquared(
-                node.cumulativeX / node.surfaceBlockCount,
-                node.cumulativeY / node.surfaceBlockCount,
-                node.cumulativeZ / node.surfaceBlockCount
-        ));
+    /**
+     * @return The blocks of the crossings of this node in the chunk at {@param chunk},
+     *         as indices of blocks in the region of the chunk.
+     */
+    int[] getCrossingBlocks(ChunkLoc chunk) {
+        return (chunk1.equals(chunk) ? chunk1Crossings : chunk2Crossings);
     }
 
     public ChunkLoc findCommonChunk(Node node) {
@@ -107,16 +100,6 @@ public class Node {
 
     @Override
     public String toString() {
-        return "Node(" + representativeBlock1 + ", " + representativeBlock2 + ")";
-    }
-
-    @Override
-    public int hashCode() {
-        return uuid.hashCode();
-    }
-
-    @Override
-    public boolean equals(Object obj) {
-        return this == obj;
+        return "Node(" + chunk1 + ", " + chunk2 + ", " + boundarySurfaceID + ")";
     }
 }
@@ -0,0 +1,787 @@
+package net.sothatsit.farpath.preprocessing;
+
+import net.sothatsit.farpath.util.IndexedHeap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The graph of nodes between chunks, stored in primitive arrays indexed by the ID of each node.
+ *
+ * The IDs of removed nodes are re-used by nodes added later, so that the arrays stay densely
+ * packed as chunks are loaded and unloaded. The connections of each node are stored in a
+ * growable adjacency list, along with the cost of walking between the two nodes.
+ *
+ * @author Paddy Lamont
+ */
+public class NodeGraph {
+
+    private static final int INITIAL_CAPACITY = 64;
+    private static final int INITIAL_DEGREE = 4;
+    private static final int[] NO_NEIGHBOURS = new int[0];
+    private static final float[] NO_COSTS = new float[0];
+
+    /**
+     * The node with each ID, or null if the ID is not in use.
+     */
+    private Node[] nodes = new Node[INITIAL_CAPACITY];
+
+    /**
+     * The average location of all blocks in the surface of each node.
+     */
+    private float[] centroidX = new float[INITIAL_CAPACITY];
+    private float[] centroidY = new float[INITIAL_CAPACITY];
+    private float[] centroidZ = new float[INITIAL_CAPACITY];
+
+    /**
+     * The IDs of the nodes connected to each node. Only the first {@link #degrees} entries are used.
+     */
+    private int[][] neighbours = new int[INITIAL_CAPACITY][];
+
+    /**
+     * The cost of walking to each of the nodes in {@link #neighbours}.
+     */
+    private float[][] costs = new float[INITIAL_CAPACITY][];
+
+    /**
+     * The number of nodes connected to each node.
+     */
+    private int[] degrees = new int[INITIAL_CAPACITY];
+
+    /**
+     * IDs below this have been used by a node at some point.
+     */
+    private int idLimit = 0;
+
+    /**
+     * IDs that have been used by nodes that have since been removed.
+     */
+    private int[] freeIDs = new int[INITIAL_CAPACITY];
+    private int freeIDCount = 0;
+
+    private int size = 0;
+
+    /**
+     * @return The number of nodes in this graph.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return A bound on the IDs of nodes in this graph, for sizing arrays indexed by node ID.
+     */
+    public int getIDLimit() {
+        return idLimit;
+    }
+
+    /**
+     * @return The node with the ID {@param id}, or null if there is no such node.
+     */
+    public Node getNode(int id) {
+        return (id >= 0 && id < idLimit ? nodes[id] : null);
+    }
+
+    public float getX(int id) {
+        return centroidX[id];
+    }
+
+    public float getY(int id) {
+        return centroidY[id];
+    }
+
+    public float getZ(int id) {
+        return centroidZ[id];
+    }
+
+    /**
+     * @return The number of nodes connected to the node {@param id}.
+     */
+    public int getDegree(int id) {
+        return degrees[id];
+    }
+
+    /**
+     * @return The ID of the {@param index}'th node connected to the node {@param id}.
+     */
+    public int getNeighbour(int id, int index) {
+        return neighbours[id][index];
+    }
+
+    /**
+     * @return The cost of walking to the {@param index}'th node connected to the node {@param id}.
+     */
+    public float getCost(int id, int index) {
+        return costs[id][index];
+    }
+
+    /**
+     * @return The distance between the centroids of the nodes {@param one} and {@param two}.
+     */
+    public double distance(int one, int two) {
+        return distance(one, centroidX[two], centroidY[two], centroidZ[two]);
+    }
+
+    /**
+     * @return The distance from the centroid of the node {@param id} to the given location.
+     */
+    public double distance(int id, double x, double y, double z) {
+        double dx = x - centroidX[id];
+        double dy = y - centroidY[id];
+        double dz = z - centroidZ[id];
+        return Math.sqrt(dx*dx + dy*dy + dz*dz);
+    }
+
+    /**
+     * Add {@param node} to this graph, with its centroid at the given location.
+     *
+     * @return The ID given to {@param node}.
+     */
+    public int add(Node node, double x, double y, double z) {
+        if (node.id != -1)
+            throw new IllegalArgumentException("node has already been added to a graph");
+
+        int id;
+        if (freeIDCount > 0) {
+            id = freeIDs[--freeIDCount];
+        } else {
+            id = idLimit++;
+            ensureCapacity(idLimit);
+        }
+
+        node.id = id;
+        nodes[id] = node;
+        centroidX[id] = (float) x;
+        centroidY[id] = (float) y;
+        centroidZ[id] = (float) z;
+        neighbours[id] = NO_NEIGHBOURS;
+        costs[id] = NO_COSTS;
+        degrees[id] = 0;
+        size += 1;
+        return id;
+    }
+
+    /**
+     * Remove the node {@param id} and all of its connections from this graph.
+     */
+    public void remove(int id) {
+        Node node = getNode(id);
+        if (node == null)
+            throw new IllegalArgumentException("there is no node with the id " + id);
+
+        disconnectAll(id);
+
+        node.id = -1;
+        nodes[id] = null;
+        neighbours[id] = null;
+        costs[id] = null;
+        size -= 1;
+
+        if (freeIDCount == freeIDs.length) {
+            freeIDs = Arrays.copyOf(freeIDs, freeIDs.length * 2);
+        }
+        freeIDs[freeIDCount++] = id;
+    }
+
+    /**
+     * Connect the nodes {@param one} and {@param two}, with the distance between their centroids as the cost.
+     * If they are already connected, the connection keeps the lower of its current cost and this distance.
+     */
+    public void connect(int one, int two) {
+        connect(one, two, (float) distance(one, two));
+    }
+
+    /**
+     * Connect the nodes {@param one} and {@param two} with the cost {@param cost}. If they
+     * are already connected, the connection keeps the lower of its current cost and {@param cost}.
+     */
+    public void connect(int one, int two, float cost) {
+        if (one == two)
+            return;
+
+        int index = indexOfNeighbour(one, two);
+        if (index == -1) {
+            addNeighbour(one, two, cost);
+            addNeighbour(two, one, cost);
+            return;
+        }
+
+        if (cost < costs[one][index]) {
+            costs[one][index] = cost;
+            costs[two][indexOfNeighbour(two, one)] = cost;
+        }
+    }
+
+    /**
+     * Replace the cost of the connection between the nodes {@param one} and {@param two} with {@param cost}.
+     *
+     * @return Whether the nodes are connected.
+     */
+    public boolean setCost(int one, int two, float cost) {
+        int index = indexOfNeighbour(one, two);
+        if (index == -1)
+            return false;
+
+        costs[one][index] = cost;
+        costs[two][indexOfNeighbour(two, one)] = cost;
+        return true;
+    }
+
+    /**
+     * @return Whether the nodes {@param one} and {@param two} are connected.
+     */
+    public boolean isConnected(int one, int two) {
+        return indexOfNeighbour(one, two) != -1;
+    }
+
+    /**
+     * @return The cost of the connection between the nodes {@param one} and {@param two},
+     *         or infinity if they are not connected.
+     */
+    public float getConnectionCost(int one, int two) {
+        int index = indexOfNeighbour(one, two);
+        return (index == -1 ? Float.POSITIVE_INFINITY : costs[one][index]);
+    }
+
+    /**
+     * @return The index of {@param neighbour} in the connections of the node {@param id}, or -1 if they are not connected.
+     */
+    private int indexOfNeighbour(int id, int neighbour) {
+        int[] idNeighbours = neighbours[id];
+        for (int index = 0; index < degrees[id]; ++index) {
+            if (idNeighbours[index] == neighbour)
+                return index;
+        }
+        return -1;
+    }
+
+    /**
+     * Remove all connections to and from the node {@param id}.
+     */
+    public void disconnectAll(int id) {
+        int[] idNeighbours = neighbours[id];
+        for (int index = 0; index < degrees[id]; ++index) {
+            removeNeighbour(idNeighbours[index], id);
+        }
+        degrees[id] = 0;
+    }
+
+    private void addNeighbour(int id, int neighbour, float cost) {
+        int degree = degrees[id];
+        if (degree == neighbours[id].length) {
+            int length = Math.max(INITIAL_DEGREE, degree * 2);
+            neighbours[id] = Arrays.copyOf(neighbours[id], length);
+            costs[id] = Arrays.copyOf(costs[id], length);
+        }
+
+        neighbours[id][degree] = neighbour;
+        costs[id][degree] = cost;
+        degrees[id] = degree + 1;
+    }
+
+    private void removeNeighbour(int id, int neighbour) {
+        int[] idNeighbours = neighbours[id];
+        float[] idCosts = costs[id];
+        int last = degrees[id] - 1;
+
+        for (int index = 0; index <= last; ++index) {
+            if (idNeighbours[index] != neighbour)
+                continue;
+
+            // Move the last connection into the place of the removed connection
+            idNeighbours[index] = idNeighbours[last];
+            idCosts[index] = idCosts[last];
+            degrees[id] = last;
+            return;
+        }
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= nodes.length)
+            return;
+
+        int length = Math.max(capacity, nodes.length * 2);
+
+        nodes = Arrays.copyOf(nodes, length);
+        centroidX = Arrays.copyOf(centroidX, length);
+        centroidY = Arrays.copyOf(centroidY, length);
+        centroidZ = Arrays.copyOf(centroidZ, length);
+        neighbours = Arrays.copyOf(neighbours, length);
+        costs = Arrays.copyOf(costs, length);
+        degrees = Arrays.copyOf(degrees, length);
+    }
+
+    private List<Node> reconstructPath(SearchWorkspace workspace, int end) {
+        List<Node> path = new ArrayList<>();
+
+        int current = end;
+        path.add(nodes[current]);
+
+        // The nodes the search started from are recorded as coming from themselves
+        while (workspace.getFrom(current) != current) {
+            current = workspace.getFrom(current);
+            path.add(nodes[current]);
+        }
+
+        Collections.reverse(path);
+        return path;
+    }
+
+    /**
+     * An A* search through this graph from the node {@param start} to the node {@param end}.
+     *
+     * @return The nodes on the shortest path from {@param start} to {@param end},
+     *         including the start and end nodes, or null if no path could be found.
+     */
+    public List<Node> findPath(int start, int end) {
+        return findPath(
+                new int[] {start}, new double[] {0},
+                new int[] {end}, new double[] {0},
+                centroidX[end], centroidY[end], centroidZ[end]
+        );
+    }
+
+    /**
+     * An A* search through this graph from a virtual start node to a virtual goal node at the given location.
+     *
+     * @see Search
+     *
+     * @return The nodes on the shortest path from one of the start nodes to one of the end nodes,
+     *         including the start and end nodes, or null if no path could be found.
+     */
+    public List<Node> findPath(int[] startIDs, double[] startCosts,
+                               int[] endIDs, double[] endCosts,
+                               double goalX, double goalY, double goalZ) {
+
+        Search search = new Search(
+                SearchWorkspace.begin(idLimit),
+                startIDs, startCosts, endIDs, endCosts,
+                goalX, goalY, goalZ
+        );
+        search.step(Integer.MAX_VALUE);
+        return search.getPath();
+    }
+
+    /**
+     * An A* search through this graph from a virtual start node to a virtual goal node at the given location.
+     *
+     * The virtual nodes are never added to this graph. Instead, the search starts from the start nodes,
+     * each with an initial cost, and the search ends at the end nodes, each with a remaining cost to the
+     * goal. This graph is only read, and so any number of searches may run at the same time. The remaining
+     * costs must be at least the distance from each end node to the goal for the path found to be the shortest.
+     * If landmarks are given, the remaining cost from each node is estimated as the larger of the distance to
+     * the goal and the estimate of the landmarks.
+     *
+     * The search can be run in steps, as long as the nodes it has reached and the end nodes are not
+     * modified between the steps.
+     */
+    public class Search implements GraphSearch {
+
+        private final SearchWorkspace workspace;
+        private final int[] endIDs;
+        private final double[] endCosts;
+        private final double goalX;
+        private final double goalY;
+        private final double goalZ;
+        private final LandmarkHeuristic.Goal landmarks;
+
+        // The shortest path to the goal found so far
+        private double bestCost = Double.POSITIVE_INFINITY;
+        private int bestEnd = -1;
+
+        private boolean complete = false;
+
+        /**
+         * @param workspace A workspace that has been reset with at least {@link #getIDLimit()} slots,
+         *                  and that will not be used by any other search until this search completes.
+         */
+        public Search(SearchWorkspace workspace,
+                      int[] startIDs, double[] startCosts,
+                      int[] endIDs, double[] endCosts,
+                      double goalX, double goalY, double goalZ) {
+
+            this(workspace, startIDs, startCosts, endIDs, endCosts, goalX, goalY, goalZ, null);
+        }
+
+        /**
+         * @param workspace A workspace that has been reset with at least {@link #getIDLimit()} slots,
+         *                  and that will not be used by any other search until this search completes.
+         * @param landmarks The estimates of the landmarks for the goal, or null to only use the distance to the goal.
+         */
+        public Search(SearchWorkspace workspace,
+                      int[] startIDs, double[] startCosts,
+                      int[] endIDs, double[] endCosts,
+                      double goalX, double goalY, double goalZ,
+                      LandmarkHeuristic.Goal landmarks) {
+
+            this.workspace = workspace;
+            this.endIDs = endIDs;
+            this.endCosts = endCosts;
+            this.goalX = goalX;
+            this.goalY = goalY;
+            this.goalZ = goalZ;
+            this.landmarks = landmarks;
+
+            for (int index = 0; index < startIDs.length; ++index) {
+                int id = startIDs[index];
+                double cost = startCosts[index];
+                if (workspace.isVisited(id) && workspace.getCost(id) <= cost)
+                    continue;
+
+                workspace.visit(id, cost, id);
+                workspace.getOpenSet().add(id, cost + heuristic(id));
+            }
+        }
+
+        /**
+         * @return The estimated cost of the rest of the path from the node {@param id} to the goal.
+         */
+        private double heuristic(int id) {
+            double distance = distance(id, goalX, goalY, goalZ);
+            return (landmarks == null ? distance : Math.max(distance, landmarks.estimate(id)));
+        }
+
+        /**
+         * @return Whether this search has completed.
+         */
+        public boolean isComplete() {
+            return complete;
+        }
+
+        @Override
+        public boolean step(int maxExpansions) {
+            IndexedHeap toProcess = workspace.getOpenSet();
+
+            for (int expansion = 0; expansion < maxExpansions && !complete; ++expansion) {
+                // Once no node in the queue could lead to a shorter path, the best path found is the shortest
+                if (toProcess.isEmpty() || toProcess.peekPriority() >= bestCost) {
+                    complete = true;
+                    break;
+                }
+
+                expand(toProcess.poll());
+            }
+
+            if (!complete && (toProcess.isEmpty() || toProcess.peekPriority() >= bestCost)) {
+                complete = true;
+            }
+
+            return complete;
+        }
+
+        private void expand(int id) {
+            double cost = workspace.getCost(id);
+
+            workspace.markProcessed(id);
+            workspace.countExpansion();
+
+            for (int index = 0; index < endIDs.length; ++index) {
+                if (endIDs[index] == id && cost + endCosts[index] < bestCost) {
+                    bestCost = cost + endCosts[index];
+                    bestEnd = id;
+                }
+            }
+
+            int[] idNeighbours = neighbours[id];
+            float[] idCosts = costs[id];
+
+            for (int index = 0; index < degrees[id]; ++index) {
+                int connected = idNeighbours[index];
+                if (workspace.isProcessed(connected))
+                    continue;
+
+                double connectedCost = cost + idCosts[index];
+                if (workspace.isVisited(connected) && workspace.getCost(connected) <= connectedCost)
+                    continue;
+
+                workspace.visit(connected, connectedCost, id);
+
+                double heuristic = heuristic(connected);
+
+                // Adds the node to the queue, or lowers its priority if it is already queued
+                workspace.getOpenSet().add(connected, connectedCost + heuristic);
+            }
+        }
+
+        /**
+         * @return The nodes on the shortest path from one of the start nodes to one of the end nodes,
+         *         including the start and end nodes, or null if no path could be found.
+         *
+         * @throws IllegalStateException If this search has not completed.
+         */
+        @Override
+        public List<Node> getPath() {
+            if (!complete)
+                throw new IllegalStateException("the search has not completed");
+
+            // No path could be found
+            if (bestEnd == -1)
+                return null;
+
+            return reconstructPath(workspace, bestEnd);
+        }
+
+        @Override
+        public boolean dependsOn(int id, Node node) {
+            if (workspace.hasVisited(id))
+                return true;
+
+            for (int endID : endIDs) {
+                if (endID == id)
+                    return true;
+            }
+            return false;
+        }
+
+        @Override
+        public void grow(int idLimit) {
+            workspace.grow(idLimit);
+        }
+
+        @Override
+        public void release() {
+            // The workspace is owned by whoever started the search
+        }
+    }
+
+    /**
+     * A bidirectional A* search through this graph between a virtual start node and a virtual goal node,
+     * which searches forwards from the start nodes and backwards from the end nodes at the same time.
+     *
+     * The forward search is guided towards the goal, and the backward search towards the start. Each step
+     * expands the direction with the fewest queued nodes, so that a goal in a confined area such as a cave
+     * is reached mostly by the backward search. Whenever either search reaches a node that the other has
+     * reached, the path through that node is recorded if it is the shortest found so far. The costs of the
+     * start and end nodes must be at least their distances to the start and goal for the path found to be
+     * the shortest, as the search completes as soon as no node in either queue could lead to a shorter path.
+     * This relies on the graph being undirected, so that the backward search can follow the same connections.
+     *
+     * The search can be run in steps, as long as the nodes reached by either direction are not
+     * modified between the steps.
+     */
+    public class BidirectionalSearch implements GraphSearch {
+
+        private final SearchWorkspace forward;
+        private final SearchWorkspace backward;
+
+        private final double startX;
+        private final double startY;
+        private final double startZ;
+        private final double goalX;
+        private final double goalY;
+        private final double goalZ;
+        private final LandmarkHeuristic.Goal startLandmarks;
+        private final LandmarkHeuristic.Goal goalLandmarks;
+
+        // The shortest path found so far, through the node where the two searches met
+        private double bestCost = Double.POSITIVE_INFINITY;
+        private int bestMeeting = -1;
+
+        private int forwardExpansions = 0;
+        private int backwardExpansions = 0;
+
+        private boolean complete = false;
+
+        // Whether the backward workspace has been returned to the pool
+        private boolean released = false;
+
+        /**
+         * @param workspace      A workspace that has been reset with at least {@link #getIDLimit()} slots,
+         *                       and that will not be used by any other search until this search completes.
+         *                       All of the nodes processed by both directions of the search are counted in it.
+         * @param startLandmarks The estimates of the landmarks for the start, or null to only use the distance to it.
+         * @param goalLandmarks  The estimates of the landmarks for the goal, or null to only use the distance to it.
+         */
+        public BidirectionalSearch(SearchWorkspace workspace,
+                                   int[] startIDs, double[] startCosts,
+                                   double startX, double startY, double startZ,
+                                   int[] endIDs, double[] endCosts,
+                                   double goalX, double goalY, double goalZ,
+                                   LandmarkHeuristic.Goal startLandmarks,
+                                   LandmarkHeuristic.Goal goalLandmarks) {
+
+            this.forward = workspace;
+            this.backward = SearchWorkspace.acquire();
+            this.backward.reset(idLimit);
+            this.startX = startX;
+            this.startY = startY;
+            this.startZ = startZ;
+            this.goalX = goalX;
+            this.goalY = goalY;
+            this.goalZ = goalZ;
+            this.startLandmarks = startLandmarks;
+            this.goalLandmarks = goalLandmarks;
+
+            seed(backward, endIDs, endCosts, false);
+            seed(forward, startIDs, startCosts, true);
+        }
+
+        private void seed(SearchWorkspace workspace, int[] ids, double[] costs, boolean isForward) {
+            for (int index = 0; index < ids.length; ++index) {
+                relax(workspace, isForward, ids[index], ids[index], costs[index]);
+            }
+        }
+
+        /**
+         * @return The estimated cost of the rest of the path from the node {@param id} to the goal if
+         *         {@param isForward}, or from the start to the node {@param id} otherwise.
+         */
+        private double heuristic(int id, boolean isForward) {
+            double distance;
+            LandmarkHeuristic.Goal landmarks;
+            if (isForward) {
+                distance = distance(id, goalX, goalY, goalZ);
+                landmarks = goalLandmarks;
+            } else {
+                distance = distance(id, startX, startY, startZ);
+                landmarks = startLandmarks;
+            }
+            return (landmarks == null ? distance : Math.max(distance, landmarks.estimate(id)));
+        }
+
+        /**
+         * @return Whether this search has completed.
+         */
+        public boolean isComplete() {
+            return complete;
+        }
+
+        /**
+         * @return The number of nodes processed by the search forwards from the start nodes.
+         */
+        public int getForwardExpansions() {
+            return forwardExpansions;
+        }
+
+        /**
+         * @return The number of nodes processed by the search backwards from the end nodes.
+         */
+        public int getBackwardExpansions() {
+            return backwardExpansions;
+        }
+
+        /**
+         * @return Whether the search from {@param workspace} could still find a shorter path.
+         */
+        private boolean isOpen(SearchWorkspace workspace) {
+            IndexedHeap toProcess = workspace.getOpenSet();
+            return !toProcess.isEmpty() && toProcess.peekPriority() < bestCost;
+        }
+
+        @Override
+        public boolean step(int maxExpansions) {
+            for (int expansion = 0; expansion < maxExpansions && !complete; ++expansion) {
+                // The priorities of each queue are lower bounds on the cost of any path through its
+                // unprocessed nodes, so once either queue could not lead to a shorter path, none can
+                if (!isOpen(forward) || !isOpen(backward)) {
+                    complete = true;
+                    break;
+                }
+
+                // Expand whichever search has the smaller frontier
+                if (forward.getOpenSet().size() <= backward.getOpenSet().size()) {
+                    expand(forward, backward, true);
+                } else {
+                    expand(backward, forward, false);
+                }
+            }
+
+            if (!complete && (!isOpen(forward) || !isOpen(backward))) {
+                complete = true;
+            }
+
+            return complete;
+        }
+
+        private void expand(SearchWorkspace workspace, SearchWorkspace other, boolean isForward) {
+            int id = workspace.getOpenSet().poll();
+            double cost = workspace.getCost(id);
+
+            workspace.markProcessed(id);
+            forward.countExpansion();
+            if (isForward) {
+                forwardExpansions += 1;
+            } else {
+                backwardExpansions += 1;
+            }
+
+            int[] idNeighbours = neighbours[id];
+            float[] idCosts = costs[id];
+
+            for (int index = 0; index < degrees[id]; ++index) {
+                relax(workspace, isForward, id, idNeighbours[index], cost + idCosts[index]);
+            }
+        }
+
+        private void relax(SearchWorkspace workspace, boolean isForward, int from, int to, double cost) {
+            if (workspace.isProcessed(to))
+                return;
+            if (workspace.isVisited(to) && workspace.getCost(to) <= cost)
+                return;
+
+            workspace.visit(to, cost, from);
+
+            // Adds the node to the queue, or lowers its priority if it is already queued
+            workspace.getOpenSet().add(to, cost + heuristic(to, isForward));
+
+            SearchWorkspace other = (isForward ? backward : forward);
+            if (other.isVisited(to) && cost + other.getCost(to) < bestCost) {
+                bestCost = cost + other.getCost(to);
+                bestMeeting = to;
+            }
+        }
+
+        /**
+         * @return The nodes on the shortest path from one of the start nodes to one of the end nodes,
+         *         including the start and end nodes, or null if no path could be found.
+         *
+         * @throws IllegalStateException If this search has not completed.
+         */
+        @Override
+        public List<Node> getPath() {
+            if (!complete)
+                throw new IllegalStateException("the search has not completed");
+
+            // No path could be found
+            if (bestMeeting == -1) {
+                release();
+                return null;
+            }
+
+            List<Node> path = reconstructPath(forward, bestMeeting);
+
+            // The end nodes the backward search started from are recorded as coming from themselves
+            int current = bestMeeting;
+            while (backward.getFrom(current) != current) {
+                current = backward.getFrom(current);
+                path.add(nodes[current]);
+            }
+
+            release();
+            return path;
+        }
+
+        @Override
+        public void release() {
+            if (released)
+                return;
+
+            released = true;
+            backward.release();
+        }
+
+        @Override
+        public boolean dependsOn(int id, Node node) {
+            // The end nodes are reached by the backward search as soon as it starts
+            return forward.hasVisited(id) || backward.hasVisited(id);
+        }
+
+        @Override
+        public void grow(int idLimit) {
+            forward.grow(idLimit);
+            backward.grow(idLimit);
+        }
+    }
+}
@@ -0,0 +1,318 @@
+package net.sothatsit.farpath.preprocessing;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * A cache of the paths found through a {@link PreprocessedWorld}, so that paths that are found many
+ * times do not have to be searched for each time. Two levels of paths are cached:
+ *
+ * - Routes, the paths of nodes through the graph between the surfaces that paths start and end on.
+ * - Segments, the paths of blocks within a chunk from a block to the crossings of the next node.
+ *
+ * Each entry records the version of every chunk it passes through, as returned by
+ * {@link PreprocessedWorld#getChunkVersion(ChunkLoc)}. The versions of chunks are changed whenever
+ * they are added, removed or rebuilt, and entries through chunks that have changed are discarded
+ * the next time they are looked up. Routes are not discarded when chunks that they do not pass
+ * through change, and so a cached route may be longer than a route found by a new search.
+ *
+ * Entries are evicted in least recently used order once the memory used by the entries exceeds the
+ * capacity of the cache. All methods may be called from any thread.
+ *
+ * @author Paddy Lamont
+ */
+public class PathCache {
+
+    // The approximate number of bytes used by each entry, other than its chunks and path
+    private static final int OVERHEAD_BYTES = 96;
+    private static final int CHUNK_BYTES = 32;
+    private static final int NODE_BYTES = 8;
+    private static final int BLOCK_BYTES = 32;
+
+    private final long maxBytes;
+    private final Map<Object, Entry> entries;
+    private long bytes = 0;
+
+    private long routeHits = 0;
+    private long routeMisses = 0;
+    private long segmentHits = 0;
+    private long segmentMisses = 0;
+
+    /**
+     * @param maxBytes The most bytes of memory that the cached paths may use.
+     */
+    public PathCache(long maxBytes) {
+        if (maxBytes <= 0)
+            throw new IllegalArgumentException("maxBytes must be positive");
+
+        this.maxBytes = maxBytes;
+        this.entries = new LinkedHashMap<>(64, 0.75f, true);
+    }
+
+    /**
+     * The graph lock of {@param world} must be held when calling this.
+     *
+     * @return The cached route of nodes from the surface {@param startSurface} of {@param startChunk} to
+     *         the surface {@param endSurface} of {@param endChunk}, or null if there is no cached route.
+     */
+    synchronized List<Node> getRoute(PreprocessedWorld world,
+                                     ChunkLoc startChunk, int startSurface,
+                                     ChunkLoc endChunk, int endSurface) {
+
+        RouteKey key = new RouteKey(startChunk, startSurface, endChunk, endSurface);
+        Entry entry = entries.get(key);
+
+        if (entry != null && !entry.isCurrent(world)) {
+            remove(key);
+            entry = null;
+        }
+
+        if (entry == null) {
+            routeMisses += 1;
+            return null;
+        }
+
+        routeHits += 1;
+        @SuppressWarnings("unchecked")
+        List<Node> route = (List<Node>) entry.value;
+        return route;
+    }
+
+    /**
+     * Cache the {@param route} of nodes from the surface {@param startSurface} of {@param startChunk} to the
+     * surface {@param endSurface} of {@param endChunk}. The graph lock of {@param world} must be held when
+     * calling this, and {@param route} must have been found while holding the same lock.
+     */
+    synchronized void putRoute(PreprocessedWorld world,
+                               ChunkLoc startChunk, int startSurface,
+                               ChunkLoc endChunk, int endSurface,
+                               List<Node> route) {
+
+        ChunkLoc[] chunks = new ChunkLoc[2 * route.size() + 2];
+        chunks[0] = startChunk;
+        chunks[1] = endChunk;
+        for (int index = 0; index < route.size(); ++index) {
+            chunks[2 * index + 2] = route.get(index).chunk1;
+            chunks[2 * index + 3] = route.get(index).chunk2;
+        }
+
+        int[] versions = new int[chunks.length];
+        for (int index = 0; index < chunks.length; ++index) {
+            versions[index] = world.getChunkVersion(chunks[index]);
+        }
+
+        List<Node> value = Collections.unmodifiableList(route);
+        int entryBytes = OVERHEAD_BYTES + chunks.length * CHUNK_BYTES + route.size() * NODE_BYTES;
+
+        put(new RouteKey(startChunk, startSurface, endChunk, endSurface), new Entry(chunks, versions, value, entryBytes));
+    }
+
+    /**
+     * @return The cached path of blocks within the chunk {@param chunk} from {@param from} to the closest
+     *         of {@param goals}, relative to the region of the chunk, or null if there is no cached path
+     *         for the version {@param version} of the chunk.
+     */
+    synchronized List<BlockLoc> getSegment(ChunkLoc chunk, int version, BlockLoc from, BlockLoc[] goals) {
+        SegmentKey key = new SegmentKey(chunk, from, goals);
+        Entry entry = entries.get(key);
+
+        // Paths found in older versions of the chunk will never be used again
+        if (entry != null && entry.versions[0] < version) {
+            remove(key);
+            entry = null;
+        }
+
+        if (entry == null || entry.versions[0] != version) {
+            segmentMisses += 1;
+            return null;
+        }
+
+        segmentHits += 1;
+        @SuppressWarnings("unchecked")
+        List<BlockLoc> path = (List<BlockLoc>) entry.value;
+        return path;
+    }
+
+    /**
+     * Cache the {@param path} of blocks within the chunk {@param chunk}, relative to its region,
+     * from {@param from} to the closest of {@param goals}, found in the version {@param version}.
+     */
+    synchronized void putSegment(ChunkLoc chunk, int version, BlockLoc from, BlockLoc[] goals, List<BlockLoc> path) {
+        List<BlockLoc> value = Collections.unmodifiableList(path);
+        int entryBytes = OVERHEAD_BYTES + CHUNK_BYTES + (goals.length + path.size()) * BLOCK_BYTES;
+
+        Entry entry = new Entry(new ChunkLoc[] {chunk}, new int[] {version}, value, entryBytes);
+        put(new SegmentKey(chunk, from, goals), entry);
+    }
+
+    private void put(Object key, Entry entry) {
+        Entry previous = entries.put(key, entry);
+        if (previous != null) {
+            bytes -= previous.bytes;
+        }
+        bytes += entry.bytes;
+
+        // Evict the least recently used entries until the cache is within its capacity
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (bytes > maxBytes && iterator.hasNext()) {
+            bytes -= iterator.next().bytes;
+            iterator.remove();
+        }
+    }
+
+    private void remove(Object key) {
+        Entry entry = entries.remove(key);
+        if (entry != null) {
+            bytes -= entry.bytes;
+        }
+    }
+
+    /**
+     * Remove all entries from this cache.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+
+    /**
+     * @return The number of routes and segments in this cache.
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return The approximate number of bytes of memory used by the entries in this cache.
+     */
+    public synchronized long getByteLength() {
+        return bytes;
+    }
+
+    /**
+     * @return The number of times a route was found in this cache.
+     */
+    public synchronized long getRouteHits() {
+        return routeHits;
+    }
+
+    /**
+     * @return The number of times a route was not found in this cache, or was discarded as its chunks had changed.
+     */
+    public synchronized long getRouteMisses() {
+        return routeMisses;
+    }
+
+    /**
+     * @return The number of times a segment was found in this cache.
+     */
+    public synchronized long getSegmentHits() {
+        return segmentHits;
+    }
+
+    /**
+     * @return The number of times a segment was not found in this cache, or was discarded as its chunk had changed.
+     */
+    public synchronized long getSegmentMisses() {
+        return segmentMisses;
+    }
+
+    /**
+     * A cached route or segment, with the versions of the chunks it passes through when it was found.
+     */
+    private static class Entry {
+
+        private final ChunkLoc[] chunks;
+        private final int[] versions;
+        private final Object value;
+        private final int bytes;
+
+        private Entry(ChunkLoc[] chunks, int[] versions, Object value, int bytes) {
+            this.chunks = chunks;
+            this.versions = versions;
+            this.value = value;
+            this.bytes = bytes;
+        }
+
+        /**
+         * @return Whether none of the chunks of this entry have changed since it was found.
+         */
+        private boolean isCurrent(PreprocessedWorld world) {
+            for (int index = 0; index < chunks.length; ++index) {
+                if (world.getChunkVersion(chunks[index]) != versions[index])
+                    return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Identifies a route by the surfaces it starts and ends on.
+     */
+    private static class RouteKey {
+
+        private final ChunkLoc startChunk;
+        private final int startSurface;
+        private final ChunkLoc endChunk;
+        private final int endSurface;
+
+        private RouteKey(ChunkLoc startChunk, int startSurface, ChunkLoc endChunk, int endSurface) {
+            this.startChunk = startChunk;
+            this.startSurface = startSurface;
+            this.endChunk = endChunk;
+            this.endSurface = endSurface;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof RouteKey))
+                return false;
+
+            RouteKey other = (RouteKey) obj;
+            return startSurface == other.startSurface
+                    && endSurface == other.endSurface
+                    && startChunk.equals(other.startChunk)
+                    && endChunk.equals(other.endChunk);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(startChunk, startSurface, endChunk, endSurface);
+        }
+    }
+
+    /**
+     * Identifies a segment by its chunk, the block it starts from, and the blocks it could end at.
+     */
+    private static class SegmentKey {
+
+        private final ChunkLoc chunk;
+        private final BlockLoc from;
+        private final BlockLoc[] goals;
+
+        private SegmentKey(ChunkLoc chunk, BlockLoc from, BlockLoc[] goals) {
+            this.chunk = chunk;
+            this.from = from;
+            this.goals = goals;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof SegmentKey))
+                return false;
+
+            SegmentKey other = (SegmentKey) obj;
+            return chunk.equals(other.chunk) && from.equals(other.from) && Arrays.equals(goals, other.goals);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(chunk, from, Arrays.hashCode(goals));
+        }
+    }
+}
@@ -0,0 +1,804 @@
+package net.sothatsit.farpath.preprocessing;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * A search for a path through a {@link PreprocessedWorld} that can be run in steps.
+ *
+ * The search first finds a path through the graph of nodes between chunks, and then finds the path of blocks
+ * within each region along that path. Each node is crossed at whichever of its crossings is closest, out of
+ * those that lead on to the surface that the path continues from. Where no crossing leads on directly, the
+ * boundary surface of the node is crossed back and forth along the fewest crossings that do.
+ *
+ * The state of the search is kept between steps, so that a long search can be spread over many ticks. If the
+ * world is modified while the graph is being searched, the search is only restarted if it depends on the nodes
+ * that were changed, and it gives up once it has been restarted {@link #MAX_RESTARTS} times. Once the graph
+ * search has completed, the regions along the path are held by the search, and so the path of blocks is found
+ * within the regions as they were when the graph search completed. If the world has a {@link DistanceFieldCache},
+ * the path of blocks is found by following the distance fields to the goals of each region's path instead.
+ * If the world has a {@link PathCache}, the path of nodes and the paths within regions are re-used from
+ * earlier searches where they are still current, instead of being searched for again.
+ *
+ * Paths that start and end within the static areas of a {@link ContractionHierarchy} are found by searching
+ * upwards through its shortcuts from both the start and the end. Otherwise, bidirectional queries search the
+ * graph from both the start and the end at the same time. They do not use the {@link ClusterHierarchy} of the
+ * world, and so trade crossing clusters in single steps for meeting in the middle, which suits ends in confined
+ * areas such as caves. Other queries cross the clusters away from the start and end in single steps, if the world
+ * has a {@link ClusterHierarchy}. If the world has a {@link LandmarkHeuristic}, the graph search is guided by the
+ * costs from its landmarks as well as by the distance to the end.
+ *
+ * @author Paddy Lamont
+ */
+public class PathQuery {
+
+    /**
+     * The number of times a search may be restarted due to the world being modified before it gives up.
+     */
+    static final int MAX_RESTARTS = 8;
+
+    private enum Stage {
+        START,
+        GRAPH,
+        REGIONS,
+        COMPLETE
+    }
+
+    private final PreprocessedWorld world;
+    private final BlockLoc start;
+    private final BlockLoc end;
+    private final boolean bidirectional;
+
+    // Whether routes and segments are re-used from, and stored in, the path cache of the world
+    private boolean useCache = true;
+
+    private Stage stage = Stage.START;
+    private int version;
+    private int restarts = 0;
+
+    private SearchWorkspace workspace;
+    private GraphSearch graphSearch;
+
+    // The state of finding the path of blocks along the path of nodes, once it has been found
+    private List<Node> nodePath;
+    private Map<ChunkLoc, PreprocessedRegion> regions;
+    private Map<ChunkLoc, Integer> regionVersions;
+    private int nodeIndex;
+    private ChunkLoc chunk;
+    private int surfaceID;
+    private BlockLoc position;
+    private ChunkLoc endChunk;
+    private int endSurface;
+
+    // The path currently being found within a region
+    private Segment segment;
+    private boolean segmentStarted;
+
+    private List<BlockLoc> path;
+
+    private long nodeExpansions = 0;
+    private long backwardNodeExpansions = 0;
+    private long blockExpansions = 0;
+
+    public PathQuery(PreprocessedWorld world, BlockLoc start, BlockLoc end) {
+        this(world, start, end, false);
+    }
+
+    /**
+     * @param bidirectional Whether to search the graph from both the start and the end at the same time,
+     *                      instead of through the {@link ClusterHierarchy} of the world or from the start only.
+     */
+    public PathQuery(PreprocessedWorld world, BlockLoc start, BlockLoc end, boolean bidirectional) {
+        this.world = world;
+        this.start = start;
+        this.end = end;
+        this.bidirectional = bidirectional;
+    }
+
+    public BlockLoc getStart() {
+        return start;
+    }
+
+    public BlockLoc getEnd() {
+        return end;
+    }
+
+    /**
+     * @return Whether this search searches the graph from both the start and the end at the same time.
+     */
+    public boolean isBidirectional() {
+        return bidirectional;
+    }
+
+    /**
+     * Set whether this search re-uses paths from the {@link PathCache} of the world, and stores the paths it finds
+     * in it. Searches that ignore the cache always do all of their own work, so that it can be measured. This must
+     * be called before this search is first stepped.
+     */
+    public void setUseCache(boolean useCache) {
+        if (stage != Stage.START)
+            throw new IllegalStateException("the search has already been started");
+
+        this.useCache = useCache;
+    }
+
+    /**
+     * @return Whether this search has completed.
+     */
+    public boolean isComplete() {
+        return stage == Stage.COMPLETE;
+    }
+
+    /**
+     * @return A List of blocks to traverse to get from the start to the end,
+     *         or null if no path could be found.
+     *
+     * @throws IllegalStateException If this search has not completed.
+     */
+    public List<BlockLoc> getPath() {
+        if (stage != Stage.COMPLETE)
+            throw new IllegalStateException("the search has not completed");
+
+        return path;
+    }
+
+    /**
+     * @return The number of nodes in the graph processed by this search so far.
+     */
+    public long getNodeExpansions() {
+        return nodeExpansions;
+    }
+
+    /**
+     * @return The number of nodes in the graph processed by this search so far from the start towards the end.
+     *         This is every node processed, unless the graph is searched from both the start and the end.
+     */
+    public long getForwardNodeExpansions() {
+        return nodeExpansions - backwardNodeExpansions;
+    }
+
+    /**
+     * @return The number of nodes in the graph processed by this search so far from the end towards the start.
+     *         This is zero, unless the graph is searched from both the start and the end.
+     */
+    public long getBackwardNodeExpansions() {
+        return backwardNodeExpansions;
+    }
+
+    /**
+     * @return The number of blocks in regions processed by this search so far.
+     */
+    public long getBlockExpansions() {
+        return blockExpansions;
+    }
+
+    /**
+     * @return The number of times this search has been restarted due to the world being modified.
+     */
+    public int getRestarts() {
+        return restarts;
+    }
+
+    /**
+     * Stop this search without finding a path.
+     */
+    public void cancel() {
+        complete(null);
+    }
+
+    /**
+     * Continue this search until it completes, or until it has processed {@param maxNodes} more
+     * nodes of the graph, or {@param maxBlocks} more blocks within regions. This may be called
+     * from any thread, but must not be called by more than one thread at a time.
+     *
+     * @return Whether this search has completed.
+     *
+     * @throws IllegalArgumentException If the start or end are not on a surface.
+     * @throws IllegalStateException    If the search has been restarted too many times due to the world being modified.
+     */
+    public boolean step(int maxNodes, int maxBlocks) {
+        if (stage == Stage.COMPLETE)
+            return true;
+
+        Lock lock = world.getGraphLock().readLock();
+        lock.lock();
+        try {
+            if (stage == Stage.GRAPH && version != world.getVersion()) {
+                checkForChanges();
+            }
+
+            if (stage == Stage.START && !startGraphSearch())
+                return true;
+
+            if (stage == Stage.GRAPH && !stepGraphSearch(maxNodes))
+                return false;
+
+            if (stage == Stage.COMPLETE)
+                return true;
+
+            return stepRegionSearches(maxBlocks);
+        } catch (RuntimeException exception) {
+            complete(null);
+            throw exception;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Restart the graph search if it depends on any of the nodes changed since it was last stepped,
+     * or otherwise make room in it for any nodes that have been added to the graph.
+     *
+     * @throws IllegalStateException If the search has already been restarted {@link #MAX_RESTARTS} times.
+     */
+    private void checkForChanges() {
+        if (!world.getChanges().affects(version, graphSearch)) {
+            graphSearch.grow(world.getGraph().getIDLimit());
+            version = world.getVersion();
+            return;
+        }
+
+        if (restarts >= MAX_RESTARTS)
+            throw new IllegalStateException("the search was restarted " + restarts + " times as the world kept changing");
+
+        restarts += 1;
+        stage = Stage.START;
+
+        graphSearch.release();
+        graphSearch = null;
+    }
+
+    private void complete(List<BlockLoc> path) {
+        this.stage = Stage.COMPLETE;
+        this.path = path;
+
+        if (graphSearch != null) {
+            graphSearch.release();
+            graphSearch = null;
+        }
+
+        this.nodePath = null;
+        this.regions = null;
+        this.regionVersions = null;
+        this.segment = null;
+
+        if (workspace != null) {
+            workspace.release();
+            workspace = null;
+        }
+    }
+
+    /**
+     * @return The IDs of the nodes in {@param nodeList}.
+     */
+    private static int[] toIDs(List<Node> nodeList) {
+        int[] ids = new int[nodeList.size()];
+        for (int index = 0; index < ids.length; ++index) {
+            ids[index] = nodeList.get(index).getID();
+        }
+        return ids;
+    }
+
+    /**
+     * @return The distance from each of the nodes {@param ids} to {@param loc}.
+     */
+    private static double[] distancesTo(NodeGraph graph, int[] ids, BlockLoc loc) {
+        double[] distances = new double[ids.length];
+        for (int index = 0; index < ids.length; ++index) {
+            distances[index] = graph.distance(ids[index], loc.x, loc.y, loc.z);
+        }
+        return distances;
+    }
+
+    /**
+     * @return Whether the graph search was started. If not, this search has completed without finding a path.
+     */
+    private boolean startGraphSearch() {
+        ChunkLoc startChunk = start.toChunkLoc();
+        ChunkLoc endChunk = end.toChunkLoc();
+
+        PreprocessedRegion startRegion = world.getRegion(startChunk);
+        PreprocessedRegion endRegion = world.getRegion(endChunk);
+
+        if (startRegion == null || endRegion == null) {
+            complete(null);
+            return false;
+        }
+
+        int startSurface = startRegion.getSurfaceIDByWorldLoc(start);
+        int endSurface = endRegion.getSurfaceIDByWorldLoc(end);
+
+        if (startSurface == 0 || endSurface == 0)
+            throw new IllegalArgumentException("start and end must both be on a surface in their regions");
+
+        // Surfaces in different components are never connected, so the graph does not need to be searched
+        if (!world.isConnected(startChunk, startSurface, endChunk, endSurface)) {
+            complete(null);
+            return false;
+        }
+
+        List<Node> startNodes = world.getSurfaceNodes(startChunk, startSurface);
+        List<Node> endNodes = world.getSurfaceNodes(endChunk, endSurface);
+
+        if (startNodes == null || endNodes == null) {
+            complete(null);
+            return false;
+        }
+
+        if (workspace == null) {
+            workspace = SearchWorkspace.acquire();
+        }
+
+        PathCache pathCache = (useCache ? world.getPathCache() : null);
+        if (pathCache != null) {
+            List<Node> route = pathCache.getRoute(world, startChunk, startSurface, endChunk, endSurface);
+            if (route != null) {
+                beginRegionSearches(route);
+                return true;
+            }
+        }
+
+        NodeGraph graph = world.getGraph();
+        workspace.reset(graph.getIDLimit());
+
+        // The start and end are virtual nodes that are never added to the graph, so
+        // that the graph is not modified while it may be being read by other threads
+        int[] startIDs = toIDs(startNodes);
+        int[] endIDs = toIDs(endNodes);
+
+        ContractionHierarchy contraction = world.getContractionHierarchy();
+        ClusterHierarchy hierarchy = world.getClusterHierarchy();
+        LandmarkHeuristic landmarks = world.getLandmarks();
+        double[] endCosts = distancesTo(graph, endIDs, end);
+        LandmarkHeuristic.Goal goal = (landmarks == null ? null : landmarks.createGoal(graph, endIDs, endCosts));
+
+        // The nodes outside of the static areas are searched in both directions without any guidance
+        // towards the goal, and so only paths that start and end within the static areas use shortcuts
+        if (contraction != null && contraction.hasContraction()
+                && contraction.isStatic(startChunk) && contraction.isStatic(endChunk)) {
+            graphSearch = contraction.new Search(
+                    graph, workspace,
+                    startIDs, distancesTo(graph, startIDs, start),
+                    endIDs, endCosts
+            );
+        } else if (bidirectional) {
+            double[] startCosts = distancesTo(graph, startIDs, start);
+            LandmarkHeuristic.Goal startGoal = (landmarks == null ? null : landmarks.createGoal(graph, startIDs, startCosts));
+
+            graphSearch = graph.new BidirectionalSearch(
+                    workspace,
+                    startIDs, startCosts, start.x, start.y, start.z,
+                    endIDs, endCosts, end.x, end.y, end.z,
+                    startGoal, goal
+            );
+        } else if (hierarchy != null) {
+            graphSearch = hierarchy.new Search(
+                    graph, workspace,
+                    startChunk, startIDs, distancesTo(graph, startIDs, start),
+                    endChunk, endIDs, endCosts,
+                    end.x, end.y, end.z, goal
+            );
+        } else {
+            graphSearch = graph.new Search(
+                    workspace,
+                    startIDs, distancesTo(graph, startIDs, start),
+                    endIDs, endCosts,
+                    end.x, end.y, end.z, goal
+            );
+        }
+
+        version = world.getVersion();
+        stage = Stage.GRAPH;
+        return true;
+    }
+
+    /**
+     * @return The number of nodes processed by {@param search} backwards from the end nodes.
+     */
+    private static int getBackwardExpansions(GraphSearch search) {
+        if (search instanceof NodeGraph.BidirectionalSearch)
+            return ((NodeGraph.BidirectionalSearch) search).getBackwardExpansions();
+        if (search instanceof ContractionHierarchy.Search)
+            return ((ContractionHierarchy.Search) search).getBackwardExpansions();
+        return 0;
+    }
+
+    /**
+     * @return Whether the graph search has completed.
+     */
+    private boolean stepGraphSearch(int maxNodes) {
+        int expansionsBefore = workspace.getExpansions();
+        int backwardBefore = getBackwardExpansions(graphSearch);
+        boolean graphComplete = graphSearch.step(maxNodes);
+        nodeExpansions += workspace.getExpansions() - expansionsBefore;
+        backwardNodeExpansions += getBackwardExpansions(graphSearch) - backwardBefore;
+
+        if (!graphComplete)
+            return false;
+
+        List<Node> graphPath = graphSearch.getPath();
+        graphSearch = null;
+
+        if (graphPath == null) {
+            complete(null);
+            return true;
+        }
+
+        PathCache pathCache = (useCache ? world.getPathCache() : null);
+        if (pathCache != null) {
+            ChunkLoc startChunk = start.toChunkLoc();
+            ChunkLoc endChunk = end.toChunkLoc();
+            int startSurface = world.getRegion(startChunk).getSurfaceIDByWorldLoc(start);
+            int endSurface = world.getRegion(endChunk).getSurfaceIDByWorldLoc(end);
+            pathCache.putRoute(world, startChunk, startSurface, endChunk, endSurface, graphPath);
+        }
+
+        beginRegionSearches(graphPath);
+        return true;
+    }
+
+    /**
+     * Start finding the path of blocks along the path of nodes {@param graphPath}.
+     */
+    private void beginRegionSearches(List<Node> graphPath) {
+        // Hold the regions along the path, so that the path of blocks is found within the regions
+        // as they were when the graph search completed, even if they are replaced afterwards
+        regions = new HashMap<>();
+        regionVersions = new HashMap<>();
+        holdRegion(start.toChunkLoc());
+        for (Node node : graphPath) {
+            holdRegion(node.chunk1);
+            holdRegion(node.chunk2);
+        }
+
+        PreprocessedRegion startRegion = getPathRegion(start.toChunkLoc());
+        PreprocessedRegion endRegion = world.getRegion(end.toChunkLoc());
+
+        nodePath = graphPath;
+        nodeIndex = 0;
+        chunk = start.toChunkLoc();
+        surfaceID = startRegion.getSurfaceIDByWorldLoc(start);
+        position = start;
+        endChunk = end.toChunkLoc();
+        endSurface = endRegion.getSurfaceIDByWorldLoc(end);
+
+        segment = null;
+        segmentStarted = false;
+        path = new ArrayList<>();
+        stage = Stage.REGIONS;
+    }
+
+    private void holdRegion(ChunkLoc loc) {
+        regions.put(loc, world.getRegion(loc));
+        regionVersions.put(loc, world.getChunkVersion(loc));
+    }
+
+    private PreprocessedRegion getPathRegion(ChunkLoc loc) {
+        PreprocessedRegion region = regions.get(loc);
+        if (region == null)
+            throw new IllegalStateException("There is no region for the chunk " + loc + " on the path");
+
+        return region;
+    }
+
+    /**
+     * @return Whether the next node to cross after the node at {@param index} in the path, or the end if
+     *         there are no more nodes, can be reached from the surface {@param surfaceID} of {@param loc}.
+     */
+    private boolean canReachNext(int index, ChunkLoc loc, int surfaceID) {
+        if (index + 1 >= nodePath.size())
+            return loc.equals(endChunk) && surfaceID == endSurface;
+
+        Node next = nodePath.get(index + 1);
+        if (!next.touches(loc))
+            return false;
+
+        for (int nextSurfaceID : next.getSurfaceIDs(loc)) {
+            if (nextSurfaceID == surfaceID)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return The next path to be found within a region from the current position, or
+     *         null if the current position is the end.
+     */
+    private Segment nextSegment() {
+        while (nodeIndex < nodePath.size()) {
+            // Nodes do not need to be crossed if the node after them can already be reached
+            if (canReachNext(nodeIndex, chunk, surfaceID)) {
+                nodeIndex += 1;
+                continue;
+            }
+
+            // A node may be crossed several times before reaching a surface that the node after it can be reached from
+            Node node = nodePath.get(nodeIndex);
+            if (!node.touches(chunk))
+                throw new IllegalStateException("Could not find path from " + position + " across " + node);
+
+            return createCrossingSegment(node);
+        }
+
+        if (!chunk.equals(endChunk) || surfaceID != endSurface)
+            throw new IllegalStateException("Could not find path from " + position + " to " + end);
+
+        if (position.equals(end))
+            return null;
+
+        PreprocessedRegion region = getPathRegion(chunk);
+        BlockLoc[] goals = {end.subtract(region.getOrigin())};
+        return new Segment(chunk, regionVersions.get(chunk), region, surfaceID, position, goals, null);
+    }
+
+    /**
+     * @return The path to be found from the current position to any of the crossings of {@param node}.
+     */
+    private Segment createCrossingSegment(Node node) {
+        ChunkLoc other = node.getOtherChunk(chunk);
+        PreprocessedRegion region = getPathRegion(chunk);
+        PreprocessedRegion otherRegion = getPathRegion(other);
+
+        int[] blocks = node.getCrossingBlocks(chunk);
+        int[] partners = node.getCrossingBlocks(other);
+
+        // The surface on each side of each crossing
+        int[] surfaces = new int[blocks.length];
+        int[] partnerSurfaces = new int[blocks.length];
+        for (int crossing = 0; crossing < blocks.length; ++crossing) {
+            surfaces[crossing] = region.getSurfaceID(region.reverseIndex(blocks[crossing]));
+            partnerSurfaces[crossing] = otherRegion.getSurfaceID(otherRegion.reverseIndex(partners[crossing]));
+        }
+
+        Set<Integer> nextSurfaces = findNextSurfaces(surfaces, partnerSurfaces, other);
+        if (nextSurfaces.isEmpty())
+            throw new IllegalStateException("Could not find path from " + position + " across " + node);
+
+        int[] crossings = findCrossings(surfaces, partnerSurfaces, nextSurfaces);
+
+        BlockLoc[] goals = new BlockLoc[crossings.length];
+        BlockLoc[] worldPartners = new BlockLoc[crossings.length];
+        for (int index = 0; index < crossings.length; ++index) {
+            goals[index] = region.reverseIndex(blocks[crossings[index]]);
+            worldPartners[index] = otherRegion.reverseIndex(partners[crossings[index]]).add(otherRegion.getOrigin());
+        }
+
+        return new Segment(chunk, regionVersions.get(chunk), region, surfaceID, position, goals, worldPartners);
+    }
+
+    /**
+     * Find the fewest crossings of the current node from the current surface to a surface that the node after it,
+     * or the end, can be reached from. The crossings go between the surfaces {@param surfaces} of the current chunk
+     * and the surfaces {@param partnerSurfaces} of {@param other}, and may be stepped across in either direction.
+     *
+     * @return The surfaces of {@param other} that may be crossed to first, which are empty if no surface that
+     *         leads on can be reached.
+     */
+    private Set<Integer> findNextSurfaces(int[] surfaces, int[] partnerSurfaces, ChunkLoc other) {
+        // The surfaces of the current chunk are keyed by their ID, and the surfaces of the other chunk by
+        // their negated ID. Each surface reached is mapped to the surface of the other chunk crossed to first.
+        Map<Integer, Integer> firstSurfaces = new HashMap<>();
+        firstSurfaces.put(surfaceID, 0);
+
+        List<Integer> level = Collections.singletonList(surfaceID);
+        Set<Integer> nextSurfaces = new HashSet<>();
+
+        while (!level.isEmpty() && nextSurfaces.isEmpty()) {
+            List<Integer> nextLevel = new ArrayList<>();
+
+            for (int key : level) {
+                boolean isCurrentChunk = (key > 0);
+                int firstSurface = firstSurfaces.get(key);
+
+                for (int crossing = 0; crossing < surfaces.length; ++crossing) {
+                    int from = (isCurrentChunk ? surfaces[crossing] : -partnerSurfaces[crossing]);
+                    int to = (isCurrentChunk ? -partnerSurfaces[crossing] : surfaces[crossing]);
+                    if (from != key || to == 0 || firstSurfaces.containsKey(to))
+                        continue;
+
+                    int toFirstSurface = (firstSurface == 0 ? partnerSurfaces[crossing] : firstSurface);
+                    firstSurfaces.put(to, toFirstSurface);
+                    nextLevel.add(to);
+
+                    // All of the surfaces that lead on after the fewest crossings are kept, so that the closest is used
+                    if (canReachNext(nodeIndex, to > 0 ? chunk : other, Math.abs(to))) {
+                        nextSurfaces.add(toFirstSurface);
+                    }
+                }
+            }
+
+            level = nextLevel;
+        }
+
+        return nextSurfaces;
+    }
+
+    /**
+     * @return The crossings from the current surface to any of {@param nextSurfaces}, given the surface on this
+     *         side of each crossing in {@param surfaces}, and on the other side in {@param partnerSurfaces}.
+     */
+    private int[] findCrossings(int[] surfaces, int[] partnerSurfaces, Set<Integer> nextSurfaces) {
+        int[] crossings = new int[surfaces.length];
+        int count = 0;
+
+        for (int crossing = 0; crossing < surfaces.length; ++crossing) {
+            if (surfaces[crossing] == surfaceID && nextSurfaces.contains(partnerSurfaces[crossing])) {
+                crossings[count++] = crossing;
+            }
+        }
+
+        return Arrays.copyOf(crossings, count);
+    }
+
+    /**
+     * @return Whether the searches within regions have completed.
+     */
+    private boolean stepRegionSearches(int maxBlocks) {
+        DistanceFieldCache distanceFields = world.getDistanceFields();
+        PathCache pathCache = (useCache ? world.getPathCache() : null);
+        int budget = maxBlocks;
+
+        while (true) {
+            if (segment == null) {
+                segment = nextSegment();
+                if (segment == null)
+                    break;
+            }
+
+            PreprocessedRegion region = segment.region;
+
+            List<BlockLoc> regionPath = null;
+            if (pathCache != null && !segmentStarted) {
+                regionPath = pathCache.getSegment(segment.chunk, segment.version, segment.from, segment.goals);
+            }
+
+            if (regionPath != null) {
+                // Each block walked is counted as processed, the same as when following a distance field
+                blockExpansions += regionPath.size();
+                budget -= regionPath.size();
+            } else {
+                if (distanceFields != null) {
+                    long expansionsBefore = blockExpansions;
+                    regionPath = followDistanceField(segment);
+                    budget -= (int) (blockExpansions - expansionsBefore);
+                } else {
+                    if (!segmentStarted) {
+                        workspace.reset(region.getSurfaceVolume(segment.surfaceID));
+                        region.beginSearch(workspace, segment.surfaceID, segment.from, segment.goals);
+                        segmentStarted = true;
+                    }
+
+                    int expansionsBefore = workspace.getExpansions();
+                    int result = region.continueSearch(workspace, segment.surfaceID, budget);
+                    int expansions = workspace.getExpansions() - expansionsBefore;
+
+                    blockExpansions += expansions;
+                    budget -= expansions;
+
+                    if (result == PreprocessedRegion.SEARCH_INCOMPLETE)
+                        return false;
+
+                    if (result == PreprocessedRegion.SEARCH_NOT_FOUND)
+                        throw segment.createNotFoundException();
+
+                    BlockLoc goal = region.getFoundGoal(workspace, segment.surfaceID);
+                    regionPath = region.reconstructPath(workspace, segment.surfaceID, segment.from, goal);
+                }
+
+                if (pathCache != null) {
+                    pathCache.putSegment(segment.chunk, segment.version, segment.from, segment.goals, regionPath);
+                }
+            }
+
+            // The last location is the goal that was reached, which is next to the start of the next segment
+            for (BlockLoc loc : regionPath) {
+                path.add(loc.add(region.getOrigin()));
+            }
+
+            if (finishSegment(regionPath.get(regionPath.size() - 1)))
+                break;
+
+            if (budget <= 0)
+                return false;
+        }
+
+        // The end is only missing if the path reached it without searching its region
+        if (path.isEmpty() || !path.get(path.size() - 1).equals(end)) {
+            path.add(end);
+        }
+        complete(path);
+        return true;
+    }
+
+    /**
+     * Move the current position across the crossing that was reached at {@param goal} by the current segment.
+     *
+     * @return Whether the current segment reached the end of the path.
+     */
+    private boolean finishSegment(BlockLoc goal) {
+        Segment finished = segment;
+        segment = null;
+        segmentStarted = false;
+
+        if (finished.partners == null) {
+            position = end;
+            return true;
+        }
+
+        int crossing = Arrays.asList(finished.goals).indexOf(goal);
+        if (crossing < 0)
+            throw new IllegalStateException("The path of " + finished.worldFrom + " did not reach a crossing");
+
+        position = finished.partners[crossing];
+        chunk = position.toChunkLoc();
+        surfaceID = getPathRegion(chunk).getSurfaceIDByWorldLoc(position);
+        return false;
+    }
+
+    /**
+     * Find the path of {@param segment} by following the distance field to its goals, creating the field if
+     * it is not cached. Creating a field searches the whole surface at once, regardless of the budget.
+     *
+     * @return A List of blocks from the start to a goal of {@param segment}, relative to its region.
+     */
+    private List<BlockLoc> followDistanceField(Segment segment) {
+        // Fields that are cached are not created, and so leave no expansions in the workspace
+        workspace.reset(0);
+
+        DistanceField field = world.getDistanceFields().get(
+                segment.chunk, segment.version, segment.region, segment.surfaceID, segment.goals, workspace
+        );
+        List<BlockLoc> regionPath = segment.region.followDistanceField(field, segment.from);
+        if (regionPath == null)
+            throw segment.createNotFoundException();
+
+        // Each block walked is counted as processed, as well as the blocks processed to create the field
+        blockExpansions += workspace.getExpansions() + regionPath.size();
+        return regionPath;
+    }
+
+    /**
+     * A path to be found from a block to the closest of a set of goal blocks on the same surface within a
+     * region. The goals are either the blocks that a node can be crossed from, or the end of the path.
+     */
+    private static class Segment {
+
+        // The chunk of the region, and the version of the chunk that the region was taken from
+        private final ChunkLoc chunk;
+        private final int version;
+        private final PreprocessedRegion region;
+        private final int surfaceID;
+        private final BlockLoc worldFrom;
+
+        // The blocks to find a path between, relative to the region
+        private final BlockLoc from;
+        private final BlockLoc[] goals;
+
+        // The block stepped to from each goal to cross a node, or null if the goals are the end of the path
+        private final BlockLoc[] partners;
+
+        private Segment(ChunkLoc chunk, int version, PreprocessedRegion region, int surfaceID,
+                        BlockLoc worldFrom, BlockLoc[] goals, BlockLoc[] partners) {
+            this.chunk = chunk;
+            this.version = version;
+            this.region = region;
+            this.surfaceID = surfaceID;
+            this.worldFrom = worldFrom;
+            this.from = worldFrom.subtract(region.getOrigin());
+            this.goals = goals;
+            this.partners = partners;
+        }
+
+        private IllegalStateException createNotFoundException() {
+            return new IllegalStateException("Could not find path from " + worldFrom + " to any of "
+                    + goals.length + " blocks in its region");
+        }
+    }
+}
@@ -1,11 +1,16 @@
 package net.sothatsit.farpath.preprocessing;
 
 import net.sothatsit.farpath.util.PackedBooleanArray;
-import net.sothatsit.farpath.util.PriorityQueueLinked;
+import net.sothatsit.farpath.util.IndexedHeap;
+import net.sothatsit.farpath.util.SparseIntArray;
+import net.sothatsit.farpath.util.SparseShortArray;
 import org.bukkit.Chunk;
+import org.bukkit.ChunkSnapshot;
 import org.bukkit.Location;
+import org.bukkit.Material;
 import org.bukkit.block.Block;
 
+import java.nio.ByteBuffer;
 import java.util.*;
 
 /**
@@ -16,34 +21,113 @@ import java.util.*;
 public class PreprocessedRegion {
 
     private final Block anchor;
+
+    // The location of the anchor, so that worker threads never have to read the anchor block
+    private final BlockLoc origin;
+
     private final int width;
     private final int height;
     private final int depth;
     private final int blockCount;
 
+    /**
+     * The results of {@link #continueSearch(SearchWorkspace, int, BlockLoc, int)}.
+     */
+    static final int SEARCH_INCOMPLETE = 0;
+    static final int SEARCH_FOUND = 1;
+    static final int SEARCH_NOT_FOUND = 2;
+
+    // The stack of blocks to be labelled by relabelSurfaces, kept for each thread so it is not allocated for every rebuild
+    private static final ThreadLocal<int[]> labelStacks = ThreadLocal.withInitial(() -> new int[0]);
+
+    // The difference in index between a block and the block at the end of each connection from it
+    private final int[] connectionOffsets;
+
+    // The connections from each block to blocks that come before it in index order
+    private final int precedingConnectionMask;
+
     private PackedBooleanArray passable;
     private PackedBooleanArray solid;
     private PackedBooleanArray freeSpace;
     private PackedBooleanArray walkable;
-    private short[] surfaces;
-    private int[] connectionMasks;
+
+    // Only walkable blocks belong to surfaces or have connections, so these are only
+    // allocated for the sections of this region that contain walkable blocks
+    private SparseShortArray surfaces;
+    private SparseIntArray connectionMasks;
+    private int maxSurfaceID;
+
+    // The bounding box of each surface, stored as minX, minY, minZ, maxX, maxY, maxZ at index surfaceID * 6
+    private int[] surfaceBounds;
 
     public PreprocessedRegion(Chunk chunk) {
         this(chunk.getBlock(0, 0, 0), 16, chunk.getWorld().getMaxHeight(), 16);
     }
 
     public PreprocessedRegion(Block anchor, int width, int height, int depth) {
+        this(anchor, new BlockLoc(anchor), width, height, depth);
+    }
+
+    /**
+     * Create a region at {@param origin} that is not anchored to a block of a world, and
+     * so can only be built from the types of blocks given by a {@link BlockTypeSource}.
+     */
+    PreprocessedRegion(BlockLoc origin, int width, int height, int depth) {
+        this(null, origin, width, height, depth);
+    }
+
+    private PreprocessedRegion(Block anchor, BlockLoc origin, int width, int height, int depth) {
         this.anchor = anchor;
+        this.origin = origin;
         this.width = width;
         this.height = height;
         this.depth = depth;
         this.blockCount = width * height * depth;
+
+        this.connectionOffsets = new int[SurfaceConnection.COUNT];
+        int precedingConnectionMask = 0;
+        for (int ordinal = 0; ordinal < SurfaceConnection.COUNT; ++ordinal) {
+            SurfaceConnection connection = SurfaceConnection.fromOrdinal(ordinal);
+            connectionOffsets[ordinal] = index(connection.getDx(), connection.getDy(), connection.getDz());
+
+            if (connectionOffsets[ordinal] < 0) {
+                precedingConnectionMask |= connection.getMask();
+            }
+        }
+        this.precedingConnectionMask = precedingConnectionMask;
     }
 
+    /**
+     * @return A copy of this region that can be modified without affecting this region.
+     */
+    public PreprocessedRegion copy() {
+        PreprocessedRegion copy = new PreprocessedRegion(anchor, origin, width, height, depth);
+        copy.passable = passable.copy();
+        copy.solid = solid.copy();
+        copy.freeSpace = freeSpace.copy();
+        copy.walkable = walkable.copy();
+        copy.surfaces = surfaces.copy();
+        copy.connectionMasks = connectionMasks.copy();
+        copy.maxSurfaceID = maxSurfaceID;
+        copy.surfaceBounds = surfaceBounds.clone();
+        return copy;
+    }
+
+    /**
+     * @return The block at the minimum corner of this region, or null if it is not anchored to a block of a world.
+     */
     public Block getAnchor() {
         return anchor;
     }
 
+    /**
+     * @return The location of the anchor of this region. Unlike {@link #getAnchor()}, the location does
+     *         not refer to the world, and so may be used from any thread.
+     */
+    public BlockLoc getOrigin() {
+        return origin;
+    }
+
     public int getWidth() {
         return width;
     }
@@ -60,11 +144,25 @@ public class PreprocessedRegion {
         return blockCount;
     }
 
+    /**
+     * @return The number of bytes used to store the surfaces and connections of the blocks of this region.
+     */
+    long getSurfaceStorageSize() {
+        return surfaces.getByteLength() + connectionMasks.getByteLength();
+    }
+
+    /**
+     * @return The largest ID of any surface in this region, or 0 if there are no surfaces.
+     */
+    public int getMaxSurfaceID() {
+        return maxSurfaceID;
+    }
+
     public BlockLoc toBlockLoc(Block block) {
         return new BlockLoc(
-                block.getX() - anchor.getX(),
-                block.getY() - anchor.getY(),
-                block.getZ() - anchor.getZ()
+                block.getX() - origin.x,
+                block.getY() - origin.y,
+                block.getZ() - origin.z
         );
     }
 
@@ -82,8 +180,8 @@ public class PreprocessedRegion {
      * @return Whether it is possible to walk directly between the two given locations.
      *         i.e. Can walk between them without crossing other blocks.
      */
-    private boolean determineCanWalkBetween(int x1, int y1, int z1,
-                                            int x2, int y2, int z2) {
+    boolean determineCanWalkBetween(int x1, int y1, int z1,
+                                    int x2, int y2, int z2) {
 
         int relX = x2 - x1;
         int relY = y2 - y1;
@@ -139,132 +237,619 @@ public class PreprocessedRegion {
     }
 
     /**
-     * Starts at the given location and flood fills {@param surfaceID} throughout
-     * the surfaces array as long as blocks are connected to the surface.
+     * Rebuild all the pre-computed information about this region by reading its blocks from the world,
+     * classifying the blocks using {@param materials}.
+     *
+     * This must be called from the main server thread.
      */
-    private void floodFillSurface(short surfaceID, int x, int y, int z) {
+    public void rebuild(MaterialTable materials) {
+        rebuild((x, y, z) -> getBlock(x, y, z).getType(), materials);
+    }
 
-        Queue<BlockLoc> toProcess = new LinkedList<>();
-        int[] checkedConnectionMasks = new int[blockCount];
+    /**
+     * Rebuild all the pre-computed information about this region from {@param snapshot},
+     * classifying the blocks using {@param materials}.
+     *
+     * This does not access the world, and is therefore safe to be called from any thread.
+     * The snapshot is expected to be of the chunk that this region was constructed from.
+     */
+    public void rebuild(ChunkSnapshot snapshot, MaterialTable materials) {
+        this.passable = new PackedBooleanArray(blockCount);
+        this.solid = new PackedBooleanArray(blockCount);
 
-        toProcess.add(new BlockLoc(x, y, z));
-        surfaces[index(x, y, z)] = surfaceID;
+        BlockTypeSource source = snapshot::getBlockType;
+        for (int fromY = 0; fromY < height; fromY += 16) {
+            int toY = Math.min(height, fromY + 16);
 
-        while (!toProcess.isEmpty()) {
-            BlockLoc loc = toProcess.poll();
+            // Empty sections are all air, so there is no need to look up each of their blocks
+            if (snapshot.isSectionEmpty(fromY >> 4)) {
+                int fromIndex = fromY * width * depth;
+                int toIndex = toY * width * depth;
 
-            x = loc.x;
-            y = loc.y;
-            z = loc.z;
+                passable.setRange(fromIndex, toIndex, materials.isPassable(Material.AIR));
+                solid.setRange(fromIndex, toIndex, materials.isSolid(Material.AIR));
+                continue;
+            }
 
-            int index = index(x, y, z);
+            classifyLayers(source, materials, fromY, toY);
+        }
 
-            for (SurfaceConnection connection : SurfaceConnection.values()) {
-                int x2 = x + connection.getDx();
-                int y2 = y + connection.getDy();
-                int z2 = z + connection.getDz();
+        buildSurfaces();
+    }
 
-                // We only want to process blocks within this region
-                if (x2 < 0 || y2 < 0 || z2 < 0 || x2 >= width || y2 >= height || z2 >= depth)
-                    continue;
+    /**
+     * Rebuild all the pre-computed information about this region from the types of blocks
+     * given by {@param source}, classifying the blocks using {@param materials}.
+     */
+    void rebuild(BlockTypeSource source, MaterialTable materials) {
+        this.passable = new PackedBooleanArray(blockCount);
+        this.solid = new PackedBooleanArray(blockCount);
 
-                int index2 = index(x2, y2, z2);
-                if (!walkable.get(index2))
-                    continue;
+        classifyLayers(source, materials, 0, height);
+        buildSurfaces();
+    }
 
-                // Check that we haven't already checked for a connection between the blocks
-                if ((checkedConnectionMasks[index] & connection.getMask()) != 0)
-                    continue;
+    /**
+     * Set the passable and solid characteristics of all blocks from y = {@param fromY}
+     * up to but not including y = {@param toY}, from {@param source}.
+     */
+    private void classifyLayers(BlockTypeSource source, MaterialTable materials, int fromY, int toY) {
+        // Blocks are visited in the order they are stored in
+        int index = fromY * width * depth;
+        for (int y = fromY; y < toY; ++y) {
+            for (int z = 0; z < depth; ++z) {
+                for (int x = 0; x < width; ++x) {
+                    int flags = materials.getFlags(source.getBlockType(x, y, z));
+
+                    passable.set(index, (flags & MaterialTable.PASSABLE) != 0);
+                    solid.set(index, (flags & MaterialTable.SOLID) != 0);
+                    index += 1;
+                }
+            }
+        }
+    }
+
+    /**
+     * Set the passable and solid characteristics of the block at the given location from {@param source}.
+     *
+     * @return Whether the characteristics of the block changed.
+     */
+    private boolean classify(BlockTypeSource source, MaterialTable materials, int x, int y, int z) {
+        int index = index(x, y, z);
+        int flags = materials.getFlags(source.getBlockType(x, y, z));
 
-                // It will be the opposite connection for the other block to this block
-                SurfaceConnection connection2 = connection.getOpposite();
+        boolean isPassable = (flags & MaterialTable.PASSABLE) != 0;
+        boolean isSolid = (flags & MaterialTable.SOLID) != 0;
+        boolean changed = (isPassable != passable.get(index) || isSolid != solid.get(index));
 
-                // Mark that we no longer need to check the connection between these two blocks
-                checkedConnectionMasks[index] |= connection.getMask();
-                checkedConnectionMasks[index2] |= connection2.getMask();
+        passable.set(index, isPassable);
+        solid.set(index, isSolid);
+        return changed;
+    }
 
-                // Check that we can walk between the blocks
-                if (!determineCanWalkBetween(x, y, z, x2, y2, z2))
-                    continue;
+    /**
+     * Build the free space and walkable characteristics of all blocks
+     * between {@param fromY} and {@param toY}, inclusive, in every column.
+     *
+     * Blocks are indexed layer by layer, so the blocks above a run of blocks are at the same offset in the
+     * layer above. This allows the characteristics of up to 64 blocks to be calculated at once from the
+     * characteristics of the blocks in the two layers above them.
+     */
+    private void buildFreeSpace(int fromY, int toY) {
+        int layerSize = width * depth;
 
-                // Mark that there is a connection between the two blocks
-                connectionMasks[index] |= connection.getMask();
-                connectionMasks[index2] |= connection2.getMask();
+        for (int y = fromY; y <= toY; ++y) {
+            int layerIndex = y * layerSize;
 
-                // If its already been registered to a surface we don't need to process it again
-                if (surfaces[index2] != 0)
-                    continue;
+            for (int offset = 0; offset < layerSize; offset += 64) {
+                int index = layerIndex + offset;
+                int count = Math.min(64, layerSize - offset);
 
-                // Register the connected block as part of the surface
-                surfaces[index2] = surfaceID;
+                // TODO : This assumes that the region goes up to max height and that above max height is free space.
+                long above1Free = (y + 1 >= height ? -1L : passable.getBits(index + layerSize));
+                long above2Free = (y + 2 >= height ? -1L : passable.getBits(index + 2 * layerSize));
 
-                // Mark that we need to check the connected block for further connections
-                toProcess.add(new BlockLoc(x2, y2, z2));
+                long free = above1Free & above2Free;
+                freeSpace.setBits(index, free, count);
+                walkable.setBits(index, free & solid.getBits(index), count);
             }
         }
     }
 
     /**
-     * Rebuild all the pre-computed information about this chunk.
+     * Build the free space, walkable and surface information of this
+     * region from the passable and solid characteristics of its blocks.
      */
-    public void rebuild() {
-        // Build a couple arrays containing the characteristics of blocks
-        this.passable = new PackedBooleanArray(blockCount);
-        this.solid = new PackedBooleanArray(blockCount);
-        for (int x = 0; x < width; ++x) {
+    private void buildSurfaces() {
+        // Build an array of which blocks are free for the player to pass above,
+        // and build an array of which blocks can be walked upon
+        this.freeSpace = new PackedBooleanArray(blockCount);
+        this.walkable = new PackedBooleanArray(blockCount);
+        buildFreeSpace(0, height - 1);
+
+        // Build an array containing unique surface IDs for each group of walkable blocks that are connected
+        labelSurfaces();
+    }
+
+    /**
+     * Calculate the connections between all walkable blocks, and label each group of
+     * connected walkable blocks with a unique surface ID.
+     *
+     * This is done in a single scan over the blocks in index order, that connects each walkable
+     * block to the walkable blocks before it. Each block is given the provisional label of a block
+     * it connects to, and the labels of all the blocks it connects to are merged using union-find.
+     * A second pass then replaces the merged provisional labels with consecutive surface IDs.
+     */
+    void labelSurfaces() {
+        this.surfaces = new SparseShortArray(blockCount);
+        this.connectionMasks = new SparseIntArray(blockCount);
+
+        int layerSize = width * depth;
+        int[] labels = new int[blockCount];
+        int[] parents = new int[Math.max(16, blockCount / 64)];
+        int labelCount = 0;
+
+        int index = 0;
+        for (int y = 0; y < height; ++y) {
+            // Skip layers that are entirely air or buried, as they contain no surfaces
+            if (!isLayerWalkable(y)) {
+                index += layerSize;
+                continue;
+            }
+
             for (int z = 0; z < depth; ++z) {
-                for (int y = 0; y < height; ++y) {
-                    int index = index(x, y, z);
-                    Block block = getBlock(x, y, z);
+                for (int x = 0; x < width; ++x, ++index) {
+                    if (!walkable.get(index))
+                        continue;
 
-                    passable.set(index, block.isPassable() && !block.isLiquid());
-                    solid.set(index, !block.isPassable());
+                    int label = 0;
+
+                    int candidates = SurfaceConnection.getInBoundsMask(x, y, z, width, height, depth);
+                    candidates &= precedingConnectionMask;
+
+                    for (; candidates != 0; candidates &= candidates - 1) {
+                        int ordinal = Integer.numberOfTrailingZeros(candidates);
+                        int index2 = index + connectionOffsets[ordinal];
+                        if (!walkable.get(index2))
+                            continue;
+
+                        // Check that we can walk between the blocks
+                        SurfaceConnection connection = SurfaceConnection.fromOrdinal(ordinal);
+                        int x2 = x + connection.getDx();
+                        int y2 = y + connection.getDy();
+                        int z2 = z + connection.getDz();
+                        if (!determineCanWalkBetween(x, y, z, x2, y2, z2))
+                            continue;
+
+                        // Mark that there is a connection between the two blocks
+                        connectionMasks.or(index, connection.getMask());
+                        connectionMasks.or(index2, connection.getOpposite().getMask());
+
+                        // Merge the surfaces of the two blocks, keeping the smaller label as the root
+                        int root = findRoot(parents, labels[index2]);
+                        if (label == 0) {
+                            label = root;
+                        } else if (root < label) {
+                            parents[label] = root;
+                            label = root;
+                        } else if (root > label) {
+                            parents[root] = label;
+                        }
+                    }
+
+                    // The block is not connected to any blocks before it, so it starts a new surface
+                    if (label == 0) {
+                        label = ++labelCount;
+                        if (label >= parents.length) {
+                            parents = Arrays.copyOf(parents, parents.length * 2);
+                        }
+                        parents[label] = label;
+                    }
+
+                    labels[index] = label;
                 }
             }
         }
 
-        // Build an array of which blocks are free for the player to pass above,
-        // and build an array of which blocks can be walked upon
+        // Find the first block of each surface when scanning each column in turn, so that the surfaces can be
+        // given IDs in that order. The order of the columns is used, as that is the order surfaces used to be found.
+        int[] firstColumnIndices = new int[labelCount + 1];
+        Arrays.fill(firstColumnIndices, Integer.MAX_VALUE);
+
+        index = 0;
+        for (int y = 0; y < height; ++y) {
+            if (!isLayerWalkable(y)) {
+                index += layerSize;
+                continue;
+            }
+
+            for (int z = 0; z < depth; ++z) {
+                for (int x = 0; x < width; ++x, ++index) {
+                    if (labels[index] == 0)
+                        continue;
+
+                    int root = findRoot(parents, labels[index]);
+                    labels[index] = root;
+
+                    int columnIndex = (x * depth + z) * height + y;
+                    firstColumnIndices[root] = Math.min(firstColumnIndices[root], columnIndex);
+                }
+            }
+        }
+
+        int rootCount = 0;
+        long[] roots = new long[labelCount];
+        for (int label = 1; label <= labelCount; ++label) {
+            if (parents[label] == label) {
+                roots[rootCount++] = ((long) firstColumnIndices[label] << 32) | label;
+            }
+        }
+        Arrays.sort(roots, 0, rootCount);
+
+        int[] surfaceIDs = new int[labelCount + 1];
+        for (int rootIndex = 0; rootIndex < rootCount; ++rootIndex) {
+            surfaceIDs[(int) roots[rootIndex]] = rootIndex + 1;
+        }
+
+        for (index = 0; index < blockCount; ++index) {
+            if (labels[index] != 0) {
+                surfaces.set(index, (short) surfaceIDs[labels[index]]);
+            }
+        }
+
+        this.maxSurfaceID = rootCount;
+        buildSurfaceBounds();
+    }
+
+    /**
+     * @return Whether any block in the layer at {@param y} is walkable.
+     */
+    private boolean isLayerWalkable(int y) {
+        int layerSize = width * depth;
+        return walkable.isAnySet(y * layerSize, (y + 1) * layerSize);
+    }
+
+    /**
+     * @return The label at the root of the tree of merged labels containing {@param label}.
+     */
+    private static int findRoot(int[] parents, int label) {
+        while (parents[label] != label) {
+            // Halve the path to the root, so that later searches are faster
+            parents[label] = parents[parents[label]];
+            label = parents[label];
+        }
+        return label;
+    }
+
+    /**
+     * Calculate the bounding box of every surface in this region.
+     */
+    private void buildSurfaceBounds() {
+        int[] bounds = new int[(maxSurfaceID + 1) * 6];
+        for (int surfaceID = 0; surfaceID <= maxSurfaceID; ++surfaceID) {
+            int offset = surfaceID * 6;
+            bounds[offset] = width;
+            bounds[offset + 1] = height;
+            bounds[offset + 2] = depth;
+            bounds[offset + 3] = -1;
+            bounds[offset + 4] = -1;
+            bounds[offset + 5] = -1;
+        }
+
+        for (int y = 0; y < height; ++y) {
+            if (!isLayerWalkable(y))
+                continue;
+
+            for (int z = 0; z < depth; ++z) {
+                for (int x = 0; x < width; ++x) {
+                    int surfaceID = surfaces.get(index(x, y, z));
+                    if (surfaceID == 0)
+                        continue;
+
+                    int offset = surfaceID * 6;
+                    bounds[offset] = Math.min(bounds[offset], x);
+                    bounds[offset + 1] = Math.min(bounds[offset + 1], y);
+                    bounds[offset + 2] = Math.min(bounds[offset + 2], z);
+                    bounds[offset + 3] = Math.max(bounds[offset + 3], x);
+                    bounds[offset + 4] = Math.max(bounds[offset + 4], y);
+                    bounds[offset + 5] = Math.max(bounds[offset + 5], z);
+                }
+            }
+        }
+
+        this.surfaceBounds = bounds;
+    }
+
+    /**
+     * Rebuild the pre-computed information of the 16x16x16 sections of this region in {@param sectionMask}
+     * from {@param snapshot} using {@param materials}, where bit n of the mask represents the section from y = 16n to y = 16n + 15.
+     *
+     * Walkability and connections are only recomputed for the given sections and a halo around them,
+     * and only the surfaces that touch them are re-labelled. Surfaces keep their previous IDs where
+     * possible. This does not access the world, and is therefore safe to be called from any thread.
+     *
+     * @return Whether any change was made that could affect the boundaries between this region and its neighbours.
+     */
+    public boolean rebuildSections(ChunkSnapshot snapshot, MaterialTable materials, int sectionMask) {
+        BlockTypeSource source = snapshot::getBlockType;
+        boolean edgeChanged = false;
+        int minY = height;
+        int maxY = -1;
+
+        for (int section = 0; section < 32; ++section) {
+            if ((sectionMask & (1 << section)) == 0)
+                continue;
+
+            int fromY = section * 16;
+            int toY = Math.min(height, fromY + 16) - 1;
+            if (fromY > toY)
+                continue;
+
+            minY = Math.min(minY, fromY);
+            maxY = Math.max(maxY, toY);
+
+            for (int x = 0; x < width; ++x) {
+                for (int z = 0; z < depth; ++z) {
+                    for (int y = fromY; y <= toY; ++y) {
+                        // Changes in edge blocks change the boundaries with neighbouring regions
+                        if (classify(source, materials, x, y, z) && isEdge(x, z)) {
+                            edgeChanged = true;
+                        }
+                    }
+                }
+            }
+        }
+
+        if (maxY < 0)
+            return false;
+
+        // Whether a block has free space above it depends on the two blocks above it
+        int freeFromY = Math.max(0, minY - 2);
+        buildFreeSpace(freeFromY, maxY);
+
+        // Connections depend on the free space of both blocks, and of the blocks one level above the lower block
+        int haloFromY = Math.max(0, freeFromY - 1);
+        int haloToY = Math.min(height - 1, maxY + 1);
+        rebuildConnections(haloFromY, haloToY);
+
+        return relabelSurfaces(haloFromY, haloToY) || edgeChanged;
+    }
+
+    /**
+     * @return Whether the given column lies on the edge of this region.
+     */
+    private boolean isEdge(int x, int z) {
+        return x == 0 || z == 0 || x == width - 1 || z == depth - 1;
+    }
+
+    /**
+     * @return The number of bytes written by {@link #write(ByteBuffer)}.
+     */
+    int getSerializedLength() {
+        return 4 * 4
+                + 4 * PackedBooleanArray.getByteLength(blockCount)
+                + surfaces.getByteLength()
+                + connectionMasks.getByteLength()
+                + (maxSurfaceID + 1) * 6 * 4;
+    }
+
+    /**
+     * @return The most bytes that {@link #write(ByteBuffer)} could write for a region of this size.
+     */
+    int getMaxSerializedLength() {
+        return 4 * 4
+                + 4 * PackedBooleanArray.getByteLength(blockCount)
+                + SparseShortArray.getMaxByteLength(blockCount)
+                + SparseIntArray.getMaxByteLength(blockCount)
+                + (0xFFFF + 1) * 6 * 4;
+    }
+
+    /**
+     * Write the pre-computed information about this region to {@param buffer}.
+     */
+    void write(ByteBuffer buffer) {
+        buffer.putInt(width);
+        buffer.putInt(height);
+        buffer.putInt(depth);
+        buffer.putInt(maxSurfaceID);
+
+        passable.write(buffer);
+        solid.write(buffer);
+        freeSpace.write(buffer);
+        walkable.write(buffer);
+
+        surfaces.write(buffer);
+        connectionMasks.write(buffer);
+
+        buffer.asIntBuffer().put(surfaceBounds);
+        buffer.position(buffer.position() + surfaceBounds.length * 4);
+    }
+
+    /**
+     * Read the pre-computed information about this region from {@param buffer}, as written by
+     * {@link #write(ByteBuffer)}. This does not access the world, and is therefore safe to be
+     * called from any thread.
+     *
+     * @throws IllegalArgumentException If the information was written by a region of a different size.
+     */
+    void read(ByteBuffer buffer) {
+        if (buffer.getInt() != width || buffer.getInt() != height || buffer.getInt() != depth)
+            throw new IllegalArgumentException("the information was written by a region of a different size");
+
+        int maxSurfaceID = buffer.getInt();
+        if (maxSurfaceID < 0 || maxSurfaceID > 0xFFFF)
+            throw new IllegalArgumentException("the information has an invalid number of surfaces");
+
+        this.maxSurfaceID = maxSurfaceID;
+
+        this.passable = new PackedBooleanArray(blockCount);
+        this.solid = new PackedBooleanArray(blockCount);
         this.freeSpace = new PackedBooleanArray(blockCount);
         this.walkable = new PackedBooleanArray(blockCount);
+        passable.read(buffer);
+        solid.read(buffer);
+        freeSpace.read(buffer);
+        walkable.read(buffer);
+
+        this.surfaces = new SparseShortArray(blockCount);
+        this.connectionMasks = new SparseIntArray(blockCount);
+        surfaces.read(buffer);
+        connectionMasks.read(buffer);
+
+        this.surfaceBounds = new int[(maxSurfaceID + 1) * 6];
+        buffer.asIntBuffer().get(surfaceBounds);
+        buffer.position(buffer.position() + surfaceBounds.length * 4);
+
+        if (buffer.hasRemaining())
+            throw new IllegalArgumentException("the information is not the expected length");
+    }
 
+    /**
+     * Recompute the connections of all blocks between {@param fromY} and {@param toY}, inclusive.
+     */
+    private void rebuildConnections(int fromY, int toY) {
         for (int x = 0; x < width; ++x) {
             for (int z = 0; z < depth; ++z) {
-                // TODO : This assumes that the region goes up to max height and that above max height is free space.
-                int index2Above = -1;
-                int index1Above = -1;
-
-                for (int y = height - 1; y >= 0; --y) {
+                for (int y = fromY; y <= toY; ++y) {
                     int index = index(x, y, z);
+                    boolean isWalkable = walkable.get(index);
+
+                    int candidates = SurfaceConnection.getInBoundsMask(x, y, z, width, height, depth);
+                    for (; candidates != 0; candidates &= candidates - 1) {
+                        int ordinal = Integer.numberOfTrailingZeros(candidates);
+                        SurfaceConnection connection = SurfaceConnection.fromOrdinal(ordinal);
+
+                        int index2 = index + connectionOffsets[ordinal];
+                        int mask = connection.getMask();
+                        int mask2 = connection.getOpposite().getMask();
+
+                        boolean connected = isWalkable && walkable.get(index2) && determineCanWalkBetween(
+                                x, y, z,
+                                x + connection.getDx(), y + connection.getDy(), z + connection.getDz()
+                        );
+
+                        if (connected) {
+                            connectionMasks.or(index, mask);
+                            connectionMasks.or(index2, mask2);
+                        } else {
+                            connectionMasks.clear(index, mask);
+                            connectionMasks.clear(index2, mask2);
+                        }
+                    }
+                }
+            }
+        }
+    }
 
-                    boolean above1Free = (index1Above < 0 || passable.get(index1Above));
-                    boolean above2Free = (index2Above < 0 || passable.get(index2Above));
+    /**
+     * Re-label all surfaces that contain a block between {@param fromY} and {@param toY}, inclusive,
+     * using the current connections between blocks. Surfaces keep their previous ID where possible.
+     *
+     * @return Whether the surface ID of any block on the edge of this region changed.
+     */
+    private boolean relabelSurfaces(int fromY, int toY) {
+        boolean[] affected = new boolean[maxSurfaceID + 1];
+        for (int y = fromY; y <= toY; ++y) {
+            for (int x = 0; x < width; ++x) {
+                for (int z = 0; z < depth; ++z) {
+                    affected[surfaces.get(index(x, y, z))] = true;
+                }
+            }
+        }
 
-                    freeSpace.set(index, above1Free && above2Free);
-                    walkable.set(index, freeSpace.get(index) && solid.get(index));
+        // Blocks that are not on a surface are already clear, and setting them would allocate their sections
+        affected[0] = false;
 
-                    index2Above = index1Above;
-                    index1Above = index;
-                }
+        // Clear all of the affected surfaces, so they can be flood filled again
+        SparseShortArray previousSurfaces = surfaces.copy();
+        for (int index = 0; index < blockCount; ++index) {
+            if (affected[surfaces.get(index)]) {
+                surfaces.set(index, (short) 0);
             }
         }
 
-        // Build an array containing unique surface IDs for each group of walkable blocks that are connected
-        short nextSurfaceID = 1;
-        this.surfaces = new short[blockCount];
-        this.connectionMasks = new int[blockCount];
+        int[] stack = labelStacks.get();
+        if (stack.length < blockCount) {
+            stack = new int[blockCount];
+            labelStacks.set(stack);
+        }
+
+        // Give surfaces their previous IDs where possible, so that nodes that reference them remain valid
+        boolean[] reused = new boolean[maxSurfaceID + 1];
+        for (int index = 0; index < blockCount; ++index) {
+            int previousID = previousSurfaces.get(index);
+            if (surfaces.get(index) != 0 || !walkable.get(index) || previousID == 0 || reused[previousID])
+                continue;
+
+            reused[previousID] = true;
+            labelConnected((short) previousID, index, stack);
+        }
+
+        // Give new surfaces the IDs of surfaces that were removed, or otherwise new IDs
+        int previousMaxSurfaceID = maxSurfaceID;
+        int nextFreeID = 1;
+        for (int index = 0; index < blockCount; ++index) {
+            if (surfaces.get(index) != 0 || !walkable.get(index))
+                continue;
+
+            while (nextFreeID <= previousMaxSurfaceID && (!affected[nextFreeID] || reused[nextFreeID])) {
+                nextFreeID += 1;
+            }
+
+            int surfaceID;
+            if (nextFreeID <= previousMaxSurfaceID) {
+                surfaceID = nextFreeID++;
+            } else {
+                surfaceID = ++maxSurfaceID;
+            }
+
+            labelConnected((short) surfaceID, index, stack);
+        }
+
+        buildSurfaceBounds();
+
+        // Release the sections that no longer contain any surfaces
+        surfaces.trim();
+        connectionMasks.trim();
 
         for (int x = 0; x < width; ++x) {
             for (int z = 0; z < depth; ++z) {
+                if (!isEdge(x, z))
+                    continue;
+
                 for (int y = 0; y < height; ++y) {
                     int index = index(x, y, z);
+                    if (surfaces.get(index) != previousSurfaces.get(index))
+                        return true;
+                }
+            }
+        }
+        return false;
+    }
 
-                    // If we've already assigned this block a surface ID, skip it
-                    if (!walkable.get(index) || surfaces[index] != 0)
-                        continue;
+    /**
+     * Flood fills {@param surfaceID} from the block at {@param startIndex} to all blocks connected
+     * to it, using the already calculated connections between blocks.
+     *
+     * @param stack An array with space for every block of this region, used to hold blocks to be processed.
+     */
+    private void labelConnected(short surfaceID, int startIndex, int[] stack) {
+        int stackSize = 0;
 
-                    floodFillSurface(nextSurfaceID++, x, y, z);
-                }
+        stack[stackSize++] = startIndex;
+        surfaces.set(startIndex, surfaceID);
+
+        while (stackSize > 0) {
+            int index = stack[--stackSize];
+            int connectionMask = connectionMasks.get(index);
+
+            for (; connectionMask != 0; connectionMask &= connectionMask - 1) {
+                int connectedIndex = index + connectionOffsets[Integer.numberOfTrailingZeros(connectionMask)];
+                if (surfaces.get(connectedIndex) != 0)
+                    continue;
+
+                surfaces.set(connectedIndex, surfaceID);
+                stack[stackSize++] = connectedIndex;
             }
         }
     }
@@ -300,9 +885,9 @@ public class PreprocessedRegion {
      *         If the location does not belong to a surface, 0 will be returned.
      */
     public int getSurfaceIDByWorldLoc(int x, int y, int z) {
-        x -= anchor.getX();
-        y -= anchor.getY();
-        z -= anchor.getZ();
+        x -= origin.x;
+        y -= origin.y;
+        z -= origin.z;
         return getSurfaceID(x, y, z);
     }
 
@@ -329,7 +914,7 @@ public class PreprocessedRegion {
      *         If the location does not belong to a surface, 0 will be returned.
      */
     public int getSurfaceID(int x, int y, int z) {
-        return surfaces[index(x, y, z)];
+        return surfaces.get(index(x, y, z));
     }
 
     /**
@@ -337,9 +922,9 @@ public class PreprocessedRegion {
      */
     public int getConnectionMask(Block block) {
         return getConnectionMask(
-                block.getX() - anchor.getX(),
-                block.getY() - anchor.getY(),
-                block.getZ() - anchor.getZ()
+                block.getX() - origin.x,
+                block.getY() - origin.y,
+                block.getZ() - origin.z
         );
     }
 
@@ -347,16 +932,58 @@ public class PreprocessedRegion {
      * @return A mask to be used to check for surface connections.
      */
     public int getConnectionMask(int x, int y, int z) {
-        return connectionMasks[index(x, y, z)];
+        return connectionMasks.get(index(x, y, z));
+    }
+
+    /**
+     * Get a connection mask using a location relative to the world, not relative to this region.
+     *
+     * @return A mask to be used to check for surface connections.
+     */
+    public int getConnectionMaskByWorldLoc(int x, int y, int z) {
+        return getConnectionMask(x - origin.x, y - origin.y, z - origin.z);
+    }
+
+    /**
+     * @return Whether there is space for a player above the block at the given location, relative to this region.
+     */
+    boolean isFreeSpace(int x, int y, int z) {
+        return freeSpace.get(index(x, y, z));
+    }
+
+    /**
+     * @return Whether the block at the given location, relative to this region, can be walked upon.
+     */
+    boolean isWalkable(int x, int y, int z) {
+        return walkable.get(index(x, y, z));
+    }
+
+    /**
+     * @return Whether the block at the given world location is classified with the passable and solid
+     *         characteristics of the material {@param flags}, which must be within this region.
+     */
+    boolean isClassifiedAs(int x, int y, int z, int flags) {
+        int index = getIndexByWorldLoc(x, y, z);
+        return passable.get(index) == ((flags & MaterialTable.PASSABLE) != 0)
+                && solid.get(index) == ((flags & MaterialTable.SOLID) != 0);
+    }
+
+    /**
+     * Get the index of a block using a location relative to the world, not relative to this region.
+     *
+     * @return A unique one-dimensional index representing the given location in this region.
+     */
+    int getIndexByWorldLoc(int x, int y, int z) {
+        return index(x - origin.x, y - origin.y, z - origin.z);
     }
 
     /**
      * @return Whether the given world location falls within this region.
      */
     public boolean contains(int x, int y, int z) {
-        x -= anchor.getX();
-        y -= anchor.getY();
-        z -= anchor.getZ();
+        x -= origin.x;
+        y -= origin.y;
+        z -= origin.z;
         return x >= 0 && y >= 0 && z >= 0 && x < width && y < height && z < depth;
     }
 
@@ -388,26 +1015,65 @@ public class PreprocessedRegion {
     }
 
     /**
-     * Reconstructs the shortest path from start to end using the array
-     * of previous nodes in the shortest paths, {@param from}.
+     * @return The number of blocks in the bounding box of the surface {@param surfaceID}.
+     */
+    int getSurfaceVolume(int surfaceID) {
+        int offset = surfaceID * 6;
+        int boundsWidth = surfaceBounds[offset + 3] - surfaceBounds[offset] + 1;
+        int boundsHeight = surfaceBounds[offset + 4] - surfaceBounds[offset + 1] + 1;
+        int boundsDepth = surfaceBounds[offset + 5] - surfaceBounds[offset + 2] + 1;
+        return boundsWidth * boundsHeight * boundsDepth;
+    }
+
+    /**
+     * @return A unique one-dimensional index representing the given location in the bounding box of
+     *         the surface {@param surfaceID}. Used to index the slots of a {@link SearchWorkspace}.
+     */
+    private int toSurfaceSlot(int surfaceID, int x, int y, int z) {
+        int offset = surfaceID * 6;
+        int boundsWidth = surfaceBounds[offset + 3] - surfaceBounds[offset] + 1;
+        int boundsDepth = surfaceBounds[offset + 5] - surfaceBounds[offset + 2] + 1;
+
+        x -= surfaceBounds[offset];
+        y -= surfaceBounds[offset + 1];
+        z -= surfaceBounds[offset + 2];
+        return x + z * boundsWidth + y * boundsWidth * boundsDepth;
+    }
+
+    /**
+     * @return The location that {@param slot} refers to in the bounding box of the surface {@param surfaceID}.
+     */
+    private BlockLoc fromSurfaceSlot(int surfaceID, int slot) {
+        int offset = surfaceID * 6;
+        int boundsWidth = surfaceBounds[offset + 3] - surfaceBounds[offset] + 1;
+        int boundsDepth = surfaceBounds[offset + 5] - surfaceBounds[offset + 2] + 1;
+
+        int x = slot % boundsWidth;
+        int z = (slot / boundsWidth) % boundsDepth;
+        int y = slot / boundsWidth / boundsDepth;
+        return new BlockLoc(
+                surfaceBounds[offset] + x,
+                surfaceBounds[offset + 1] + y,
+                surfaceBounds[offset + 2] + z
+        );
+    }
+
+    /**
+     * Reconstructs the shortest path from start to end using the previous
+     * slots in the shortest paths recorded in {@param workspace}.
      *
      * @return A List of BlockLocs on the path from {@param start} to {@param end}, including the start and end points.
      */
-    private List<BlockLoc> reconstructPath(int[] from, BlockLoc start, BlockLoc end) {
+    List<BlockLoc> reconstructPath(SearchWorkspace workspace, int surfaceID, BlockLoc start, BlockLoc end) {
         List<BlockLoc> path = new ArrayList<>();
 
-        int currentIndex = index(end);
-        BlockLoc currentLoc = end;
+        int startSlot = toSurfaceSlot(surfaceID, start.x, start.y, start.z);
+        int currentSlot = toSurfaceSlot(surfaceID, end.x, end.y, end.z);
         path.add(end);
 
-        while (!start.equals(currentLoc)) {
-            int fromIndex = from[currentIndex];
-            BlockLoc fromLoc = reverseIndex(fromIndex);
-
-            path.add(fromLoc);
-
-            currentIndex = fromIndex;
-            currentLoc = fromLoc;
+        while (currentSlot != startSlot) {
+            currentSlot = workspace.getFrom(currentSlot);
+            path.add(fromSurfaceSlot(surfaceID, currentSlot));
         }
 
         Collections.reverse(path);
@@ -421,87 +1087,377 @@ public class PreprocessedRegion {
      *         to {@param end}, or null if no path could be found.
      */
     public List<BlockLoc> findPath(BlockLoc start, BlockLoc end) {
-        int startSurface = getSurfaceID(start);
-        int endSurface = getSurfaceID(end);
-
-        if (startSurface == 0 || endSurface == 0)
+        if (getSurfaceID(start) == 0 || getSurfaceID(end) == 0)
             throw new IllegalArgumentException("start and end must both be on a surface in the region");
 
-        if (startSurface != endSurface)
+        return findPath(start, new BlockLoc[] {end});
+    }
+
+    /**
+     * Find a path within this region from {@param start} to whichever of {@param goals} is closest.
+     * Goals that are not on the same surface as {@param start} are ignored.
+     *
+     * @return A List of blocks to traverse to get from {@param start} to one
+     *         of {@param goals}, or null if no path could be found.
+     */
+    public List<BlockLoc> findPath(BlockLoc start, BlockLoc[] goals) {
+        int surfaceID = getSurfaceID(start);
+        if (surfaceID == 0)
+            throw new IllegalArgumentException("start must be on a surface in the region");
+
+        SearchWorkspace workspace = SearchWorkspace.begin(getSurfaceVolume(surfaceID));
+        if (!search(workspace, surfaceID, start, goals))
             return null;
 
-        // TODO : These arrays can likely be re-used, and additionally are likely a lot larger
-        //        than they need to be, as often surfaces won't span the whole of the chunk.
+        return reconstructPath(workspace, surfaceID, start, getFoundGoal(workspace, surfaceID));
+    }
 
-        // Keeps track of which nodes have been marked to be processed later
-        boolean[] explored = new boolean[blockCount];
+    /**
+     * An A* search from {@param start}, which must be on the surface {@param surfaceID}, to the closest of
+     * {@param goals}. The search state is recorded in {@param workspace}, indexed by the location of blocks
+     * within the bounding box of the surface. No objects are allocated while the search runs.
+     *
+     * @return Whether a path from {@param start} to any of {@param goals} was found.
+     */
+    boolean search(SearchWorkspace workspace, int surfaceID, BlockLoc start, BlockLoc[] goals) {
+        beginSearch(workspace, surfaceID, start, goals);
+        return continueSearch(workspace, surfaceID, Integer.MAX_VALUE) == SEARCH_FOUND;
+    }
 
-        // Keeps track of which nodes have already been processed
-        boolean[] processed = new boolean[blockCount];
+    /**
+     * Start an A* search from {@param start}, which must be on the surface {@param surfaceID}, to the closest
+     * of {@param goals}. Goals that are not on the surface are ignored. The search is run by
+     * {@link #continueSearch(SearchWorkspace, int, int)}, which can be called as many times as needed
+     * to complete the search. {@param workspace} must have been reset with at least
+     * {@link #getSurfaceVolume(int)} slots, and must not be used by any other search until this one completes.
+     */
+    void beginSearch(SearchWorkspace workspace, int surfaceID, BlockLoc start, BlockLoc[] goals) {
+        prepareSlotOffsets(workspace, surfaceID);
+
+        // The search is guided towards the bounding box of the goals, which is never further than any goal
+        int[] goalBounds = workspace.getGoalBounds();
+        Arrays.fill(goalBounds, 0, 3, Integer.MAX_VALUE);
+        Arrays.fill(goalBounds, 3, 6, Integer.MIN_VALUE);
+
+        for (BlockLoc goal : goals) {
+            if (getSurfaceID(goal) != surfaceID)
+                continue;
+
+            workspace.markGoal(toSurfaceSlot(surfaceID, goal.x, goal.y, goal.z));
+
+            goalBounds[0] = Math.min(goalBounds[0], goal.x);
+            goalBounds[1] = Math.min(goalBounds[1], goal.y);
+            goalBounds[2] = Math.min(goalBounds[2], goal.z);
+            goalBounds[3] = Math.max(goalBounds[3], goal.x);
+            goalBounds[4] = Math.max(goalBounds[4], goal.y);
+            goalBounds[5] = Math.max(goalBounds[5], goal.z);
+        }
 
-        // Contains the previous node in the shortest path currently known to each node, plus 1.
-        // 0 represents that no path to the node has been discovered.
-        int[] from = new int[blockCount];
+        // There is nothing to search for
+        if (goalBounds[0] > goalBounds[3])
+            return;
 
-        // Contains the length of the shortest path currently known to each node.
-        // 0 represents that no path to the node has been discovered.
-        double[] foundCosts = new double[blockCount];
+        int startSlot = toSurfaceSlot(surfaceID, start.x, start.y, start.z);
 
-        // Maintains which nodes are next to be processed
-        PriorityQueueLinked<BlockLoc> toProcess = new PriorityQueueLinked<>();
+        workspace.visit(startSlot, 0, startSlot);
+        workspace.getOpenSet().add(startSlot, 0);
+    }
 
-        toProcess.add(start, 0);
+    /**
+     * @return The goal reached by the search in {@param workspace} over the surface {@param surfaceID},
+     *         which must have returned {@link #SEARCH_FOUND}.
+     */
+    BlockLoc getFoundGoal(SearchWorkspace workspace, int surfaceID) {
+        return fromSurfaceSlot(surfaceID, workspace.getOpenSet().peek());
+    }
 
-        while (!toProcess.isEmpty()) {
-            BlockLoc loc = toProcess.poll();
+    /**
+     * Fill in the slot offsets of {@param workspace} for a search over the surface {@param surfaceID}.
+     */
+    private void prepareSlotOffsets(SearchWorkspace workspace, int surfaceID) {
+        int offset = surfaceID * 6;
+        int boundsWidth = surfaceBounds[offset + 3] - surfaceBounds[offset] + 1;
+        int boundsDepth = surfaceBounds[offset + 5] - surfaceBounds[offset + 2] + 1;
+        int boundsLayer = boundsWidth * boundsDepth;
+
+        // The difference in slot between a block and the block at the end of each connection from it
+        int[] slotOffsets = workspace.getSlotOffsets();
+        for (int ordinal = 0; ordinal < SurfaceConnection.COUNT; ++ordinal) {
+            SurfaceConnection connection = SurfaceConnection.fromOrdinal(ordinal);
+            slotOffsets[ordinal] = connection.getDx() + connection.getDz() * boundsWidth + connection.getDy() * boundsLayer;
+        }
+    }
 
-            if (loc.equals(end))
-                return reconstructPath(from, start, end);
+    /**
+     * Continue the A* search started by {@link #beginSearch(SearchWorkspace, int, BlockLoc, BlockLoc[])}
+     * until it completes, or until it has processed {@param maxExpansions} more blocks.
+     *
+     * @return {@link #SEARCH_FOUND} if a path to a goal was found, {@link #SEARCH_NOT_FOUND} if there is
+     *         no path to any goal, or {@link #SEARCH_INCOMPLETE} if the search has not yet completed.
+     */
+    int continueSearch(SearchWorkspace workspace, int surfaceID, int maxExpansions) {
+        IndexedHeap toProcess = workspace.getOpenSet();
+        int[] slotOffsets = workspace.getSlotOffsets();
+        int[] goalBounds = workspace.getGoalBounds();
 
-            int index = index(loc);
-            int connectionMask = connectionMasks[index];
-            double cost = foundCosts[index];
+        int offset = surfaceID * 6;
+        int minX = surfaceBounds[offset];
+        int minY = surfaceBounds[offset + 1];
+        int minZ = surfaceBounds[offset + 2];
+        int boundsWidth = surfaceBounds[offset + 3] - minX + 1;
+        int boundsDepth = surfaceBounds[offset + 5] - minZ + 1;
+        int boundsLayer = boundsWidth * boundsDepth;
 
-            processed[index] = true;
+        for (int expansion = 0; expansion < maxExpansions; ++expansion) {
+            if (toProcess.isEmpty())
+                return SEARCH_NOT_FOUND;
 
-            for (SurfaceConnection connection : SurfaceConnection.values()) {
-                if (!connection.inMask(connectionMask))
-                    continue;
+            int slot = toProcess.peek();
+            if (workspace.isGoal(slot))
+                return SEARCH_FOUND;
+
+            toProcess.poll();
+
+            int x = minX + slot % boundsWidth;
+            int z = minZ + (slot / boundsWidth) % boundsDepth;
+            int y = minY + slot / boundsLayer;
 
-                int x = loc.x + connection.getDx();
-                int y = loc.y + connection.getDy();
-                int z = loc.z + connection.getDz();
-                int connectedIndex = index(x, y, z);
+            int connectionMask = connectionMasks.get(x + z * width + y * width * depth);
+            double cost = workspace.getCost(slot);
 
-                if (processed[connectedIndex])
+            workspace.markProcessed(slot);
+            workspace.countExpansion();
+
+            for (; connectionMask != 0; connectionMask &= connectionMask - 1) {
+                int ordinal = Integer.numberOfTrailingZeros(connectionMask);
+                int connectedSlot = slot + slotOffsets[ordinal];
+
+                if (workspace.isProcessed(connectedSlot))
                     continue;
 
-                boolean previouslyExplored = explored[connectedIndex];
-                explored[connectedIndex] = true;
+                SurfaceConnection connection = SurfaceConnection.fromOrdinal(ordinal);
+                double connectedCost = cost + connection.getDistance();
+                if (workspace.isVisited(connectedSlot) && workspace.getCost(connectedSlot) <= connectedCost)
+                    continue;
+
+                workspace.visit(connectedSlot, connectedCost, slot);
+
+                int connectedX = x + connection.getDx();
+                int connectedY = y + connection.getDy();
+                int connectedZ = z + connection.getDz();
+                int dx = Math.max(0, Math.max(goalBounds[0] - connectedX, connectedX - goalBounds[3]));
+                int dy = Math.max(0, Math.max(goalBounds[1] - connectedY, connectedY - goalBounds[4]));
+                int dz = Math.max(0, Math.max(goalBounds[2] - connectedZ, connectedZ - goalBounds[5]));
+                double heuristic = Math.sqrt(dx * dx + dy * dy + dz * dz);
+
+                // Adds the block to the queue, or lowers its priority if it is already queued
+                toProcess.add(connectedSlot, connectedCost + heuristic);
+            }
+        }
+
+        if (toProcess.isEmpty())
+            return SEARCH_NOT_FOUND;
+
+        return (workspace.isGoal(toProcess.peek()) ? SEARCH_FOUND : SEARCH_INCOMPLETE);
+    }
+
+    /**
+     * Create the field of directions to take from every block of the surface {@param surfaceID} to walk
+     * the shortest path to the closest of {@param goals}. Goals that are not on the surface are ignored.
+     * A Dijkstra search is run from all the goals at once over the whole surface, with its state recorded
+     * in {@param workspace}. This only reads this region, and is therefore safe to be called from any thread.
+     */
+    DistanceField createDistanceField(SearchWorkspace workspace, int surfaceID, BlockLoc[] goals) {
+        int offset = surfaceID * 6;
+        int minX = surfaceBounds[offset];
+        int minY = surfaceBounds[offset + 1];
+        int minZ = surfaceBounds[offset + 2];
+        int boundsWidth = surfaceBounds[offset + 3] - minX + 1;
+        int boundsDepth = surfaceBounds[offset + 5] - minZ + 1;
+        int boundsLayer = boundsWidth * boundsDepth;
+
+        byte[] directions = new byte[getSurfaceVolume(surfaceID)];
+        Arrays.fill(directions, DistanceField.NO_DIRECTION);
+
+        workspace.reset(directions.length);
+        IndexedHeap toProcess = workspace.getOpenSet();
+        int[] slotOffsets = workspace.getSlotOffsets();
+        prepareSlotOffsets(workspace, surfaceID);
+
+        for (BlockLoc goal : goals) {
+            if (getSurfaceID(goal) != surfaceID)
+                continue;
+
+            int goalSlot = toSurfaceSlot(surfaceID, goal.x, goal.y, goal.z);
+            directions[goalSlot] = DistanceField.GOAL;
+            workspace.visit(goalSlot, 0, goalSlot);
+            toProcess.add(goalSlot, 0);
+        }
+
+        while (!toProcess.isEmpty()) {
+            int slot = toProcess.poll();
+
+            int x = minX + slot % boundsWidth;
+            int z = minZ + (slot / boundsWidth) % boundsDepth;
+            int y = minY + slot / boundsLayer;
 
+            double cost = workspace.getCost(slot);
+            workspace.markProcessed(slot);
+            workspace.countExpansion();
+
+            int connectionMask = connectionMasks.get(index(x, y, z));
+            for (; connectionMask != 0; connectionMask &= connectionMask - 1) {
+                int ordinal = Integer.numberOfTrailingZeros(connectionMask);
+                int connectedSlot = slot + slotOffsets[ordinal];
+
+                if (workspace.isProcessed(connectedSlot))
+                    continue;
+
+                SurfaceConnection connection = SurfaceConnection.fromOrdinal(ordinal);
                 double connectedCost = cost + connection.getDistance();
-                double oldConnectedCost = foundCosts[connectedIndex];
-                if (previouslyExplored && oldConnectedCost <= connectedCost)
+                if (workspace.isVisited(connectedSlot) && workspace.getCost(connectedSlot) <= connectedCost)
+                    continue;
+
+                workspace.visit(connectedSlot, connectedCost, slot);
+                toProcess.add(connectedSlot, connectedCost);
+
+                // The walk to the goals from the connected block steps back along this connection
+                directions[connectedSlot] = (byte) connection.getOpposite().ordinal();
+            }
+        }
+
+        return new DistanceField(surfaceID, goals, directions);
+    }
+
+    /**
+     * Find a path within this region from {@param start} to the closest goal of {@param field} by following
+     * its directions. {@param start} must be on the surface of {@param field}. No search is run to find the path.
+     *
+     * @return A List of BlockLocs on the path from {@param start} to a goal of {@param field}, including
+     *         the start and the goal, or null if no goal can be reached from {@param start}.
+     */
+    List<BlockLoc> followDistanceField(DistanceField field, BlockLoc start) {
+        int surfaceID = field.surfaceID;
+        int offset = surfaceID * 6;
+        int boundsWidth = surfaceBounds[offset + 3] - surfaceBounds[offset] + 1;
+        int boundsDepth = surfaceBounds[offset + 5] - surfaceBounds[offset + 2] + 1;
+        int boundsLayer = boundsWidth * boundsDepth;
+
+        List<BlockLoc> path = new ArrayList<>();
+        path.add(start);
+
+        int slot = toSurfaceSlot(surfaceID, start.x, start.y, start.z);
+
+        while (field.directions[slot] != DistanceField.GOAL) {
+            int direction = field.directions[slot];
+            if (direction == DistanceField.NO_DIRECTION)
+                return null;
+
+            SurfaceConnection connection = SurfaceConnection.fromOrdinal(direction);
+            slot += connection.getDx() + connection.getDz() * boundsWidth + connection.getDy() * boundsLayer;
+            path.add(fromSurfaceSlot(surfaceID, slot));
+        }
+
+        return path;
+    }
+
+    /**
+     * Find the length of the shortest walk from the nearest of the blocks {@param sources} to each block
+     * on the edges of this region that can be reached from them. One Dijkstra search is run from all the
+     * sources on each surface at once, until the whole surface has been searched. This only reads this
+     * region, and is therefore safe to be called from any thread.
+     *
+     * @param sources The indices of blocks in this region, as given by {@link #getIndexByWorldLoc(int, int, int)}.
+     */
+    EdgeCosts findEdgeCosts(int[] sources) {
+        // Each reached edge block, with its index in the upper bits and the bits of its cost in the lower bits
+        long[] reached = new long[64];
+        int reachedCount = 0;
+
+        boolean[] searched = new boolean[maxSurfaceID + 1];
+
+        for (int source : sources) {
+            int surfaceID = surfaces.get(source);
+            if (surfaceID == 0 || searched[surfaceID])
+                continue;
+
+            searched[surfaceID] = true;
+
+            int offset = surfaceID * 6;
+            int minX = surfaceBounds[offset];
+            int minY = surfaceBounds[offset + 1];
+            int minZ = surfaceBounds[offset + 2];
+            int boundsWidth = surfaceBounds[offset + 3] - minX + 1;
+            int boundsDepth = surfaceBounds[offset + 5] - minZ + 1;
+            int boundsLayer = boundsWidth * boundsDepth;
+
+            SearchWorkspace workspace = SearchWorkspace.begin(getSurfaceVolume(surfaceID));
+            IndexedHeap toProcess = workspace.getOpenSet();
+            int[] slotOffsets = workspace.getSlotOffsets();
+            prepareSlotOffsets(workspace, surfaceID);
+
+            for (int other : sources) {
+                if (surfaces.get(other) != surfaceID)
                     continue;
 
-                foundCosts[connectedIndex] = connectedCost;
-                from[connectedIndex] = index;
+                int slot = toSurfaceSlot(surfaceID, other % width, other / (width * depth), (other / width) % depth);
+                workspace.visit(slot, 0, slot);
+                toProcess.add(slot, 0);
+            }
+
+            while (!toProcess.isEmpty()) {
+                int slot = toProcess.poll();
+
+                int x = minX + slot % boundsWidth;
+                int z = minZ + (slot / boundsWidth) % boundsDepth;
+                int y = minY + slot / boundsLayer;
+                int index = index(x, y, z);
+
+                double cost = workspace.getCost(slot);
+                workspace.markProcessed(slot);
+
+                if (isEdge(x, z)) {
+                    if (reachedCount == reached.length) {
+                        reached = Arrays.copyOf(reached, reachedCount * 2);
+                    }
+                    reached[reachedCount++] = ((long) index << 32) | (Float.floatToIntBits((float) cost) & 0xFFFFFFFFL);
+                }
+
+                int connectionMask = connectionMasks.get(index);
+                for (; connectionMask != 0; connectionMask &= connectionMask - 1) {
+                    int ordinal = Integer.numberOfTrailingZeros(connectionMask);
+                    int connectedSlot = slot + slotOffsets[ordinal];
 
-                BlockLoc connectedLoc = new BlockLoc(x, y, z);
-                double heuristic = connectedLoc.distance(end);
+                    if (workspace.isProcessed(connectedSlot))
+                        continue;
 
-                // Negative priority as the queue prioritizes higher values first,
-                // whereas we need to prioritize the lowest values first
-                double priority = -(connectedCost + heuristic);
+                    double connectedCost = cost + SurfaceConnection.fromOrdinal(ordinal).getDistance();
+                    if (workspace.isVisited(connectedSlot) && workspace.getCost(connectedSlot) <= connectedCost)
+                        continue;
 
-                if (previouslyExplored) {
-                    toProcess.reprioritize(connectedLoc, priority);
-                } else {
-                    toProcess.add(connectedLoc, priority);
+                    workspace.visit(connectedSlot, connectedCost, slot);
+                    toProcess.add(connectedSlot, connectedCost);
                 }
             }
         }
 
-        throw new IllegalStateException("Couldn't find path between two points on the same surface");
+        // Each block is only on one surface, so is reached at most once
+        Arrays.sort(reached, 0, reachedCount);
+
+        int[] blocks = new int[reachedCount];
+        float[] costs = new float[reachedCount];
+        for (int entry = 0; entry < reachedCount; ++entry) {
+            blocks[entry] = (int) (reached[entry] >>> 32);
+            costs[entry] = Float.intBitsToFloat((int) reached[entry]);
+        }
+        return new EdgeCosts(blocks, costs);
+    }
+
+    /**
+     * Provides the types of blocks in a region, using locations relative to the region.
+     */
+    interface BlockTypeSource {
+
+        Material getBlockType(int x, int y, int z);
     }
 }
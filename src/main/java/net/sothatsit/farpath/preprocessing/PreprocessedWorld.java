@@ -1,12 +1,16 @@
 package net.sothatsit.farpath.preprocessing;
 
 import net.sothatsit.farpath.FarPath;
-import net.sothatsit.farpath.util.PriorityQueueLinked;
 import org.bukkit.*;
 import org.bukkit.block.Block;
 import org.bukkit.block.BlockState;
 
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
 
 /**
  * Allows the pre-processing of worlds to allow more efficient path-finding.
@@ -21,175 +25,516 @@ public class PreprocessedWorld {
     // Then, path-find between these two nodes, using distances between nodes as the weights of the connections.
     //
     // This will give a large overview path, after which A* can be used to find paths between the nodes.
-    // Still need to consider how to choose which boundary blocks in the nodes to choose to path-find to.
-    // Perhaps just choose the closest.
+    // Within each chunk, the path is found to whichever of the blocks that cross the next node is reached first.
+
+    // The most nodes and blocks each step of a path search may process while holding the read lock, so
+    // that the main server thread does not wait long for the write lock behind searches on other threads
+    private static final int STEP_NODES = 2048;
+    private static final int STEP_BLOCKS = 16384;
 
     private final FarPath main;
     private final World world;
     private final Map<ChunkLoc, PreprocessedRegion> chunks;
-    private final Map<ChunkLocPair, PreprocessedRegion> straightBoundaries;
     private final Map<ChunkLoc, Map<Integer, List<Node>>> nodes;
+    private final NodeGraph graph;
+
+    // The surfaces of chunks that are connected by nodes, used to reject paths that cannot be found without searching
+    private final SurfaceComponents components;
+
+    // How blocks of each material are classified when pre-processing chunks
+    private final MaterialTable materials;
+
+    // Pre-processed chunk regions stored on disk, or null if they are not cached
+    private final RegionCache cache;
+
+    // The fields used to refine paths within regions without searching them, or null if paths are refined by searching
+    private final DistanceFieldCache distanceFields;
+
+    // The routes and segments of paths that have been found before, or null if paths are not cached
+    private final PathCache pathCache;
+
+    // The clusters of chunks that long paths cross in single steps, or null if paths search every node
+    private final ClusterHierarchy hierarchy;
+
+    // The shortcuts between the nodes of the static areas of this world, or null if there are no static areas
+    private final ContractionHierarchy contraction;
+
+    // The costs from landmark nodes used to guide searches through the graph, or null if searches are not guided by them
+    private final LandmarkHeuristic landmarks;
+
+    // Chunks that are currently being pre-processed on the worker threads, mapped to the ticket
+    // of their task. If a chunk is removed or re-added before its task completes, the result is discarded.
+    private final Map<ChunkLoc, Object> pending;
+
+    // The 16x16x16 sections of chunks that have changed since they were pre-processed, as bit masks of
+    // their section indices. These are rebuilt periodically by {@link #rebuildDirtySections()}. A mask
+    // of 0 only finds the lengths of the walks between the nodes of the chunk again.
+    private final Map<ChunkLoc, Integer> dirtySections;
+
+    // The region last looked up by {@link #markDirtyIfChanged(Block)}, as physics updates tend to come in bursts
+    // within the same chunk. This is only used on the main server thread, and is cleared whenever regions change.
+    private PreprocessedRegion lastChangedRegion = null;
+
+    // Guards the boundaries, nodes and graph so that paths can be found from any thread. These are
+    // only modified on the main server thread while holding the write lock. Paths are found while
+    // holding the read lock, so that any number of paths can be found at the same time.
+    private final ReadWriteLock graphLock;
+
+    // Incremented whenever the boundaries, nodes or graph are modified, while holding the write lock
+    private int version;
+
+    // The nodes touched by the latest modifications of the graph, so that searches only restart if they depend on them
+    private final GraphChanges changes;
+
+    // The version of each chunk's region, which is changed whenever the region is replaced or removed. Versions
+    // are taken from a counter that only increases, so that a chunk never has the same version twice.
+    private final Map<ChunkLoc, Integer> chunkVersions;
+    private int chunkVersionCounter = 0;
 
-    public PreprocessedWorld(FarPath main, World world) {
+    /**
+     * @param materials How blocks of each material are classified when pre-processing chunks.
+     * @param cache          The cache to load and store pre-processed chunks in, or null to not cache them.
+     * @param distanceFields The cache of fields to refine paths within regions with, or null to refine
+     *                       paths by searching the regions.
+     * @param pathCache      The cache to store the paths found through this world in, or null to not cache them.
+     *                       Each world must have its own cache.
+     * @param hierarchy      The clusters of chunks to find long paths through, or null to search every node
+     *                       along paths. Each world must have its own hierarchy.
+     * @param contraction    The shortcuts to find paths through the static areas of this world with, or null
+     *                       if there are no static areas. Each world must have its own contraction hierarchy.
+     * @param landmarks      The costs from landmark nodes to guide searches with, or null to guide them only by
+     *                       the distance to the goal. Each world must have its own landmarks.
+     */
+    public PreprocessedWorld(FarPath main, World world, MaterialTable materials,
+                             RegionCache cache, DistanceFieldCache distanceFields, PathCache pathCache,
+                             ClusterHierarchy hierarchy, ContractionHierarchy contraction,
+                             LandmarkHeuristic landmarks) {
         this.main = main;
         this.world = world;
-        this.chunks = new HashMap<>();
-        this.straightBoundaries = new HashMap<>();
+        this.materials = materials;
+        this.cache = cache;
+        this.distanceFields = distanceFields;
+        this.pathCache = pathCache;
+        this.hierarchy = hierarchy;
+        this.contraction = contraction;
+        this.landmarks = landmarks;
+        this.chunks = new ConcurrentHashMap<>();
+        this.chunkVersions = new HashMap<>();
         this.nodes = new HashMap<>();
+        this.graph = new NodeGraph();
+        this.changes = new GraphChanges();
+        this.components = new SurfaceComponents();
+        this.pending = new HashMap<>();
+        this.dirtySections = new HashMap<>();
+        this.graphLock = new ReentrantReadWriteLock();
+    }
 
-        for (Chunk chunk : world.getLoadedChunks()) {
-            add(chunk);
+    /**
+     * Label the surfaces along the boundary between the chunk regions {@param one} and {@param two},
+     * and accumulate the information needed to create the nodes between them. This is built from the
+     * blocks already pre-processed for the two chunk regions, and therefore is safe to call from any thread.
+     *
+     * This includes the lengths of the walks from the crossings of each node to the edges of both chunks, so
+     * that the costs of the connections between the nodes of a chunk do not have to be found on the main thread.
+     *
+     * @return The information about each surface of the boundary, indexed by the surface IDs.
+     */
+    private static NodeBuilder[] prepareBoundary(PreprocessedRegion one, PreprocessedRegion two) {
+        NodeBuilder[] builders = prepareBoundaryNodes(new ChunkBoundary(one, two));
+
+        for (NodeBuilder builder : builders) {
+            if (builder == null || builder.chunk1Crossings.length == 0)
+                continue;
+
+            builder.chunk1Costs = one.findEdgeCosts(builder.chunk1Crossings);
+            builder.chunk2Costs = two.findEdgeCosts(builder.chunk2Crossings);
         }
+
+        return builders;
     }
 
-    private PreprocessedRegion createBoundary(World world, ChunkLocPair pair) {
-        ChunkLoc smaller = pair.smaller;
-        ChunkLoc larger = pair.larger;
+    /**
+     * Create the boundaries between {@param region} and all of its neighbours that have been published.
+     *
+     * @return The created boundaries, mapped by the neighbouring region they were created with.
+     */
+    private Map<PreprocessedRegion, NodeBuilder[]> createBoundaries(ChunkLoc loc, PreprocessedRegion region) {
+        Map<PreprocessedRegion, NodeBuilder[]> boundaries = new IdentityHashMap<>();
+
+        for (int dx = -1; dx <= 1; ++dx) {
+            for (int dz = -1; dz <= 1; ++dz) {
+                if (dx == 0 && dz == 0)
+                    continue;
+
+                // TODO : Corner boundaries
+                if (Math.abs(dx) == 1 && Math.abs(dz) == 1)
+                    continue;
 
-        Block anchor;
-        int width, depth;
-        int height = world.getMaxHeight();
+                ChunkLoc neighbourLoc = loc.getRelative(dx, dz);
+                PreprocessedRegion neighbour = chunks.get(neighbourLoc);
+                if (neighbour == null)
+                    continue;
 
-        if (smaller.x == larger.x) {
-            anchor = smaller.getBlock(world, 0, 0, 15);
-            width = 16;
-            depth = 2;
-        } else {
-            anchor = smaller.getBlock(world, 15, 0, 0);
-            width = 2;
-            depth = 16;
+                boundaries.put(neighbour, prepareBoundary(region, neighbour));
+            }
         }
 
-        return new PreprocessedRegion(anchor, width, height, depth);
+        return boundaries;
     }
 
-    private void generateBoundaryNodes(PreprocessedRegion boundary,
-                                       PreprocessedRegion one,
-                                       PreprocessedRegion two) {
+    /**
+     * Accumulate the information about each surface of {@param boundary} needed to create the nodes
+     * between its two regions. This is safe to call from any thread.
+     *
+     * @return The information about each surface of {@param boundary}, indexed by the surface IDs.
+     */
+    private static NodeBuilder[] prepareBoundaryNodes(ChunkBoundary boundary) {
+        NodeBuilder[] builders = new NodeBuilder[boundary.getMaxSurfaceID() + 1];
+
+        for (int index = 0; index < boundary.getBlockCount(); ++index) {
+            int surfaceID = boundary.getSurfaceID(index);
+            if (surfaceID == 0)
+                continue;
 
-        ChunkLoc chunk1 = new ChunkLoc(one.getAnchor().getChunk());
-        ChunkLoc chunk2 = new ChunkLoc(two.getAnchor().getChunk());
+            NodeBuilder builder = builders[surfaceID];
+            if (builder == null) {
+                builder = new NodeBuilder();
+                builders[surfaceID] = builder;
+            }
 
-        // TODO : Could keep track of the maximum surface ID in a PreprocessedRegion,
-        //        and then this could become a simple array. Same for this.nodes.
-        Map<Integer, Node> nodesByBoundaryID = new HashMap<>();
+            builder.cumulativeX += boundary.getX(index);
+            builder.cumulativeY += boundary.getY(index);
+            builder.cumulativeZ += boundary.getZ(index);
+            builder.surfaceBlockCount += 1;
 
-        Block anchor = boundary.getAnchor();
-        for (int x = 0; x < boundary.getWidth(); ++x) {
-            for (int z = 0; z < boundary.getDepth(); ++z) {
-                for (int y = 0; y < boundary.getHeight(); ++y) {
-                    int surfaceID = boundary.getSurfaceID(x, y, z);
-                    if (surfaceID == 0)
-                        continue;
+            if (boundary.isInOne(index)) {
+                builder.chunk1SurfaceIDs.add(boundary.getRegionSurfaceID(index));
+            } else {
+                builder.chunk2SurfaceIDs.add(boundary.getRegionSurfaceID(index));
+            }
+        }
 
-                    Node node = nodesByBoundaryID.get(surfaceID);
-                    if (node == null) {
-                        node = new Node(chunk1, chunk2, surfaceID);
-                        nodesByBoundaryID.put(surfaceID, node);
-                    }
+        // Paths are refined to any of the crossings of a node, and step across the boundary from there
+        for (int surfaceID = 1; surfaceID < builders.length; ++surfaceID) {
+            NodeBuilder builder = builders[surfaceID];
+            int crossingCount = boundary.getCrossingCount(surfaceID);
 
-                    int rx = anchor.getX() + x;
-                    int ry = anchor.getY() + y;
-                    int rz = anchor.getZ() + z;
+            builder.chunk1Crossings = new int[crossingCount];
+            builder.chunk2Crossings = new int[crossingCount];
+            for (int crossing = 0; crossing < crossingCount; ++crossing) {
+                builder.chunk1Crossings[crossing] = boundary.getRegionIndex(boundary.getCrossingFrom(surfaceID, crossing));
+                builder.chunk2Crossings[crossing] = boundary.getRegionIndex(boundary.getCrossingTo(surfaceID, crossing));
+            }
+        }
 
-                    node.cumulativeX += rx;
-                    node.cumulativeY += ry;
-                    node.cumulativeZ += rz;
-                    node.surfaceBlockCount += 1;
+        return builders;
+    }
 
-                    if (one.contains(rx, ry, rz)) {
-                        int oneID = one.getSurfaceIDByWorldLoc(rx, ry, rz);
-                        node.chunk1SurfaceIDs.add(oneID);
-                    } else {
-                        int twoID = two.getSurfaceIDByWorldLoc(rx, ry, rz);
-                        node.chunk2SurfaceIDs.add(twoID);
-                    }
+    /**
+     * Create the nodes between the chunks at {@param chunk1} and {@param chunk2} from {@param builders},
+     * and connect them to the other nodes of the chunks. Each connection is weighted by the length of
+     * the shortest walk between the two nodes within the chunk they share. The write lock must be held
+     * when calling this.
+     */
+    private void addBoundaryNodes(ChunkLoc chunk1, ChunkLoc chunk2, NodeBuilder[] builders) {
+        Map<Integer, List<Node>> oneNodes = nodes.computeIfAbsent(chunk1, loc -> new HashMap<>());
+        Map<Integer, List<Node>> twoNodes = nodes.computeIfAbsent(chunk2, loc -> new HashMap<>());
+
+        markNodesChanged(chunk1);
+        markNodesChanged(chunk2);
+
+        for (int surfaceID = 1; surfaceID < builders.length; ++surfaceID) {
+            NodeBuilder builder = builders[surfaceID];
+            // Surfaces that cannot be crossed directly are not given nodes
+            if (builder == null || builder.chunk1Crossings.length == 0)
+                continue;
+
+            Node node = new Node(
+                    chunk1, chunk2, surfaceID,
+                    toArray(builder.chunk1SurfaceIDs), toArray(builder.chunk2SurfaceIDs),
+                    builder.chunk1Crossings, builder.chunk2Crossings
+            );
+            int id = graph.add(
+                    node,
+                    builder.cumulativeX / builder.surfaceBlockCount,
+                    builder.cumulativeY / builder.surfaceBlockCount,
+                    builder.cumulativeZ / builder.surfaceBlockCount
+            );
+            components.add(node);
+
+            for (int chunkSurfaceID : node.chunk1SurfaceIDs) {
+                List<Node> nodeList = oneNodes.computeIfAbsent(chunkSurfaceID, key -> new ArrayList<>());
+                for (Node peer : nodeList) {
+                    float walkCost = builder.chunk1Costs.getMinCost(peer.getCrossingBlocks(chunk1));
+                    graph.connect(id, peer.getID(), getConnectionCost(id, peer.getID(), walkCost));
+                    changes.record(version, peer.getID(), peer);
                 }
+                nodeList.add(node);
+            }
+
+            for (int chunkSurfaceID : node.chunk2SurfaceIDs) {
+                List<Node> nodeList = twoNodes.computeIfAbsent(chunkSurfaceID, key -> new ArrayList<>());
+                for (Node peer : nodeList) {
+                    float walkCost = builder.chunk2Costs.getMinCost(peer.getCrossingBlocks(chunk2));
+                    graph.connect(id, peer.getID(), getConnectionCost(id, peer.getID(), walkCost));
+                    changes.record(version, peer.getID(), peer);
+                }
+                nodeList.add(node);
             }
         }
+    }
 
-        // TODO : This whole idea of "representative blocks" needs to be replaced.
-        //        It is a pain in the ass, and doesn't lead to worse paths.
-        //        Ideally we'd be able to give a flexible goal in the A* within the region.
-        for (int x = 0; x < boundary.getWidth(); ++x) {
-            for (int z = 0; z < boundary.getDepth(); ++z) {
-                for (int y = 0; y < boundary.getHeight(); ++y) {
-                    int surfaceID = boundary.getSurfaceID(x, y, z);
-                    if (surfaceID == 0)
-                        continue;
+    /**
+     * Mark the structures built over the graph as out of date, as the nodes of the chunk at {@param loc}
+     * or the connections between them have changed. The write lock must be held when calling this.
+     */
+    private void markNodesChanged(ChunkLoc loc) {
+        if (hierarchy != null) {
+            hierarchy.markDirty(loc);
+        }
+        if (contraction != null) {
+            contraction.markDirty(loc);
+        }
+        if (landmarks != null) {
+            landmarks.markStale();
+        }
+    }
 
-                    int rx = anchor.getX() + x;
-                    int ry = anchor.getY() + y;
-                    int rz = anchor.getZ() + z;
+    /**
+     * @return The cost of the connection between the nodes {@param one} and {@param two}, given the
+     *         length {@param walkCost} of the shortest walk between their blocks in a chunk they share.
+     */
+    private float getConnectionCost(int one, int two, float walkCost) {
+        // Connections are never cheaper than the distance between the centroids of their nodes, so that
+        // the distance to the goal remains a consistent heuristic for searches through the graph. Walks
+        // that could not be found, as the nodes were prepared from different versions of the chunk,
+        // fall back to this distance.
+        float distance = (float) graph.distance(one, two);
+        return (walkCost == Float.POSITIVE_INFINITY ? distance : Math.max(walkCost, distance));
+    }
 
-                    boolean inOne = one.contains(rx, ry, rz);
-                    Node node = nodesByBoundaryID.get(surfaceID);
+    private static int[] toArray(Set<Integer> values) {
+        int[] array = new int[values.size()];
+        int index = 0;
+        for (int value : values) {
+            array[index++] = value;
+        }
+        return array;
+    }
 
-                    if (inOne && node.representativeBlock1 == null) {
-                        node.representativeBlock1 = new BlockLoc(rx, ry, rz);
-                        continue;
-                    } else if (!inOne && node.representativeBlock2 == null) {
-                        node.representativeBlock2 = new BlockLoc(rx, ry, rz);
-                        continue;
-                    }
+    /**
+     * Pre-processes the chunks that were loaded before this world was created, in batches.
+     */
+    private class StartupTask {
 
-                    double nx = node.cumulativeX / node.surfaceBlockCount;
-                    double ny = node.cumulativeY / node.surfaceBlockCount;
-                    double nz = node.cumulativeZ / node.surfaceBlockCount;
+        private final List<ChunkLoc> locs;
+        private final int batchSize;
+        private final Object ticket;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+        private final long startTime = System.nanoTime();
 
-                    double previousDistance;
+        private int nextIndex = 0;
+        private int published = 0;
 
-                    if (inOne) {
-                        previousDistance = node.representativeBlock1.distanceSquared(nx, ny, nz);
-                    } else {
-                        previousDistance = node.representativeBlock2.distanceSquared(nx, ny, nz);
-                    }
+        private StartupTask(List<ChunkLoc> locs, int batchSize, Object ticket) {
+            this.locs = locs;
+            this.batchSize = batchSize;
+            this.ticket = ticket;
+        }
 
-                    double dx = rx - nx;
-                    double dy = ry - ny;
-                    double dz = rz - nz;
-                    double newDistance = dx*dx + dy*dy + dz*dz;
+        /**
+         * Snapshot the chunks of the next batch, and start pre-processing them on the worker threads.
+         */
+        private void startNextBatch() {
+            if (nextIndex >= locs.size()) {
+                long durationMS = (System.nanoTime() - startTime) / 1_000_000;
+                main.getLogger().info(
+                        "Finished pre-processing " + published + " loaded chunks of "
+                        + world.getName() + " in " + durationMS + " ms"
+                );
+                future.complete(null);
+                return;
+            }
 
-                    if (newDistance >= previousDistance)
-                        continue;
+            int end = Math.min(locs.size(), nextIndex + batchSize);
+            List<StartupChunk> batch = new ArrayList<>();
+            Map<ChunkLoc, StartupChunk> batchChunks = new HashMap<>();
 
-                    BlockLoc loc = new BlockLoc(rx, ry, rz);
-                    if (inOne) {
-                        node.representativeBlock1 = loc;
-                    } else {
-                        node.representativeBlock2 = loc;
-                    }
+            for (ChunkLoc loc : locs.subList(nextIndex, end)) {
+                // The chunk has been removed since pre-processing started
+                if (pending.get(loc) != ticket || !world.isChunkLoaded(loc.x, loc.z))
+                    continue;
+
+                Chunk chunk = world.getChunkAt(loc.x, loc.z);
+                StartupChunk startupChunk = new StartupChunk(
+                        loc, batch.size(), new PreprocessedRegion(chunk), chunk.getChunkSnapshot(false, false, false)
+                );
+
+                batch.add(startupChunk);
+                batchChunks.put(loc, startupChunk);
+            }
+
+            nextIndex = end;
+
+            ChunkPreprocessor preprocessor = main.getPreprocessor();
+            preprocessor.submitAll(batch, StartupChunk::build).thenCompose(
+                    ignored -> preprocessor.submitAll(batch, startupChunk -> startupChunk.prepareBoundaries(batchChunks))
+            ).whenComplete((ignored, error) -> {
+                if (!main.isEnabled())
+                    return;
+
+                Bukkit.getScheduler().runTask(main, () -> publishBatch(batch, error));
+            });
+        }
+
+        /**
+         * Publish the pre-processed chunks of {@param batch}, and then start the next batch.
+         */
+        private void publishBatch(List<StartupChunk> batch, Throwable error) {
+            if (error != null) {
+                main.getLogger().log(Level.SEVERE, "Error pre-processing the loaded chunks of " + world.getName(), error);
+
+                for (ChunkLoc loc : locs) {
+                    pending.remove(loc, ticket);
                 }
+                future.completeExceptionally(error);
+                return;
             }
+
+            // Chunks are published in the order of the batch, as the boundaries between
+            // them were prepared by the later chunk of each pair of neighbouring chunks
+            for (StartupChunk startupChunk : batch) {
+                ChunkLoc loc = startupChunk.loc;
+
+                // The chunk has been removed or re-added since this batch was started
+                if (pending.get(loc) != ticket)
+                    continue;
+
+                pending.remove(loc);
+
+                if (startupChunk.boundaries == null)
+                    continue;
+
+                publish(loc, startupChunk.region, startupChunk.boundaries);
+                published += 1;
+            }
+
+            main.getLogger().info(
+                    "Pre-processed " + nextIndex + " / " + locs.size() + " loaded chunks of " + world.getName()
+                    + " (" + (nextIndex * 100 / Math.max(1, locs.size())) + "%)"
+            );
+
+            startNextBatch();
         }
+    }
 
-        Map<Integer, List<Node>> oneNodes = nodes.computeIfAbsent(chunk1, loc -> new HashMap<>());
-        Map<Integer, List<Node>> twoNodes = nodes.computeIfAbsent(chunk2, loc -> new HashMap<>());
+    /**
+     * A chunk being pre-processed as part of a batch of chunks by a {@link StartupTask}.
+     */
+    private class StartupChunk {
 
-        for (Node node : nodesByBoundaryID.values()) {
-            if (node.chunk1SurfaceIDs.size() == 0 || node.chunk2SurfaceIDs.size() == 0)
-                continue;
+        private final ChunkLoc loc;
+        private final int index;
+        private final PreprocessedRegion region;
+        private final ChunkSnapshot snapshot;
 
-            for (int surfaceID : node.chunk1SurfaceIDs) {
-                List<Node> nodeList = oneNodes.computeIfAbsent(surfaceID, id -> new ArrayList<>());
-                for (Node peer : nodeList) {
-                    node.connect(peer);
-                }
-                nodeList.add(node);
+        private boolean built = false;
+
+        // The boundaries with the neighbouring chunks that are earlier in the batch or that have
+        // already been published, or null if this chunk could not be pre-processed
+        private Map<PreprocessedRegion, NodeBuilder[]> boundaries;
+
+        private StartupChunk(ChunkLoc loc, int index, PreprocessedRegion region, ChunkSnapshot snapshot) {
+            this.loc = loc;
+            this.index = index;
+            this.region = region;
+            this.snapshot = snapshot;
+        }
+
+        /**
+         * Build the region of this chunk. This is the first pass over the batch.
+         */
+        private void build() {
+            try {
+                PreprocessedWorld.this.build(loc, region, snapshot);
+                built = true;
+            } catch (RuntimeException exception) {
+                main.getLogger().log(Level.SEVERE, "Error pre-processing chunk " + loc, exception);
             }
+        }
 
-            for (int surfaceID : node.chunk2SurfaceIDs) {
-                List<Node> nodeList = twoNodes.computeIfAbsent(surfaceID, id -> new ArrayList<>());
-                for (Node peer : nodeList) {
-                    node.connect(peer);
+        /**
+         * Prepare the boundaries between this chunk and its neighbours. This is the second pass over the batch,
+         * and so the regions of all the chunks in {@param batchChunks} have been built.
+         */
+        private void prepareBoundaries(Map<ChunkLoc, StartupChunk> batchChunks) {
+            if (!built)
+                return;
+
+            Map<PreprocessedRegion, NodeBuilder[]> boundaries = new IdentityHashMap<>();
+
+            for (int dx = -1; dx <= 1; ++dx) {
+                for (int dz = -1; dz <= 1; ++dz) {
+                    if (dx == 0 && dz == 0)
+                        continue;
+
+                    // TODO : Corner boundaries
+                    if (Math.abs(dx) == 1 && Math.abs(dz) == 1)
+                        continue;
+
+                    ChunkLoc neighbourLoc = loc.getRelative(dx, dz);
+                    StartupChunk batchNeighbour = batchChunks.get(neighbourLoc);
+
+                    PreprocessedRegion neighbour;
+                    if (batchNeighbour == null) {
+                        neighbour = chunks.get(neighbourLoc);
+                    } else if (batchNeighbour.index < index && batchNeighbour.built) {
+                        neighbour = batchNeighbour.region;
+                    } else {
+                        continue;
+                    }
+
+                    if (neighbour == null)
+                        continue;
+
+                    boundaries.put(neighbour, prepareBoundary(region, neighbour));
                 }
-                nodeList.add(node);
             }
+
+            this.boundaries = boundaries;
         }
     }
 
+    /**
+     * Accumulates the information about a surface in a boundary used to create its node.
+     */
+    private static class NodeBuilder {
+
+        // Used to find the average location of all blocks in the boundary surface
+        private double cumulativeX;
+        private double cumulativeY;
+        private double cumulativeZ;
+        private int surfaceBlockCount;
+
+        private final Set<Integer> chunk1SurfaceIDs = new HashSet<>();
+        private final Set<Integer> chunk2SurfaceIDs = new HashSet<>();
+
+        // The pairs of blocks that can be stepped between directly to cross the boundary,
+        // as indices of blocks in the region of each chunk
+        private int[] chunk1Crossings;
+        private int[] chunk2Crossings;
+
+        // The lengths of the walks from the crossings to the edges of each chunk
+        private EdgeCosts chunk1Costs;
+        private EdgeCosts chunk2Costs;
+    }
+
     /**
      * Add {@param chunk} to be pre-processed.
+     *
+     * This pre-processes the chunk on the calling thread, which must be the main server thread, and publishes
+     * it before returning. The cache is not read, as hashing the blocks of the chunk to look it up costs about
+     * as much as pre-processing it. The region is instead stored in the cache on the worker threads.
      */
     public void add(Chunk chunk) {
         ChunkLoc loc = new ChunkLoc(chunk);
@@ -199,30 +544,262 @@ public class PreprocessedWorld {
             return;
 
         PreprocessedRegion chunkRegion = new PreprocessedRegion(chunk);
-        chunkRegion.rebuild();
+        chunkRegion.rebuild(materials);
 
-        chunks.put(loc, chunkRegion);
+        if (cache != null) {
+            saveAsync(loc, chunkRegion, chunk.getChunkSnapshot(false, false, false));
+        }
 
-        for (int dx = -1; dx <= 1; ++dx) {
-            for (int dz = -1; dz <= 1; ++dz) {
-                if (dx == 0 && dz == 0)
-                    continue;
+        pending.remove(loc);
+        publish(loc, chunkRegion, Collections.emptyMap());
+    }
 
-                // TODO : Corner boundaries
-                if (Math.abs(dx) == 1 && Math.abs(dz) == 1)
-                    continue;
+    /**
+     * Store {@param chunkRegion}, which was built from the chunk in {@param snapshot}, in the cache on the
+     * worker threads. The chunk is hashed on the worker threads as well. The region must not be modified afterwards.
+     */
+    private void saveAsync(ChunkLoc loc, PreprocessedRegion chunkRegion, ChunkSnapshot snapshot) {
+        main.getPreprocessor().submit(() -> {
+            cache.save(loc, RegionCache.hash(snapshot, chunkRegion.getHeight(), materials), chunkRegion);
+            return null;
+        }).whenComplete((result, error) -> {
+            if (error != null) {
+                main.getLogger().log(Level.WARNING, "Error caching chunk " + loc, error);
+            }
+        });
+    }
 
-                ChunkLoc neighbourLoc = loc.getRelative(dx, dz);
-                PreprocessedRegion neighbour = chunks.get(neighbourLoc);
-                if (neighbour == null)
-                    continue;
+    /**
+     * Queue {@param chunk} to be pre-processed on the worker threads.
+     *
+     * Only a snapshot of the chunk is taken on the calling thread, which must be the main server
+     * thread. Once pre-processing has completed, the region and its boundary nodes are published
+     * into this world together on the main server thread.
+     */
+    public void addAsync(Chunk chunk) {
+        ChunkLoc loc = new ChunkLoc(chunk);
+
+        // If the chunk has already been added, or is already being pre-processed
+        if (chunks.containsKey(loc) || pending.containsKey(loc))
+            return;
+
+        Object ticket = new Object();
+        pending.put(loc, ticket);
+
+        PreprocessedRegion chunkRegion = new PreprocessedRegion(chunk);
+        ChunkSnapshot snapshot = chunk.getChunkSnapshot(false, false, false);
+
+        main.getPreprocessor().submit(() -> {
+            build(loc, chunkRegion, snapshot);
+            return createBoundaries(loc, chunkRegion);
+        }).whenComplete((boundaries, error) -> {
+            if (!main.isEnabled())
+                return;
+
+            Bukkit.getScheduler().runTask(main, () -> {
+                // The chunk has been removed or re-added since this task was queued
+                if (pending.get(loc) != ticket)
+                    return;
+
+                pending.remove(loc);
+
+                if (error != null) {
+                    main.getLogger().log(Level.SEVERE, "Error pre-processing chunk " + loc, error);
+                    return;
+                }
+
+                publish(loc, chunkRegion, boundaries);
+            });
+        });
+    }
+
+    /**
+     * Build {@param chunkRegion} from {@param snapshot}, or load it from the cache if it holds the chunk
+     * as it is in {@param snapshot}. This does not access the world, and is therefore safe to be called
+     * from any thread.
+     */
+    private void build(ChunkLoc loc, PreprocessedRegion chunkRegion, ChunkSnapshot snapshot) {
+        if (cache == null) {
+            chunkRegion.rebuild(snapshot, materials);
+            return;
+        }
+
+        long hash = RegionCache.hash(snapshot, chunkRegion.getHeight(), materials);
+        if (!cache.load(loc, hash, chunkRegion)) {
+            chunkRegion.rebuild(snapshot, materials);
+            cache.save(loc, hash, chunkRegion);
+        }
+    }
+
+    /**
+     * Pre-process all the chunks of this world that are already loaded on the
+     * calling thread, which must be the main server thread.
+     */
+    public void addLoaded() {
+        for (Chunk chunk : world.getLoadedChunks()) {
+            add(chunk);
+        }
+    }
+
+    /**
+     * Pre-process all the chunks of this world that are already loaded in parallel, using all available processors.
+     *
+     * The chunks are pre-processed in batches, starting with the chunks closest to the spawn of the world.
+     * The regions of the chunks in a batch are built in a first parallel pass, and then the boundaries and
+     * boundary nodes between the chunks are created in a second parallel pass. Only the adding of the nodes
+     * to the graph is done on the main server thread. Each batch is published once it completes, so paths
+     * can be found through the chunks of completed batches while the rest are still being pre-processed.
+     *
+     * This must be called from the main server thread.
+     *
+     * @param batchSize The number of chunks in each batch, or 0 to pre-process all the chunks in one batch.
+     *
+     * @return A future completed on the main server thread once all the chunks have been published.
+     */
+    public CompletableFuture<Void> addLoadedParallel(int batchSize) {
+        Location spawn = world.getSpawnLocation();
+        int spawnX = spawn.getBlockX() >> 4;
+        int spawnZ = spawn.getBlockZ() >> 4;
+
+        Object ticket = new Object();
+        List<ChunkLoc> locs = new ArrayList<>();
+
+        for (Chunk chunk : world.getLoadedChunks()) {
+            ChunkLoc loc = new ChunkLoc(chunk);
+
+            // If the chunk has already been added, or is already being pre-processed
+            if (chunks.containsKey(loc) || pending.containsKey(loc))
+                continue;
+
+            pending.put(loc, ticket);
+            locs.add(loc);
+        }
+
+        locs.sort(Comparator.comparingInt(loc -> {
+            int dx = loc.x - spawnX;
+            int dz = loc.z - spawnZ;
+            return dx * dx + dz * dz;
+        }));
+
+        StartupTask task = new StartupTask(locs, (batchSize > 0 ? batchSize : Math.max(1, locs.size())), ticket);
+        task.startNextBatch();
+        return task.future;
+    }
+
+    /**
+     * Close the cache of this world, and discard its distance fields. This world should not be used afterwards.
+     */
+    public void close() {
+        if (cache != null) {
+            cache.close();
+        }
+
+        if (distanceFields != null) {
+            for (ChunkLoc loc : chunks.keySet()) {
+                distanceFields.invalidate(loc);
+            }
+        }
+
+        if (pathCache != null) {
+            pathCache.clear();
+        }
+    }
+
+    /**
+     * Publish the pre-processed {@param chunkRegion} into this world, and generate the nodes between
+     * it and all of its neighbours. Boundaries in {@param boundaries} that were prepared with a
+     * neighbouring region that is still current are re-used, and all others are prepared again
+     * on the worker threads.
+     */
+    private void publish(ChunkLoc loc, PreprocessedRegion chunkRegion,
+                         Map<PreprocessedRegion, NodeBuilder[]> boundaries) {
+        graphLock.writeLock().lock();
+        try {
+            version += 1;
+            replaceRegion(loc, chunkRegion);
+
+            for (int dx = -1; dx <= 1; ++dx) {
+                for (int dz = -1; dz <= 1; ++dz) {
+                    if (dx == 0 && dz == 0)
+                        continue;
+
+                    // TODO : Corner boundaries
+                    if (Math.abs(dx) == 1 && Math.abs(dz) == 1)
+                        continue;
+
+                    ChunkLoc neighbourLoc = loc.getRelative(dx, dz);
+                    PreprocessedRegion neighbour = chunks.get(neighbourLoc);
+                    if (neighbour == null)
+                        continue;
+
+                    // Boundaries with neighbours that have changed since are prepared again on the worker threads
+                    NodeBuilder[] builders = boundaries.get(neighbour);
+                    if (builders == null) {
+                        prepareBoundaryLater(loc, chunkRegion, neighbourLoc, neighbour);
+                        continue;
+                    }
 
-                ChunkLocPair pair = new ChunkLocPair(loc, neighbourLoc);
-                PreprocessedRegion boundary = createBoundary(world, pair);
-                boundary.rebuild();
+                    addBoundaryNodes(loc, neighbourLoc, builders);
+                }
+            }
+        } finally {
+            graphLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Prepare the boundary between {@param region} and {@param neighbour}, the regions of the chunks at
+     * {@param loc} and {@param neighbourLoc}, on the worker threads, and then generate its nodes on the
+     * main server thread. The nodes are not generated if either region has been replaced in the meantime,
+     * as the boundary is then prepared again when the replacement is published.
+     */
+    private void prepareBoundaryLater(ChunkLoc loc, PreprocessedRegion region,
+                                      ChunkLoc neighbourLoc, PreprocessedRegion neighbour) {
+
+        main.getPreprocessor().submit(() -> prepareBoundary(region, neighbour)).whenComplete((builders, error) -> {
+            if (!main.isEnabled())
+                return;
+
+            Bukkit.getScheduler().runTask(main, () -> {
+                if (error != null) {
+                    main.getLogger().log(Level.SEVERE, "Error preparing the boundary between " + loc + " and " + neighbourLoc, error);
+                    return;
+                }
+
+                graphLock.writeLock().lock();
+                try {
+                    if (chunks.get(loc) != region || chunks.get(neighbourLoc) != neighbour)
+                        return;
+
+                    version += 1;
+                    addBoundaryNodes(loc, neighbourLoc, builders);
+                } finally {
+                    graphLock.writeLock().unlock();
+                }
+            });
+        });
+    }
+
+    /**
+     * Replace the region of the chunk at {@param loc} with {@param region}, or remove it if {@param region}
+     * is null. The distance fields of the previous region are discarded, and the version of the chunk is
+     * changed so that cached paths through it are discarded. The write lock must be held when calling this.
+     */
+    private void replaceRegion(ChunkLoc loc, PreprocessedRegion region) {
+        if (region == null) {
+            chunkVersions.remove(loc);
+            chunks.remove(loc);
+        } else {
+            chunkVersions.put(loc, ++chunkVersionCounter);
+            chunks.put(loc, region);
+        }
 
-                straightBoundaries.put(pair, boundary);
-                generateBoundaryNodes(boundary, chunkRegion, neighbour);
+        lastChangedRegion = null;
+        if (distanceFields != null) {
+            if (region == null) {
+                distanceFields.invalidate(loc);
+            } else {
+                distanceFields.update(loc, chunkVersionCounter);
             }
         }
     }
@@ -233,222 +810,675 @@ public class PreprocessedWorld {
     public void remove(Chunk chunk) {
         ChunkLoc loc = new ChunkLoc(chunk);
 
-        chunks.remove(loc);
-        Map<Integer, List<Node>> surfaceNodes = nodes.remove(loc);
+        pending.remove(loc);
+        dirtySections.remove(loc);
+
+        graphLock.writeLock().lock();
+        try {
+            version += 1;
+            replaceRegion(loc, null);
+            removeNodes(loc);
+        } finally {
+            graphLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Remove all nodes between the chunk at {@param loc} and its neighbours.
+     */
+    private void removeNodes(ChunkLoc loc) {
+        graphLock.writeLock().lock();
+        try {
+            version += 1;
+            Map<Integer, List<Node>> surfaceNodes = nodes.remove(loc);
+            if (surfaceNodes == null)
+                return;
+
+            // The components cannot be split, and so they are rebuilt later without the removed nodes
+            components.markStale();
+
+            markNodesChanged(loc);
 
-        if (surfaceNodes != null) {
             for (List<Node> nodeList : surfaceNodes.values()) {
                 for (Node node : nodeList) {
-                    node.disconnectAll();
-                }
-            }
-        }
+                    // Nodes are listed under every surface they connect to
+                    if (node.getID() == -1)
+                        continue;
 
-        for (int dx = -1; dx <= 1; ++dx) {
-            for (int dz = -1; dz <= 1; ++dz) {
-                if (dx == 0 && dz == 0)
-                    continue;
+                    changes.record(version, node.getID(), node);
+                    graph.remove(node.getID());
 
-                // TODO : Corner boundaries
-                if (Math.abs(dx) == 1 && Math.abs(dz) == 1)
-                    continue;
+                    ChunkLoc otherLoc = (loc.equals(node.chunk1) ? node.chunk2 : node.chunk1);
+                    markNodesChanged(otherLoc);
+
+                    Map<Integer, List<Node>> otherSurfaceNodes = nodes.get(otherLoc);
+                    if (otherSurfaceNodes == null)
+                        continue;
 
-                ChunkLocPair pair = new ChunkLocPair(loc, loc.getRelative(dx, dz));
-                straightBoundaries.remove(pair);
+                    for (List<Node> otherNodeList : otherSurfaceNodes.values()) {
+                        otherNodeList.remove(node);
+                    }
+                }
             }
+        } finally {
+            graphLock.writeLock().unlock();
         }
     }
 
     /**
      * Rebuild the pre-processing of {@param chunk}.
+     *
+     * All sections of the chunk are marked as dirty, and will be rebuilt in the background.
      */
     public void rebuild(Chunk chunk) {
-        // TODO : Can definitely do this more efficiently
-        remove(chunk);
-        add(chunk);
+        ChunkLoc loc = new ChunkLoc(chunk);
+        int sections = (world.getMaxHeight() + 15) / 16;
+        dirtySections.merge(loc, (sections >= 32 ? -1 : (1 << sections) - 1), (a, b) -> a | b);
     }
 
-    private List<Node> reconstructPath(Map<Node, Node> from, Node start, Node end) {
-        List<Node> path = new ArrayList<>();
+    /**
+     * Mark the 16x16x16 section containing {@param block} as dirty, so that it will be rebuilt in the background.
+     */
+    public void markDirty(Block block) {
+        ChunkLoc loc = new ChunkLoc(block.getX() >> 4, block.getZ() >> 4);
+        int section = block.getY() >> 4;
+        if (section < 0 || section >= 32)
+            return;
+
+        // Changes to chunks that are not pre-processed will be picked up when they are added
+        if (!chunks.containsKey(loc) && !pending.containsKey(loc))
+            return;
+
+        dirtySections.merge(loc, 1 << section, (a, b) -> a | b);
+    }
 
-        Node current = end;
+    /**
+     * Mark the 16x16x16 section containing {@param block} as dirty only if a block of {@param type} would not
+     * be classified the same way as the block was when its chunk was pre-processed. This is used for the many
+     * physics updates and flows that do not change whether blocks can be walked upon or through, such as those
+     * of redstone and water, and so it avoids allocating while the block is unchanged. This must be called from
+     * the main server thread.
+     */
+    public void markDirtyIfChanged(Block block, Material type) {
+        int x = block.getX();
+        int y = block.getY();
+        int z = block.getZ();
+
+        PreprocessedRegion region = lastChangedRegion;
+        if (region == null || !region.contains(x, y, z)) {
+            region = chunks.get(new ChunkLoc(x >> 4, z >> 4));
+
+            // Chunks that are still being pre-processed are marked dirty, as their regions are not yet known
+            if (region == null) {
+                markDirty(block);
+                return;
+            }
 
-        while (!current.equals(start)) {
-            path.add(current);
-            current = from.get(current);
+            lastChangedRegion = region;
         }
 
-        path.add(start);
+        if (y < 0 || y >= region.getHeight() || region.isClassifiedAs(x, y, z, materials.getFlags(type)))
+            return;
 
-        Collections.reverse(path);
-        return path;
+        markDirty(block);
     }
 
-    private List<Node> findPath(Node start, Node end) {
-        // Keeps track of which nodes have already been processed
-        Set<Node> processed = new HashSet<>();
+    /**
+     * Start rebuilding the dirty sections of all chunks in the background.
+     *
+     * Chunks that are still being pre-processed keep their dirty sections until their pre-processing completes.
+     * This must be called from the main server thread.
+     */
+    public void rebuildDirtySections() {
+        if (components.startRebuild()) {
+            rebuildComponents();
+        }
 
-        // Contains the previous node in the shortest path currently known to each node.
-        Map<Node, Node> from = new HashMap<>();
+        if (hierarchy != null) {
+            rebuildClusters();
+        }
 
-        // Contains the length of the shortest path currently known to each node.
-        Map<Node, Double> foundCosts = new HashMap<>();
+        if (contraction != null) {
+            recontract();
+        }
 
-        // Maintains which nodes are next to be processed
-        PriorityQueueLinked<Node> toProcess = new PriorityQueueLinked<>();
+        if (landmarks != null && landmarks.startRefresh()) {
+            refreshLandmarks();
+        }
 
-        foundCosts.put(start, 0d);
-        toProcess.add(start, 0);
+        Iterator<Map.Entry<ChunkLoc, Integer>> iterator = dirtySections.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<ChunkLoc, Integer> entry = iterator.next();
+            ChunkLoc loc = entry.getKey();
 
-        while (!toProcess.isEmpty()) {
-            Node node = toProcess.poll();
+            if (pending.containsKey(loc))
+                continue;
 
-            if (node.equals(end))
-                return reconstructPath(from, start, end);
+            iterator.remove();
 
-            double cost = foundCosts.get(node);
-            processed.add(node);
+            PreprocessedRegion region = chunks.get(loc);
+            if (region == null || !world.isChunkLoaded(loc.x, loc.z))
+                continue;
 
-            for (Node connected : node.connectedNodes) {
-                if (processed.contains(connected))
-                    continue;
+            rebuildSections(loc, region, entry.getValue());
+        }
+    }
 
-                double connectedCost = cost + node.distance(connected);
-                Double previousCost = foundCosts.get(connected);
-                boolean previouslyExplored = (previousCost != null);
+    /**
+     * Rebuild the components of the surfaces of chunks from a copy of the current nodes on the worker
+     * threads, so that surfaces that were only connected by nodes that have been removed are separated.
+     */
+    private void rebuildComponents() {
+        List<Node> allNodes = new ArrayList<>();
+        for (Map<Integer, List<Node>> surfaceNodes : nodes.values()) {
+            for (List<Node> nodeList : surfaceNodes.values()) {
+                allNodes.addAll(nodeList);
+            }
+        }
 
-                if (previouslyExplored && previousCost <= connectedCost)
-                    continue;
+        main.getPreprocessor().submit(() -> SurfaceComponents.build(allNodes)).whenComplete((result, error) -> {
+            if (!main.isEnabled())
+                return;
 
-                foundCosts.put(connected, connectedCost);
-                from.put(connected, node);
+            Bukkit.getScheduler().runTask(main, () -> {
+                if (error != null) {
+                    main.getLogger().log(Level.SEVERE, "Error rebuilding the surface components of " + world.getName(), error);
+                }
+
+                graphLock.writeLock().lock();
+                try {
+                    components.finishRebuild(result);
+                } finally {
+                    graphLock.writeLock().unlock();
+                }
+            });
+        });
+    }
+
+    /**
+     * Start rebuilding the dirty clusters of the hierarchy on the worker threads.
+     *
+     * The connections within each cluster are copied while holding the read lock, and the costs between its
+     * entrances are found from the copy without the lock. The costs then replace the costs of the cluster on
+     * the main server thread, unless the cluster has changed since.
+     */
+    private void rebuildClusters() {
+        for (ClusterHierarchy.Cluster cluster : hierarchy.startRebuilds()) {
+            main.getPreprocessor().submit(() -> {
+                // Only the copy of the connections within the cluster is made while holding the lock
+                ClusterHierarchy.ClusterGraph clusterGraph;
+                graphLock.readLock().lock();
+                try {
+                    clusterGraph = hierarchy.copyGraph(this, cluster);
+                } finally {
+                    graphLock.readLock().unlock();
+                }
+
+                return hierarchy.findCosts(clusterGraph);
+            }).whenComplete((costs, error) -> {
+                if (!main.isEnabled())
+                    return;
 
-                double heuristic = connected.distance(end);
+                Bukkit.getScheduler().runTask(main, () -> {
+                    if (error != null) {
+                        main.getLogger().log(Level.SEVERE, "Error rebuilding " + cluster, error);
+                    }
 
-                // Negative priority as the queue prioritizes higher values first,
-                // whereas we need to prioritize the lowest values first
-                double priority = -(connectedCost + heuristic);
+                    // The costs are found from the current graph, and so searches that are running are not restarted
+                    graphLock.writeLock().lock();
+                    try {
+                        hierarchy.finishRebuild(cluster, costs);
+                    } finally {
+                        graphLock.writeLock().unlock();
+                    }
+                });
+            });
+        }
+    }
 
-                if (previouslyExplored) {
-                    toProcess.reprioritize(connected, priority);
-                } else {
-                    toProcess.add(connected, priority);
+    /**
+     * Start contracting the dirty cells of the static areas again on the worker threads.
+     *
+     * The connections within each cell are copied while holding the read lock, and contracted from the copy
+     * without the lock. The contraction then replaces the contraction of the cell on the main server thread,
+     * unless the cell has changed since.
+     */
+    private void recontract() {
+        for (ContractionHierarchy.Cell cell : contraction.startRebuilds()) {
+            main.getPreprocessor().submit(() -> {
+                // Only the copy of the connections within the cell is made while holding the lock
+                ContractionHierarchy.CellGraph cellGraph;
+                graphLock.readLock().lock();
+                try {
+                    cellGraph = contraction.copyGraph(this, cell);
+                } finally {
+                    graphLock.readLock().unlock();
                 }
-            }
+
+                return contraction.contract(cellGraph);
+            }).whenComplete((result, error) -> {
+                if (!main.isEnabled())
+                    return;
+
+                Bukkit.getScheduler().runTask(main, () -> {
+                    if (error != null) {
+                        main.getLogger().log(Level.SEVERE, "Error contracting " + cell + " of " + world.getName(), error);
+                    }
+
+                    // Searches keep the contractions they started with, and so are not restarted
+                    graphLock.writeLock().lock();
+                    try {
+                        contraction.finishRebuild(cell, result);
+                    } finally {
+                        graphLock.writeLock().unlock();
+                    }
+                });
+            });
         }
+    }
 
-        // No path could be found
-        return null;
+    /**
+     * Find the costs from the landmarks again on the worker threads. The graph is copied while holding
+     * the read lock, and the costs are found from the copy without it. The costs then replace the current
+     * costs on the main server thread.
+     */
+    private void refreshLandmarks() {
+        main.getPreprocessor().submit(() -> {
+            // Only the copy of the graph is made while holding the lock
+            LandmarkHeuristic.LandmarkGraph landmarkGraph;
+            graphLock.readLock().lock();
+            try {
+                landmarkGraph = landmarks.copyGraph(this);
+            } finally {
+                graphLock.readLock().unlock();
+            }
+
+            return landmarks.findCosts(landmarkGraph);
+        }).whenComplete((result, error) -> {
+            if (!main.isEnabled())
+                return;
+
+            Bukkit.getScheduler().runTask(main, () -> {
+                if (error != null) {
+                    main.getLogger().log(Level.SEVERE, "Error finding the landmarks of " + world.getName(), error);
+                }
+
+                // Searches that have already started keep the costs they started with
+                graphLock.writeLock().lock();
+                try {
+                    landmarks.finishRefresh(result);
+                } finally {
+                    graphLock.writeLock().unlock();
+                }
+            });
+        });
     }
 
     /**
-     * Find a path within this region from {@param start} to {@param end}.
+     * Rebuild the sections {@param sectionMask} of the chunk at {@param loc} on the worker threads.
      *
-     * @return A List of blocks to traverse to get from {@param start}
-     *         to {@param end}, or null if no path could be found.
+     * The current region is copied and modified on the worker threads, and then the copy replaces
+     * the current region on the main server thread. The nodes of the chunk are only regenerated
+     * when the rebuild changed its edges. Otherwise, only the costs of the connections between
+     * the nodes of the chunk are updated.
      */
-    public List<BlockLoc> findPath(BlockLoc start, BlockLoc end) {
-        ChunkLoc startChunk = start.toChunkLoc();
-        ChunkLoc endChunk = end.toChunkLoc();
+    private void rebuildSections(ChunkLoc loc, PreprocessedRegion region, int sectionMask) {
+        Object ticket = new Object();
+        pending.put(loc, ticket);
 
-        PreprocessedRegion startRegion = chunks.get(startChunk);
-        PreprocessedRegion endRegion = chunks.get(endChunk);
+        ChunkSnapshot snapshot = world.getChunkAt(loc.x, loc.z).getChunkSnapshot(false, false, false);
+        List<Node> chunkNodes = getChunkNodes(loc);
+        Map<ChunkLoc, PreprocessedRegion> neighbours = getNeighbours(loc);
 
-        if (startRegion == null || endRegion == null)
-            return null;
+        main.getPreprocessor().submit(() -> {
+            PreprocessedRegion rebuilt = region.copy();
+            boolean edgeChanged = rebuilt.rebuildSections(snapshot, materials, sectionMask);
 
-        int startSurface = startRegion.getSurfaceIDByWorldLoc(start);
-        int endSurface = endRegion.getSurfaceIDByWorldLoc(end);
+            if (cache != null && sectionMask != 0) {
+                cache.save(loc, RegionCache.hash(snapshot, rebuilt.getHeight(), materials), rebuilt);
+            }
 
-        if (startSurface == 0 || endSurface == 0)
-            throw new IllegalArgumentException("start and end must both be on a surface in their regions");
+            if (edgeChanged)
+                return new RebuiltChunk(rebuilt, createBoundaries(loc, rebuilt), chunkNodes, null, null);
 
-        Node startNode = new Node(start);
-        Node endNode = new Node(end);
+            float[] walkCosts = findWalkCosts(loc, rebuilt, neighbours, chunkNodes);
+            return new RebuiltChunk(rebuilt, null, chunkNodes, neighbours, walkCosts);
+        }).whenComplete((result, error) -> {
+            if (!main.isEnabled())
+                return;
 
-        Map<Integer, List<Node>> startSurfaceNodeMap = nodes.get(startChunk);
-        Map<Integer, List<Node>> endSurfaceNodeMap = nodes.get(endChunk);
+            Bukkit.getScheduler().runTask(main, () -> {
+                // The chunk has been removed or re-added since this task was queued
+                if (pending.get(loc) != ticket)
+                    return;
 
-        if (startSurfaceNodeMap == null || endSurfaceNodeMap == null)
-            return null;
+                pending.remove(loc);
 
-        List<Node> startNodes = startSurfaceNodeMap.get(startSurface);
-        List<Node> endNodes = endSurfaceNodeMap.get(endSurface);
+                if (error != null) {
+                    main.getLogger().log(Level.SEVERE, "Error rebuilding chunk " + loc, error);
+                    return;
+                }
 
-        startNodes.forEach(startNode::connect);
-        endNodes.forEach(endNode::connect);
+                graphLock.writeLock().lock();
+                try {
+                    version += 1;
+                    if (result.boundaries == null) {
+                        replaceRegion(loc, result.region);
+                        updateWalkCosts(loc, result.nodes, result.walkCosts);
+
+                        // The walks through neighbours that have changed since have to be found again
+                        if (!result.neighbours.equals(getNeighbours(loc))) {
+                            dirtySections.merge(loc, 0, (a, b) -> a | b);
+                        }
+                        return;
+                    }
 
-        // NOTE : When path-finding becomes asynchronous modifying the actual
-        //        graph to include the start and end points is not going to work
+                    removeNodes(loc);
+                    publish(loc, result.region, result.boundaries);
+                } finally {
+                    graphLock.writeLock().unlock();
+                }
+            });
+        });
+    }
 
-        try {
-            List<Node> nodePath = findPath(startNode, endNode);
-            if (nodePath == null)
-                return null;
+    /**
+     * @return Each of the nodes of the chunk at {@param loc} once.
+     */
+    List<Node> getChunkNodes(ChunkLoc loc) {
+        Map<Integer, List<Node>> surfaceNodes = nodes.get(loc);
+        if (surfaceNodes == null)
+            return Collections.emptyList();
+
+        Set<Node> chunkNodes = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (List<Node> nodeList : surfaceNodes.values()) {
+            chunkNodes.addAll(nodeList);
+        }
+        return new ArrayList<>(chunkNodes);
+    }
 
-            List<BlockLoc> path = new ArrayList<>();
+    /**
+     * @return The regions of the chunks that share a boundary with the chunk at {@param loc}, mapped by their location.
+     */
+    private Map<ChunkLoc, PreprocessedRegion> getNeighbours(ChunkLoc loc) {
+        Map<ChunkLoc, PreprocessedRegion> neighbours = new HashMap<>();
 
-            for (int index = 1; index < nodePath.size(); ++index) {
-                Node prev = nodePath.get(index - 1);
-                Node curr = nodePath.get(index);
+        // TODO : Corner boundaries
+        ChunkLoc[] neighbourLocs = {
+                loc.getRelative(-1, 0), loc.getRelative(1, 0),
+                loc.getRelative(0, -1), loc.getRelative(0, 1)
+        };
+        for (ChunkLoc neighbourLoc : neighbourLocs) {
+            PreprocessedRegion neighbour = chunks.get(neighbourLoc);
+            if (neighbour != null) {
+                neighbours.put(neighbourLoc, neighbour);
+            }
+        }
 
-                ChunkLoc loc = prev.findCommonChunk(curr);
-                if (loc == null)
-                    throw new IllegalStateException("Nodes do not share a chunk");
+        return neighbours;
+    }
 
-                boolean isPrevOne = Objects.equals(loc, prev.chunk1);
-                boolean isCurrOne = Objects.equals(loc, curr.chunk1);
+    /**
+     * Find the length of the shortest walk between each pair of {@param chunkNodes} within {@param region},
+     * the region of the chunk at {@param loc}. Nodes of the same boundary may also be connected by walks
+     * through the chunk on the other side of the boundary, in which case the shorter of the walks through
+     * {@param region} and through the region of the other chunk in {@param neighbours} is found. This only
+     * reads the regions and the blocks of the nodes, and is therefore safe to be called from any thread.
+     *
+     * @return The length of the walk from the i'th to the j'th node at index i * size + j, where i is less than j.
+     */
+    private static float[] findWalkCosts(ChunkLoc loc, PreprocessedRegion region,
+                                         Map<ChunkLoc, PreprocessedRegion> neighbours, List<Node> chunkNodes) {
 
-                BlockLoc from = (isPrevOne ? prev.representativeBlock1 : prev.representativeBlock2);
-                BlockLoc to = (isCurrOne ? curr.representativeBlock1 : curr.representativeBlock2);
+        int size = chunkNodes.size();
+        float[] walkCosts = new float[size * size];
 
-                PreprocessedRegion region = chunks.get(loc);
+        for (int i = 0; i < size; ++i) {
+            Node one = chunkNodes.get(i);
+            EdgeCosts edgeCosts = region.findEdgeCosts(one.getCrossingBlocks(loc));
 
-                List<BlockLoc> regionPath = region.findPath(
-                        from.subtract(region.getAnchor()),
-                        to.subtract(region.getAnchor())
-                );
+            ChunkLoc otherLoc = (loc.equals(one.chunk1) ? one.chunk2 : one.chunk1);
+            PreprocessedRegion other = neighbours.get(otherLoc);
+            EdgeCosts otherEdgeCosts = null;
 
-                if (regionPath == null)
-                    throw new IllegalStateException("Could not find path between nodes at " + from + " and " + to);
+            for (int j = i + 1; j < size; ++j) {
+                Node two = chunkNodes.get(j);
+                float walkCost = edgeCosts.getMinCost(two.getCrossingBlocks(loc));
 
-                // Add all except the last location
-                for (int regionPathIndex = 0; regionPathIndex < regionPath.size() - 1; ++regionPathIndex) {
-                    path.add(regionPath.get(regionPathIndex).add(region.getAnchor()));
+                if (other != null && (otherLoc.equals(two.chunk1) || otherLoc.equals(two.chunk2))) {
+                    if (otherEdgeCosts == null) {
+                        otherEdgeCosts = other.findEdgeCosts(one.getCrossingBlocks(otherLoc));
+                    }
+                    walkCost = Math.min(walkCost, otherEdgeCosts.getMinCost(two.getCrossingBlocks(otherLoc)));
                 }
 
-                // Now we need to add the path within the boundary between the representative blocks
+                walkCosts[i * size + j] = walkCost;
+            }
+        }
+
+        return walkCosts;
+    }
 
-                // If this isn't a boundary node, then we can skip this part
-                if (Objects.equals(curr.chunk1, curr.chunk2))
-                    continue;
+    /**
+     * Update the costs of the connections between {@param chunkNodes} within the chunk at {@param loc} to
+     * {@param walkCosts}, as found by {@link #findWalkCosts(ChunkLoc, PreprocessedRegion, Map, List)}.
+     * Nodes that have been removed since the costs were found are skipped. The write lock must
+     * be held when calling this.
+     */
+    private void updateWalkCosts(ChunkLoc loc, List<Node> chunkNodes, float[] walkCosts) {
+        int size = chunkNodes.size();
 
-                ChunkLocPair pair = new ChunkLocPair(curr.chunk1, curr.chunk2);
-                PreprocessedRegion boundary = straightBoundaries.get(pair);
+        markNodesChanged(loc);
 
-                BlockLoc boundaryFrom = (isCurrOne ? curr.representativeBlock1 : curr.representativeBlock2);
-                BlockLoc boundaryTo = (isCurrOne ? curr.representativeBlock2 : curr.representativeBlock1);
+        for (int i = 0; i < size; ++i) {
+            Node one = chunkNodes.get(i);
+            if (one.getID() == -1)
+                continue;
 
-                List<BlockLoc> boundaryPath = boundary.findPath(
-                        boundaryFrom.subtract(boundary.getAnchor()),
-                        boundaryTo.subtract(boundary.getAnchor())
-                );
+            for (int j = i + 1; j < size; ++j) {
+                Node two = chunkNodes.get(j);
+                float walkCost = walkCosts[i * size + j];
+                if (two.getID() == -1 || walkCost == Float.POSITIVE_INFINITY)
+                    continue;
 
-                // Add all except the last location
-                for (int boundaryPathIndex = 0; boundaryPathIndex < boundaryPath.size() - 1; ++boundaryPathIndex) {
-                    path.add(boundaryPath.get(boundaryPathIndex).add(boundary.getAnchor()));
-                }
+                // The costs of walks may rise as well as fall, so the cost is replaced rather than merged
+                float cost = getConnectionCost(one.getID(), two.getID(), walkCost);
+                if (cost == graph.getConnectionCost(one.getID(), two.getID()) || !graph.setCost(one.getID(), two.getID(), cost))
+                    continue;
+
+                changes.record(version, one.getID(), one);
+                changes.record(version, two.getID(), two);
             }
+        }
+    }
+
+    /**
+     * The result of rebuilding the sections of a chunk on the worker threads.
+     */
+    private static class RebuiltChunk {
+
+        private final PreprocessedRegion region;
+
+        // The boundaries of the rebuilt region, or null if its edges did not change
+        private final Map<PreprocessedRegion, NodeBuilder[]> boundaries;
+
+        // The nodes of the chunk when the rebuild started, and the lengths of the walks between
+        // them in the rebuilt region, or null if the nodes of the chunk are to be regenerated
+        private final List<Node> nodes;
+        private final float[] walkCosts;
 
-            path.add(end);
+        // The neighbouring regions that the walks between nodes of the same boundary were found through
+        private final Map<ChunkLoc, PreprocessedRegion> neighbours;
 
-            return path;
+        private RebuiltChunk(PreprocessedRegion region, Map<PreprocessedRegion, NodeBuilder[]> boundaries,
+                             List<Node> nodes, Map<ChunkLoc, PreprocessedRegion> neighbours, float[] walkCosts) {
+            this.region = region;
+            this.boundaries = boundaries;
+            this.nodes = nodes;
+            this.neighbours = neighbours;
+            this.walkCosts = walkCosts;
+        }
+    }
+
+    /**
+     * @return The lock guarding the boundaries, nodes and graph of this world.
+     */
+    ReadWriteLock getGraphLock() {
+        return graphLock;
+    }
+
+    /**
+     * @return A number that changes whenever the boundaries, nodes or graph of this world are modified.
+     *         The read lock must be held when calling this.
+     */
+    int getVersion() {
+        return version;
+    }
+
+    NodeGraph getGraph() {
+        return graph;
+    }
+
+    /**
+     * @return The nodes touched by the latest modifications of the graph. The read lock must be held when calling this.
+     */
+    GraphChanges getChanges() {
+        return changes;
+    }
+
+    /**
+     * @return The cache of fields to refine paths within regions with, or null if paths are refined by searching.
+     */
+    DistanceFieldCache getDistanceFields() {
+        return distanceFields;
+    }
+
+    /**
+     * @return The cache of the paths found through this world, or null if paths are not cached.
+     */
+    public PathCache getPathCache() {
+        return pathCache;
+    }
+
+    /**
+     * @return The clusters of chunks that long paths are found through, or null if paths search every node.
+     */
+    public ClusterHierarchy getClusterHierarchy() {
+        return hierarchy;
+    }
+
+    /**
+     * @return The shortcuts between the nodes of the static areas of this world, or null if there are no static areas.
+     */
+    public ContractionHierarchy getContractionHierarchy() {
+        return contraction;
+    }
+
+    /**
+     * @return The costs from landmark nodes used to guide searches, or null if searches are not guided by them.
+     */
+    public LandmarkHeuristic getLandmarks() {
+        return landmarks;
+    }
+
+    /**
+     * The graph lock must be held when calling this.
+     *
+     * @return The version of the region of the chunk at {@param loc}, or 0 if the chunk has no region.
+     */
+    int getChunkVersion(ChunkLoc loc) {
+        return chunkVersions.getOrDefault(loc, 0);
+    }
+
+    /**
+     * The graph lock must be held when calling this.
+     *
+     * @return Whether a path may be found from the surface {@param startSurface} of the chunk at
+     *         {@param startChunk} to the surface {@param endSurface} of the chunk at {@param endChunk}.
+     */
+    boolean isConnected(ChunkLoc startChunk, int startSurface, ChunkLoc endChunk, int endSurface) {
+        return components.isConnected(startChunk, startSurface, endChunk, endSurface);
+    }
+
+    /**
+     * Check whether a path could be found from {@param start} to {@param end}, without searching for the path.
+     * After chunks are removed or rebuilt, blocks that were only connected through them may still be reported
+     * as reachable until the components of surfaces are rebuilt, along with the next dirty sections.
+     *
+     * This may be called from any thread.
+     *
+     * @return Whether {@param start} and {@param end} are on walkable surfaces that are connected to each
+     *         other through the pre-processed chunks of this world.
+     */
+    public boolean isReachable(BlockLoc start, BlockLoc end) {
+        graphLock.readLock().lock();
+        try {
+            ChunkLoc startChunk = start.toChunkLoc();
+            ChunkLoc endChunk = end.toChunkLoc();
+
+            PreprocessedRegion startRegion = chunks.get(startChunk);
+            PreprocessedRegion endRegion = chunks.get(endChunk);
+            if (startRegion == null || endRegion == null)
+                return false;
+
+            int startSurface = startRegion.getSurfaceIDByWorldLoc(start);
+            int endSurface = endRegion.getSurfaceIDByWorldLoc(end);
+            if (startSurface == 0 || endSurface == 0)
+                return false;
+
+            return components.isConnected(startChunk, startSurface, endChunk, endSurface);
         } finally {
-            startNode.disconnectAll();
-            endNode.disconnectAll();
+            graphLock.readLock().unlock();
         }
     }
 
+    PreprocessedRegion getRegion(ChunkLoc loc) {
+        return chunks.get(loc);
+    }
+
+    /**
+     * @return The nodes connected to the surface {@param surfaceID} of the chunk at {@param loc},
+     *         or null if the chunk has no nodes.
+     */
+    List<Node> getSurfaceNodes(ChunkLoc loc, int surfaceID) {
+        Map<Integer, List<Node>> surfaceNodeMap = nodes.get(loc);
+        if (surfaceNodeMap == null)
+            return null;
+
+        return surfaceNodeMap.getOrDefault(surfaceID, Collections.emptyList());
+    }
+
+    /**
+     * Find a path through this world from {@param start} to {@param end}.
+     *
+     * This only reads the pre-processing of this world, and so it may be called from any thread,
+     * and any number of paths may be found at the same time. The search is run in bounded steps, and
+     * the read lock is released between them, so that the pre-processing can be updated meanwhile.
+     *
+     * @return A List of blocks to traverse to get from {@param start}
+     *         to {@param end}, or null if no path could be found.
+     */
+    public List<BlockLoc> findPath(BlockLoc start, BlockLoc end) {
+        return findPath(start, end, false);
+    }
+
+    /**
+     * Find a path through this world from {@param start} to {@param end}.
+     *
+     * @param bidirectional Whether to search the graph from both the start and the end at the same time.
+     *
+     * @see #findPath(BlockLoc, BlockLoc)
+     */
+    public List<BlockLoc> findPath(BlockLoc start, BlockLoc end, boolean bidirectional) {
+        PathQuery query = new PathQuery(this, start, end, bidirectional);
+        // Each step re-acquires the read lock, and so waits for any writers that are waiting for it
+        boolean complete = false;
+        while (!complete) {
+            complete = query.step(STEP_NODES, STEP_BLOCKS);
+        }
+        return query.getPath();
+    }
+
     private static final Material[] DEBUG_CARPETS = new Material[] {
             Material.BLUE_CARPET,
             Material.RED_CARPET,
@@ -505,6 +1535,20 @@ public class PreprocessedWorld {
         }
     }
 
+    private void debug(ChunkBoundary boundary, List<BlockState> restoreBlocks, Material[] materials) {
+        for (int index = 0; index < boundary.getBlockCount(); ++index) {
+            int surfaceID = boundary.getSurfaceID(index);
+            if (surfaceID == 0)
+                continue;
+
+            Material display = materials[surfaceID % materials.length];
+
+            Block block = world.getBlockAt(boundary.getX(index), boundary.getY(index) + 1, boundary.getZ(index));
+            restoreBlocks.add(block.getState());
+            block.setType(display);
+        }
+    }
+
     private void restoreLater(List<BlockState> restoreBlocks, long ticksLater) {
         Bukkit.getScheduler().scheduleSyncDelayedTask(main, () -> {
             Collections.reverse(restoreBlocks);
@@ -517,16 +1561,11 @@ public class PreprocessedWorld {
     public void debugNodes() {
         List<BlockLoc> locs = new ArrayList<>();
 
-        for (Map<Integer, List<Node>> surfaceMap : nodes.values()) {
-            for (List<Node> nodeList : surfaceMap.values()) {
-                for (Node node : nodeList) {
-                    locs.add(new BlockLoc(
-                            (int) (node.cumulativeX / node.surfaceBlockCount),
-                            (int) (node.cumulativeY / node.surfaceBlockCount),
-                            (int) (node.cumulativeZ / node.surfaceBlockCount)
-                    ));
-                }
-            }
+        for (int id = 0; id < graph.getIDLimit(); ++id) {
+            if (graph.getNode(id) == null)
+                continue;
+
+            locs.add(new BlockLoc((int) graph.getX(id), (int) graph.getY(id), (int) graph.getZ(id)));
         }
 
         List<BlockState> blocks = new ArrayList<>();
@@ -581,14 +1620,9 @@ public class PreprocessedWorld {
     }
 
     /**
-     * @return Whether a path could be found.
+     * Display {@param path} in the world for a short time.
      */
-    public boolean debugPath(Block from, Block to) {
-        List<BlockLoc> path = findPath(new BlockLoc(from), new BlockLoc(to));
-
-        if (path == null)
-            return false;
-
+    public void debugPath(List<BlockLoc> path) {
         List<BlockState> states = new ArrayList<>();
 
         for (BlockLoc loc : path) {
@@ -626,8 +1660,6 @@ public class PreprocessedWorld {
         }
 
         restoreLater(states, 20 * durationSecs);
-
-        return true;
     }
 
     public void debugDisplay(Chunk chunk) {
@@ -635,7 +1667,6 @@ public class PreprocessedWorld {
 
         ChunkLoc loc1 = new ChunkLoc(chunk);
         ChunkLoc loc2 = loc1.getRelative(-1, 0);
-        ChunkLocPair pair = new ChunkLocPair(loc1, loc2);
 
         Chunk chunk2 = world.getChunkAt(loc2.x, loc2.z);
         remove(chunk);
@@ -645,7 +1676,7 @@ public class PreprocessedWorld {
 
         PreprocessedRegion region1 = chunks.get(loc1);
         PreprocessedRegion region2 = chunks.get(loc2);
-        PreprocessedRegion boundary = straightBoundaries.get(pair);
+        ChunkBoundary boundary = new ChunkBoundary(region1, region2);
 
         // Show all surfaces in regions and boundary
         List<BlockState> regionBlocks = new ArrayList<>();
@@ -0,0 +1,255 @@
+package net.sothatsit.farpath.preprocessing;
+
+import org.bukkit.ChunkSnapshot;
+import org.bukkit.Material;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A cache of pre-processed chunk regions on disk, so that chunks do not have
+ * to be pre-processed again every time they are loaded.
+ *
+ * Each entry is validated against a hash of the contents of its chunk, so entries
+ * for chunks that have changed since they were cached are never used. Entries are
+ * stored compressed in files of 32x32 chunks, which are kept open between uses.
+ *
+ * All methods may be called from any thread.
+ *
+ * @author Paddy Lamont
+ */
+public class RegionCache implements Closeable {
+
+    // Must be incremented whenever the format of entries, or how regions are pre-processed, changes
+    private static final int FORMAT_VERSION = 3;
+
+    private static final int MAX_OPEN_FILES = 16;
+
+    // Each entry begins with the hash of its chunk, and the length of the uncompressed region
+    private static final int ENTRY_PREAMBLE_SIZE = 12;
+
+    private final File directory;
+    private final Logger logger;
+    private final Map<Long, RegionCacheFile> files;
+    private boolean closed = false;
+
+    /**
+     * @param directory The directory to store the files of the cache in.
+     * @param logger    The logger to report errors reading and writing the cache to.
+     */
+    public RegionCache(File directory, Logger logger) {
+        this.directory = directory;
+        this.logger = logger;
+        this.files = new LinkedHashMap<Long, RegionCacheFile>(MAX_OPEN_FILES, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, RegionCacheFile> eldest) {
+                if (size() <= MAX_OPEN_FILES)
+                    return false;
+
+                closeFile(eldest.getValue());
+                return true;
+            }
+        };
+    }
+
+    /**
+     * @return A hash of the types of the blocks in the lowest {@param height} blocks of {@param snapshot},
+     *         and of how they are classified by {@param materials}.
+     */
+    public static long hash(ChunkSnapshot snapshot, int height, MaterialTable materials) {
+        // FNV-1a, seeded with the number of materials as their ordinals change between versions,
+        // and with the classification of materials as entries are invalid once it is changed
+        long hash = 0xcbf29ce484222325L ^ Material.values().length;
+        hash = (hash ^ materials.getFingerprint()) * 0x100000001b3L;
+
+        for (int sectionY = 0; sectionY * 16 < height; ++sectionY) {
+            if (snapshot.isSectionEmpty(sectionY)) {
+                hash = (hash ^ -1) * 0x100000001b3L;
+                continue;
+            }
+
+            int maxY = Math.min(height, sectionY * 16 + 16);
+            for (int y = sectionY * 16; y < maxY; ++y) {
+                for (int z = 0; z < 16; ++z) {
+                    for (int x = 0; x < 16; ++x) {
+                        hash = (hash ^ snapshot.getBlockType(x, y, z).ordinal()) * 0x100000001b3L;
+                    }
+                }
+            }
+        }
+
+        return hash;
+    }
+
+    /**
+     * Load {@param region} from the entry for the chunk at {@param loc}, if
+     * there is an entry for the chunk and it was stored with {@param hash}.
+     *
+     * @return Whether {@param region} was loaded from the cache.
+     */
+    public boolean load(ChunkLoc loc, long hash, PreprocessedRegion region) {
+        ByteBuffer entry;
+        try {
+            synchronized (this) {
+                RegionCacheFile file = getFile(loc);
+                if (file == null)
+                    return false;
+
+                entry = file.read(loc.x & (RegionCacheFile.SIZE - 1), loc.z & (RegionCacheFile.SIZE - 1));
+            }
+        } catch (IOException exception) {
+            logger.log(Level.WARNING, "Error reading the cached chunk " + loc, exception);
+            return false;
+        }
+
+        if (entry == null)
+            return false;
+
+        try {
+            return decode(entry, hash, region);
+        } catch (DataFormatException | BufferUnderflowException | IllegalArgumentException exception) {
+            logger.log(Level.WARNING, "The cached chunk " + loc + " is corrupt", exception);
+            return false;
+        }
+    }
+
+    /**
+     * Store {@param region} as the entry for the chunk at {@param loc}, whose contents have the hash {@param hash}.
+     */
+    public void save(ChunkLoc loc, long hash, PreprocessedRegion region) {
+        ByteBuffer entry = encode(region, hash);
+
+        try {
+            synchronized (this) {
+                RegionCacheFile file = getFile(loc);
+                if (file == null)
+                    return;
+
+                file.write(loc.x & (RegionCacheFile.SIZE - 1), loc.z & (RegionCacheFile.SIZE - 1), entry);
+            }
+        } catch (IOException exception) {
+            logger.log(Level.WARNING, "Error writing the cached chunk " + loc, exception);
+        }
+    }
+
+    /**
+     * @return The file holding the entry for the chunk at {@param loc}, or null if this cache has been closed.
+     */
+    private RegionCacheFile getFile(ChunkLoc loc) throws IOException {
+        if (closed)
+            return null;
+
+        int fileX = Math.floorDiv(loc.x, RegionCacheFile.SIZE);
+        int fileZ = Math.floorDiv(loc.z, RegionCacheFile.SIZE);
+        long key = ((long) fileX << 32) | (fileZ & 0xFFFFFFFFL);
+
+        RegionCacheFile file = files.get(key);
+        if (file != null)
+            return file;
+
+        if (!directory.exists() && !directory.mkdirs())
+            throw new IOException("Unable to create the directory " + directory);
+
+        file = new RegionCacheFile(new File(directory, "r." + fileX + "." + fileZ + ".fpc"), FORMAT_VERSION);
+        files.put(key, file);
+        return file;
+    }
+
+    private void closeFile(RegionCacheFile file) {
+        try {
+            file.close();
+        } catch (IOException exception) {
+            logger.log(Level.WARNING, "Error closing a chunk cache file", exception);
+        }
+    }
+
+    /**
+     * @return An entry holding {@param region}, for a chunk whose contents have the hash {@param hash}.
+     */
+    static ByteBuffer encode(PreprocessedRegion region, long hash) {
+        ByteBuffer raw = ByteBuffer.allocate(region.getSerializedLength());
+        region.write(raw);
+
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(raw.array());
+            deflater.finish();
+
+            byte[] entry = new byte[ENTRY_PREAMBLE_SIZE + raw.capacity() / 8];
+            int length = ENTRY_PREAMBLE_SIZE;
+            while (!deflater.finished()) {
+                if (length == entry.length) {
+                    entry = Arrays.copyOf(entry, entry.length * 2);
+                }
+
+                length += deflater.deflate(entry, length, entry.length - length);
+            }
+
+            ByteBuffer buffer = ByteBuffer.wrap(entry, 0, length);
+            buffer.putLong(0, hash);
+            buffer.putInt(8, raw.capacity());
+            return buffer;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Load {@param region} from {@param entry}, if it was stored with {@param hash}.
+     *
+     * @return Whether {@param region} was loaded from {@param entry}.
+     */
+    static boolean decode(ByteBuffer entry, long hash, PreprocessedRegion region) throws DataFormatException {
+        if (entry.remaining() < ENTRY_PREAMBLE_SIZE || entry.getLong() != hash)
+            return false;
+
+        int rawLength = entry.getInt();
+        if (rawLength <= 0 || rawLength > region.getMaxSerializedLength())
+            throw new DataFormatException("the entry has an invalid length");
+
+        byte[] raw = new byte[rawLength];
+
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(entry.array(), entry.arrayOffset() + entry.position(), entry.remaining());
+
+            int length = 0;
+            while (length < rawLength) {
+                int inflated = inflater.inflate(raw, length, rawLength - length);
+                if (inflated == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary()))
+                    throw new DataFormatException("the entry is truncated");
+
+                length += inflated;
+            }
+        } finally {
+            inflater.end();
+        }
+
+        region.read(ByteBuffer.wrap(raw));
+        return true;
+    }
+
+    /**
+     * Close all the files of this cache. The cache will not be read or written after it is closed.
+     */
+    @Override
+    public synchronized void close() {
+        closed = true;
+
+        for (RegionCacheFile file : files.values()) {
+            closeFile(file);
+        }
+        files.clear();
+    }
+}
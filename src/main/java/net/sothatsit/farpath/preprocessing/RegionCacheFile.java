@@ -0,0 +1,240 @@
+package net.sothatsit.farpath.preprocessing;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A file holding the cached entries of a 32x32 group of chunks, similar to the region files of the world.
+ *
+ * The file begins with a header holding the offset, length and capacity of the entry of each chunk,
+ * which is memory-mapped. The entries follow the header. Entries are overwritten in place when they
+ * fit in the space of the previous entry of their chunk, and are otherwise appended to the end of the
+ * file. Once too much of the file is left unused by the entries that were moved to the end, the
+ * entries are moved back down over the unused space, and the file is truncated.
+ *
+ * @author Paddy Lamont
+ */
+class RegionCacheFile implements Closeable {
+
+    /**
+     * The number of chunks along each side of the group of chunks stored in a file.
+     */
+    public static final int SIZE = 32;
+
+    private static final int MAGIC = 0x46504346; // "FPCF"
+
+    // The entry of each chunk is described by a long offset, an int length, and the int capacity of its space.
+    // Files written before capacities were recorded have a capacity of 0, and so the length is used instead.
+    private static final int ENTRY_SIZE = 16;
+    private static final int PREAMBLE_SIZE = 16;
+    private static final int HEADER_SIZE = PREAMBLE_SIZE + SIZE * SIZE * ENTRY_SIZE;
+
+    // Files are compacted once more than this fraction of their entries' space is unused, and at least MIN_COMPACT_WASTE
+    private static final double MAX_WASTE_FRACTION = 0.5;
+    private static final long MIN_COMPACT_WASTE = 1 << 20;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer header;
+
+    // The number of bytes after the header that are not within the space of any entry
+    private long wasted;
+
+    /**
+     * Open the file at {@param file}, creating it if it does not exist. If the file was written
+     * with a different {@param formatVersion}, all of its entries are discarded.
+     */
+    public RegionCacheFile(File file, int formatVersion) throws IOException {
+        this.channel = FileChannel.open(
+                file.toPath(),
+                StandardOpenOption.READ,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE
+        );
+
+        try {
+            boolean valid = (channel.size() >= HEADER_SIZE);
+
+            this.header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+
+            if (!valid || header.getInt(0) != MAGIC || header.getInt(4) != formatVersion) {
+                clear(formatVersion);
+            }
+
+            wasted = channel.size() - HEADER_SIZE;
+            for (int position : getEntryPositions()) {
+                wasted -= getCapacity(position);
+            }
+
+            if (shouldCompact()) {
+                compact();
+            }
+        } catch (IOException | RuntimeException exception) {
+            channel.close();
+            throw exception;
+        }
+    }
+
+    /**
+     * Discard all the entries in this file.
+     */
+    private void clear(int formatVersion) throws IOException {
+        for (int index = 0; index < HEADER_SIZE; index += 4) {
+            header.putInt(index, 0);
+        }
+        header.putInt(0, MAGIC);
+        header.putInt(4, formatVersion);
+
+        channel.truncate(HEADER_SIZE);
+    }
+
+    private static int entryPosition(int localX, int localZ) {
+        if (localX < 0 || localX >= SIZE || localZ < 0 || localZ >= SIZE)
+            throw new IllegalArgumentException("localX and localZ must be within [0, " + SIZE + ")");
+
+        return PREAMBLE_SIZE + (localZ * SIZE + localX) * ENTRY_SIZE;
+    }
+
+    /**
+     * @return The number of bytes the entry described at {@param position} in the header may grow to in place.
+     */
+    private int getCapacity(int position) {
+        return Math.max(header.getInt(position + 8), header.getInt(position + 12));
+    }
+
+    /**
+     * @return The positions in the header of the entries stored in this file, ordered by their offset in the file.
+     */
+    private List<Integer> getEntryPositions() throws IOException {
+        long size = channel.size();
+
+        List<Integer> positions = new ArrayList<>();
+        for (int position = PREAMBLE_SIZE; position < HEADER_SIZE; position += ENTRY_SIZE) {
+            long offset = header.getLong(position);
+            int length = header.getInt(position + 8);
+
+            if (offset >= HEADER_SIZE && length > 0 && offset + getCapacity(position) <= size) {
+                positions.add(position);
+            }
+        }
+
+        positions.sort(Comparator.comparingLong(header::getLong));
+        return positions;
+    }
+
+    private boolean shouldCompact() throws IOException {
+        return wasted >= MIN_COMPACT_WASTE && wasted > (channel.size() - HEADER_SIZE) * MAX_WASTE_FRACTION;
+    }
+
+    /**
+     * Move all the entries of this file down over the space left unused between them, and truncate the file.
+     * Each entry is removed while it is being moved, so that a partially moved entry is never read.
+     */
+    private void compact() throws IOException {
+        long nextOffset = HEADER_SIZE;
+
+        for (int position : getEntryPositions()) {
+            long offset = header.getLong(position);
+            int length = header.getInt(position + 8);
+
+            if (offset != nextOffset) {
+                ByteBuffer data = readAt(offset, length);
+                if (data == null) {
+                    header.putInt(position + 8, 0);
+                    continue;
+                }
+
+                header.putInt(position + 8, 0);
+                writeAt(nextOffset, data);
+                header.putLong(position, nextOffset);
+            }
+
+            header.putInt(position + 12, length);
+            header.putInt(position + 8, length);
+            nextOffset += length;
+        }
+
+        channel.truncate(nextOffset);
+        wasted = 0;
+    }
+
+    /**
+     * @return The {@param length} bytes at {@param offset} in this file, or null if the file ends before them.
+     */
+    private ByteBuffer readAt(long offset, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0)
+                return null;
+        }
+
+        buffer.flip();
+        return buffer;
+    }
+
+    private void writeAt(long offset, ByteBuffer data) throws IOException {
+        long writePosition = offset;
+        while (data.hasRemaining()) {
+            writePosition += channel.write(data, writePosition);
+        }
+    }
+
+    /**
+     * @return The entry of the chunk at {@param localX}, {@param localZ} within this
+     *         file, or null if there is no entry for the chunk.
+     */
+    public synchronized ByteBuffer read(int localX, int localZ) throws IOException {
+        int position = entryPosition(localX, localZ);
+        long offset = header.getLong(position);
+        int length = header.getInt(position + 8);
+
+        if (offset < HEADER_SIZE || length <= 0 || offset + length > channel.size())
+            return null;
+
+        return readAt(offset, length);
+    }
+
+    /**
+     * Replace the entry of the chunk at {@param localX}, {@param localZ} within this file with {@param data}.
+     */
+    public synchronized void write(int localX, int localZ, ByteBuffer data) throws IOException {
+        int position = entryPosition(localX, localZ);
+        long offset = header.getLong(position);
+        boolean hasSpace = (offset >= HEADER_SIZE && header.getInt(position + 8) > 0);
+        int capacity = (hasSpace ? getCapacity(position) : 0);
+        int length = data.remaining();
+
+        // Append the entry if it does not fit in the space of the previous entry, leaving that space unused
+        if (length > capacity) {
+            wasted += capacity;
+            offset = channel.size();
+            capacity = length;
+        }
+
+        // Remove the previous entry first, so that a partially written entry is never read
+        header.putInt(position + 8, 0);
+
+        writeAt(offset, data);
+
+        header.putLong(position, offset);
+        header.putInt(position + 12, capacity);
+        header.putInt(position + 8, length);
+
+        if (shouldCompact()) {
+            compact();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        header.force();
+        channel.close();
+    }
+}
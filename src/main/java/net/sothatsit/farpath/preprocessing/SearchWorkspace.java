@@ -0,0 +1,277 @@
+package net.sothatsit.farpath.preprocessing;
+
+import net.sothatsit.farpath.util.IndexedHeap;
+
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Re-usable arrays used to hold the state of searches within a region, or through the {@link NodeGraph}.
+ *
+ * Each thread has its own workspace that is re-used by all of the searches it runs. Rather than
+ * clearing the arrays between searches, each search is given a new generation, and any entry
+ * stamped with an older generation is treated as not yet having been visited by the search.
+ * Searches that are paused between calls cannot share the workspace of their thread, and
+ * instead {@link #acquire()} their own workspace from a pool.
+ *
+ * @author Paddy Lamont
+ */
+class SearchWorkspace {
+
+    private static final ThreadLocal<SearchWorkspace> workspaces = ThreadLocal.withInitial(SearchWorkspace::new);
+
+    private static final int MAX_POOLED = 32;
+    private static final Queue<SearchWorkspace> pool = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger pooledCount = new AtomicInteger();
+
+    private int generation = 0;
+
+    /**
+     * The generation of the search that last visited each slot.
+     */
+    private int[] stamps = new int[0];
+
+    /**
+     * Whether each slot has been processed. Only valid for slots visited in the current generation.
+     */
+    private boolean[] processed = new boolean[0];
+
+    /**
+     * The slot before each slot in the shortest path currently known to it.
+     * Only valid for slots visited in the current generation.
+     */
+    private int[] from = new int[0];
+
+    /**
+     * The length of the shortest path currently known to each slot.
+     * Only valid for slots visited in the current generation.
+     */
+    private double[] costs = new double[0];
+
+    /**
+     * The generation of the search that each slot was last made a goal of.
+     */
+    private int[] goalStamps = new int[0];
+
+    /**
+     * The bounding box of the goals of the current search, as the minimum x, y and z followed by the maximum x, y and z.
+     */
+    private final int[] goalBounds = new int[6];
+
+    /**
+     * Maintains which slots are next to be processed.
+     */
+    private final IndexedHeap toProcess = new IndexedHeap(64);
+
+    /**
+     * The difference in slot between a block and the block at the end of each connection from it.
+     */
+    private final int[] slotOffsets = new int[SurfaceConnection.COUNT];
+
+    /**
+     * The number of slots processed by the current search.
+     */
+    private int expansions = 0;
+
+    private SearchWorkspace() {}
+
+    /**
+     * Start a new search using the workspace of the current thread.
+     *
+     * @param slots The number of slots required by the search.
+     *
+     * @return The workspace of the current thread, with no slots visited.
+     */
+    public static SearchWorkspace begin(int slots) {
+        SearchWorkspace workspace = current();
+        workspace.reset(slots);
+        return workspace;
+    }
+
+    /**
+     * @return The workspace of the current thread, without starting a new search.
+     */
+    public static SearchWorkspace current() {
+        return workspaces.get();
+    }
+
+    /**
+     * Take a workspace that is not shared with any other search, for a search that may be
+     * paused between calls. The workspace should be {@link #release() released} once the
+     * search has completed.
+     */
+    public static SearchWorkspace acquire() {
+        SearchWorkspace workspace = pool.poll();
+        if (workspace == null)
+            return new SearchWorkspace();
+
+        pooledCount.decrementAndGet();
+        return workspace;
+    }
+
+    /**
+     * Return this workspace, which must have been {@link #acquire() acquired}, to the pool.
+     */
+    public void release() {
+        if (pooledCount.incrementAndGet() > MAX_POOLED) {
+            pooledCount.decrementAndGet();
+            return;
+        }
+
+        pool.add(this);
+    }
+
+    /**
+     * Start a new search using this workspace.
+     *
+     * @param slots The number of slots required by the search.
+     */
+    public void reset(int slots) {
+        if (slots > stamps.length) {
+            int length = Math.max(slots, stamps.length + stamps.length / 2);
+
+            stamps = Arrays.copyOf(stamps, length);
+            goalStamps = Arrays.copyOf(goalStamps, length);
+            processed = new boolean[length];
+            from = new int[length];
+            costs = new double[length];
+        }
+
+        toProcess.clear();
+        expansions = 0;
+
+        generation += 1;
+
+        // Avoid entries from a previous search being mistaken for the current search after overflow
+        if (generation == 0) {
+            Arrays.fill(stamps, 0);
+            Arrays.fill(goalStamps, 0);
+            generation = 1;
+        }
+    }
+
+    /**
+     * Make room for the current search to use {@param slots} slots, keeping the slots it has already visited.
+     */
+    public void grow(int slots) {
+        if (slots <= stamps.length)
+            return;
+
+        int length = Math.max(slots, stamps.length + stamps.length / 2);
+
+        stamps = Arrays.copyOf(stamps, length);
+        goalStamps = Arrays.copyOf(goalStamps, length);
+        processed = Arrays.copyOf(processed, length);
+        from = Arrays.copyOf(from, length);
+        costs = Arrays.copyOf(costs, length);
+    }
+
+    /**
+     * @return The open set of the current search, indexed by slot.
+     */
+    public IndexedHeap getOpenSet() {
+        return toProcess;
+    }
+
+    /**
+     * @return An array with an entry for each {@link SurfaceConnection}, to be filled in by the current search.
+     */
+    public int[] getSlotOffsets() {
+        return slotOffsets;
+    }
+
+    /**
+     * @return An array to hold the bounding box of the goals of the current search, as the
+     *         minimum x, y and z followed by the maximum x, y and z. Filled in by the search.
+     */
+    public int[] getGoalBounds() {
+        return goalBounds;
+    }
+
+    /**
+     * Make {@param slot} a goal of the current search.
+     */
+    public void markGoal(int slot) {
+        goalStamps[slot] = generation;
+    }
+
+    /**
+     * @return Whether {@param slot} is a goal of the current search.
+     */
+    public boolean isGoal(int slot) {
+        return goalStamps[slot] == generation;
+    }
+
+    /**
+     * Record that another slot has been processed by the current search.
+     */
+    public void countExpansion() {
+        expansions += 1;
+    }
+
+    /**
+     * @return The number of slots processed by the current search.
+     */
+    public int getExpansions() {
+        return expansions;
+    }
+
+    /**
+     * @return Whether {@param slot} has been visited in the current search.
+     */
+    public boolean isVisited(int slot) {
+        return stamps[slot] == generation;
+    }
+
+    /**
+     * @return Whether {@param slot} has been visited in the current search, where {@param slot}
+     *         may be beyond the slots that this workspace has room for.
+     */
+    public boolean hasVisited(int slot) {
+        return slot >= 0 && slot < stamps.length && stamps[slot] == generation;
+    }
+
+    /**
+     * @return Whether {@param slot} has been processed in the current search.
+     */
+    public boolean isProcessed(int slot) {
+        return stamps[slot] == generation && processed[slot];
+    }
+
+    /**
+     * Record that the shortest path known to {@param slot} has length {@param cost},
+     * and that it comes from the slot {@param fromSlot}.
+     */
+    public void visit(int slot, double cost, int fromSlot) {
+        if (stamps[slot] != generation) {
+            stamps[slot] = generation;
+            processed[slot] = false;
+        }
+
+        costs[slot] = cost;
+        from[slot] = fromSlot;
+    }
+
+    /**
+     * Mark that {@param slot} has been processed, and its shortest path is known.
+     */
+    public void markProcessed(int slot) {
+        processed[slot] = true;
+    }
+
+    /**
+     * @return The length of the shortest path known to {@param slot}, which must have been visited.
+     */
+    public double getCost(int slot) {
+        return costs[slot];
+    }
+
+    /**
+     * @return The slot before {@param slot} in the shortest path known to it, which must have been visited.
+     */
+    public int getFrom(int slot) {
+        return from[slot];
+    }
+}
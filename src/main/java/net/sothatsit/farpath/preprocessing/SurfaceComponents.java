@@ -0,0 +1,218 @@
+package net.sothatsit.farpath.preprocessing;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Groups the surfaces of chunks into components, where paths can be found between any two surfaces
+ * in the same component, and no path can be found between surfaces in different components.
+ *
+ * Surfaces are merged into the same component using union-find as nodes are added between them.
+ * Union-find cannot split components, and so when nodes are removed this is marked as stale until it
+ * is rebuilt from the remaining nodes. While stale, surfaces that are no longer connected may still
+ * be in the same component, but surfaces that are connected are never in different components.
+ * Components are rebuilt from a copy of the nodes on the worker threads, and the nodes added while
+ * they are rebuilt are merged into the rebuilt components once they replace the current ones.
+ *
+ * Surfaces are only merged while the write lock of the world is held, and the components are
+ * only read while holding the read lock. Reading does not compress the paths of the union-find,
+ * so that the components may be read by any number of threads at the same time.
+ *
+ * @author Paddy Lamont
+ */
+class SurfaceComponents {
+
+    // The index of each surface that has been connected to another surface
+    private Map<SurfaceKey, Integer> indices = new HashMap<>();
+
+    // The parent of each surface in the union-find, and the number of surfaces below each root
+    private int[] parents = new int[64];
+    private int[] sizes = new int[64];
+
+    private boolean stale = false;
+
+    // The nodes added since the components started being rebuilt, or null if they are not being rebuilt
+    private List<Node> addedDuringRebuild = null;
+    private boolean removedDuringRebuild = false;
+
+    /**
+     * @return Whether nodes have been removed since these components were last rebuilt.
+     */
+    public boolean isStale() {
+        return stale;
+    }
+
+    /**
+     * Mark that nodes have been removed, and so surfaces in the same component may no longer be connected.
+     */
+    public void markStale() {
+        stale = true;
+        removedDuringRebuild = true;
+    }
+
+    /**
+     * Mark these components as being rebuilt if they are stale and are not already being rebuilt.
+     * This must be called from the main server thread.
+     *
+     * @return Whether the components should be rebuilt from a copy of the current nodes using
+     *         {@link #build(List)}, after which the result must be passed to {@link #finishRebuild(SurfaceComponents)}.
+     */
+    public boolean startRebuild() {
+        if (!stale || addedDuringRebuild != null)
+            return false;
+
+        addedDuringRebuild = new ArrayList<>();
+        removedDuringRebuild = false;
+        return true;
+    }
+
+    /**
+     * Replace these components with {@param rebuilt}, and merge the nodes added since the rebuild started
+     * into them. These components stay stale if nodes were removed since the rebuild started, or if they
+     * could not be rebuilt. This must be called from the main server thread while holding the write lock.
+     *
+     * @param rebuilt The result of {@link #build(List)}, or null if the components could not be rebuilt.
+     */
+    public void finishRebuild(SurfaceComponents rebuilt) {
+        List<Node> added = addedDuringRebuild;
+        addedDuringRebuild = null;
+
+        if (rebuilt == null)
+            return;
+
+        this.indices = rebuilt.indices;
+        this.parents = rebuilt.parents;
+        this.sizes = rebuilt.sizes;
+        this.stale = removedDuringRebuild;
+
+        for (Node node : added) {
+            add(node);
+        }
+    }
+
+    /**
+     * Build the components of the surfaces connected by {@param nodes}. This only reads the surfaces
+     * of the nodes, and is therefore safe to be called from any thread.
+     */
+    public static SurfaceComponents build(List<Node> nodes) {
+        SurfaceComponents components = new SurfaceComponents();
+        for (Node node : nodes) {
+            components.add(node);
+        }
+        return components;
+    }
+
+    /**
+     * Merge the components of all the surfaces that {@param node} connects to.
+     */
+    public void add(Node node) {
+        if (addedDuringRebuild != null) {
+            addedDuringRebuild.add(node);
+        }
+
+        int root = -1;
+
+        for (int surfaceID : node.chunk1SurfaceIDs) {
+            int surfaceRoot = find(getIndex(node.chunk1, surfaceID));
+            root = (root < 0 ? surfaceRoot : union(root, surfaceRoot));
+        }
+        for (int surfaceID : node.chunk2SurfaceIDs) {
+            int surfaceRoot = find(getIndex(node.chunk2, surfaceID));
+            root = (root < 0 ? surfaceRoot : union(root, surfaceRoot));
+        }
+    }
+
+    /**
+     * @return Whether the surface {@param surface1} of the chunk {@param chunk1} is
+     *         in the same component as the surface {@param surface2} of {@param chunk2}.
+     */
+    public boolean isConnected(ChunkLoc chunk1, int surface1, ChunkLoc chunk2, int surface2) {
+        if (surface1 == surface2 && chunk1.equals(chunk2))
+            return true;
+
+        Integer index1 = indices.get(new SurfaceKey(chunk1, surface1));
+        Integer index2 = indices.get(new SurfaceKey(chunk2, surface2));
+
+        // Surfaces that have never been connected are each in their own component
+        if (index1 == null || index2 == null)
+            return false;
+
+        return find(index1) == find(index2);
+    }
+
+    private int getIndex(ChunkLoc chunk, int surfaceID) {
+        return indices.computeIfAbsent(new SurfaceKey(chunk, surfaceID), key -> {
+            int index = indices.size();
+            if (index >= parents.length) {
+                parents = Arrays.copyOf(parents, parents.length * 2);
+                sizes = Arrays.copyOf(sizes, sizes.length * 2);
+            }
+            parents[index] = index;
+            sizes[index] = 1;
+            return index;
+        });
+    }
+
+    /**
+     * @return The root of the component containing {@param index}.
+     */
+    private int find(int index) {
+        while (parents[index] != index) {
+            index = parents[index];
+        }
+        return index;
+    }
+
+    /**
+     * Merge the components with the roots {@param root1} and {@param root2}, attaching the smaller to
+     * the larger so that the depth of the union-find grows logarithmically without compressing paths.
+     *
+     * @return The root of the merged component.
+     */
+    private int union(int root1, int root2) {
+        if (root1 == root2)
+            return root1;
+
+        if (sizes[root1] < sizes[root2]) {
+            int swap = root1;
+            root1 = root2;
+            root2 = swap;
+        }
+
+        parents[root2] = root1;
+        sizes[root1] += sizes[root2];
+        return root1;
+    }
+
+    /**
+     * Identifies a surface by its chunk and its surface ID in the region of the chunk.
+     */
+    private static class SurfaceKey {
+
+        private final ChunkLoc chunk;
+        private final int surfaceID;
+
+        private SurfaceKey(ChunkLoc chunk, int surfaceID) {
+            this.chunk = chunk;
+            this.surfaceID = surfaceID;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof SurfaceKey))
+                return false;
+
+            SurfaceKey other = (SurfaceKey) obj;
+            return surfaceID == other.surfaceID && chunk.equals(other.chunk);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(chunk, surfaceID);
+        }
+    }
+}
@@ -43,6 +43,26 @@ public enum SurfaceConnection {
     UP(BlockFace.UP),
     DOWN(BlockFace.DOWN);
 
+    private static final SurfaceConnection[] VALUES = values();
+
+    /**
+     * The number of different connections.
+     */
+    public static final int COUNT = VALUES.length;
+
+    /**
+     * A mask containing every connection.
+     */
+    public static final int ALL_MASK = (1 << COUNT) - 1;
+
+    // Masks of the connections that move in the negative or positive direction along each axis
+    private static final int NEGATIVE_X_MASK = maskOf(-1, 0, 0);
+    private static final int POSITIVE_X_MASK = maskOf(1, 0, 0);
+    private static final int NEGATIVE_Y_MASK = maskOf(0, -1, 0);
+    private static final int POSITIVE_Y_MASK = maskOf(0, 1, 0);
+    private static final int NEGATIVE_Z_MASK = maskOf(0, 0, -1);
+    private static final int POSITIVE_Z_MASK = maskOf(0, 0, 1);
+
     private final int mask;
     private final int dx;
     private final int dy;
@@ -108,10 +128,53 @@ public enum SurfaceConnection {
     }
 
     public static SurfaceConnection get(int dx, int dy, int dz) {
-        for (SurfaceConnection connection : values()) {
+        for (SurfaceConnection connection : VALUES) {
             if (connection.dx == dx && connection.dy == dy && connection.dz == dz)
                 return connection;
         }
         throw new IllegalArgumentException("There are no SurfaceConnections for offset " + dx + ", " + dy + ", " + dz);
     }
+
+    /**
+     * Get a connection without the allocation incurred by {@link #values()}.
+     *
+     * @return The connection with the ordinal {@param ordinal}.
+     */
+    public static SurfaceConnection fromOrdinal(int ordinal) {
+        return VALUES[ordinal];
+    }
+
+    /**
+     * @return A mask of all connections from the block at the given location that
+     *         lead to another block within a region with the given dimensions.
+     */
+    public static int getInBoundsMask(int x, int y, int z, int width, int height, int depth) {
+        int mask = ALL_MASK;
+        if (x == 0)
+            mask &= ~NEGATIVE_X_MASK;
+        if (x == width - 1)
+            mask &= ~POSITIVE_X_MASK;
+        if (y == 0)
+            mask &= ~NEGATIVE_Y_MASK;
+        if (y == height - 1)
+            mask &= ~POSITIVE_Y_MASK;
+        if (z == 0)
+            mask &= ~NEGATIVE_Z_MASK;
+        if (z == depth - 1)
+            mask &= ~POSITIVE_Z_MASK;
+        return mask;
+    }
+
+    /**
+     * @return A mask of all connections that move in the direction of any non-zero component of the given offset.
+     */
+    private static int maskOf(int dx, int dy, int dz) {
+        int mask = 0;
+        for (SurfaceConnection connection : VALUES) {
+            if ((dx != 0 && connection.dx == dx) || (dy != 0 && connection.dy == dy) || (dz != 0 && connection.dz == dz)) {
+                mask |= connection.mask;
+            }
+        }
+        return mask;
+    }
 }
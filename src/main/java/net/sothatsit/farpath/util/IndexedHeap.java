@@ -0,0 +1,247 @@
+package net.sothatsit.farpath.util;
+
+import java.util.Arrays;
+
+/**
+ * A 4-ary min-heap of integer handles, each with an associated priority.
+ *
+ * The position of every handle in the heap is tracked, allowing the priority
+ * of a handle to be changed in O(log n) time without searching for it.
+ * Handles must be non-negative, and should be densely packed as the memory
+ * used by the heap grows with the largest handle added to it.
+ *
+ * @author Paddy Lamont
+ */
+public class IndexedHeap {
+
+    private static final int ARITY = 4;
+
+    /**
+     * The handles in this heap, in heap order.
+     */
+    private int[] heap;
+
+    /**
+     * The position in {@link #heap} of each handle plus 1, or 0 if the handle is not in the heap.
+     */
+    private int[] positions;
+
+    /**
+     * The priority of each handle in the heap.
+     */
+    private double[] priorities;
+
+    private int size;
+
+    /**
+     * Construct a new empty heap.
+     *
+     * @param capacity The number of handles to initially allocate space for
+     */
+    public IndexedHeap(int capacity) {
+        capacity = Math.max(1, capacity);
+
+        this.heap = new int[Math.min(capacity, 64)];
+        this.positions = new int[capacity];
+        this.priorities = new double[capacity];
+        this.size = 0;
+    }
+
+    /**
+     * @return true iff there are no handles left in this heap, false otherwise
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return The number of handles in this heap
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return Whether {@param handle} is currently in this heap
+     */
+    public boolean contains(int handle) {
+        return handle < positions.length && positions[handle] != 0;
+    }
+
+    /**
+     * Remove all handles from this heap.
+     */
+    public void clear() {
+        for (int index = 0; index < size; ++index) {
+            positions[heap[index]] = 0;
+        }
+        size = 0;
+    }
+
+    /**
+     * Add {@param handle} to this heap with priority {@param priority},
+     * or change its priority if it is already in the heap.
+     *
+     * @param handle   The handle to add
+     * @param priority The priority of the handle, where lower priorities are polled first
+     */
+    public void add(int handle, double priority) {
+        if (handle < 0)
+            throw new IllegalArgumentException("handle cannot be negative");
+
+        if (contains(handle)) {
+            reprioritize(handle, priority);
+            return;
+        }
+
+        ensureHandleCapacity(handle + 1);
+        if (size == heap.length) {
+            heap = Arrays.copyOf(heap, heap.length * 2);
+        }
+
+        priorities[handle] = priority;
+        heap[size] = handle;
+        positions[handle] = size + 1;
+        size += 1;
+
+        siftUp(size - 1);
+    }
+
+    /**
+     * Changes the priority of {@param handle} in this heap to {@param priority}.
+     *
+     * @throws IllegalArgumentException if {@param handle} is not in this heap
+     */
+    public void reprioritize(int handle, double priority) {
+        if (!contains(handle))
+            throw new IllegalArgumentException("the given handle could not be found in the heap");
+
+        double previous = priorities[handle];
+        priorities[handle] = priority;
+
+        if (priority < previous) {
+            siftUp(positions[handle] - 1);
+        } else {
+            siftDown(positions[handle] - 1);
+        }
+    }
+
+    /**
+     * @return The priority of {@param handle}, which must be in this heap
+     */
+    public double getPriority(int handle) {
+        if (!contains(handle))
+            throw new IllegalArgumentException("the given handle could not be found in the heap");
+
+        return priorities[handle];
+    }
+
+    /**
+     * Get the handle that will next be polled.
+     *
+     * @return The handle with the lowest priority in this heap
+     *
+     * @throws IllegalStateException If there are no handles currently in the heap
+     */
+    public int peek() {
+        if (isEmpty())
+            throw new IllegalStateException("attempting to examine empty heap");
+
+        return heap[0];
+    }
+
+    /**
+     * @return The lowest priority of any handle in this heap
+     *
+     * @throws IllegalStateException If there are no handles currently in the heap
+     */
+    public double peekPriority() {
+        return priorities[peek()];
+    }
+
+    /**
+     * Remove the handle with the lowest priority from this heap.
+     *
+     * @return The removed handle
+     *
+     * @throws IllegalStateException If there are no handles currently in the heap
+     */
+    public int poll() {
+        int handle = peek();
+
+        size -= 1;
+        positions[handle] = 0;
+
+        if (size > 0) {
+            int last = heap[size];
+            heap[0] = last;
+            positions[last] = 1;
+            siftDown(0);
+        }
+
+        return handle;
+    }
+
+    private void ensureHandleCapacity(int capacity) {
+        if (capacity <= positions.length)
+            return;
+
+        int newLength = Math.max(capacity, positions.length * 2);
+
+        positions = Arrays.copyOf(positions, newLength);
+        priorities = Arrays.copyOf(priorities, newLength);
+    }
+
+    private void siftUp(int position) {
+        int handle = heap[position];
+        double priority = priorities[handle];
+
+        while (position > 0) {
+            int parentPosition = (position - 1) / ARITY;
+            int parent = heap[parentPosition];
+            if (priorities[parent] <= priority)
+                break;
+
+            heap[position] = parent;
+            positions[parent] = position + 1;
+            position = parentPosition;
+        }
+
+        heap[position] = handle;
+        positions[handle] = position + 1;
+    }
+
+    private void siftDown(int position) {
+        int handle = heap[position];
+        double priority = priorities[handle];
+
+        while (true) {
+            int firstChild = position * ARITY + 1;
+            if (firstChild >= size)
+                break;
+
+            // Find the child with the lowest priority
+            int lastChild = Math.min(firstChild + ARITY, size);
+            int bestPosition = firstChild;
+            double bestPriority = priorities[heap[firstChild]];
+            for (int child = firstChild + 1; child < lastChild; ++child) {
+                double childPriority = priorities[heap[child]];
+                if (childPriority < bestPriority) {
+                    bestPosition = child;
+                    bestPriority = childPriority;
+                }
+            }
+
+            if (bestPriority >= priority)
+                break;
+
+            int best = heap[bestPosition];
+            heap[position] = best;
+            positions[best] = position + 1;
+            position = bestPosition;
+        }
+
+        heap[position] = handle;
+        positions[handle] = position + 1;
+    }
+}
@@ -1,37 +1,136 @@
 package net.sothatsit.farpath.util;
 
+import java.nio.ByteBuffer;
+
 /**
- * Maintains an array of booleans backed by a byte array to save space by using one bit per value.
+ * Maintains an array of booleans backed by a long array to save space by using one bit per value.
+ *
+ * Runs of up to 64 values can be read and written at once as the bits of a long,
+ * so that operations over many values can be done a word at a time.
  *
  * @author Paddy Lamont
  */
 public class PackedBooleanArray {
 
-    private static final byte[] masks = new byte[8];
-    static {
-        for (int index = 0; index < masks.length; ++index) {
-            masks[index] = (byte) (1 << index);
-        }
-    }
-
     private final int length;
-    private final byte[] array;
+    private final long[] words;
 
     public PackedBooleanArray(int length) {
-        int bytes = (length + 7) / 8;
         this.length = length;
-        this.array = new byte[bytes];
+        this.words = new long[getWordCount(length)];
+    }
+
+    private PackedBooleanArray(PackedBooleanArray other) {
+        this.length = other.length;
+        this.words = other.words.clone();
+    }
+
+    /**
+     * @return A copy of this array that can be modified independently of this array.
+     */
+    public PackedBooleanArray copy() {
+        return new PackedBooleanArray(this);
+    }
+
+    private static int getWordCount(int length) {
+        return (length + 63) / 64;
+    }
+
+    /**
+     * @return The number of bytes written by {@link #write(ByteBuffer)} for an array of {@param length} values.
+     */
+    public static int getByteLength(int length) {
+        return getWordCount(length) * 8;
+    }
+
+    /**
+     * Write the values of this array to {@param buffer}.
+     */
+    public void write(ByteBuffer buffer) {
+        buffer.asLongBuffer().put(words);
+        buffer.position(buffer.position() + words.length * 8);
+    }
+
+    /**
+     * Read the values of this array from {@param buffer}, as written by {@link #write(ByteBuffer)}.
+     */
+    public void read(ByteBuffer buffer) {
+        buffer.asLongBuffer().get(words);
+        buffer.position(buffer.position() + words.length * 8);
     }
 
     public boolean get(int index) {
-        return (array[index / 8] & masks[index % 8]) != 0;
+        return (words[index >>> 6] & (1L << index)) != 0;
     }
 
     public void set(int index, boolean value) {
         if (value) {
-            array[index / 8] |= masks[index % 8];
+            words[index >>> 6] |= (1L << index);
         } else {
-            array[index / 8] &= ~masks[index % 8];
+            words[index >>> 6] &= ~(1L << index);
+        }
+    }
+
+    /**
+     * Set all the values from {@param fromIndex} up to but not including {@param toIndex} to {@param value}.
+     */
+    public void setRange(int fromIndex, int toIndex, boolean value) {
+        for (int index = fromIndex; index < toIndex; index += 64) {
+            setBits(index, (value ? -1L : 0), Math.min(64, toIndex - index));
+        }
+    }
+
+    /**
+     * @return Whether any of the values from {@param fromIndex} up to but not including {@param toIndex} are true.
+     */
+    public boolean isAnySet(int fromIndex, int toIndex) {
+        for (int index = fromIndex; index < toIndex; index += 64) {
+            long bits = getBits(index);
+            int count = toIndex - index;
+            if (count < 64) {
+                bits &= (1L << count) - 1;
+            }
+
+            if (bits != 0)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return The 64 values starting at {@param index} as the bits of a long, with the value at
+     *         {@param index} in the lowest bit. Values past the end of this array are returned as 0.
+     */
+    public long getBits(int index) {
+        int wordIndex = index >>> 6;
+        int shift = index & 63;
+
+        long bits = words[wordIndex] >>> shift;
+        if (shift != 0 && wordIndex + 1 < words.length) {
+            bits |= words[wordIndex + 1] << (64 - shift);
+        }
+        return bits;
+    }
+
+    /**
+     * Set the {@param count} values starting at {@param index} to the lowest {@param count} bits of {@param bits}.
+     */
+    public void setBits(int index, long bits, int count) {
+        if (count <= 0)
+            return;
+
+        long mask = (count >= 64 ? -1L : (1L << count) - 1);
+        bits &= mask;
+
+        int wordIndex = index >>> 6;
+        int shift = index & 63;
+
+        words[wordIndex] = (words[wordIndex] & ~(mask << shift)) | (bits << shift);
+
+        // The values continue into the next word
+        if (shift + count > 64) {
+            int remainingShift = 64 - shift;
+            words[wordIndex + 1] = (words[wordIndex + 1] & ~(mask >>> remainingShift)) | (bits >>> remainingShift);
         }
     }
 }
@@ -0,0 +1,194 @@
+package net.sothatsit.farpath.util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Maintains an array of ints that are mostly zero, by only allocating the sections of the array that
+ * hold non-zero values. Each section holds 4096 values, which is one 16x16x16 section of a chunk.
+ *
+ * Copies share their sections with the array they were copied from until either modifies them.
+ *
+ * @author Paddy Lamont
+ */
+public class SparseIntArray {
+
+    private static final int SECTION_SHIFT = 12;
+    private static final int SECTION_LENGTH = 1 << SECTION_SHIFT;
+    private static final int SECTION_MASK = SECTION_LENGTH - 1;
+
+    private final int length;
+    private final int[][] sections;
+
+    // Whether each section may be shared with another array, and must be copied before it is modified
+    private final boolean[] shared;
+
+    public SparseIntArray(int length) {
+        this.length = length;
+        this.sections = new int[getSectionCount(length)][];
+        this.shared = new boolean[sections.length];
+    }
+
+    private SparseIntArray(SparseIntArray other) {
+        this.length = other.length;
+        this.sections = other.sections.clone();
+        this.shared = new boolean[sections.length];
+
+        for (int section = 0; section < sections.length; ++section) {
+            if (sections[section] != null) {
+                shared[section] = true;
+                other.shared[section] = true;
+            }
+        }
+    }
+
+    /**
+     * @return A copy of this array that can be modified independently of this array.
+     */
+    public SparseIntArray copy() {
+        return new SparseIntArray(this);
+    }
+
+    private static int getSectionCount(int length) {
+        return (length + SECTION_LENGTH - 1) >>> SECTION_SHIFT;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public int get(int index) {
+        int[] section = sections[index >>> SECTION_SHIFT];
+        return (section == null ? 0 : section[index & SECTION_MASK]);
+    }
+
+    public void set(int index, int value) {
+        int section = index >>> SECTION_SHIFT;
+
+        // There is no need to allocate a section to hold zero
+        if (value == 0 && sections[section] == null)
+            return;
+
+        getWritableSection(section)[index & SECTION_MASK] = value;
+    }
+
+    /**
+     * Set the bits of {@param bits} in the value at {@param index}.
+     */
+    public void or(int index, int bits) {
+        if (bits != 0) {
+            getWritableSection(index >>> SECTION_SHIFT)[index & SECTION_MASK] |= bits;
+        }
+    }
+
+    /**
+     * Clear the bits of {@param bits} in the value at {@param index}.
+     */
+    public void clear(int index, int bits) {
+        int section = index >>> SECTION_SHIFT;
+        if (sections[section] == null || (sections[section][index & SECTION_MASK] & bits) == 0)
+            return;
+
+        getWritableSection(section)[index & SECTION_MASK] &= ~bits;
+    }
+
+    /**
+     * @return The values of {@param section}, allocating the section if it has not yet been allocated.
+     */
+    private int[] getWritableSection(int section) {
+        int[] values = sections[section];
+        if (values == null) {
+            values = new int[SECTION_LENGTH];
+            sections[section] = values;
+        } else if (shared[section]) {
+            values = values.clone();
+            sections[section] = values;
+            shared[section] = false;
+        }
+        return values;
+    }
+
+    /**
+     * Release the sections of this array that only hold zeroes.
+     */
+    public void trim() {
+        for (int section = 0; section < sections.length; ++section) {
+            int[] values = sections[section];
+            if (values == null)
+                continue;
+
+            boolean empty = true;
+            for (int value : values) {
+                if (value != 0) {
+                    empty = false;
+                    break;
+                }
+            }
+
+            if (empty) {
+                sections[section] = null;
+                shared[section] = false;
+            }
+        }
+    }
+
+    /**
+     * @return The number of sections of this array that have been allocated.
+     */
+    public int getAllocatedSectionCount() {
+        int count = 0;
+        for (int[] section : sections) {
+            if (section != null) {
+                count += 1;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return The number of bytes written by {@link #write(ByteBuffer)}.
+     */
+    public int getByteLength() {
+        return sections.length + getAllocatedSectionCount() * SECTION_LENGTH * 4;
+    }
+
+    /**
+     * @return The most bytes that {@link #write(ByteBuffer)} could write for an array of {@param length} values.
+     */
+    public static int getMaxByteLength(int length) {
+        int sectionCount = getSectionCount(length);
+        return sectionCount + sectionCount * SECTION_LENGTH * 4;
+    }
+
+    /**
+     * Write the values of this array to {@param buffer}.
+     */
+    public void write(ByteBuffer buffer) {
+        for (int[] section : sections) {
+            buffer.put((byte) (section == null ? 0 : 1));
+            if (section == null)
+                continue;
+
+            buffer.asIntBuffer().put(section);
+            buffer.position(buffer.position() + SECTION_LENGTH * 4);
+        }
+    }
+
+    /**
+     * Read the values of this array from {@param buffer}, as written by {@link #write(ByteBuffer)}.
+     */
+    public void read(ByteBuffer buffer) {
+        for (int section = 0; section < sections.length; ++section) {
+            shared[section] = false;
+
+            if (buffer.get() == 0) {
+                sections[section] = null;
+                continue;
+            }
+
+            int[] values = new int[SECTION_LENGTH];
+            buffer.asIntBuffer().get(values);
+            buffer.position(buffer.position() + SECTION_LENGTH * 4);
+            sections[section] = values;
+        }
+    }
+}
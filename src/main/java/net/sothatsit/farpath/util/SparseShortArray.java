@@ -0,0 +1,174 @@
+package net.sothatsit.farpath.util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Maintains an array of shorts that are mostly zero, by only allocating the sections of the array that
+ * hold non-zero values. Each section holds 4096 values, which is one 16x16x16 section of a chunk.
+ *
+ * Copies share their sections with the array they were copied from until either modifies them.
+ *
+ * @author Paddy Lamont
+ */
+public class SparseShortArray {
+
+    private static final int SECTION_SHIFT = 12;
+    private static final int SECTION_LENGTH = 1 << SECTION_SHIFT;
+    private static final int SECTION_MASK = SECTION_LENGTH - 1;
+
+    private final int length;
+    private final short[][] sections;
+
+    // Whether each section may be shared with another array, and must be copied before it is modified
+    private final boolean[] shared;
+
+    public SparseShortArray(int length) {
+        this.length = length;
+        this.sections = new short[getSectionCount(length)][];
+        this.shared = new boolean[sections.length];
+    }
+
+    private SparseShortArray(SparseShortArray other) {
+        this.length = other.length;
+        this.sections = other.sections.clone();
+        this.shared = new boolean[sections.length];
+
+        for (int section = 0; section < sections.length; ++section) {
+            if (sections[section] != null) {
+                shared[section] = true;
+                other.shared[section] = true;
+            }
+        }
+    }
+
+    /**
+     * @return A copy of this array that can be modified independently of this array.
+     */
+    public SparseShortArray copy() {
+        return new SparseShortArray(this);
+    }
+
+    private static int getSectionCount(int length) {
+        return (length + SECTION_LENGTH - 1) >>> SECTION_SHIFT;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public short get(int index) {
+        short[] section = sections[index >>> SECTION_SHIFT];
+        return (section == null ? 0 : section[index & SECTION_MASK]);
+    }
+
+    public void set(int index, short value) {
+        int section = index >>> SECTION_SHIFT;
+
+        // There is no need to allocate a section to hold zero
+        if (value == 0 && sections[section] == null)
+            return;
+
+        getWritableSection(section)[index & SECTION_MASK] = value;
+    }
+
+    /**
+     * @return The values of {@param section}, allocating the section if it has not yet been allocated.
+     */
+    private short[] getWritableSection(int section) {
+        short[] values = sections[section];
+        if (values == null) {
+            values = new short[SECTION_LENGTH];
+            sections[section] = values;
+        } else if (shared[section]) {
+            values = values.clone();
+            sections[section] = values;
+            shared[section] = false;
+        }
+        return values;
+    }
+
+    /**
+     * Release the sections of this array that only hold zeroes.
+     */
+    public void trim() {
+        for (int section = 0; section < sections.length; ++section) {
+            short[] values = sections[section];
+            if (values == null)
+                continue;
+
+            boolean empty = true;
+            for (short value : values) {
+                if (value != 0) {
+                    empty = false;
+                    break;
+                }
+            }
+
+            if (empty) {
+                sections[section] = null;
+                shared[section] = false;
+            }
+        }
+    }
+
+    /**
+     * @return The number of sections of this array that have been allocated.
+     */
+    public int getAllocatedSectionCount() {
+        int count = 0;
+        for (short[] section : sections) {
+            if (section != null) {
+                count += 1;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return The number of bytes written by {@link #write(ByteBuffer)}.
+     */
+    public int getByteLength() {
+        return sections.length + getAllocatedSectionCount() * SECTION_LENGTH * 2;
+    }
+
+    /**
+     * @return The most bytes that {@link #write(ByteBuffer)} could write for an array of {@param length} values.
+     */
+    public static int getMaxByteLength(int length) {
+        int sectionCount = getSectionCount(length);
+        return sectionCount + sectionCount * SECTION_LENGTH * 2;
+    }
+
+    /**
+     * Write the values of this array to {@param buffer}.
+     */
+    public void write(ByteBuffer buffer) {
+        for (short[] section : sections) {
+            buffer.put((byte) (section == null ? 0 : 1));
+            if (section == null)
+                continue;
+
+            buffer.asShortBuffer().put(section);
+            buffer.position(buffer.position() + SECTION_LENGTH * 2);
+        }
+    }
+
+    /**
+     * Read the values of this array from {@param buffer}, as written by {@link #write(ByteBuffer)}.
+     */
+    public void read(ByteBuffer buffer) {
+        for (int section = 0; section < sections.length; ++section) {
+            shared[section] = false;
+
+            if (buffer.get() == 0) {
+                sections[section] = null;
+                continue;
+            }
+
+            short[] values = new short[SECTION_LENGTH];
+            buffer.asShortBuffer().get(values);
+            buffer.position(buffer.position() + SECTION_LENGTH * 2);
+            sections[section] = values;
+        }
+    }
+}
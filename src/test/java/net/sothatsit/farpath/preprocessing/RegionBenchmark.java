@@ -0,0 +1,758 @@
+package net.sothatsit.farpath.preprocessing;
+
+import net.sothatsit.farpath.util.PriorityQueueLinked;
+import net.sothatsit.farpath.util.Timer;
+import org.bukkit.Material;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Benchmarks the pre-processing and path-finding of regions built from generated terrain.
+ *
+ * The benchmarks take a while to run, and so they are skipped unless the farpath.benchmark system
+ * property is set, e.g. using mvn test -Dtest=RegionBenchmark -Dfarpath.benchmark=true. The timings
+ * are printed, and each benchmark fails if the implementations it compares disagree.
+ *
+ * @author Paddy Lamont
+ */
+public class RegionBenchmark {
+
+    private static final int[] SIZES = {16, 32, 64, 128};
+    private static final int REPEATS = 5;
+    private static final int CAVES_HEIGHT = 48;
+    private static final int FOREST_HEIGHT = 24;
+
+    // The regions are built from generated terrain, and so are not anchored to the blocks of a world
+    private final BlockLoc origin = new BlockLoc(0, 0, 0);
+
+    @Before
+    public void checkEnabled() {
+        Assume.assumeTrue("benchmarks are only run if farpath.benchmark is set", Boolean.getBoolean("farpath.benchmark"));
+    }
+
+    private void report(String result) {
+        System.out.println(result);
+    }
+
+    private void check(String result, boolean passed) {
+        report(result + ", " + (passed ? "PASS" : "FAIL"));
+        assertTrue(result, passed);
+    }
+
+    /**
+     * Compares the time taken to find paths across large regions by an A* search using the linked
+     * priority queue as its open set, and by the search of regions using the indexed heap.
+     */
+    @Test
+    public void benchmarkOpenSets() {
+        report("Open set (linked queue vs. indexed heap):");
+
+        for (int size : SIZES) {
+            benchmarkOpenSets("flat", createFlat(size));
+        }
+
+        for (int size : SIZES) {
+            benchmarkOpenSets("caves", createCaves(size));
+        }
+    }
+
+    private void benchmarkOpenSets(String name, PreprocessedRegion region) {
+        BlockLoc[] endpoints = findDistantEndpoints(region);
+        if (endpoints == null) {
+            report("  " + describe(name, region) + ": no surfaces");
+            return;
+        }
+
+        // Warm up both implementations before timing them
+        search(region, endpoints[0], endpoints[1]);
+        region.findPath(endpoints[0], endpoints[1]);
+
+        double linkedMS = Double.MAX_VALUE;
+        double heapMS = Double.MAX_VALUE;
+        double linkedCost = 0;
+        List<BlockLoc> heapPath = null;
+
+        for (int repeat = 0; repeat < REPEATS; ++repeat) {
+            Timer linkedTimer = Timer.start();
+            linkedCost = search(region, endpoints[0], endpoints[1]);
+            linkedMS = Math.min(linkedMS, linkedTimer.getDurationMS());
+
+            Timer heapTimer = Timer.start();
+            heapPath = region.findPath(endpoints[0], endpoints[1]);
+            heapMS = Math.min(heapMS, heapTimer.getDurationMS());
+        }
+
+        check(String.format(
+                "  %s: linked %.2f ms, heap %.2f ms, speedup %.1fx",
+                describe(name, region), linkedMS, heapMS, linkedMS / Math.max(heapMS, 0.001)
+        ), heapPath != null && Math.abs(getLength(heapPath) - linkedCost) < 0.001);
+    }
+
+    /**
+     * Compares the time taken to label the surfaces of regions by flood filling each surface in turn, as was
+     * done before, and by a single scan using union-find. The surfaces and connections found by both must match.
+     */
+    @Test
+    public void benchmarkLabelling() {
+        report("Surface labelling (flood fill vs. union-find):");
+
+        for (int size : SIZES) {
+            benchmarkLabelling("caves", createCaves(size));
+        }
+
+        for (int size : SIZES) {
+            benchmarkLabelling("forest", createForest(size));
+        }
+    }
+
+    private void benchmarkLabelling(String name, PreprocessedRegion region) {
+        int[] labels = new int[region.getBlockCount()];
+        int[] connectionMasks = new int[region.getBlockCount()];
+
+        // Warm up both implementations before timing them
+        labelByFloodFill(region, labels, connectionMasks);
+        region.labelSurfaces();
+
+        double floodFillMS = Double.MAX_VALUE;
+        double unionFindMS = Double.MAX_VALUE;
+
+        for (int repeat = 0; repeat < REPEATS; ++repeat) {
+            Timer floodFillTimer = Timer.start();
+            labelByFloodFill(region, labels, connectionMasks);
+            floodFillMS = Math.min(floodFillMS, floodFillTimer.getDurationMS());
+
+            Timer unionFindTimer = Timer.start();
+            region.labelSurfaces();
+            unionFindMS = Math.min(unionFindMS, unionFindTimer.getDurationMS());
+        }
+
+        check(String.format(
+                "  %s: %d surfaces, flood fill %.2f ms, union-find %.2f ms, speedup %.1fx",
+                describe(name, region), region.getMaxSurfaceID(), floodFillMS, unionFindMS,
+                floodFillMS / Math.max(unionFindMS, 0.001)
+        ), hasSameSurfaces(region, labels) && hasSameConnections(region, connectionMasks));
+    }
+
+    /**
+     * Label the walkable blocks of {@param region} by flood filling each surface in turn from the first block of
+     * it that is found, checking whether each pair of neighbouring blocks can be walked between once. This is how
+     * surfaces were labelled before the union-find scan, and it is kept as the baseline to compare the scan with.
+     *
+     * @param labels          Filled with the label of each block, indexed in the same order as the blocks of the region.
+     * @param connectionMasks Filled with the connections from each block, indexed in the same way.
+     */
+    private static void labelByFloodFill(PreprocessedRegion region, int[] labels, int[] connectionMasks) {
+        int width = region.getWidth();
+        int height = region.getHeight();
+        int depth = region.getDepth();
+        int blockCount = region.getBlockCount();
+
+        int[] connectionOffsets = new int[SurfaceConnection.COUNT];
+        for (int ordinal = 0; ordinal < SurfaceConnection.COUNT; ++ordinal) {
+            SurfaceConnection connection = SurfaceConnection.fromOrdinal(ordinal);
+            connectionOffsets[ordinal] = connection.getDx() + connection.getDz() * width + connection.getDy() * width * depth;
+        }
+
+        Arrays.fill(labels, 0);
+        Arrays.fill(connectionMasks, 0);
+
+        int[] queue = new int[blockCount];
+        int[] checkedConnectionMasks = new int[blockCount];
+        int nextLabel = 1;
+
+        for (int x = 0; x < width; ++x) {
+            for (int z = 0; z < depth; ++z) {
+                for (int y = 0; y < height; ++y) {
+                    int startIndex = x + z * width + y * width * depth;
+                    if (labels[startIndex] != 0 || !region.isWalkable(x, y, z))
+                        continue;
+
+                    int label = nextLabel++;
+                    int head = 0;
+                    int tail = 0;
+
+                    queue[tail++] = startIndex;
+                    labels[startIndex] = label;
+
+                    while (head < tail) {
+                        int index = queue[head++];
+                        int blockX = index % width;
+                        int blockZ = (index / width) % depth;
+                        int blockY = index / (width * depth);
+
+                        // Only check connections to blocks within the region that haven't been checked yet
+                        int candidates = SurfaceConnection.getInBoundsMask(blockX, blockY, blockZ, width, height, depth);
+                        candidates &= ~checkedConnectionMasks[index];
+
+                        for (; candidates != 0; candidates &= candidates - 1) {
+                            int ordinal = Integer.numberOfTrailingZeros(candidates);
+                            SurfaceConnection connection = SurfaceConnection.fromOrdinal(ordinal);
+
+                            int x2 = blockX + connection.getDx();
+                            int y2 = blockY + connection.getDy();
+                            int z2 = blockZ + connection.getDz();
+                            if (!region.isWalkable(x2, y2, z2))
+                                continue;
+
+                            int index2 = index + connectionOffsets[ordinal];
+                            int mask = connection.getMask();
+                            int mask2 = connection.getOpposite().getMask();
+
+                            checkedConnectionMasks[index] |= mask;
+                            checkedConnectionMasks[index2] |= mask2;
+
+                            if (!region.determineCanWalkBetween(blockX, blockY, blockZ, x2, y2, z2))
+                                continue;
+
+                            connectionMasks[index] |= mask;
+                            connectionMasks[index2] |= mask2;
+
+                            if (labels[index2] != 0)
+                                continue;
+
+                            labels[index2] = label;
+                            queue[tail++] = index2;
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return Whether the connections from each block of {@param region} are those in {@param connectionMasks}.
+     */
+    private static boolean hasSameConnections(PreprocessedRegion region, int[] connectionMasks) {
+        for (int index = 0; index < connectionMasks.length; ++index) {
+            BlockLoc loc = region.reverseIndex(index);
+            if (region.getConnectionMask(loc.x, loc.y, loc.z) != connectionMasks[index])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return Whether the blocks of {@param region} are grouped into the same surfaces as by {@param labels}.
+     */
+    private static boolean hasSameSurfaces(PreprocessedRegion region, int[] labels) {
+        // Surfaces may be numbered differently, but each must map to exactly one label
+        int[] surfaceToLabel = new int[region.getMaxSurfaceID() + 1];
+        int[] labelToSurface = new int[labels.length + 1];
+
+        for (int index = 0; index < labels.length; ++index) {
+            BlockLoc loc = region.reverseIndex(index);
+            int surfaceID = region.getSurfaceID(loc.x, loc.y, loc.z);
+            int label = labels[index];
+
+            if ((surfaceID == 0) != (label == 0))
+                return false;
+            if (surfaceID == 0)
+                continue;
+
+            if (surfaceToLabel[surfaceID] == 0) {
+                surfaceToLabel[surfaceID] = label;
+            }
+            if (labelToSurface[label] == 0) {
+                labelToSurface[label] = surfaceID;
+            }
+            if (surfaceToLabel[surfaceID] != label || labelToSurface[label] != surfaceID)
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Compares the memory used to store the surfaces and connections of regions
+     * with the memory that storing them for every block would use.
+     */
+    @Test
+    public void benchmarkStorage() {
+        report("Surface storage (dense vs. sparse sections):");
+
+        benchmarkStorage("chunk", createChunk(64));
+        benchmarkStorage("chunk", createChunk(200));
+
+        for (int size : SIZES) {
+            benchmarkStorage("caves", createCaves(size));
+        }
+
+        for (int size : SIZES) {
+            benchmarkStorage("forest", createForest(size));
+        }
+    }
+
+    private void benchmarkStorage(String name, PreprocessedRegion region) {
+        // Each block used to store a short surface ID and an int connection mask
+        long denseBytes = (long) region.getBlockCount() * (2 + 4);
+        long sparseBytes = region.getSurfaceStorageSize();
+
+        report(String.format(
+                "  %s: dense %.1f KB, sparse %.1f KB, %.1f%% of dense",
+                describe(name, region), denseBytes / 1024.0, sparseBytes / 1024.0,
+                100.0 * sparseBytes / Math.max(1, denseBytes)
+        ));
+    }
+
+    /**
+     * Compares the time taken to label the surfaces along the boundary between two chunks by rebuilding a
+     * region of the blocks along the boundary, and by labelling them directly from the edges of the two chunk regions.
+     */
+    @Test
+    public void benchmarkBoundaries() {
+        report("Chunk boundaries (boundary region vs. chunk edges):");
+
+        benchmarkBoundaries("caves", CAVES_HEIGHT, createCavesSource(32));
+        benchmarkBoundaries("chunk", 256, (x, y, z) -> (y <= 64 ? Material.STONE : Material.AIR));
+    }
+
+    private void benchmarkBoundaries(String name, int height, PreprocessedRegion.BlockTypeSource source) {
+        PreprocessedRegion one = new PreprocessedRegion(origin, 16, height, 16);
+        PreprocessedRegion two = new PreprocessedRegion(origin.add(16, 0, 0), 16, height, 16);
+        one.rebuild(source, MaterialTable.DEFAULT);
+        two.rebuild((x, y, z) -> source.getBlockType(x + 16, y, z), MaterialTable.DEFAULT);
+
+        PreprocessedRegion boundary = new PreprocessedRegion(origin.add(15, 0, 0), 2, height, 16);
+        PreprocessedRegion.BlockTypeSource boundarySource = (x, y, z) -> source.getBlockType(x + 15, y, z);
+        ChunkBoundary edges = null;
+
+        double regionMS = Double.MAX_VALUE;
+        double edgesMS = Double.MAX_VALUE;
+
+        for (int repeat = 0; repeat < REPEATS; ++repeat) {
+            Timer regionTimer = Timer.start();
+            boundary.rebuild(boundarySource, MaterialTable.DEFAULT);
+            regionMS = Math.min(regionMS, regionTimer.getDurationMS());
+
+            Timer edgesTimer = Timer.start();
+            edges = new ChunkBoundary(one, two);
+            edgesMS = Math.min(edgesMS, edgesTimer.getDurationMS());
+        }
+
+        check(String.format(
+                "  %s: %d surfaces, region %.3f ms, edges %.3f ms, speedup %.1fx",
+                describe(name, boundary), edges.getMaxSurfaceID(), regionMS, edgesMS,
+                regionMS / Math.max(edgesMS, 0.001)
+        ), hasSameSurfaces(boundary, edges));
+    }
+
+    /**
+     * @return Whether the blocks of {@param boundary} are grouped into the same surfaces as in {@param region}.
+     */
+    private static boolean hasSameSurfaces(PreprocessedRegion region, ChunkBoundary boundary) {
+        if (region.getMaxSurfaceID() != boundary.getMaxSurfaceID())
+            return false;
+
+        // Surfaces may be numbered differently, but each must map to exactly one surface in the other
+        int[] regionToBoundary = new int[region.getMaxSurfaceID() + 1];
+        int[] boundaryToRegion = new int[boundary.getMaxSurfaceID() + 1];
+
+        for (int index = 0; index < boundary.getBlockCount(); ++index) {
+            int regionID = region.getSurfaceIDByWorldLoc(boundary.getX(index), boundary.getY(index), boundary.getZ(index));
+            int boundaryID = boundary.getSurfaceID(index);
+            if ((regionID == 0) != (boundaryID == 0))
+                return false;
+            if (regionID == 0)
+                continue;
+
+            if (regionToBoundary[regionID] == 0 && boundaryToRegion[boundaryID] == 0) {
+                regionToBoundary[regionID] = boundaryID;
+                boundaryToRegion[boundaryID] = regionID;
+            } else if (regionToBoundary[regionID] != boundaryID || boundaryToRegion[boundaryID] != regionID) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Compares the time taken to find paths across regions by A* searches, and by following a distance field
+     * to the end of the path. The time taken to create each field, and the memory it uses, are also reported.
+     */
+    @Test
+    public void benchmarkDistanceFields() {
+        report("Path refinement (A* vs. distance field):");
+
+        for (int size : SIZES) {
+            benchmarkDistanceFields("caves", createCaves(size));
+        }
+
+        for (int size : SIZES) {
+            benchmarkDistanceFields("forest", createForest(size));
+        }
+    }
+
+    private void benchmarkDistanceFields(String name, PreprocessedRegion region) {
+        BlockLoc[] endpoints = findDistantEndpoints(region);
+        if (endpoints == null) {
+            report("  " + describe(name, region) + ": no surfaces");
+            return;
+        }
+
+        BlockLoc start = endpoints[0];
+        BlockLoc end = endpoints[1];
+        int surfaceID = region.getSurfaceID(start);
+
+        List<BlockLoc> searchPath = null;
+        List<BlockLoc> fieldPath = null;
+        DistanceField field = null;
+
+        double searchMS = Double.MAX_VALUE;
+        double createMS = Double.MAX_VALUE;
+        double followMS = Double.MAX_VALUE;
+
+        for (int repeat = 0; repeat < REPEATS; ++repeat) {
+            Timer searchTimer = Timer.start();
+            searchPath = region.findPath(start, end);
+            searchMS = Math.min(searchMS, searchTimer.getDurationMS());
+
+            Timer createTimer = Timer.start();
+            field = region.createDistanceField(SearchWorkspace.current(), surfaceID, new BlockLoc[] {end});
+            createMS = Math.min(createMS, createTimer.getDurationMS());
+
+            Timer followTimer = Timer.start();
+            fieldPath = region.followDistanceField(field, start);
+            followMS = Math.min(followMS, followTimer.getDurationMS());
+        }
+
+        // Both are shortest paths, but may differ where there are many paths of the same length
+        boolean sameLength = (fieldPath != null && Math.abs(getLength(searchPath) - getLength(fieldPath)) < 0.001);
+
+        check(String.format(
+                "  %s: A* %.3f ms, field %.3f ms to create (%.1f KB), %.3f ms to follow, speedup %.1fx",
+                describe(name, region), searchMS, createMS, field.getByteLength() / 1024.0, followMS,
+                searchMS / Math.max(followMS, 0.001)
+        ), sameLength);
+    }
+
+    /**
+     * @return The total length of the steps between the blocks of {@param path}.
+     */
+    private static double getLength(List<BlockLoc> path) {
+        double length = 0;
+        for (int index = 1; index < path.size(); ++index) {
+            length += path.get(index - 1).distance(path.get(index));
+        }
+        return length;
+    }
+
+    /**
+     * Compares the time taken to pre-process regions with the time taken to load them from cache entries.
+     */
+    @Test
+    public void benchmarkCache() {
+        report("Chunk cache (rebuild vs. load from entry):");
+
+        for (int size : new int[] {16, 32, 64}) {
+            benchmarkCache("caves", size, CAVES_HEIGHT, createCavesSource(size));
+        }
+    }
+
+    private void benchmarkCache(String name, int size, int height, PreprocessedRegion.BlockTypeSource source) {
+        PreprocessedRegion region = new PreprocessedRegion(origin, size, height, size);
+        PreprocessedRegion loaded = new PreprocessedRegion(origin, size, height, size);
+
+        double rebuildMS = Double.MAX_VALUE;
+        double loadMS = Double.MAX_VALUE;
+        ByteBuffer entry = null;
+
+        try {
+            for (int repeat = 0; repeat < REPEATS; ++repeat) {
+                Timer rebuildTimer = Timer.start();
+                region.rebuild(source, MaterialTable.DEFAULT);
+                rebuildMS = Math.min(rebuildMS, rebuildTimer.getDurationMS());
+
+                entry = RegionCache.encode(region, repeat);
+
+                Timer loadTimer = Timer.start();
+                RegionCache.decode(entry, repeat, loaded);
+                loadMS = Math.min(loadMS, loadTimer.getDurationMS());
+            }
+        } catch (DataFormatException exception) {
+            fail(describe(name, region) + ": invalid entry, " + exception.getMessage());
+            return;
+        }
+
+        check(String.format(
+                "  %s: entry %.1f KB, rebuild %.2f ms, load %.2f ms, speedup %.1fx",
+                describe(name, region), entry.remaining() / 1024.0,
+                rebuildMS, loadMS, rebuildMS / Math.max(loadMS, 0.001)
+        ), hasSameSurfaces(region, loaded));
+    }
+
+    /**
+     * @return Whether every block of the regions {@param one} and {@param two}, which must be the
+     *         same size, has the same surface ID and connections in both regions.
+     */
+    private static boolean hasSameSurfaces(PreprocessedRegion one, PreprocessedRegion two) {
+        if (one.getMaxSurfaceID() != two.getMaxSurfaceID())
+            return false;
+
+        for (int x = 0; x < one.getWidth(); ++x) {
+            for (int y = 0; y < one.getHeight(); ++y) {
+                for (int z = 0; z < one.getDepth(); ++z) {
+                    if (one.getSurfaceID(x, y, z) != two.getSurfaceID(x, y, z))
+                        return false;
+                    if (one.getConnectionMask(x, y, z) != two.getConnectionMask(x, y, z))
+                        return false;
+                }
+            }
+        }
+
+        return true;
+    }
+
+    private static String describe(String name, PreprocessedRegion region) {
+        return name + " " + region.getWidth() + "x" + region.getHeight() + "x" + region.getDepth();
+    }
+
+    /**
+     * Creates a region the size of a chunk, filled with stone up to {@param groundY} and air above.
+     */
+    private PreprocessedRegion createChunk(int groundY) {
+        PreprocessedRegion region = new PreprocessedRegion(origin, 16, 256, 16);
+        region.rebuild((x, y, z) -> (y <= groundY ? Material.STONE : Material.AIR), MaterialTable.DEFAULT);
+        return region;
+    }
+
+    /**
+     * Creates a region with a single flat floor, split by a wall with a gap only at its far end.
+     */
+    private PreprocessedRegion createFlat(int size) {
+        PreprocessedRegion region = new PreprocessedRegion(origin, size, 8, size);
+        region.rebuild((x, y, z) -> {
+            if (y <= 1)
+                return Material.STONE;
+
+            boolean isWall = (x == size / 2 && z < size - 2);
+            return (isWall ? Material.STONE : Material.AIR);
+        }, MaterialTable.DEFAULT);
+        return region;
+    }
+
+    /**
+     * Creates a region of stone with a network of winding tunnels carved out of it.
+     * The top layer is lava so that the only surfaces are within the tunnels.
+     */
+    private PreprocessedRegion createCaves(int size) {
+        PreprocessedRegion region = new PreprocessedRegion(origin, size, CAVES_HEIGHT, size);
+        region.rebuild(createCavesSource(size), MaterialTable.DEFAULT);
+        return region;
+    }
+
+    /**
+     * @return The types of the blocks of the regions created by {@link #createCaves(int)}.
+     */
+    private static PreprocessedRegion.BlockTypeSource createCavesSource(int size) {
+        int height = CAVES_HEIGHT;
+        boolean[] carved = new boolean[size * height * size];
+
+        Random random = new Random(size);
+        int tunnels = Math.max(4, size * size / 128);
+        for (int tunnel = 0; tunnel < tunnels; ++tunnel) {
+            double x = random.nextInt(size);
+            double y = 4 + random.nextInt(height - 12);
+            double z = random.nextInt(size);
+            double angle = random.nextDouble() * Math.PI * 2;
+
+            for (int step = 0; step < size * 2; ++step) {
+                angle += (random.nextDouble() - 0.5) * 0.8;
+                x += Math.cos(angle);
+                z += Math.sin(angle);
+                y = Math.max(3, Math.min(height - 6, y + (random.nextDouble() - 0.5) * 0.6));
+
+                carve(carved, size, height, (int) x, (int) y, (int) z, 1 + random.nextInt(2));
+            }
+        }
+
+        return (x, y, z) -> {
+            if (y == height - 1)
+                return Material.LAVA;
+
+            return (carved[x + z * size + y * size * size] ? Material.CAVE_AIR : Material.STONE);
+        };
+    }
+
+    /**
+     * Creates a region of grass covered in trees, where the tops of the leaves form many small surfaces.
+     */
+    private PreprocessedRegion createForest(int size) {
+        int height = FOREST_HEIGHT;
+        Material[] types = new Material[size * height * size];
+
+        for (int y = 0; y < height; ++y) {
+            Material type = (y < 4 ? Material.DIRT : (y == 4 ? Material.GRASS_BLOCK : Material.AIR));
+            for (int index = 0; index < size * size; ++index) {
+                types[index + y * size * size] = type;
+            }
+        }
+
+        Random random = new Random(size);
+        int trees = Math.max(2, size * size / 24);
+        for (int tree = 0; tree < trees; ++tree) {
+            int treeX = random.nextInt(size);
+            int treeZ = random.nextInt(size);
+            int top = 8 + random.nextInt(4);
+            int radius = 1 + random.nextInt(2);
+
+            // Cover the top of the trunk with a rough ball of leaves
+            for (int x = Math.max(0, treeX - radius); x <= Math.min(size - 1, treeX + radius); ++x) {
+                for (int y = top - radius; y <= Math.min(height - 3, top + 1); ++y) {
+                    for (int z = Math.max(0, treeZ - radius); z <= Math.min(size - 1, treeZ + radius); ++z) {
+                        int dx = x - treeX;
+                        int dz = z - treeZ;
+                        if (dx*dx + dz*dz <= radius * radius + 1) {
+                            types[x + z * size + y * size * size] = Material.OAK_LEAVES;
+                        }
+                    }
+                }
+            }
+
+            for (int y = 5; y < top; ++y) {
+                types[treeX + treeZ * size + y * size * size] = Material.OAK_LOG;
+            }
+        }
+
+        PreprocessedRegion region = new PreprocessedRegion(origin, size, height, size);
+        region.rebuild((x, y, z) -> types[x + z * size + y * size * size], MaterialTable.DEFAULT);
+        return region;
+    }
+
+    /**
+     * Marks all blocks within {@param radius} of the given location as carved.
+     */
+    private static void carve(boolean[] carved, int size, int height, int cx, int cy, int cz, int radius) {
+        for (int x = Math.max(0, cx - radius); x <= Math.min(size - 1, cx + radius); ++x) {
+            for (int y = Math.max(1, cy - radius); y <= Math.min(height - 2, cy + radius + 1); ++y) {
+                for (int z = Math.max(0, cz - radius); z <= Math.min(size - 1, cz + radius); ++z) {
+                    int dx = x - cx;
+                    int dz = z - cz;
+                    if (dx*dx + dz*dz <= radius * radius) {
+                        carved[x + z * size + y * size * size] = true;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return Two blocks of the largest surface in {@param region} that are far apart,
+     *         or null if the region contains no surfaces.
+     */
+    private static BlockLoc[] findDistantEndpoints(PreprocessedRegion region) {
+        int[] surfaceSizes = new int[65536];
+        int largestSurface = 0;
+
+        for (int x = 0; x < region.getWidth(); ++x) {
+            for (int z = 0; z < region.getDepth(); ++z) {
+                for (int y = 0; y < region.getHeight(); ++y) {
+                    int surfaceID = region.getSurfaceID(x, y, z) & 0xFFFF;
+                    if (surfaceID == 0)
+                        continue;
+
+                    surfaceSizes[surfaceID] += 1;
+                    if (surfaceSizes[surfaceID] > surfaceSizes[largestSurface]) {
+                        largestSurface = surfaceID;
+                    }
+                }
+            }
+        }
+
+        if (largestSurface == 0)
+            return null;
+
+        BlockLoc first = null;
+        BlockLoc last = null;
+        for (int x = 0; x < region.getWidth(); ++x) {
+            for (int z = 0; z < region.getDepth(); ++z) {
+                for (int y = 0; y < region.getHeight(); ++y) {
+                    if (region.getSurfaceID(x, y, z) != largestSurface)
+                        continue;
+
+                    BlockLoc loc = new BlockLoc(x, y, z);
+                    if (first == null || x + z < first.x + first.z) {
+                        first = loc;
+                    }
+                    if (last == null || x + z > last.x + last.z) {
+                        last = loc;
+                    }
+                }
+            }
+        }
+
+        return new BlockLoc[] {first, last};
+    }
+
+    /**
+     * An A* search from {@param start} to {@param end} through {@param region}, using the linked priority
+     * queue as its open set. This is how regions were searched before the indexed heap was introduced.
+     *
+     * @return The cost of the path found, or infinity if no path was found.
+     */
+    private static double search(PreprocessedRegion region, BlockLoc start, BlockLoc end) {
+        int width = region.getWidth();
+        int depth = region.getDepth();
+        int blockCount = region.getBlockCount();
+
+        PriorityQueueLinked<Integer> openSet = new PriorityQueueLinked<>();
+        boolean[] explored = new boolean[blockCount];
+        boolean[] processed = new boolean[blockCount];
+        double[] foundCosts = new double[blockCount];
+
+        int endIndex = end.x + end.z * width + end.y * width * depth;
+        openSet.add(start.x + start.z * width + start.y * width * depth, 0);
+
+        while (!openSet.isEmpty()) {
+            int index = openSet.poll();
+            if (index == endIndex)
+                return foundCosts[index];
+
+            BlockLoc loc = region.reverseIndex(index);
+            int connectionMask = region.getConnectionMask(loc.x, loc.y, loc.z);
+            double cost = foundCosts[index];
+
+            processed[index] = true;
+
+            for (; connectionMask != 0; connectionMask &= connectionMask - 1) {
+                SurfaceConnection connection = SurfaceConnection.fromOrdinal(Integer.numberOfTrailingZeros(connectionMask));
+
+                int x = loc.x + connection.getDx();
+                int y = loc.y + connection.getDy();
+                int z = loc.z + connection.getDz();
+                int connectedIndex = x + z * width + y * width * depth;
+
+                if (processed[connectedIndex])
+                    continue;
+
+                boolean previouslyExplored = explored[connectedIndex];
+                explored[connectedIndex] = true;
+
+                double connectedCost = cost + connection.getDistance();
+                if (previouslyExplored && foundCosts[connectedIndex] <= connectedCost)
+                    continue;
+
+                foundCosts[connectedIndex] = connectedCost;
+
+                // The linked queue polls the highest priorities first
+                double priority = connectedCost + Math.sqrt(end.distanceSquared(x, y, z));
+                if (previouslyExplored) {
+                    openSet.reprioritize(connectedIndex, -priority);
+                } else {
+                    openSet.add(connectedIndex, -priority);
+                }
+            }
+        }
+
+        return Double.POSITIVE_INFINITY;
+    }
+}
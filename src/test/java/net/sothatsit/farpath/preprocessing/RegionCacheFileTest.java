@@ -0,0 +1,222 @@
+package net.sothatsit.farpath.preprocessing;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the entries of cache files are rewritten in place where they fit, that the space left
+ * behind by entries that outgrow their space is reclaimed, and that every entry survives both.
+ *
+ * @author Paddy Lamont
+ */
+public class RegionCacheFileTest {
+
+    private static final int FORMAT_VERSION = 1;
+
+    // The size of the header of a file, and the position of the description of the first entry in it
+    private static final int HEADER_SIZE = 16 + RegionCacheFile.SIZE * RegionCacheFile.SIZE * 16;
+    private static final int PREAMBLE_SIZE = 16;
+
+    private static final int KB = 1024;
+
+    private File directory;
+    private File path;
+
+    @Before
+    public void setup() throws IOException {
+        directory = Files.createTempDirectory("farpath-cache").toFile();
+        path = new File(directory, "r.0.0.fpc");
+    }
+
+    @After
+    public void cleanup() {
+        path.delete();
+        directory.delete();
+    }
+
+    @Test
+    public void testRewritesInPlaceUpToCapacity() throws IOException {
+        Random random = new Random(1);
+
+        try (RegionCacheFile file = new RegionCacheFile(path, FORMAT_VERSION)) {
+            write(file, 0, 0, randomBytes(random, 1000));
+            write(file, 1, 0, randomBytes(random, 1000));
+            long size = path.length();
+
+            // Shrinking an entry keeps the whole of its space, so it can grow back in place
+            byte[] shrunk = randomBytes(random, 500);
+            write(file, 0, 0, shrunk);
+            assertEquals("the shrunk entry was not rewritten in place", size, path.length());
+            assertEntry(file, 0, 0, shrunk);
+
+            byte[] regrown = randomBytes(random, 1000);
+            write(file, 0, 0, regrown);
+            assertEquals("the regrown entry was not rewritten in place", size, path.length());
+            assertEntry(file, 0, 0, regrown);
+
+            // Entries that outgrow their space are appended
+            byte[] grown = randomBytes(random, 1001);
+            write(file, 0, 0, grown);
+            assertEquals("the grown entry was not appended", size + 1001, path.length());
+            assertEntry(file, 0, 0, grown);
+        }
+    }
+
+    @Test
+    public void testCompactsOverlappingEntries() throws IOException {
+        Random random = new Random(2);
+        Map<Integer, byte[]> entries = new HashMap<>();
+
+        try (RegionCacheFile file = new RegionCacheFile(path, FORMAT_VERSION)) {
+            put(file, entries, 0, randomBytes(random, 100 * KB));
+            put(file, entries, 1, randomBytes(random, 1200 * KB));
+            put(file, entries, 2, randomBytes(random, 1200 * KB));
+
+            // The first entry leaves a gap smaller than the entry after it, which then overlaps itself when moved
+            put(file, entries, 0, randomBytes(random, 110 * KB));
+
+            long longest = 0;
+            for (int length = 1300; path.length() >= longest; length += 100) {
+                longest = path.length();
+                put(file, entries, 2, randomBytes(random, length * KB));
+            }
+
+            assertEquals("the file was not truncated to its entries", HEADER_SIZE + getTotalLength(entries), path.length());
+            assertEntries(file, entries);
+        }
+
+        try (RegionCacheFile file = new RegionCacheFile(path, FORMAT_VERSION)) {
+            assertEntries(file, entries);
+        }
+    }
+
+    @Test
+    public void testStaysBoundedUnderRewrites() throws IOException {
+        Random random = new Random(3);
+        Map<Integer, byte[]> entries = new HashMap<>();
+        boolean compacted = false;
+
+        try (RegionCacheFile file = new RegionCacheFile(path, FORMAT_VERSION)) {
+            for (int write = 0; write < 5000; ++write) {
+                long sizeBefore = path.length();
+
+                // Entries grow, shrink and are rewritten at the same size
+                int chunk = random.nextInt(64);
+                byte[] previous = entries.get(chunk);
+                int length = (previous == null || random.nextBoolean()
+                        ? 1 + random.nextInt(8 * KB)
+                        : previous.length);
+
+                put(file, entries, chunk, randomBytes(random, length));
+
+                // Check the entries as soon as they are moved, before they are rewritten
+                if (path.length() < sizeBefore) {
+                    compacted = true;
+                    assertEntries(file, entries);
+                }
+            }
+
+            assertTrue("the file was never compacted", compacted);
+            assertTrue("the file grew to " + path.length() + " bytes", path.length() < HEADER_SIZE + 4L * KB * KB);
+            assertEntries(file, entries);
+        }
+
+        try (RegionCacheFile file = new RegionCacheFile(path, FORMAT_VERSION)) {
+            assertEntries(file, entries);
+        }
+    }
+
+    @Test
+    public void testReadsFilesWithoutCapacities() throws IOException {
+        Random random = new Random(4);
+        Map<Integer, byte[]> entries = new HashMap<>();
+
+        try (RegionCacheFile file = new RegionCacheFile(path, FORMAT_VERSION)) {
+            put(file, entries, 0, randomBytes(random, 2000));
+            put(file, entries, 1, randomBytes(random, 3000));
+        }
+
+        // Files written before capacities were recorded hold 0 in their place
+        try (RandomAccessFile raw = new RandomAccessFile(path, "rw")) {
+            for (int index = 0; index < 2; ++index) {
+                raw.seek(PREAMBLE_SIZE + index * 16 + 12);
+                raw.writeInt(0);
+            }
+        }
+
+        try (RegionCacheFile file = new RegionCacheFile(path, FORMAT_VERSION)) {
+            assertEntries(file, entries);
+            long size = path.length();
+
+            // The length of the entry is taken as its capacity
+            put(file, entries, 0, randomBytes(random, 1500));
+            put(file, entries, 0, randomBytes(random, 2000));
+            assertEquals("the entry was not rewritten in place", size, path.length());
+
+            put(file, entries, 1, randomBytes(random, 3001));
+            assertEquals("the grown entry was not appended", size + 3001, path.length());
+            assertEntries(file, entries);
+        }
+
+        try (RegionCacheFile file = new RegionCacheFile(path, FORMAT_VERSION)) {
+            assertEntries(file, entries);
+        }
+    }
+
+    private static byte[] randomBytes(Random random, int length) {
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    private static void write(RegionCacheFile file, int localX, int localZ, byte[] data) throws IOException {
+        file.write(localX, localZ, ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Write {@param data} as the entry of the chunk {@param chunk} of {@param file}, and record it in {@param entries}.
+     */
+    private static void put(RegionCacheFile file, Map<Integer, byte[]> entries, int chunk, byte[] data) throws IOException {
+        write(file, chunk % RegionCacheFile.SIZE, chunk / RegionCacheFile.SIZE, data);
+        entries.put(chunk, data);
+    }
+
+    private static long getTotalLength(Map<Integer, byte[]> entries) {
+        long length = 0;
+        for (byte[] data : entries.values()) {
+            length += data.length;
+        }
+        return length;
+    }
+
+    private static void assertEntry(RegionCacheFile file, int localX, int localZ, byte[] expected) throws IOException {
+        ByteBuffer entry = file.read(localX, localZ);
+        assertNotNull("the entry of " + localX + ", " + localZ + " is missing", entry);
+
+        byte[] actual = new byte[entry.remaining()];
+        entry.get(actual);
+        assertTrue("the entry of " + localX + ", " + localZ + " differs", Arrays.equals(expected, actual));
+    }
+
+    private static void assertEntries(RegionCacheFile file, Map<Integer, byte[]> entries) throws IOException {
+        for (Map.Entry<Integer, byte[]> entry : entries.entrySet()) {
+            int chunk = entry.getKey();
+            assertEntry(file, chunk % RegionCacheFile.SIZE, chunk / RegionCacheFile.SIZE, entry.getValue());
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package net.sothatsit.farpath.preprocessing;
+
+import org.bukkit.Material;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Checks that the search kernel of regions does not allocate once its workspace has grown to fit.
+ *
+ * @author Paddy Lamont
+ */
+public class SearchAllocationTest {
+
+    private static final int SIZE = 64;
+    private static final int HEIGHT = 8;
+
+    /**
+     * The number of searches run to measure the allocations of the search kernel.
+     */
+    private static final int SEARCHES = 50;
+
+    /**
+     * The most bytes the search kernel may allocate per expanded block. Searches should not allocate
+     * at all once warmed up, this just leaves room for the measurement itself to allocate.
+     */
+    private static final double BUDGET = 0.01;
+
+    private com.sun.management.ThreadMXBean allocationBean;
+
+    @Before
+    public void setup() {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        assumeTrue("the JVM does not measure the memory allocated by threads",
+                threadBean instanceof com.sun.management.ThreadMXBean);
+
+        allocationBean = (com.sun.management.ThreadMXBean) threadBean;
+        assumeTrue("the JVM does not measure the memory allocated by threads",
+                allocationBean.isThreadAllocatedMemorySupported() && allocationBean.isThreadAllocatedMemoryEnabled());
+    }
+
+    @Test
+    public void testSearchAroundWall() {
+        // A wall across most of the region, so that the search has to go around it
+        PreprocessedRegion region = createRegion((x, y, z) -> {
+            if (y <= 1)
+                return Material.STONE;
+
+            boolean isWall = (x == SIZE / 2 && z < SIZE - 2);
+            return (isWall ? Material.STONE : Material.AIR);
+        });
+
+        assertNoAllocations(region, new BlockLoc(0, 1, 0), new BlockLoc(SIZE - 1, 1, 0));
+    }
+
+    @Test
+    public void testSearchThroughPillars() {
+        // Pillars spread over the region, so that many blocks are reprioritised as the search runs
+        PreprocessedRegion region = createRegion((x, y, z) -> {
+            if (y <= 1)
+                return Material.STONE;
+
+            boolean isPillar = (x % 4 == 2 && z % 4 == 2);
+            return (isPillar ? Material.OAK_LOG : Material.AIR);
+        });
+
+        assertNoAllocations(region, new BlockLoc(0, 1, 0), new BlockLoc(SIZE - 1, 1, SIZE - 1));
+    }
+
+    private PreprocessedRegion createRegion(PreprocessedRegion.BlockTypeSource source) {
+        PreprocessedRegion region = new PreprocessedRegion(new BlockLoc(0, 0, 0), SIZE, HEIGHT, SIZE);
+        region.rebuild(source, MaterialTable.DEFAULT);
+        return region;
+    }
+
+    private void assertNoAllocations(PreprocessedRegion region, BlockLoc start, BlockLoc end) {
+        BlockLoc[] goals = {end};
+        int surfaceID = region.getSurfaceID(start);
+        int volume = region.getBlockCount();
+
+        assertTrue("the start is not on a surface", surfaceID != 0);
+        assertTrue("the start and end are not on the same surface", region.getSurfaceID(end) == surfaceID);
+
+        // Warm up the search so that the workspace has grown to fit the region
+        for (int search = 0; search < SEARCHES; ++search) {
+            assertTrue("no path was found", region.search(SearchWorkspace.begin(volume), surfaceID, start, goals));
+        }
+
+        long threadID = Thread.currentThread().getId();
+        long expansions = 0;
+
+        long allocatedBefore = allocationBean.getThreadAllocatedBytes(threadID);
+        for (int search = 0; search < SEARCHES; ++search) {
+            SearchWorkspace workspace = SearchWorkspace.begin(volume);
+            region.search(workspace, surfaceID, start, goals);
+            expansions += workspace.getExpansions();
+        }
+        long allocated = allocationBean.getThreadAllocatedBytes(threadID) - allocatedBefore;
+
+        double bytesPerExpansion = (double) allocated / Math.max(1, expansions);
+        assertTrue(String.format(
+                "%d bytes allocated over %d expansions, %.4f bytes per expansion",
+                allocated, expansions, bytesPerExpansion
+        ), bytesPerExpansion <= BUDGET);
+    }
+}